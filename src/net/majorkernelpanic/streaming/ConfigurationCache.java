@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming;
+
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * An in-memory cache of the results of the tests run by the streams when they are configured.
+ *
+ * Learning the SPS and PPS of an H.264 stream requires to run the encoder (or even to record a
+ * test file with the MediaRecorder API), which makes {@link Stream#configure()} slow. Every
+ * session configured with the same codec, quality and API can reuse what the first one found.
+ * The keys are built with {@link #key(String, int, Object...)} and must contain everything the
+ * result depends on, so that a change of configuration is a cache miss. The values use the same
+ * comma separated format as the SharedPreferences where libstreaming already persists them.
+ */
+public class ConfigurationCache {
+    public static final String TAG = ConfigurationCache.class.getSimpleName();
+
+    private static final HashMap<String, String> sCache = new HashMap<>();
+
+    private ConfigurationCache() {
+    }
+
+    /**
+     * Builds a key.
+     *
+     * @param codec  The name of the codec, for instance "h264"
+     * @param mode   The API requested by the stream, see
+     *               {@link MediaStream#setStreamingMethod(byte)}
+     * @param params Everything else the configuration depends on (resolution, frame rate...)
+     */
+    public static String key(String codec, int mode, Object... params) {
+        StringBuilder sb = new StringBuilder(codec).append('-').append(mode);
+        for (Object param : params) {
+            sb.append('-').append(param);
+        }
+        return sb.toString();
+    }
+
+    /** Returns the cached value associated with the key or null. */
+    public static String get(String key) {
+        synchronized (sCache) {
+            return sCache.get(key);
+        }
+    }
+
+    /** Associates a value with the key. */
+    public static void put(String key, String value) {
+        synchronized (sCache) {
+            sCache.put(key, value);
+        }
+    }
+
+    /**
+     * Removes a value from the cache.
+     * Should be called when a stream fails to start with a cached configuration.
+     */
+    public static void invalidate(String key) {
+        synchronized (sCache) {
+            if (sCache.remove(key) != null) {
+                Log.d(TAG, "Invalidated: " + key);
+            }
+        }
+    }
+
+    /** Removes all values from the cache, for instance after a change of camera or encoder. */
+    public static void clear() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+}
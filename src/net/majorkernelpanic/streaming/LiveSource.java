@@ -0,0 +1,733 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.rtcp.ReceiverReport;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtp.RtpSubscriber;
+import net.majorkernelpanic.streaming.rtp.TimeShiftBuffer;
+import net.majorkernelpanic.streaming.rtp.TimeShiftPlayer;
+import net.majorkernelpanic.streaming.video.BaseVideoStream;
+import net.majorkernelpanic.streaming.video.VideoQuality;
+import net.majorkernelpanic.streaming.video.VideoStream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A live audio/video source encoded once and shared by any number of clients.
+ * You should instantiate this class with {@link SessionBuilder#buildLiveSource(VideoQuality...)}.
+ *
+ * The video is encoded in a small ladder of renditions (for instance 1080p, 540p and 270p), so
+ * the number of encoders does not depend on the number of clients. Each client is a
+ * {@link Viewer} that receives one rendition, picked from the quality it asked for, and is moved
+ * to a lower rendition when its Receiver Reports show losses, and back up when they don't
+ * anymore. Switches happen on a key frame of the new rendition, which carries its SPS and PPS.
+ * A viewer that already receives the lowest rendition and still loses packets gets no more
+ * disposable pictures, which only helps if the encoders produce some (see
+ * {@link BaseVideoStream#setTemporalLayers(int)}).
+ *
+ * The encoders are started with the first viewer. Viewers come and go all the time and a cold
+ * start (opening the camera, measuring its frame rate, creating the encoders) is what they wait
+ * for the most, so when the last viewer leaves:
+ * <ul>
+ * <li>the encoders keep running during the linger time, a viewer coming back in the meantime
+ * only waits for the next key frame, see {@link #setLingerTime(int)};</li>
+ * <li>the encoders are then stopped, but the camera stays open and the configuration is kept,
+ * so that they can be restarted quickly;</li>
+ * <li>the camera is closed and the configuration forgotten after the idle timeout, see
+ * {@link #setIdleTimeout(int)}.</li>
+ * </ul>
+ *
+ * The last minutes of the source can be recorded in a {@link TimeShiftBuffer}, viewers can then
+ * start from an earlier point in time with {@link Viewer#seek(long, float)}. The encoders run
+ * all the time in that case.
+ *
+ * Subclasses can share streams that are not encoded by the phone, see
+ * {@link net.majorkernelpanic.streaming.rtsp.IngestSource} and
+ * {@link net.majorkernelpanic.streaming.rtsp.RelaySource}.
+ */
+public class LiveSource {
+    public static final String TAG = LiveSource.class.getSimpleName();
+
+    /** Maximum number of renditions, that is of video encoders running at the same time. */
+    public static final int MAX_RENDITIONS = 3;
+
+    // A viewer losing more than that is moved to a lower rendition
+    private static final float LOSS_SWITCH_DOWN = 0.10f;
+    // A viewer losing less than that for a few reports is moved back to a higher rendition
+    private static final float LOSS_SWITCH_UP = 0.02f;
+    private static final int GOOD_REPORTS_SWITCH_UP = 4;
+
+    // Number of packets of video kept for the viewers that join, about 2 seconds at 4 Mbps
+    protected static final int GOP_CACHE_SIZE = 800;
+
+    /** Default linger time in milliseconds, see {@link #setLingerTime(int)}. */
+    public static final int DEFAULT_LINGER_TIME = 5000;
+
+    /** Default idle timeout in milliseconds, see {@link #setIdleTimeout(int)}. */
+    public static final int DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private final Session mSession;
+    private final ArrayList<Viewer> mViewers = new ArrayList<>();
+    private final long mTimestamp = System.currentTimeMillis();
+    private final HandlerThread mHandlerThread = new HandlerThread("LiveSource");
+    private final Handler mHandler;
+    private final Runnable mLinger = this::linger;
+    private final Runnable mIdle = this::idle;
+
+    // Sorted by decreasing bit rate, the first one is the video track of the session
+    private BaseVideoStream[] mRenditions;
+    private boolean mConfigured = false;
+    private int mLingerTime = DEFAULT_LINGER_TIME;
+    private int mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+    // True when the camera has been kept open by the source after the encoders were stopped
+    private boolean mWarm = false;
+    private TimeShiftBuffer mTimeShift;
+
+    /**
+     * @param session    The session whose tracks are shared, its video track is the first
+     *                   rendition
+     * @param renditions The video renditions, sorted by decreasing bit rate
+     */
+    protected LiveSource(Session session, BaseVideoStream[] renditions) {
+        mSession = session;
+        mRenditions = renditions;
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        for (int id = 0; id < 2; id++) {
+            if (session.getTrack(id) instanceof MediaStream) {
+                ((MediaStream) session.getTrack(id)).setShared(true);
+            }
+        }
+        for (BaseVideoStream rendition : renditions) {
+            rendition.setShared(true);
+        }
+    }
+
+    /**
+     * Configures the streams and the encoders of all the renditions, does nothing if the source
+     * has already been configured. Renditions that can't be encoded by the phone are removed
+     * from the ladder.
+     */
+    public synchronized void configure() throws IllegalStateException, IOException {
+        if (mConfigured) {
+            return;
+        }
+        mSession.syncConfigure();
+        ArrayList<BaseVideoStream> renditions = new ArrayList<>();
+        for (int i = 0; i < mRenditions.length; i++) {
+            BaseVideoStream rendition = mRenditions[i];
+            if (i > 0) {
+                // Additional renditions are rendered from the preview of the first one
+                if (mRenditions[0].getStreamingMethod() != MediaStream.MODE_MEDIACODEC_API_2) {
+                    Log.w(TAG, "Only one rendition can be encoded without a surface");
+                    break;
+                }
+                try {
+                    rendition.configure();
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Rendition not supported: " + rendition.getVideoQuality(), e);
+                    continue;
+                }
+            }
+            renditions.add(rendition);
+        }
+        mRenditions = renditions.toArray(new BaseVideoStream[0]);
+        // A viewer joining starts with the last key frame instead of asking for a new one
+        for (BaseVideoStream rendition : mRenditions) {
+            rendition.getPacketizer().getRtpSocket().setGopCacheSize(GOP_CACHE_SIZE);
+        }
+        mConfigured = true;
+    }
+
+    /**
+     * Sets how long the encoders keep running after the last viewer has left.
+     *
+     * @param lingerTime The linger time in milliseconds, 0 to stop the encoders right away
+     */
+    public synchronized void setLingerTime(int lingerTime) {
+        mLingerTime = lingerTime;
+    }
+
+    public synchronized int getLingerTime() {
+        return mLingerTime;
+    }
+
+    /**
+     * Sets how long the camera stays open and the configuration is kept after the encoders have
+     * been stopped for lack of viewers.
+     *
+     * @param idleTimeout The timeout in milliseconds, 0 to close the camera with the encoders
+     */
+    public synchronized void setIdleTimeout(int idleTimeout) {
+        mIdleTimeout = idleTimeout;
+    }
+
+    public synchronized int getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * Records the source in a time-shift buffer, the encoders are started and keep running
+     * without viewers. The highest rendition is recorded.
+     *
+     * @param buffer The buffer, or null to stop recording
+     */
+    public synchronized void setTimeShiftBuffer(TimeShiftBuffer buffer) throws IOException {
+        if (mTimeShift != null) {
+            mTimeShift.setSource(0, null);
+            mTimeShift.setSource(1, null);
+        }
+        mTimeShift = buffer;
+        if (buffer != null) {
+            mHandler.removeCallbacks(mLinger);
+            mHandler.removeCallbacks(mIdle);
+            startEncoders();
+            for (int id = 0; id < 2; id++) {
+                buffer.setSource(id, trackExists(id) ? getRtpSocket(id, 0) : null);
+            }
+        } else if (mViewers.isEmpty()) {
+            mHandler.postDelayed(mLinger, mLingerTime);
+        }
+    }
+
+    public synchronized TimeShiftBuffer getTimeShiftBuffer() {
+        return mTimeShift;
+    }
+
+    /** Returns the number of renditions, call this after {@link #configure()}. */
+    public synchronized int getRenditionCount() {
+        return mRenditions.length;
+    }
+
+    /** Returns the quality of a rendition, the first one has the highest bit rate. */
+    public synchronized VideoQuality getRendition(int index) {
+        return mRenditions[index].getVideoQuality();
+    }
+
+    /**
+     * Returns the best rendition that does not exceed the quality asked by a client.
+     *
+     * @param hint The quality asked by the client, or null to get the best rendition
+     */
+    public synchronized int selectRendition(VideoQuality hint) {
+        if (hint == null) {
+            return 0;
+        }
+        for (int i = 0; i < mRenditions.length; i++) {
+            VideoQuality quality = mRenditions[i].getVideoQuality();
+            if ((hint.bitrate <= 0 || quality.bitrate <= hint.bitrate)
+                    && (hint.resY <= 0 || quality.resY <= hint.resY)) {
+                return i;
+            }
+        }
+        return Math.max(0, mRenditions.length - 1);
+    }
+
+    /** Indicates if the source has an audio (0) or a video (1) track. */
+    public boolean trackExists(int id) {
+        return mSession.trackExists(id);
+    }
+
+    /** Returns the shared audio track, or null. */
+    public AudioStream getAudioTrack() {
+        return mSession.getAudioTrack();
+    }
+
+    /**
+     * Returns a Session Description for a client receiving a rendition.
+     *
+     * @param origin      The address of the server
+     * @param destination The address of the client
+     * @param rendition   The index of the rendition
+     */
+    public synchronized String getSessionDescription(String origin, String destination,
+            int rendition) {
+        StringBuilder sessionDescription = new StringBuilder();
+        sessionDescription.append("v=0\r\n");
+        sessionDescription.append("o=- ").append(mTimestamp).append(' ').append(mTimestamp)
+                .append(" IN IP4 ").append(origin).append("\r\n");
+        sessionDescription.append("s=Unnamed\r\n");
+        sessionDescription.append("i=N/A\r\n");
+        sessionDescription.append("c=IN IP4 ").append(destination).append("\r\n");
+        sessionDescription.append("t=0 0\r\n");
+        sessionDescription.append("a=recvonly\r\n");
+        if (mSession.getAudioTrack() != null) {
+            sessionDescription.append(mSession.getAudioTrack().getSessionDescription());
+            sessionDescription.append("a=control:trackID=0\r\n");
+        }
+        if (mSession.getVideoTrack() != null) {
+            sessionDescription.append(mRenditions[rendition].getSessionDescription());
+            sessionDescription.append("a=control:trackID=1\r\n");
+        }
+        return sessionDescription.toString();
+    }
+
+    /**
+     * Creates a client of the source.
+     *
+     * @param destination The address of the client
+     * @param rendition   The highest rendition the client may receive, see
+     *                    {@link #selectRendition(VideoQuality)}
+     */
+    public synchronized Viewer createViewer(InetAddress destination, int rendition) {
+        // The encoders or the camera are still warm
+        mHandler.removeCallbacks(mLinger);
+        mHandler.removeCallbacks(mIdle);
+        Viewer viewer = new Viewer(destination, rendition);
+        mViewers.add(viewer);
+        return viewer;
+    }
+
+    /** Returns the number of clients of the source. */
+    public synchronized int getViewerCount() {
+        return mViewers.size();
+    }
+
+    /** Indicates if the encoders are running, they are stopped after the linger time. */
+    public boolean isStreaming() {
+        return mSession.isStreaming();
+    }
+
+    /** Returns the bit rate produced by all the encoders in bit per second. */
+    public synchronized long getBitrate() {
+        long bitrate = mSession.getBitrate();
+        for (int i = 1; i < mRenditions.length; i++) {
+            bitrate += mRenditions[i].getBitrate();
+        }
+        return bitrate;
+    }
+
+    /** Stops the encoders, closes the camera and disconnects all the viewers. */
+    public synchronized void stop() {
+        for (Viewer viewer : new ArrayList<>(mViewers)) {
+            viewer.release();
+        }
+        mHandler.removeCallbacks(mLinger);
+        mHandler.removeCallbacks(mIdle);
+        stopEncoders();
+        closeCamera();
+    }
+
+    /** Stops the encoders and releases the streams. */
+    public synchronized void release() {
+        stop();
+        mHandlerThread.quit();
+        mSession.release();
+    }
+
+    /** Starts the encoders, if needed. */
+    protected void startEncoders() throws IOException {
+        if (mSession.isStreaming()) {
+            return;
+        }
+        configure();
+        int[] ids = new int[2];
+        int count = 0;
+        for (int id = 1; id >= 0; id--) {
+            if (mSession.trackExists(id)) {
+                ids[count++] = id;
+            }
+        }
+        mSession.syncStartTracks(Arrays.copyOf(ids, count));
+        try {
+            for (int i = 1; i < mRenditions.length; i++) {
+                mRenditions[i].start();
+            }
+        } catch (IOException | RuntimeException e) {
+            stopEncoders();
+            throw e;
+        }
+        Log.i(TAG, "Encoding " + mRenditions.length + " rendition(s)");
+    }
+
+    /** Stops the encoders. */
+    protected void stopEncoders() {
+        // The additional renditions are rendered by the first one, they are stopped first
+        for (int i = mRenditions.length - 1; i > 0; i--) {
+            mRenditions[i].stop();
+        }
+        mSession.syncStop();
+    }
+
+    /** Called when the linger time has elapsed without viewers: keeps the camera warm. */
+    private synchronized void linger() {
+        if (!mViewers.isEmpty() || mTimeShift != null) {
+            return;
+        }
+        if (isStreaming()) {
+            BaseVideoStream video = mSession.getVideoTrack();
+            if (mIdleTimeout > 0 && video instanceof VideoStream
+                    && !((VideoStream) video).isCameraOpenedManually()) {
+                // The camera stays open when the encoders are stopped
+                try {
+                    ((VideoStream) video).startPreview();
+                    mWarm = true;
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "The camera can't be kept open", e);
+                }
+            }
+            Log.i(TAG, "No more viewers, encoders stopped");
+            stopEncoders();
+        }
+        if (mWarm || mConfigured) {
+            mHandler.postDelayed(mIdle, mIdleTimeout);
+        }
+    }
+
+    /** Called when the idle timeout has elapsed without viewers: releases everything. */
+    private synchronized void idle() {
+        if (!mViewers.isEmpty() || isStreaming()) {
+            return;
+        }
+        Log.i(TAG, "Idle, camera closed");
+        closeCamera();
+        // The encoders will be tested again, mostly from the ConfigurationCache
+        mConfigured = false;
+    }
+
+    private void closeCamera() {
+        if (mWarm) {
+            mWarm = false;
+            ((VideoStream) mSession.getVideoTrack()).stopPreview();
+        }
+    }
+
+    /** Returns the socket whose packets are sent to the viewers of a track and rendition. */
+    protected RtpSocket getRtpSocket(int trackId, int rendition) {
+        MediaStream stream = trackId == 0 ? mSession.getAudioTrack() : mRenditions[rendition];
+        return stream.getPacketizer().getRtpSocket();
+    }
+
+    /** Returns the bit rate a viewer of a track and rendition needs, in bit per second. */
+    protected int getTrackBitrate(int trackId, int rendition) {
+        return trackId == 0 ? mSession.getAudioTrack().getAudioQuality().bitRate
+                : mRenditions[rendition].getVideoQuality().bitrate;
+    }
+
+    /** Asks the encoder of a rendition for a key frame. */
+    protected void requestSyncFrame(int rendition) {
+        mRenditions[rendition].requestSyncFrame();
+    }
+
+    /** Moves a viewer to another rendition, called from the RTCP thread of the viewer. */
+    private synchronized void switchRendition(Viewer viewer, int rendition) {
+        if (!mViewers.contains(viewer) || viewer.mSubscribers[1] == null) {
+            return;
+        }
+        Log.i(TAG, "Switching viewer " + viewer.mDestination.getHostAddress() + " to "
+                + mRenditions[rendition].getVideoQuality());
+        viewer.mRendition = rendition;
+        viewer.mSubscribers[1].switchTo(getRtpSocket(1, rendition));
+        // The switch is done on the next key frame, which should come quickly
+        requestSyncFrame(rendition);
+    }
+
+    private synchronized void play(Viewer viewer) throws IOException {
+        startEncoders();
+        for (int id = 0; id < 2; id++) {
+            if (viewer.mSubscribers[id] != null) {
+                viewer.mSubscribers[id].play(id == 1);
+            }
+        }
+        // Only when the group of pictures cached by the socket could not be replayed
+        if (viewer.mSubscribers[1] != null && viewer.mSubscribers[1].isWaitingSyncPoint()) {
+            requestSyncFrame(viewer.mRendition);
+        }
+    }
+
+    private synchronized void remove(Viewer viewer) {
+        if (mViewers.remove(viewer) && mViewers.isEmpty() && mTimeShift == null) {
+            mHandler.postDelayed(mLinger, mLingerTime);
+        }
+    }
+
+    /**
+     * A client of the {@link LiveSource}.
+     * Its tracks are set up with {@link #setup(int, int, int)}, then it receives packets after a
+     * call to {@link #play()}.
+     */
+    public class Viewer implements RtpSubscriber.Callback {
+        private final InetAddress mDestination;
+        private final RtpSubscriber[] mSubscribers = new RtpSubscriber[2];
+        // The viewer is never moved back above it, its bandwidth has been reserved for it
+        private int mHighestRendition;
+        private volatile int mRendition;
+        private int mHighestLayer = RtpSocket.LAYER_DISPOSABLE;
+        private int mLayer = RtpSocket.LAYER_DISPOSABLE;
+        private int mGoodReports = 0;
+        // Feeds the subscribers while the viewer is time shifted
+        private TimeShiftPlayer mPlayer;
+
+        private Viewer(InetAddress destination, int rendition) {
+            mDestination = destination;
+            mHighestRendition = rendition;
+            mRendition = rendition;
+        }
+
+        /**
+         * Sets up a track of the viewer, packets are sent when {@link #play()} is called.
+         *
+         * @param trackId  0 for audio, 1 for video
+         * @param rtpPort  Destination port that will be used for RTP
+         * @param rtcpPort Destination port that will be used for RTCP
+         * @return The subscriber that sends the packets of the track to the client
+         */
+        public RtpSubscriber setup(int trackId, int rtpPort, int rtcpPort) throws IOException {
+            synchronized (LiveSource.this) {
+                if (mSubscribers[trackId] != null) {
+                    mSubscribers[trackId].close();
+                }
+                RtpSubscriber subscriber = new RtpSubscriber(mDestination, rtpPort, rtcpPort);
+                subscriber.switchTo(getRtpSocket(trackId, mRendition));
+                if (trackId == 1) {
+                    subscriber.setMaxLayer(mLayer);
+                    subscriber.setCallback(this);
+                }
+                mSubscribers[trackId] = subscriber;
+                return subscriber;
+            }
+        }
+
+        /** Returns the subscriber of a track, or null if it has not been set up. */
+        public RtpSubscriber getSubscriber(int trackId) {
+            return mSubscribers[trackId];
+        }
+
+        /**
+         * Thins the video out, for instance {@link RtpSocket#LAYER_INTRA} gives an intra-only
+         * feed suitable for a wall of monitors. The layer is lowered further when the viewer
+         * loses packets, but never raised above this one.
+         *
+         * @param layer The highest layer sent to the client, see
+         *              {@link RtpSubscriber#setMaxLayer(int)}
+         */
+        public void setMaxLayer(int layer) {
+            synchronized (LiveSource.this) {
+                mHighestLayer = mLayer = layer;
+                if (mSubscribers[1] != null) {
+                    mSubscribers[1].setMaxLayer(layer);
+                }
+            }
+        }
+
+        private void setLayer(int layer) {
+            synchronized (LiveSource.this) {
+                Log.i(TAG, "Viewer " + mDestination.getHostAddress() + " now gets layers up to "
+                        + layer);
+                mLayer = layer;
+                if (mSubscribers[1] != null) {
+                    mSubscribers[1].setMaxLayer(layer);
+                }
+            }
+        }
+
+        /** Returns the index of the rendition received by the viewer. */
+        public int getRendition() {
+            return mRendition;
+        }
+
+        /**
+         * Receives a lower rendition, before {@link #play()} is called. Can be used when the
+         * network can't carry the rendition chosen when the viewer was created, the viewer is
+         * then never moved back to a higher one.
+         *
+         * @return false if the viewer already receives the lowest rendition
+         */
+        public boolean downgrade() {
+            synchronized (LiveSource.this) {
+                if (mRendition >= mRenditions.length - 1) {
+                    return false;
+                }
+                switchRendition(this, mRendition + 1);
+                if (mSubscribers[1] == null) {
+                    mRendition++;
+                }
+                mHighestRendition = mRendition;
+                return true;
+            }
+        }
+
+        /**
+         * Returns the bit rate the viewer needs, including a track that is about to be set up.
+         *
+         * @param trackId The track about to be set up, or -1
+         */
+        public int getBitrate(int trackId) {
+            synchronized (LiveSource.this) {
+                int bitrate = 0;
+                for (int id = 0; id < 2; id++) {
+                    if (mSubscribers[id] != null || trackId == id) {
+                        bitrate += getTrackBitrate(id, mRendition);
+                    }
+                }
+                return bitrate;
+            }
+        }
+
+        /**
+         * Starts the encoders if needed and sends packets to the client, from the point set with
+         * {@link #seek(long, float)} if any.
+         */
+        public void play() throws IOException {
+            synchronized (LiveSource.this) {
+                if (mPlayer != null) {
+                    mPlayer.play();
+                    return;
+                }
+            }
+            LiveSource.this.play(this);
+        }
+
+        /** Stops sending packets to the client, the encoders keep running. */
+        public void pause() {
+            synchronized (LiveSource.this) {
+                if (mPlayer != null) {
+                    mPlayer.pause();
+                }
+            }
+            for (RtpSubscriber subscriber : mSubscribers) {
+                if (subscriber != null) {
+                    subscriber.pause();
+                }
+            }
+        }
+
+        /**
+         * Plays the time-shift buffer of the source from a point in time, once {@link #play()}
+         * is called. Does nothing if the source is not recorded, see
+         * {@link LiveSource#setTimeShiftBuffer(TimeShiftBuffer)}.
+         *
+         * @param timestamp The point in time in ns, see {@link TimeShiftBuffer}
+         * @param scale     The speed of the playback, see {@link TimeShiftPlayer}
+         * @return The timestamp the playback starts from, the key frame before the one asked for,
+         * or {@link TimeShiftBuffer#NO_TIMESTAMP} if the viewer stays live
+         */
+        public long seek(long timestamp, float scale) {
+            synchronized (LiveSource.this) {
+                if (mTimeShift == null) {
+                    return TimeShiftBuffer.NO_TIMESTAMP;
+                }
+                if (mPlayer == null) {
+                    mPlayer = new TimeShiftPlayer(mTimeShift, mSubscribers);
+                }
+                long start = mPlayer.seek(timestamp, scale);
+                if (mPlayer.getPosition() == TimeShiftBuffer.NO_TIMESTAMP) {
+                    mPlayer = null;
+                }
+                return start;
+            }
+        }
+
+        /** Goes back to the live stream after {@link #seek(long, float)}, see {@link #play()}. */
+        public void seekLive() {
+            synchronized (LiveSource.this) {
+                if (mPlayer == null) {
+                    return;
+                }
+                mPlayer.stop();
+                mPlayer = null;
+                for (int id = 0; id < 2; id++) {
+                    if (mSubscribers[id] != null) {
+                        mSubscribers[id].pause();
+                        mSubscribers[id].switchTo(getRtpSocket(id, mRendition));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the timestamp of the last packet of the time-shift buffer sent to the client, or
+         * {@link TimeShiftBuffer#NO_TIMESTAMP} if it receives the live stream.
+         */
+        public long getPosition() {
+            synchronized (LiveSource.this) {
+                return mPlayer != null ? mPlayer.getPosition() : TimeShiftBuffer.NO_TIMESTAMP;
+            }
+        }
+
+        /** Returns the speed of the playback, 1 for the live stream. */
+        public float getScale() {
+            synchronized (LiveSource.this) {
+                return mPlayer != null ? mPlayer.getScale() : 1;
+            }
+        }
+
+        /**
+         * Disconnects the viewer, the encoders are stopped after the linger time if it was the
+         * last one.
+         */
+        public void release() {
+            synchronized (LiveSource.this) {
+                if (mPlayer != null) {
+                    mPlayer.stop();
+                    mPlayer = null;
+                }
+                for (int id = 0; id < 2; id++) {
+                    if (mSubscribers[id] != null) {
+                        mSubscribers[id].close();
+                        mSubscribers[id] = null;
+                    }
+                }
+                remove(this);
+            }
+        }
+
+        @Override
+        public void onReceiverReport(RtpSubscriber subscriber, ReceiverReport report) {
+            synchronized (LiveSource.this) {
+                // The recording only has the highest rendition
+                if (subscriber.isSwitching() || subscriber.isPaused() || mPlayer != null) {
+                    return;
+                }
+                float loss = report.getFractionLost();
+                if (loss > LOSS_SWITCH_DOWN) {
+                    mGoodReports = 0;
+                    if (mRendition < mRenditions.length - 1) {
+                        switchRendition(this, mRendition + 1);
+                    } else if (mLayer > RtpSocket.LAYER_REFERENCE) {
+                        setLayer(RtpSocket.LAYER_REFERENCE);
+                    }
+                } else if (loss < LOSS_SWITCH_UP) {
+                    if (++mGoodReports < GOOD_REPORTS_SWITCH_UP) {
+                        return;
+                    }
+                    mGoodReports = 0;
+                    // Dropped pictures are restored before going back to a higher rendition
+                    if (mLayer < mHighestLayer) {
+                        setLayer(mHighestLayer);
+                    } else if (mRendition > mHighestRendition) {
+                        switchRendition(this, mRendition - 1);
+                    }
+                } else {
+                    mGoodReports = 0;
+                }
+            }
+        }
+    }
+}
@@ -30,6 +30,8 @@ import android.util.Log;
 
 import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.MediaCodecEngine;
+import net.majorkernelpanic.streaming.rtp.RtpInfo;
 import net.majorkernelpanic.streaming.video.VideoStream;
 
 import java.io.IOException;
@@ -79,7 +81,8 @@ public abstract class MediaStream implements Stream {
 
     protected byte mMode, mRequestedMode;
 
-    protected boolean mStreaming = false, mConfigured = false;
+    protected boolean mStreaming = false, mConfigured = false, mPaused = false;
+    protected boolean mShared = false;
     protected int mRtpPort = 0, mRtcpPort = 0;
     protected byte mChannelIdentifier = 0;
     protected OutputStream mOutputStream = null;
@@ -96,6 +99,7 @@ public abstract class MediaStream implements Stream {
 
     protected MediaRecorder mMediaRecorder;
     protected MediaCodec mMediaCodec;
+    protected MediaCodecEngine mEngine;
 
     static {
         // We determine whether or not the MediaCodec API should be used
@@ -237,6 +241,19 @@ public abstract class MediaStream implements Stream {
         return mMode;
     }
 
+    /**
+     * Marks the stream as shared between several clients: it is then started without a
+     * destination and its packets are only handed to the
+     * {@link net.majorkernelpanic.streaming.rtp.RtpSubscriber}s of its RTP socket.
+     */
+    public void setShared(boolean shared) {
+        mShared = shared;
+    }
+
+    public boolean isShared() {
+        return mShared;
+    }
+
     /**
      * Returns the packetizer associated with the {@link MediaStream}.
      *
@@ -251,7 +268,7 @@ public abstract class MediaStream implements Stream {
      */
     @Override
     public long getBitrate() {
-        return !mStreaming ? 0 : mPacketizer.getRtpSocket().getBitrate();
+        return !mStreaming || mPaused ? 0 : mPacketizer.getRtpSocket().getBitrate();
     }
 
     /**
@@ -276,7 +293,7 @@ public abstract class MediaStream implements Stream {
         if (mStreaming) {
             throw new IllegalStateException("Can't be called while streaming.");
         }
-        if (mPacketizer != null) {
+        if (mPacketizer != null && !mShared) {
             mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
             mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
         }
@@ -287,11 +304,11 @@ public abstract class MediaStream implements Stream {
     /** Starts the stream. */
     @Override
     public synchronized void start() throws IllegalStateException, IOException {
-        if (mDestination == null) {
+        if (mDestination == null && !mShared) {
             throw new IllegalStateException("No destination ip address set for the stream !");
         }
 
-        if (mRtpPort <= 0 || mRtcpPort <= 0) {
+        if ((mRtpPort <= 0 || mRtcpPort <= 0) && !mShared) {
             throw new IllegalStateException("No destination ports set for the stream !");
         }
 
@@ -304,10 +321,48 @@ public abstract class MediaStream implements Stream {
         }
     }
 
+    /**
+     * Stops sending packets without stopping the encoder.
+     * Sequence numbers are not consumed while the stream is paused.
+     */
+    @Override
+    public synchronized void pause() {
+        if (mStreaming && !mPaused) {
+            mPacketizer.pause();
+            mPaused = true;
+        }
+    }
+
+    /**
+     * Sends packets again after a call to {@link #pause()}.
+     * Video streams resume on the next key frame, which is requested to the encoder if possible.
+     */
+    @Override
+    public synchronized void resume() {
+        if (mPaused) {
+            mPaused = false;
+            mPacketizer.resume();
+            requestSyncFrame();
+        }
+    }
+
+    @Override
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /** Asks the encoder to produce a key frame as soon as possible, if it can. */
+    public void requestSyncFrame() {
+    }
+
     /** Stops the stream. */
     @SuppressLint("NewApi")
     @Override
     public synchronized void stop() {
+        if (mPaused) {
+            mPaused = false;
+            mPacketizer.resume();
+        }
         if (mStreaming) {
             try {
                 if (mMode == MODE_MEDIARECORDER_API) {
@@ -321,6 +376,8 @@ public abstract class MediaStream implements Stream {
                     mMediaCodec.stop();
                     mMediaCodec.release();
                     mMediaCodec = null;
+                    mEngine.release();
+                    mEngine = null;
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -333,6 +390,16 @@ public abstract class MediaStream implements Stream {
 
     protected abstract void encodeWithMediaCodec() throws IOException;
 
+    /**
+     * Drives {@link #mMediaCodec} with its callbacks and makes it the input of the packetizer,
+     * call it before the codec is configured and start the packetizer before the codec.
+     */
+    protected MediaCodecEngine createEngine() {
+        mEngine = new MediaCodecEngine(mMediaCodec);
+        mPacketizer.setMediaCodecEngine(mEngine);
+        return mEngine;
+    }
+
     /**
      * Returns a description of the stream using SDP.
      * This method can only be called after {@link Stream#configure()}.
@@ -352,6 +419,11 @@ public abstract class MediaStream implements Stream {
         return getPacketizer().getSSRC();
     }
 
+    @Override
+    public RtpInfo announceStart() {
+        return mPacketizer.getRtpSocket().announceStart();
+    }
+
     protected void createSockets() throws IOException {
         if (PIPE_API == PIPE_API_LS) {
             final String localAddr = "net.majorkernelpanic.streaming-";
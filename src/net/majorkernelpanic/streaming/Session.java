@@ -447,17 +447,133 @@ public class Session {
             IOException {
         Stream stream = id == 0 ? mAudioStream : mBaseVideoStream;
         if (stream != null && !stream.isStreaming()) {
+            startTrack(id);
+            if (getTrack(1 - id) == null || getTrack(1 - id).isStreaming()) {
+                postSessionStarted();
+            }
+            if (getTrack(1 - id) == null || !getTrack(1 - id).isStreaming()) {
+                mHandler.post(mUpdateBitrate);
+            }
+        }
+    }
+
+    /**
+     * Starts several streams at once in a synchronous manner. <br />
+     * The streams are started in parallel, so that the slowest encoder sets the startup delay
+     * instead of the sum of all of them. If one of them can't be started, those that this call
+     * has started are stopped, those it has resumed are paused again, and the exception is
+     * thrown. The streams that were already streaming are left alone.
+     *
+     * @param ids The ids of the streams to start
+     **/
+    public void syncStartTracks(int... ids)
+            throws CameraInUseException,
+            StorageUnavailableException,
+            ConfNotSupportedException,
+            InvalidSurfaceException,
+            UnknownHostException,
+            IOException {
+        final boolean streaming = isStreaming();
+        final Exception[] errors = new Exception[ids.length];
+        Thread[] threads = new Thread[ids.length];
+        // The state of the streams before the call, to restore it if one can't be started
+        boolean[] stopped = new boolean[ids.length];
+        boolean[] paused = new boolean[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            Stream stream = getTrack(ids[i]);
+            stopped[i] = stream != null && !stream.isStreaming();
+            paused[i] = stream != null && stream.isPaused();
+        }
+
+        // The first stream is started by the calling thread
+        for (int i = 1; i < ids.length; i++) {
+            final int index = i;
+            final int id = ids[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    startTrack(id);
+                } catch (Exception e) {
+                    errors[index] = e;
+                }
+            }, "Session-start-" + id);
+            threads[i].start();
+        }
+        if (ids.length > 0) {
+            try {
+                startTrack(ids[0]);
+            } catch (Exception e) {
+                errors[0] = e;
+            }
+        }
+        for (int i = 1; i < ids.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors[i] = new IOException(e);
+            }
+        }
+
+        for (Exception e : errors) {
+            if (e != null) {
+                for (int i = 0; i < ids.length; i++) {
+                    if (stopped[i]) {
+                        syncStop(ids[i]);
+                    } else if (paused[i]) {
+                        getTrack(ids[i]).pause();
+                    }
+                }
+                if (e instanceof IOException) {
+                    throw (IOException) e;
+                }
+                throw (RuntimeException) e;
+            }
+        }
+
+        if (!streaming && isStreaming()) {
+            postSessionStarted();
+            mHandler.post(mUpdateBitrate);
+        }
+    }
+
+    /**
+     * Pauses several streams in a synchronous manner. <br />
+     * Paused streams stop sending packets and are resumed by {@link #syncStartTracks(int...)}.
+     *
+     * @param stopEncoders If true, the streams are stopped instead of being paused, so that the
+     *                     encoders are idle during the pause
+     * @param ids          The ids of the streams to pause
+     **/
+    public void syncPauseTracks(boolean stopEncoders, int... ids) {
+        for (int id : ids) {
+            Stream stream = getTrack(id);
+            if (stream != null && stream.isStreaming()) {
+                if (stopEncoders) {
+                    stream.stop();
+                } else {
+                    stream.pause();
+                }
+            }
+        }
+    }
+
+    /** Starts or resumes a stream and reports errors to the callback. */
+    private void startTrack(int id)
+            throws CameraInUseException,
+            StorageUnavailableException,
+            ConfNotSupportedException,
+            InvalidSurfaceException,
+            UnknownHostException,
+            IOException {
+        Stream stream = id == 0 ? mAudioStream : mBaseVideoStream;
+        if (stream != null && stream.isPaused()) {
+            stream.resume();
+        } else if (stream != null && !stream.isStreaming()) {
             try {
                 InetAddress destination = InetAddress.getByName(mDestination);
                 stream.setTimeToLive(mTimeToLive);
                 stream.setDestinationAddress(destination);
                 stream.start();
-                if (getTrack(1 - id) == null || getTrack(1 - id).isStreaming()) {
-                    postSessionStarted();
-                }
-                if (getTrack(1 - id) == null || !getTrack(1 - id).isStreaming()) {
-                    mHandler.post(mUpdateBitrate);
-                }
             } catch (UnknownHostException e) {
                 postError(ERROR_UNKNOWN_HOST, id, e);
                 throw e;
@@ -491,13 +607,7 @@ public class Session {
             InvalidSurfaceException,
             UnknownHostException,
             IOException {
-        syncStart(1);
-        try {
-            syncStart(0);
-        } catch (RuntimeException | IOException e) {
-            syncStop(1);
-            throw e;
-        }
+        syncStartTracks(1, 0);
     }
 
     /** Stops all existing streams. */
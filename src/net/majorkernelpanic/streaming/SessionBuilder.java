@@ -29,11 +29,15 @@ import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.video.BaseVideoStream;
 import net.majorkernelpanic.streaming.video.H263Stream;
+import net.majorkernelpanic.streaming.video.H264RenditionStream;
 import net.majorkernelpanic.streaming.video.H264Stream;
+import net.majorkernelpanic.streaming.video.H265Stream;
 import net.majorkernelpanic.streaming.video.ScreenStream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 
+import java.util.Arrays;
+
 /**
  * Call {@link #getInstance()} to get access to the SessionBuilder.
  */
@@ -52,6 +56,9 @@ public class SessionBuilder {
     /** Can be used with {@link #setVideoEncoder}. */
     public static final int VIDEO_SCREEN = 3;
 
+    /** Can be used with {@link #setVideoEncoder}. */
+    public static final int VIDEO_H265 = 4;
+
     /** Can be used with {@link #setAudioEncoder}. */
     public static final int AUDIO_NONE = 0;
 
@@ -69,6 +76,7 @@ public class SessionBuilder {
     private int mAudioEncoder = AUDIO_AMRNB;
     private int mCamera = CameraInfo.CAMERA_FACING_BACK;
     private int mTimeToLive = 64;
+    private int mTemporalLayers = 1;
     private int mOrientation = 0;
     private boolean mFlash = false;
     private SurfaceView mSurfaceView = null;
@@ -137,6 +145,9 @@ public class SessionBuilder {
                 }
                 session.addVideoTrack(stream);
                 break;
+            case VIDEO_H265:
+                session.addVideoTrack(new H265Stream(mCamera));
+                break;
             case VIDEO_SCREEN:
                 ScreenStream screenStream = new ScreenStream(mContext);
                 if (mContext != null) {
@@ -150,6 +161,7 @@ public class SessionBuilder {
             BaseVideoStream video = session.getVideoTrack();
             video.setVideoQuality(mVideoQuality);
             video.setDestinationPorts(5006);
+            video.setTemporalLayers(mTemporalLayers);
             if (video instanceof VideoStream) {
                 VideoStream cameraVideo = (VideoStream) video;
                 cameraVideo.setFlashState(mFlash);
@@ -167,6 +179,51 @@ public class SessionBuilder {
         return session;
     }
 
+    /**
+     * Creates a new {@link LiveSource} shared by several clients, with the configuration of the
+     * builder. The video is encoded in each of the qualities of the ladder, the video quality
+     * and the destination of the builder are ignored. Additional renditions need the H.264
+     * encoder and a {@link SurfaceView}, otherwise only the best one is encoded.
+     *
+     * @param ladder The renditions of the video, at most {@link LiveSource#MAX_RENDITIONS}
+     * @return The new LiveSource
+     */
+    public LiveSource buildLiveSource(VideoQuality... ladder) {
+        if (ladder.length == 0) {
+            ladder = new VideoQuality[]{mVideoQuality};
+        }
+        VideoQuality[] qualities = ladder.clone();
+        Arrays.sort(qualities, (a, b) -> Integer.compare(b.bitrate, a.bitrate));
+        qualities = Arrays.copyOf(qualities, Math.min(qualities.length,
+                LiveSource.MAX_RENDITIONS));
+
+        Session session = clone().setDestination(null).setVideoQuality(qualities[0]).build();
+        BaseVideoStream video = session.getVideoTrack();
+        if (video == null) {
+            return new LiveSource(session, new BaseVideoStream[0]);
+        }
+
+        BaseVideoStream[] renditions = new BaseVideoStream[1];
+        if (mVideoEncoder == VIDEO_H264 && mSurfaceView != null) {
+            // The other renditions are rendered from the preview of the first one
+            video.setStreamingMethod(MediaStream.MODE_MEDIACODEC_API_2);
+            renditions = new BaseVideoStream[qualities.length];
+            for (int i = 1; i < qualities.length; i++) {
+                H264RenditionStream rendition = new H264RenditionStream((VideoStream) video);
+                rendition.setVideoQuality(qualities[i]);
+                rendition.setDestinationPorts(5006);
+                rendition.setTemporalLayers(mTemporalLayers);
+                if (mContext != null) {
+                    rendition.setPreferences(
+                            PreferenceManager.getDefaultSharedPreferences(mContext));
+                }
+                renditions[i] = rendition;
+            }
+        }
+        renditions[0] = video;
+        return new LiveSource(session, renditions);
+    }
+
     /**
      * Access to the context is needed for the H264Stream class to store some stuff in the
      * SharedPreferences.
@@ -228,6 +285,15 @@ public class SessionBuilder {
         return this;
     }
 
+    /**
+     * Sets the number of temporal layers of the video encoders.
+     * See {@link BaseVideoStream#setTemporalLayers(int)}.
+     */
+    public SessionBuilder setTemporalLayers(int layers) {
+        mTemporalLayers = layers;
+        return this;
+    }
+
     /**
      * Sets the SurfaceView required to preview the video stream.
      **/
@@ -306,6 +372,11 @@ public class SessionBuilder {
         return mTimeToLive;
     }
 
+    /** Returns the number of layers set with {@link #setTemporalLayers(int)}. */
+    public int getTemporalLayers() {
+        return mTemporalLayers;
+    }
+
     /** Returns a new {@link SessionBuilder} with the same configuration. */
     public SessionBuilder clone() {
         return new SessionBuilder()
@@ -318,6 +389,7 @@ public class SessionBuilder {
                 .setFlashEnabled(mFlash)
                 .setCamera(mCamera)
                 .setTimeToLive(mTimeToLive)
+                .setTemporalLayers(mTemporalLayers)
                 .setAudioEncoder(mAudioEncoder)
                 .setAudioQuality(mAudioQuality)
                 .setContext(mContext)
@@ -18,6 +18,8 @@
 
 package net.majorkernelpanic.streaming;
 
+import net.majorkernelpanic.streaming.rtp.RtpInfo;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
@@ -102,6 +104,12 @@ public interface Stream {
      */
     int getSSRC();
 
+    /**
+     * Returns the sequence number and the RTP timestamp of the next RTP packet that will be sent,
+     * see {@link net.majorkernelpanic.streaming.rtp.RtpSocket#announceStart()}.
+     */
+    RtpInfo announceStart();
+
     /**
      * Returns an approximation of the bit rate consumed by the stream in bit per seconde.
      */
@@ -116,4 +124,17 @@ public interface Stream {
     String getSessionDescription() throws IllegalStateException;
 
     boolean isStreaming();
+
+    /**
+     * Stops sending packets without stopping the encoder.
+     */
+    void pause();
+
+    /**
+     * Sends packets again after a call to {@link #pause()}, starting with a frame that can be
+     * decoded on its own.
+     */
+    void resume();
+
+    boolean isPaused();
 }
@@ -32,17 +32,17 @@ import android.os.Environment;
 import android.service.textservice.SpellCheckerService.Session;
 import android.util.Log;
 
+import net.majorkernelpanic.streaming.ConfigurationCache;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.rtp.AACADTSPacketizer;
 import net.majorkernelpanic.streaming.rtp.AACLATMPacketizer;
-import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.MediaCodecEngine;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
-import java.nio.ByteBuffer;
 
 /**
  * A class for streaming AAC from the camera of an android device using RTP.
@@ -56,6 +56,12 @@ import java.nio.ByteBuffer;
 public class AACStream extends AudioStream {
     public static final String TAG = AACStream.class.getSimpleName();
 
+    /** The RTP payload format of RFC 3640, the default. */
+    public static final int PAYLOAD_FORMAT_MPEG4_GENERIC = 0;
+
+    /** The MP4A-LATM RTP payload format of RFC 6416, for the decoders that only support it. */
+    public static final int PAYLOAD_FORMAT_MP4A_LATM = 1;
+
     /** MPEG-4 Audio Object Types supported by ADTS. **/
     private static final String[] AUDIO_OBJECT_TYPES = {
             "NULL",                              // 0
@@ -87,9 +93,10 @@ public class AACStream extends AudioStream {
 
     private String mSessionDescription = null;
     private int mProfile, mSamplingRateIndex, mChannel, mConfig;
+    private int mRequestedPayloadFormat = PAYLOAD_FORMAT_MPEG4_GENERIC;
+    private int mPayloadFormat = PAYLOAD_FORMAT_MPEG4_GENERIC;
     private SharedPreferences mSettings = null;
     private AudioRecord mAudioRecord = null;
-    private Thread mThread = null;
 
     public AACStream() {
         super();
@@ -124,6 +131,19 @@ public class AACStream extends AudioStream {
         mSettings = prefs;
     }
 
+    /**
+     * Sets the RTP payload format, applied by the next call to {@link #configure()}.
+     *
+     * @param format {@link #PAYLOAD_FORMAT_MPEG4_GENERIC} or {@link #PAYLOAD_FORMAT_MP4A_LATM}
+     */
+    public void setPayloadFormat(int format) {
+        mRequestedPayloadFormat = format;
+    }
+
+    public int getPayloadFormat() {
+        return mRequestedPayloadFormat;
+    }
+
     @Override
     public synchronized void start() throws IllegalStateException, IOException {
         if (!mStreaming) {
@@ -136,6 +156,7 @@ public class AACStream extends AudioStream {
     public synchronized void configure() throws IllegalStateException, IOException {
         super.configure();
         mQuality = mRequestedQuality.clone();
+        mPayloadFormat = mRequestedPayloadFormat;
 
         // Checks if the user has supplied an exotic sampling rate
         int i = 0;
@@ -170,29 +191,51 @@ public class AACStream extends AudioStream {
 
             // TODO: streamType always 5 ? profile-level-id always 15 ?
 
-            mSessionDescription = "m=audio " + getDestinationPorts()[0] + " RTP/AVP 96\r\n"
-                    + "a=rtpmap:96 mpeg4-generic/" + mQuality.samplingRate + "\r\n"
-                    + "a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="
-                    + Integer.toHexString(mConfig)
-                    + "; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n";
+            mSessionDescription = buildSessionDescription();
         } else {
             mProfile = 2; // AAC LC
             mChannel = 1;
             mConfig = (mProfile & 0x1F) << 11 | (mSamplingRateIndex & 0x0F) << 7
                     | (mChannel & 0x0F) << 3;
 
-            mSessionDescription = "m=audio " + getDestinationPorts()[0] + " RTP/AVP 96\r\n"
-                    + "a=rtpmap:96 mpeg4-generic/" + mQuality.samplingRate + "\r\n"
-                    + "a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="
-                    + Integer.toHexString(mConfig)
-                    + "; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n";
+            mSessionDescription = buildSessionDescription();
+        }
+    }
+
+    /** Describes the stream with its AudioSpecificConfig, in the chosen payload format. */
+    private String buildSessionDescription() {
+        String media = "m=audio " + getDestinationPorts()[0] + " RTP/AVP 96\r\n";
+        if (mPayloadFormat == PAYLOAD_FORMAT_MP4A_LATM) {
+            // RFC 6416: the StreamMuxConfig is sent out of band (cpresent=0)
+            return media + "a=rtpmap:96 MP4A-LATM/" + mQuality.samplingRate + "/" + mChannel
+                    + "\r\n"
+                    + "a=fmtp:96 profile-level-id=" + getLatmProfileLevel()
+                    + "; cpresent=0; config=" + AACLATMPacketizer.getStreamMuxConfig(mConfig)
+                    + "\r\n";
         }
+        return media + "a=rtpmap:96 mpeg4-generic/" + mQuality.samplingRate + "\r\n"
+                + "a=fmtp:96 streamtype=5; profile-level-id=15; mode=AAC-hbr; config="
+                + Integer.toHexString(mConfig)
+                + "; SizeLength=13; IndexLength=3; IndexDeltaLength=3;\r\n";
+    }
+
+    /** Returns the MPEG-4 audio profile and level of the stream, for AAC profile streams. */
+    private int getLatmProfileLevel() {
+        if (mQuality.samplingRate <= 24000 && mChannel <= 2) {
+            return 0x28; // AAC Profile L1
+        } else if (mQuality.samplingRate <= 48000 && mChannel <= 2) {
+            return 0x29; // AAC Profile L2
+        } else if (mQuality.samplingRate <= 48000 && mChannel <= 5) {
+            return 0x2A; // AAC Profile L4
+        }
+        return 0x2B; // AAC Profile L5
     }
 
     @Override
     protected void encodeWithMediaRecorder() throws IOException {
         testADTS();
         ((AACADTSPacketizer) mPacketizer).setSamplingRate(mQuality.samplingRate);
+        ((AACADTSPacketizer) mPacketizer).setMp4aLatm(mPayloadFormat == PAYLOAD_FORMAT_MP4A_LATM);
         super.encodeWithMediaRecorder();
     }
 
@@ -203,10 +246,12 @@ public class AACStream extends AudioStream {
                 AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT) * 2;
 
         ((AACLATMPacketizer) mPacketizer).setSamplingRate(mQuality.samplingRate);
+        ((AACLATMPacketizer) mPacketizer).setMp4aLatm(mPayloadFormat == PAYLOAD_FORMAT_MP4A_LATM);
 
         mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mQuality.samplingRate,
                 AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
         mMediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        final MediaCodecEngine engine = createEngine();
         MediaFormat format = new MediaFormat();
         format.setString(MediaFormat.KEY_MIME, MediaFormat.MIMETYPE_AUDIO_AAC);
         format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitRate);
@@ -216,41 +261,38 @@ public class AACStream extends AudioStream {
                 MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, bufferSize);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mAudioRecord.startRecording();
-        mMediaCodec.start();
 
-        final MediaCodecInputStream inputStream = new MediaCodecInputStream(mMediaCodec);
-
-        mThread = new Thread(() -> {
-            int len = 0, bufferIndex = 0;
-            try {
-                while (!Thread.interrupted()) {
-                    bufferIndex = mMediaCodec.dequeueInputBuffer(10000);
-                    if (bufferIndex >= 0) {
-                        ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(bufferIndex);
-                        inputBuffer.clear();
-                        len = mAudioRecord.read(inputBuffer, bufferSize);
-                        if (len == AudioRecord.ERROR_INVALID_OPERATION
-                                || len == AudioRecord.ERROR_BAD_VALUE) {
-                            Log.e(TAG, "An error occured with the AudioRecord API !");
-                        } else {
-                            //Log.v(TAG,"Pushing raw audio to the decoder: len="+len+" bs:
-                            // "+inputBuffer.capacity());
-                            mMediaCodec.queueInputBuffer(bufferIndex, 0, len,
-                                    System.nanoTime() / 1000, 0);
-                        }
-                    }
-                }
-            } catch (RuntimeException e) {
-                e.printStackTrace();
+        // The encoder is fed when it has a free buffer and when the AudioRecord has new samples,
+        // which it tells every half buffer (16 bits mono samples)
+        final AudioRecord record = mAudioRecord;
+        engine.setInput(buffer -> {
+            int len = record.read(buffer, Math.min(buffer.remaining(), bufferSize),
+                    AudioRecord.READ_NON_BLOCKING);
+            if (len == AudioRecord.ERROR_INVALID_OPERATION || len == AudioRecord.ERROR_BAD_VALUE) {
+                Log.e(TAG, "An error occured with the AudioRecord API !");
+                return -1;
+            } else if (len <= 0) {
+                return -1;
             }
+            buffer.position(len);
+            return System.nanoTime() / 1000;
         });
+        record.setPositionNotificationPeriod(bufferSize / 4);
+        record.setRecordPositionUpdateListener(new AudioRecord.OnRecordPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioRecord recorder) {
+            }
 
-        mThread.start();
+            @Override
+            public void onPeriodicNotification(AudioRecord recorder) {
+                engine.feed();
+            }
+        }, engine.getHandler());
+        mAudioRecord.startRecording();
 
         // The packetizer encapsulates this stream in an RTP stream and send it over the network
-        mPacketizer.setInputStream(inputStream);
         mPacketizer.start();
+        mMediaCodec.start();
 
         mStreaming = true;
     }
@@ -260,8 +302,8 @@ public class AACStream extends AudioStream {
     public synchronized void stop() {
         if (mStreaming) {
             if (mMode == MODE_MEDIACODEC_API) {
-                Log.d(TAG, "Interrupting threads...");
-                mThread.interrupt();
+                mAudioRecord.setRecordPositionUpdateListener(null);
+                mEngine.setInput(null);
                 mAudioRecord.stop();
                 mAudioRecord.release();
                 mAudioRecord = null;
@@ -299,9 +341,15 @@ public class AACStream extends AudioStream {
         }
 
         String key = PREF_PREFIX + "aac-" + mQuality.samplingRate;
+        String cacheKey = ConfigurationCache.key("aac", MODE_MEDIARECORDER_API,
+                mQuality.samplingRate);
+        String cached = ConfigurationCache.get(cacheKey);
+        if (cached == null && mSettings != null && mSettings.contains(key)) {
+            cached = mSettings.getString(key, "");
+        }
 
-        if (mSettings != null && mSettings.contains(key)) {
-            String[] s = mSettings.getString(key, "").split(",");
+        if (cached != null) {
+            String[] s = cached.split(",");
             mQuality.samplingRate = Integer.valueOf(s[0]);
             mConfig = Integer.valueOf(s[1]);
             mChannel = Integer.valueOf(s[2]);
@@ -377,9 +425,11 @@ public class AACStream extends AudioStream {
 
         raf.close();
 
+        String value = mQuality.samplingRate + "," + mConfig + "," + mChannel;
+        ConfigurationCache.put(cacheKey, value);
         if (mSettings != null) {
             Editor editor = mSettings.edit();
-            editor.putString(key, mQuality.samplingRate + "," + mConfig + "," + mChannel);
+            editor.putString(key, value);
             editor.commit();
         }
 
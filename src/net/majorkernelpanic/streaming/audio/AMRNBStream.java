@@ -37,6 +37,14 @@ import java.lang.reflect.Field;
  * Call {@link #stop()} to stop the stream.
  */
 public class AMRNBStream extends AudioStream {
+    // Duration of an AMR frame in ms
+    private static final int FRAME_DURATION = 20;
+
+    private int mRequestedPacketTime = FRAME_DURATION;
+    private int mPacketTime = FRAME_DURATION;
+    private boolean mRequestedOctetAligned = true;
+    private boolean mOctetAligned = true;
+
     public AMRNBStream() {
         super();
 
@@ -55,6 +63,29 @@ public class AMRNBStream extends AudioStream {
         setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
     }
 
+    /**
+     * Sets the duration of audio in each packet (ptime), applied by the next call to
+     * {@link #configure()}. It is rounded to a multiple of 20 ms, the duration of a frame, up to
+     * 200 ms. The frames of a packet add up to its delay but share its headers.
+     *
+     * @param ptime The duration in ms, 20 by default
+     */
+    public void setPacketTime(int ptime) {
+        mRequestedPacketTime = ptime;
+    }
+
+    public int getPacketTime() {
+        return mRequestedPacketTime;
+    }
+
+    /**
+     * Chooses the octet-aligned mode, the default, or the bandwidth-efficient mode of RFC 3267,
+     * applied by the next call to {@link #configure()}.
+     */
+    public void setOctetAligned(boolean octetAligned) {
+        mRequestedOctetAligned = octetAligned;
+    }
+
     /**
      * Starts the stream.
      */
@@ -71,6 +102,12 @@ public class AMRNBStream extends AudioStream {
         super.configure();
         mMode = MODE_MEDIARECORDER_API;
         mQuality = mRequestedQuality.clone();
+
+        AMRNBPacketizer packetizer = (AMRNBPacketizer) mPacketizer;
+        packetizer.setFramesPerPacket(Math.round((float) mRequestedPacketTime / FRAME_DURATION));
+        packetizer.setOctetAligned(mRequestedOctetAligned);
+        mPacketTime = packetizer.getFramesPerPacket() * FRAME_DURATION;
+        mOctetAligned = mRequestedOctetAligned;
     }
 
     /**
@@ -78,9 +115,12 @@ public class AMRNBStream extends AudioStream {
      */
     @Override
     public String getSessionDescription() {
+        // Every packet holds the same number of frames
         return "m=audio " + getDestinationPorts()[0] + " RTP/AVP 96\r\n"
                 + "a=rtpmap:96 AMR/8000\r\n"
-                + "a=fmtp:96 octet-align=1;\r\n";
+                + "a=fmtp:96 octet-align=" + (mOctetAligned ? 1 : 0) + ";\r\n"
+                + "a=ptime:" + mPacketTime + "\r\n"
+                + "a=maxptime:" + mPacketTime + "\r\n";
     }
 
     @Override
@@ -61,6 +61,10 @@ public class SurfaceManager {
         eglSetup();
     }
 
+    public Surface getSurface() {
+        return mSurface;
+    }
+
     public void makeCurrent() {
         if (!EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
             throw new RuntimeException("eglMakeCurrent failed");
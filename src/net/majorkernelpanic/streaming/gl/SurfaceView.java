@@ -30,6 +30,7 @@ import android.view.SurfaceHolder;
 import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.video.VideoStream;
 
+import java.util.ArrayList;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -72,8 +73,8 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable,
     // The surface in which the preview is rendered
     private SurfaceManager mViewSurfaceManager = null;
 
-    // The input surface of the MediaCodec
-    private SurfaceManager mCodecSurfaceManager = null;
+    // The input surfaces of the MediaCodecs, several encoders can share the preview
+    private final ArrayList<SurfaceManager> mCodecSurfaceManagers = new ArrayList<>();
 
     // Handles the rendering of the SurfaceTexture we got
     // from the camera, onto a Surface
@@ -99,18 +100,35 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable,
         return mTextureManager.getSurfaceTexture();
     }
 
+    /**
+     * Renders the preview into the input surface of an encoder, in addition to the surfaces
+     * already added. Each surface is rendered at its own resolution.
+     */
     public void addMediaCodecSurface(Surface surface) {
         synchronized (mSyncObject) {
-            mCodecSurfaceManager = new SurfaceManager(surface, mViewSurfaceManager);
+            mCodecSurfaceManagers.add(new SurfaceManager(surface, mViewSurfaceManager));
         }
     }
 
+    /** Stops rendering into a surface added with {@link #addMediaCodecSurface(Surface)}. */
+    public void removeMediaCodecSurface(Surface surface) {
+        synchronized (mSyncObject) {
+            for (int i = 0; i < mCodecSurfaceManagers.size(); i++) {
+                if (mCodecSurfaceManagers.get(i).getSurface() == surface) {
+                    mCodecSurfaceManagers.remove(i).release();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Stops rendering into all the surfaces added with {@link #addMediaCodecSurface(Surface)}. */
     public void removeMediaCodecSurface() {
         synchronized (mSyncObject) {
-            if (mCodecSurfaceManager != null) {
-                mCodecSurfaceManager.release();
-                mCodecSurfaceManager = null;
+            for (SurfaceManager manager : mCodecSurfaceManagers) {
+                manager.release();
             }
+            mCodecSurfaceManagers.clear();
         }
     }
 
@@ -148,14 +166,17 @@ public class SurfaceView extends android.view.SurfaceView implements Runnable,
                         mTextureManager.drawFrame();
                         mViewSurfaceManager.swapBuffer();
 
-                        if (mCodecSurfaceManager != null) {
-                            mCodecSurfaceManager.makeCurrent();
-                            mTextureManager.drawFrame();
+                        if (!mCodecSurfaceManagers.isEmpty()) {
                             oldts = ts;
                             ts = mTextureManager.getSurfaceTexture().getTimestamp();
                             //Log.d(TAG,"FPS: "+(1000000000/(ts-oldts)));
-                            mCodecSurfaceManager.setPresentationTime(ts);
-                            mCodecSurfaceManager.swapBuffer();
+                        }
+                        // All encoders get the same timestamp, so that their streams are aligned
+                        for (SurfaceManager manager : mCodecSurfaceManagers) {
+                            manager.makeCurrent();
+                            mTextureManager.drawFrame();
+                            manager.setPresentationTime(ts);
+                            manager.swapBuffer();
                         }
                     } else {
                         Log.e(TAG, "No frame received !");
@@ -21,6 +21,8 @@ package net.majorkernelpanic.streaming.mp4;
 import android.util.Base64;
 import android.util.Log;
 
+import net.majorkernelpanic.streaming.rtp.BitstreamScanner;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -165,6 +167,8 @@ public class MP4Parser {
 }
 
 class StsdBox {
+    private static final byte[] AVCC = {'a', 'v', 'c', 'C'};
+
     private final RandomAccessFile fis;
     private final byte[] buffer = new byte[4];
     private final long pos;
@@ -246,20 +250,28 @@ class StsdBox {
         return true;
     }
 
+    /** Moves the file pointer right after the type of the avcC box, reading it by chunks. */
     private boolean findBoxAvcc() {
         // avcC: 61 76 63 43
+        byte[] chunk = new byte[4096];
         try {
-            fis.seek(pos + 8);
+            long offset = pos + 8;
             while (true) {
-                while (fis.read() != 'a') ;
-                fis.read(buffer, 0, 3);
-                if (buffer[0] == 'v' && buffer[1] == 'c' && buffer[2] == 'C') {
-                    break;
+                fis.seek(offset);
+                int len = fis.read(chunk);
+                if (len < AVCC.length) {
+                    return false;
                 }
+                int p = BitstreamScanner.indexOf(chunk, 0, len, AVCC);
+                if (p < len) {
+                    fis.seek(offset + p + AVCC.length);
+                    return true;
+                }
+                // The type may straddle two chunks
+                offset += len - AVCC.length + 1;
             }
         } catch (IOException e) {
             return false;
         }
-        return true;
     }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtcp;
+
+/**
+ * Parser of the report blocks of the RTCP Receiver Reports (and Sender Reports) sent back by
+ * the receivers of an RTP stream (RFC 3550 section 6.4).
+ */
+public class ReceiverReport {
+    /** Packet type of Sender Reports. */
+    public static final int PT_SR = 200;
+
+    /** Packet type of Receiver Reports. */
+    public static final int PT_RR = 201;
+
+    private static final int REPORT_BLOCK_LENGTH = 24;
+
+    private int mFractionLost;
+    private int mCumulativeLost;
+    private long mHighestSequence;
+    private long mJitter;
+    private long mLastSenderReport;
+    private long mDelaySinceLastSenderReport;
+
+    /**
+     * Looks for the report block concerning a source in a compound RTCP packet.
+     *
+     * @param data   The RTCP packet
+     * @param length The length of the packet
+     * @param ssrc   The SSRC of the source
+     * @return true if a report block was found, in which case the getters return its content
+     */
+    public boolean parse(byte[] data, int length, int ssrc) {
+        int offset = 0;
+        while (offset + 8 <= length) {
+            // V=2 P RC | PT | length in 32 bits words minus one
+            if ((data[offset] & 0xC0) != 0x80) {
+                return false;
+            }
+            int count = data[offset] & 0x1F;
+            int type = data[offset + 1] & 0xFF;
+            int end = offset + 4 * ((int) getInt(data, offset + 2, 2) + 1);
+            if (end > length) {
+                return false;
+            }
+            int block = -1;
+            if (type == PT_RR) {
+                block = offset + 8;
+            } else if (type == PT_SR) {
+                block = offset + 28;
+            }
+            if (block >= 0) {
+                for (int i = 0; i < count && block + REPORT_BLOCK_LENGTH <= end; i++) {
+                    if ((int) getInt(data, block, 4) == ssrc) {
+                        parseBlock(data, block);
+                        return true;
+                    }
+                    block += REPORT_BLOCK_LENGTH;
+                }
+            }
+            offset = end;
+        }
+        return false;
+    }
+
+    private void parseBlock(byte[] data, int offset) {
+        mFractionLost = data[offset + 4] & 0xFF;
+        // Signed 24 bits
+        mCumulativeLost = (int) getInt(data, offset + 5, 3) << 8 >> 8;
+        mHighestSequence = getInt(data, offset + 8, 4);
+        mJitter = getInt(data, offset + 12, 4);
+        mLastSenderReport = getInt(data, offset + 16, 4);
+        mDelaySinceLastSenderReport = getInt(data, offset + 20, 4);
+    }
+
+    /** Returns the fraction of packets lost since the previous report, between 0 and 1. */
+    public float getFractionLost() {
+        return mFractionLost / 256f;
+    }
+
+    /** Returns the number of packets lost since the beginning of the reception. */
+    public int getCumulativeLost() {
+        return mCumulativeLost;
+    }
+
+    /** Returns the extended highest sequence number received. */
+    public long getHighestSequence() {
+        return mHighestSequence;
+    }
+
+    /** Returns the interarrival jitter, in units of the RTP clock. */
+    public long getJitter() {
+        return mJitter;
+    }
+
+    /** Returns the middle 32 bits of the NTP timestamp of the last Sender Report received. */
+    public long getLastSenderReport() {
+        return mLastSenderReport;
+    }
+
+    /** Returns the delay since the last Sender Report was received, in units of 1/65536 s. */
+    public long getDelaySinceLastSenderReport() {
+        return mDelaySinceLastSenderReport;
+    }
+
+    private static long getInt(byte[] data, int offset, int length) {
+        long n = 0;
+        for (int i = 0; i < length; i++) {
+            n = n << 8 | data[offset + i] & 0xFF;
+        }
+        return n;
+    }
+}
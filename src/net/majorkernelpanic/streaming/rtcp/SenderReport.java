@@ -28,6 +28,7 @@ import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
 
 /**
  * Implementation of Sender Report RTCP packets.
@@ -167,6 +168,35 @@ public class SenderReport {
         return mSSRC;
     }
 
+    /**
+     * Blocks until an RTCP packet is received on the local port of the report, the receivers
+     * send their Receiver Reports there.
+     *
+     * @param buffer The buffer that will contain the packet
+     * @return The length of the packet
+     */
+    public int receive(byte[] buffer) throws IOException {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        usock.receive(packet);
+        return packet.getLength();
+    }
+
+    /**
+     * Same as {@link #receive(byte[])}, but gives up after a while.
+     *
+     * @param buffer  The buffer that will contain the packet
+     * @param timeout The timeout in ms
+     * @return The length of the packet, or -1 if none has been received in time
+     */
+    public int receive(byte[] buffer, int timeout) throws IOException {
+        usock.setSoTimeout(timeout);
+        try {
+            return receive(buffer);
+        } catch (SocketTimeoutException e) {
+            return -1;
+        }
+    }
+
     /**
      * Resets the reports (total number of bytes sent, number of packets sent, etc.)
      */
@@ -198,6 +228,10 @@ public class SenderReport {
         setLong(lb, 12, 16);
         setLong(rtpts, 16, 20);
         if (mTransport == TRANSPORT_UDP) {
+            if (mPort < 0) {
+                // No destination yet
+                return;
+            }
             upack.setLength(PACKET_LENGTH);
             usock.send(upack);
         } else {
@@ -30,14 +30,20 @@ import java.io.IOException;
  *
  * This packetizer must be fed with an InputStream containing ADTS AAC.
  * AAC will basically be rewrapped in an RTP stream and sent over the network.
- * This packetizer only implements the aac-hbr mode (High Bit-rate AAC) and
- * each packet only carry a single and complete AAC access unit.
+ * This packetizer implements the aac-hbr mode (High Bit-rate AAC), consecutive access units
+ * are packed in the same packet up to the delay set with {@link #setMaxDelay(int)}. The
+ * MP4A-LATM payload format (RFC 6416) can be used instead, see {@link #setMp4aLatm(boolean)}.
  */
 public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
     private static final String TAG = AACADTSPacketizer.class.getSimpleName();
 
+    // Bytes read at once when looking for a syncword in a broken stream, they must fit in the
+    // buffer of the PipeReader to be pushed back
+    private static final int RESYNC_CHUNK = 4096;
+
     private Thread t;
     private int samplingRate = 8000;
+    private final AACPacker packer = new AACPacker(socket);
 
     public AACADTSPacketizer() {
         super();
@@ -68,11 +74,32 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
     public void setSamplingRate(int samplingRate) {
         this.samplingRate = samplingRate;
         socket.setClockFrequency(samplingRate);
+        packer.setSamplingRate(samplingRate);
+    }
+
+    /**
+     * Sets the maximum duration of audio packed in a packet.
+     *
+     * @param delay The delay in ms, 0 to send each access unit in its own packet
+     */
+    public void setMaxDelay(int delay) {
+        packer.setMaxDelay(delay);
+    }
+
+    /**
+     * Sends the access units in the MP4A-LATM payload format (RFC 6416) instead of the
+     * mpeg4-generic one (RFC 3640), the SDP must announce the StreamMuxConfig then.
+     */
+    public void setMp4aLatm(boolean enabled) {
+        packer.setLatm(enabled);
     }
 
     public void run() {
         Log.d(TAG, "AAC ADTS packetizer started !");
 
+        // The header is parsed a few bytes at a time
+        PipeReader reader = openReader();
+
         // "A packet SHALL carry either one or more complete Access Units, or a
         // single fragment of an Access Unit.  Fragments of the same Access Unit
         // have the same time stamp but different RTP sequence numbers.  The
@@ -81,24 +108,21 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
         // ADTS header fields that we need to parse
         boolean protection;
-        int frameLength, sum, length, nbau, nbpk, samplingRateIndex, profile;
+        int frameLength, samplingRateIndex, profile;
         long oldtime = SystemClock.elapsedRealtime(), now = oldtime;
         byte[] header = new byte[8];
+        packer.reset();
 
         try {
             while (!Thread.interrupted()) {
                 // Synchronisation: ADTS packet starts with 12bits set to 1
-                while (true) {
-                    if ((is.read() & 0xFF) == 0xFF) {
-                        header[1] = (byte) is.read();
-                        if ((header[1] & 0xF0) == 0xF0) {
-                            break;
-                        }
-                    }
+                reader.readFully(header, 0, 2);
+                if (header[0] != (byte) 0xFF || (header[1] & 0xF0) != 0xF0) {
+                    resync(reader, header);
                 }
 
                 // Parse adts header (ADTS packets start with a 7 or 9 byte long header)
-                fill(header, 2, 5);
+                reader.readFully(header, 2, 5);
 
                 // The protection bit indicates whether or not the header contains the two extra
                 // bytes
@@ -108,19 +132,14 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
                         | (header[5] & 0xFF) >> 5;
                 frameLength -= (protection ? 7 : 9);
 
-                // Number of AAC frames in the ADTS frame
-                nbau = (header[6] & 0x03) + 1;
-
-                // The number of RTP packets that will be sent for this ADTS frame
-                nbpk = frameLength / MAXPACKETSIZE + 1;
-
                 // Read CRS if any
                 if (!protection) {
-                    is.read(header, 0, 2);
+                    reader.readFully(header, 0, 2);
                 }
 
                 samplingRate = AACStream.AUDIO_SAMPLING_RATES[(header[2] & 0x3C) >> 2];
                 profile = ((header[2] & 0xC0) >> 6) + 1;
+                packer.setSamplingRate(samplingRate);
 
                 // We update the RTP timestamp
                 ts += 1024L * 1000000000L / samplingRate; //stats.average();
@@ -128,37 +147,8 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
                 //Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p:
                 // "+profile+" sr: "+samplingRate);
 
-                sum = 0;
-                while (sum < frameLength) {
-                    buffer = socket.requestBuffer();
-                    socket.updateTimestamp(ts);
-
-                    // Read frame
-                    if (frameLength - sum > MAXPACKETSIZE - RTPHL - 4) {
-                        length = MAXPACKETSIZE - RTPHL - 4;
-                    } else {
-                        length = frameLength - sum;
-                        socket.markNextPacket();
-                    }
-                    sum += length;
-                    fill(buffer, RTPHL + 4, length);
-
-                    // AU-headers-length field: contains the size in bits of a AU-header
-                    // 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta
-                    // 13 bits will be enough because ADTS uses 13 bits for frame length
-                    buffer[RTPHL] = 0;
-                    buffer[RTPHL + 1] = 0x10;
-
-                    // AU-size
-                    buffer[RTPHL + 2] = (byte) (frameLength >> 5);
-                    buffer[RTPHL + 3] = (byte) (frameLength << 3);
-
-                    // AU-Index
-                    buffer[RTPHL + 3] &= 0xF8;
-                    buffer[RTPHL + 3] |= 0x00;
-
-                    send(RTPHL + 4 + length);
-                }
+                // The frame is read straight into the packet, which is sent when full
+                packer.add(reader, frameLength, ts);
             }
         } catch (IOException e) {
             // Ignore
@@ -166,21 +156,38 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
             Log.e(TAG, "ArrayIndexOutOfBoundsException", e);
             e.printStackTrace();
         } catch (InterruptedException ignore) {
+        } finally {
+            releaseReader();
         }
 
         Log.d(TAG, "AAC ADTS packetizer stopped !");
     }
 
-    private int fill(byte[] buffer, int offset, int length) throws IOException {
-        int sum = 0, len;
-        while (sum < length) {
-            len = is.read(buffer, offset + sum, length - sum);
+    /**
+     * Looks for the next syncword by chunks, the two bytes read instead of a syncword are
+     * searched too. The bytes that follow the syncword are pushed back into the stream.
+     */
+    private void resync(PipeReader reader, byte[] header) throws IOException {
+        Log.e(TAG, "Packetizer out of sync !");
+        byte[] chunk = new byte[RESYNC_CHUNK];
+        chunk[0] = header[0];
+        chunk[1] = header[1];
+        int length = 2, len;
+        while (true) {
+            int p = BitstreamScanner.findAdtsSyncWord(chunk, 0, length);
+            if (p < length) {
+                header[1] = chunk[p + 1];
+                reader.unread(chunk, p + 2, length - p - 2);
+                return;
+            }
+            // The last byte may begin a syncword
+            chunk[0] = chunk[length - 1];
+            length = 1;
+            len = reader.read(chunk, length, chunk.length - length);
             if (len < 0) {
                 throw new IOException("End of stream");
-            } else {
-                sum += len;
             }
+            length += len;
         }
-        return sum;
     }
 }
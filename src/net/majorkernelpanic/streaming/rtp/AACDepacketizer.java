@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.util.Log;
+
+/**
+ * RFC 3640.
+ *
+ * Reassembles the frames of an AAC stream sent in the mpeg4-generic format, as
+ * {@link AACADTSPacketizer} does. The AU-header section is parsed with the sizes given in the
+ * fmtp attribute of the stream (see {@link #setAuHeaderFormat(int, int, int)}), so packets can
+ * carry several frames or a fragment of a frame. The access units are raw AAC frames, without
+ * ADTS header.
+ */
+public class AACDepacketizer extends AbstractDepacketizer {
+    public static final String TAG = AACDepacketizer.class.getSimpleName();
+
+    // Number of samples in an AAC frame
+    private static final int FRAME_SAMPLES = 1024;
+
+    private int mSizeLength = 13;
+    private int mIndexLength = 3;
+    private int mIndexDeltaLength = 3;
+    private boolean mFragmented = false;
+    private boolean mCorrupted = false;
+    private int mFragmentSize;
+    private long mTimestamp;
+
+    /**
+     * Sets the format of the AU-headers, as given by the fmtp attribute of the stream, the
+     * default (13, 3, 3) is the one of the AAC-hbr mode.
+     *
+     * @param sizeLength       Value of the SizeLength parameter
+     * @param indexLength      Value of the IndexLength parameter
+     * @param indexDeltaLength Value of the IndexDeltaLength parameter
+     */
+    public void setAuHeaderFormat(int sizeLength, int indexLength, int indexDeltaLength) {
+        mSizeLength = sizeLength;
+        mIndexLength = indexLength;
+        mIndexDeltaLength = indexDeltaLength;
+    }
+
+    @Override
+    public void depacketize(RtpPacket packet) {
+        byte[] data = packet.data;
+        int offset = packet.payloadOffset;
+        int end = packet.length;
+        if (packet.discontinuity && mFragmented) {
+            // The fragmented frame is incomplete
+            mCorrupted = true;
+        }
+        if (end - offset < 2) {
+            return;
+        }
+
+        // AU-headers-length in bits, followed by the AU-headers and the AUs
+        int headersLength = (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+        int auStart = offset + 2 + (headersLength + 7) / 8;
+        if (mSizeLength == 0 || auStart > end) {
+            Log.w(TAG, "Invalid AU-header section");
+            return;
+        }
+        int bit = (offset + 2) * 8;
+        int headersEnd = bit + headersLength;
+        int p = auStart;
+        int index = 0;
+        for (int n = 0; bit + mSizeLength <= headersEnd; n++) {
+            int size = getBits(data, bit, mSizeLength);
+            bit += mSizeLength;
+            int indexBits = n == 0 ? mIndexLength : mIndexDeltaLength;
+            int delta = getBits(data, bit, indexBits);
+            bit += indexBits;
+            index += n == 0 ? 0 : delta + 1;
+            long timestamp = packet.timestamp + (long) index * FRAME_SAMPLES & 0xFFFFFFFFL;
+
+            if (p + size > end) {
+                // A single fragment of a frame, the last one carries the marker bit
+                if (!mFragmented || mTimestamp != packet.timestamp) {
+                    // Losses are detected with the size of the frame
+                    mUnit.reset();
+                    mCorrupted = false;
+                    mFragmented = true;
+                    mFragmentSize = size;
+                    mTimestamp = packet.timestamp;
+                }
+                mUnit.append(data, p, end - p);
+                if (packet.marker) {
+                    if (!mCorrupted && mUnit.length == mFragmentSize) {
+                        mUnit.keyFrame = true;
+                        emit(mTimestamp);
+                    }
+                    mUnit.reset();
+                    mFragmented = mCorrupted = false;
+                }
+                return;
+            }
+
+            mFragmented = mCorrupted = false;
+            mUnit.reset();
+            mUnit.append(data, p, size);
+            mUnit.keyFrame = true;
+            emit(timestamp);
+            p += size;
+        }
+    }
+
+    @Override
+    public boolean hasPendingData() {
+        return mFragmented;
+    }
+}
@@ -19,23 +19,32 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * RFC 3640.
  *
  * Encapsulates AAC Access Units in RTP packets as specified in the RFC 3640.
  * This packetizer is used by the AACStream class in conjunction with the
- * MediaCodec API introduced in Android 4.1 (API Level 16).
+ * MediaCodec API introduced in Android 4.1 (API Level 16). The access units are copied straight
+ * from the buffers of the encoder when the input is an {@link AccessUnitSource} or a
+ * {@link MediaCodecEngine}. Consecutive access units are packed in the same packet up to the
+ * delay set with {@link #setMaxDelay(int)}. Despite its name, it uses the mpeg4-generic payload
+ * format unless {@link #setMp4aLatm(boolean)} is called.
  */
 @SuppressLint("NewApi")
-public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
+public class AACLATMPacketizer extends AbstractPacketizer implements Runnable,
+        MediaCodecEngine.Output {
     private static final String TAG = AACLATMPacketizer.class.getSimpleName();
 
     private Thread t;
+    private final BufferInfo info = new BufferInfo();
+    private final AACPacker packer = new AACPacker(socket);
 
     public AACLATMPacketizer() {
         super();
@@ -43,18 +52,21 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
     }
 
     public void start() {
-        if (t == null) {
+        packer.reset();
+        if (engine != null) {
+            engine.setOutput(this);
+        } else if (t == null) {
             t = new Thread(this);
             t.start();
         }
     }
 
     public void stop() {
+        if (engine != null) {
+            detachEngine();
+        }
         if (t != null) {
-            try {
-                is.close();
-            } catch (IOException ignore) {
-            }
+            closeInput();
             t.interrupt();
             try {
                 t.join();
@@ -66,61 +78,75 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
     public void setSamplingRate(int samplingRate) {
         socket.setClockFrequency(samplingRate);
+        packer.setSamplingRate(samplingRate);
+    }
+
+    /**
+     * Sets the maximum duration of audio packed in a packet.
+     *
+     * @param delay The delay in ms, 0 to send each access unit in its own packet
+     */
+    public void setMaxDelay(int delay) {
+        packer.setMaxDelay(delay);
+    }
+
+    /**
+     * Sends the access units in the MP4A-LATM payload format (RFC 6416) instead of the
+     * mpeg4-generic one (RFC 3640), the SDP must announce the StreamMuxConfig then.
+     */
+    public void setMp4aLatm(boolean enabled) {
+        packer.setLatm(enabled);
     }
 
+    /**
+     * Returns the StreamMuxConfig (ISO/IEC 14496-3) of the config parameter of MP4A-LATM, in
+     * hexadecimal: audioMuxVersion 0, all streams with the same time framing, 1 sub frame,
+     * 1 program, 1 layer, the AudioSpecificConfig, frameLengthType 0, latmBufferFullness 0xFF,
+     * no other data, no CRC.
+     *
+     * @param audioSpecificConfig The 16 bits AudioSpecificConfig of the stream
+     */
+    public static String getStreamMuxConfig(int audioSpecificConfig) {
+        long config = 1L << 46
+                | (long) (audioSpecificConfig & 0xFFFF) << 17
+                | 0xFFL << 6;
+        return String.format("%012X", config);
+    }
+
+    /** Reads the access units of the {@link AccessUnitSource} given as input. */
     @SuppressLint("NewApi")
     public void run() {
         Log.d(TAG, "AAC LATM packetizer started !");
 
-        int length = 0;
-        long oldts;
-        BufferInfo bufferInfo;
-
         try {
             while (!Thread.interrupted()) {
-                buffer = socket.requestBuffer();
-                length = is.read(buffer, RTPHL + 4, MAXPACKETSIZE - (RTPHL + 4));
-
-                if (length > 0) {
-                    bufferInfo = ((MediaCodecInputStream) is).getLastBufferInfo();
-                    //Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
-                    oldts = ts;
-                    ts = bufferInfo.presentationTimeUs * 1000;
-
-                    // Seems to happen sometimes
-                    if (oldts > ts) {
-                        socket.commitBuffer();
-                        continue;
-                    }
-
-                    socket.markNextPacket();
-                    socket.updateTimestamp(ts);
-
-                    // AU-headers-length field: contains the size in bits of a AU-header
-                    // 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta
-                    // 13 bits will be enough because ADTS uses 13 bits for frame length
-                    buffer[RTPHL] = 0;
-                    buffer[RTPHL + 1] = 0x10;
-
-                    // AU-size
-                    buffer[RTPHL + 2] = (byte) (length >> 5);
-                    buffer[RTPHL + 3] = (byte) (length << 3);
-
-                    // AU-Index
-                    buffer[RTPHL + 3] &= 0xF8;
-                    buffer[RTPHL + 3] |= 0x00;
-
-                    send(RTPHL + length + 4);
-                } else {
-                    socket.commitBuffer();
+                ByteBuffer data = source.dequeue(info);
+                try {
+                    onAccessUnit(data, info);
+                } finally {
+                    source.release();
                 }
             }
         } catch (IOException | InterruptedException ignored) {
-        } catch (ArrayIndexOutOfBoundsException e) {
-            Log.e(TAG, "ArrayIndexOutOfBoundsException", e);
-            e.printStackTrace();
         }
 
         Log.d(TAG, "AAC LATM packetizer stopped !");
     }
+
+    /** Packs an access unit produced by the encoder. */
+    @Override
+    public void onAccessUnit(ByteBuffer data, BufferInfo info) throws IOException,
+            InterruptedException {
+        // The AudioSpecificConfig is in the SDP, it is not an access unit
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || !data.hasRemaining()) {
+            return;
+        }
+        long oldts = ts;
+        ts = info.presentationTimeUs * 1000;
+        // Seems to happen sometimes
+        if (oldts > ts) {
+            return;
+        }
+        packer.add(data, ts);
+    }
 }
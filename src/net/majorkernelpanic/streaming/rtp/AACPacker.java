@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static net.majorkernelpanic.streaming.rtp.AbstractPacketizer.MAXPACKETSIZE;
+import static net.majorkernelpanic.streaming.rtp.AbstractPacketizer.RTPHL;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * RFC 3640, AAC-hbr mode, or RFC 6416, MP4A-LATM.
+ *
+ * Packs consecutive AAC access units in the RTP packets of {@link AACADTSPacketizer} and
+ * {@link AACLATMPacketizer}. The payload starts with the AU-headers-length, then comes a 16 bits
+ * AU-header for each access unit: 13 bits for its size and 3 bits for its AU-Index, or
+ * AU-Index-delta after the first one, always 0 as the access units follow each other.
+ *
+ * A packet is sent when the next access unit doesn't fit in it, when it holds the maximum delay
+ * of audio or when the timestamps jump. An access unit too large for a packet is fragmented, the
+ * AU-header of each fragment carries the size of the whole access unit.
+ *
+ * In MP4A-LATM, each packet carries a single audioMuxElement, made of the PayloadLengthInfo and
+ * the access unit: the StreamMuxConfig is in the SDP (cpresent=0) and has no sub frames, so that
+ * decoders taking one audioMuxElement per packet are happy. Large ones are fragmented.
+ */
+class AACPacker {
+    // Room left in a packet for the AU-headers-length and the AU-headers and the access units
+    private static final int PAYLOAD_SIZE = MAXPACKETSIZE - RTPHL;
+    private static final int AU_HEADERS_LENGTH_SIZE = 2;
+    private static final int AU_HEADER_SIZE = 2;
+    // Room for the data of a fragment
+    private static final int FRAGMENT_SIZE = PAYLOAD_SIZE - AU_HEADERS_LENGTH_SIZE - AU_HEADER_SIZE;
+    private static final int SAMPLES_PER_FRAME = 1024;
+
+    private final RtpSocket mSocket;
+    // The access units of the packet being built, their AU-headers are written when it is sent
+    private final byte[] mData = new byte[PAYLOAD_SIZE];
+    private final int[] mSizes = new int[PAYLOAD_SIZE / (AU_HEADER_SIZE + 1)];
+    private int mCount = 0;
+    private int mLength = 0;
+    // Timestamp of the first access unit of the packet, in ns
+    private long mTimestamp;
+    private long mFrameDuration = SAMPLES_PER_FRAME * 1000000000L / 8000;
+    private long mMaxDelay = 100 * 1000000L;
+    private boolean mLatm = false;
+
+    /** Reads the data of an access unit into a packet. */
+    private interface Source {
+        void read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    AACPacker(RtpSocket socket) {
+        mSocket = socket;
+    }
+
+    /** Sets the sampling rate of the stream, used to know how much audio a packet holds. */
+    void setSamplingRate(int samplingRate) {
+        mFrameDuration = SAMPLES_PER_FRAME * 1000000000L / samplingRate;
+    }
+
+    /** Sets the maximum duration of audio in a packet in ms, 0 sends each access unit alone. */
+    void setMaxDelay(int delay) {
+        mMaxDelay = delay * 1000000L;
+    }
+
+    /** Sends MP4A-LATM audioMuxElements instead of mpeg4-generic AU-header sections. */
+    void setLatm(boolean latm) {
+        mLatm = latm;
+        reset();
+    }
+
+    /** Packs an access unit made of the remaining bytes of a buffer, ts is in ns. */
+    void add(ByteBuffer data, long ts) throws IOException, InterruptedException {
+        add(data.remaining(), ts, data::get);
+    }
+
+    /** Packs an access unit of the given size read from a pipe, ts is in ns. */
+    void add(PipeReader reader, int size, long ts) throws IOException, InterruptedException {
+        add(size, ts, reader::readFully);
+    }
+
+    private void add(int size, long ts, Source source) throws IOException, InterruptedException {
+        if (mLatm) {
+            sendAudioMuxElement(size, ts, source);
+            return;
+        }
+        if (prepare(size, ts)) {
+            source.read(mData, mLength, size);
+            commit(size);
+            return;
+        }
+        for (int sum = 0; sum < size; ) {
+            byte[] buffer = mSocket.requestBuffer();
+            int length = Math.min(size - sum, FRAGMENT_SIZE);
+            source.read(buffer, RTPHL + AU_HEADERS_LENGTH_SIZE + AU_HEADER_SIZE, length);
+            sum += length;
+            sendFragment(buffer, size, length, sum == size, ts);
+        }
+    }
+
+    /** Sends the access units packed so far. */
+    void flush() throws IOException, InterruptedException {
+        if (mCount == 0) {
+            return;
+        }
+        byte[] buffer = mSocket.requestBuffer();
+        int p = writeAuHeadersLength(buffer, mCount);
+        for (int i = 0; i < mCount; i++) {
+            p = writeAuHeader(buffer, p, mSizes[i]);
+        }
+        System.arraycopy(mData, 0, buffer, p, mLength);
+        mSocket.updateTimestamp(mTimestamp);
+        // The marker is set on packets carrying complete access units
+        mSocket.markNextPacket();
+        mSocket.commitBuffer(p + mLength);
+        mCount = mLength = 0;
+    }
+
+    /** Drops the access units packed so far. */
+    void reset() {
+        mCount = mLength = 0;
+    }
+
+    /**
+     * Sends the packet being built if the access unit can't join it.
+     *
+     * @return false if the access unit must be fragmented
+     */
+    private boolean prepare(int size, long ts) throws IOException, InterruptedException {
+        if (mCount > 0) {
+            long gap = ts - mTimestamp - mCount * mFrameDuration;
+            int length = AU_HEADERS_LENGTH_SIZE + (mCount + 1) * AU_HEADER_SIZE + mLength + size;
+            if (Math.abs(gap) > mFrameDuration / 2 || length > PAYLOAD_SIZE) {
+                flush();
+            }
+        }
+        if (size > FRAGMENT_SIZE) {
+            return false;
+        }
+        if (mCount == 0) {
+            mTimestamp = ts;
+        }
+        return true;
+    }
+
+    private void commit(int size) throws IOException, InterruptedException {
+        mSizes[mCount++] = size;
+        mLength += size;
+        if (mCount * mFrameDuration >= mMaxDelay) {
+            flush();
+        }
+    }
+
+    /** Sends an access unit as an audioMuxElement, fragmented if needed. */
+    private void sendAudioMuxElement(int size, long ts, Source source)
+            throws IOException, InterruptedException {
+        byte[] buffer = mSocket.requestBuffer();
+        // PayloadLengthInfo: as many 0xFF as needed, then the rest of the size
+        int p = RTPHL;
+        for (int n = size; n >= 0; n -= 255) {
+            buffer[p++] = (byte) Math.min(n, 255);
+        }
+        int sum = 0;
+        while (true) {
+            int length = Math.min(size - sum, MAXPACKETSIZE - p);
+            source.read(buffer, p, length);
+            sum += length;
+            mSocket.updateTimestamp(ts);
+            if (sum == size) {
+                // The marker is set on the last fragment of the audioMuxElement
+                mSocket.markNextPacket();
+            }
+            mSocket.commitBuffer(p + length);
+            if (sum == size) {
+                return;
+            }
+            buffer = mSocket.requestBuffer();
+            p = RTPHL;
+        }
+    }
+
+    private void sendFragment(byte[] buffer, int size, int length, boolean last, long ts)
+            throws IOException {
+        int p = writeAuHeadersLength(buffer, 1);
+        p = writeAuHeader(buffer, p, size);
+        mSocket.updateTimestamp(ts);
+        if (last) {
+            mSocket.markNextPacket();
+        }
+        mSocket.commitBuffer(p + length);
+    }
+
+    /** Writes the AU-headers-length field, in bits, and returns the offset of the AU-headers. */
+    private static int writeAuHeadersLength(byte[] buffer, int count) {
+        int bits = count * AU_HEADER_SIZE * 8;
+        buffer[RTPHL] = (byte) (bits >> 8);
+        buffer[RTPHL + 1] = (byte) bits;
+        return RTPHL + AU_HEADERS_LENGTH_SIZE;
+    }
+
+    /** Writes the 13 bits AU-size and a null AU-Index or AU-Index-delta. */
+    private static int writeAuHeader(byte[] buffer, int p, int size) {
+        buffer[p] = (byte) (size >> 5);
+        buffer[p + 1] = (byte) (size << 3 & 0xF8);
+        return p + AU_HEADER_SIZE;
+    }
+}
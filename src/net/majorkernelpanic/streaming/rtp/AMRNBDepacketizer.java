@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * RFC 4867.
+ *
+ * Reassembles the frames of an AMR-NB stream, as {@link AMRNBPacketizer} sends them, in the
+ * octet-aligned mode or in the bandwidth-efficient mode (see {@link #setOctetAligned(boolean)}).
+ * Packets may carry several frames, listed in their table of contents. The access units are
+ * frames preceded by their header, as in an AMR file.
+ */
+public class AMRNBDepacketizer extends AbstractDepacketizer {
+    public static final String TAG = AMRNBDepacketizer.class.getSimpleName();
+
+    // Size of the speech data of each frame type, in bits, 0 for NO_DATA and the reserved types
+    private static final int[] FRAME_BITS = {95, 103, 118, 134, 148, 159, 204, 244, 39,
+            0, 0, 0, 0, 0, 0, 0};
+    private static final int MAX_FRAME_LENGTH = 31;
+
+    // Number of samples in an AMR frame (20 ms at 8 kHz)
+    private static final int FRAME_SAMPLES = 160;
+
+    private final byte[] mHeader = new byte[1];
+    private final byte[] mFrame = new byte[MAX_FRAME_LENGTH];
+    private boolean mOctetAligned = true;
+
+    public AMRNBDepacketizer() {
+        setClockFrequency(8000);
+    }
+
+    /**
+     * Chooses between the octet-aligned mode, the default, and the bandwidth-efficient mode, as
+     * given by the octet-align parameter of the fmtp attribute of the stream.
+     */
+    public void setOctetAligned(boolean octetAligned) {
+        mOctetAligned = octetAligned;
+    }
+
+    @Override
+    public void depacketize(RtpPacket packet) {
+        if (mOctetAligned) {
+            depacketizeOctetAligned(packet);
+        } else {
+            depacketizeBandwidthEfficient(packet);
+        }
+    }
+
+    private void depacketizeOctetAligned(RtpPacket packet) {
+        byte[] data = packet.data;
+        int end = packet.length;
+
+        // The CMR byte, then one ToC entry per frame: F (more entries) | FT (4 bits) | Q | P P
+        int toc = packet.payloadOffset + 1;
+        int p = toc;
+        while (p < end && (data[p] & 0x80) != 0) {
+            p++;
+        }
+        p++;
+
+        // The frames follow the table of contents
+        int count = Math.min(p, end) - toc;
+        for (int n = 0; n < count; n++) {
+            int entry = data[toc + n];
+            int size = (FRAME_BITS[entry >> 3 & 0x0F] + 7) / 8;
+            if (p + size > end) {
+                return;
+            }
+            mHeader[0] = (byte) (entry & 0x7C);
+            mUnit.append(mHeader, 0, 1);
+            mUnit.append(data, p, size);
+            mUnit.keyFrame = true;
+            emit(packet.timestamp + (long) n * FRAME_SAMPLES & 0xFFFFFFFFL);
+            p += size;
+        }
+    }
+
+    private void depacketizeBandwidthEfficient(RtpPacket packet) {
+        byte[] data = packet.data;
+        int end = packet.length * 8;
+
+        // The 4 bits CMR, then a 6 bits ToC entry per frame: F (more entries) | FT (4 bits) | Q
+        int toc = packet.payloadOffset * 8 + 4;
+        int pos = toc;
+        int count = 0;
+        boolean more = true;
+        while (more && pos + 6 <= end) {
+            more = getBits(data, pos, 1) != 0;
+            pos += 6;
+            count++;
+        }
+
+        for (int n = 0; n < count; n++) {
+            int entry = getBits(data, toc + 6 * n, 6);
+            int bits = FRAME_BITS[entry >> 1 & 0x0F];
+            if (pos + bits > end) {
+                return;
+            }
+            // The frame is padded with zeros up to a byte boundary, as in an AMR file
+            int size = 0;
+            for (int left = bits; left > 0; left -= 8) {
+                int k = Math.min(left, 8);
+                mFrame[size++] = (byte) (getBits(data, pos, k) << 8 - k);
+                pos += k;
+            }
+            mHeader[0] = (byte) ((entry & 0x1F) << 2);
+            mUnit.append(mHeader, 0, 1);
+            mUnit.append(mFrame, 0, size);
+            mUnit.keyFrame = true;
+            emit(packet.timestamp + (long) n * FRAME_SAMPLES & 0xFFFFFFFFL);
+        }
+    }
+}
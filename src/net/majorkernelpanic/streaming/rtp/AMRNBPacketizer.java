@@ -21,6 +21,7 @@ package net.majorkernelpanic.streaming.rtp;
 import android.util.Log;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * RFC 3267.
@@ -29,22 +30,60 @@ import java.io.IOException;
  *
  * Must be fed with an InputStream containing raw AMR NB
  * Stream must begin with a 6 bytes long header: "#!AMR\n", it will be skipped
+ *
+ * Several frames can be bundled in a packet with {@link #setFramesPerPacket(int)}, each of them
+ * gets an entry in the table of contents whose F bit tells if another one follows. The payload
+ * is octet-aligned unless {@link #setOctetAligned(boolean)} selects the bandwidth-efficient mode,
+ * where the CMR, the entries of the table of contents and the frames are packed bit after bit.
  */
 public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
     public static final String TAG = AMRNBPacketizer.class.getSimpleName();
 
+    /** A packet holds at most 200 ms of audio. */
+    public static final int MAX_FRAMES_PER_PACKET = 10;
+
     private static final int AMR_HEADER_LENGTH = 6; // "#!AMR\n"
-    private static final int AMR_FRAME_HEADER_LENGTH = 1; // Each frame has a short header
-    private static final int[] FRAME_BITS = {95, 103, 118, 134, 148, 159, 204, 244};
+    // Speech frames, then SID, then reserved types and NO_DATA
+    private static final int[] FRAME_BITS = {95, 103, 118, 134, 148, 159, 204, 244, 39,
+            0, 0, 0, 0, 0, 0, 0};
+    private static final int MAX_FRAME_LENGTH = 31;
     private static final int SAMPLING_RATE = 8000;
+    private static final int SAMPLES_PER_FRAME = 160;
+    // No codec mode request
+    private static final int CMR = 0x0F;
 
     private Thread t;
+    private int framesPerPacket = 1;
+    private boolean octetAligned = true;
+    // The storage headers and the data of the frames of the next packet
+    private final byte[] headers = new byte[MAX_FRAMES_PER_PACKET];
+    private final byte[] frames = new byte[MAX_FRAMES_PER_PACKET * MAX_FRAME_LENGTH];
 
     public AMRNBPacketizer() {
         super();
         socket.setClockFrequency(SAMPLING_RATE);
     }
 
+    /**
+     * Sets the number of 20 ms frames bundled in a packet, up to {@link #MAX_FRAMES_PER_PACKET}.
+     * Must be called before {@link #start()}.
+     */
+    public void setFramesPerPacket(int frames) {
+        framesPerPacket = Math.max(1, Math.min(frames, MAX_FRAMES_PER_PACKET));
+    }
+
+    public int getFramesPerPacket() {
+        return framesPerPacket;
+    }
+
+    /**
+     * Chooses between the octet-aligned mode, the default, and the bandwidth-efficient mode.
+     * Must be called before {@link #start()}.
+     */
+    public void setOctetAligned(boolean octetAligned) {
+        this.octetAligned = octetAligned;
+    }
+
     public void start() {
         if (t == null) {
             t = new Thread(this);
@@ -68,13 +107,13 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
     }
 
     public void run() {
-        int frameLength, frameType;
-        long now = System.nanoTime(), oldtime = now;
+        int count, length, frameType;
         byte[] header = new byte[AMR_HEADER_LENGTH];
+        PipeReader reader = openReader();
 
         try {
             // Skip raw AMR header
-            fill(header, 0, AMR_HEADER_LENGTH);
+            reader.readFully(header, 0, AMR_HEADER_LENGTH);
 
             if (header[5] != '\n') {
                 Log.e(TAG, "Bad header ! AMR not correcty supported by the phone !");
@@ -82,47 +121,81 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
             }
 
             while (!Thread.interrupted()) {
-                buffer = socket.requestBuffer();
-                buffer[RTPHL] = (byte) 0xF0;
-
-                // First we read the frame header
-                fill(buffer, RTPHL + 1, AMR_FRAME_HEADER_LENGTH);
-
-                // Then we calculate the frame payload length
-                frameType = (Math.abs(buffer[RTPHL + 1]) >> 3) & 0x0f;
-                frameLength = (FRAME_BITS[frameType] + 7) / 8;
-
-                // And we read the payload
-                fill(buffer, RTPHL + 2, frameLength);
-
-                //Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
+                // Each frame is made of a one byte header and its payload
+                length = 0;
+                for (count = 0; count < framesPerPacket; count++) {
+                    reader.readFully(headers, count, 1);
+                    frameType = headers[count] >> 3 & 0x0F;
+                    reader.readFully(frames, length, (FRAME_BITS[frameType] + 7) / 8);
+                    length += (FRAME_BITS[frameType] + 7) / 8;
+                }
 
                 // RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
-                // FIXME: Is this really always the case ??
-                ts += 160L * 1000000000L / SAMPLING_RATE; //stats.average();
+                // The timestamp of the packet is the one of its first frame
+                buffer = socket.requestBuffer();
                 socket.updateTimestamp(ts);
+                ts += count * SAMPLES_PER_FRAME * 1000000000L / SAMPLING_RATE;
                 socket.markNextPacket();
 
-                //Log.d(TAG,"expected: "+ expected + " measured: "+measured);
-
-                send(RTPHL + 1 + AMR_FRAME_HEADER_LENGTH + frameLength);
+                send(RTPHL + (octetAligned ? packOctetAligned(count, length)
+                        : packBandwidthEfficient(count)));
             }
         } catch (IOException | InterruptedException ignored) {
+        } finally {
+            releaseReader();
         }
 
         Log.d(TAG, "AMR packetizer stopped !");
     }
 
-    private int fill(byte[] buffer, int offset, int length) throws IOException {
-        int sum = 0, len;
-        while (sum < length) {
-            len = is.read(buffer, offset + sum, length - sum);
-            if (len < 0) {
-                throw new IOException("End of stream");
-            } else {
-                sum += len;
+    /** Writes the CMR, the table of contents and the frames, returns the size of the payload. */
+    private int packOctetAligned(int count, int length) {
+        int p = RTPHL;
+        buffer[p++] = (byte) (CMR << 4);
+        for (int i = 0; i < count; i++) {
+            // The storage header is a ToC entry without the F bit: P FT Q P P
+            buffer[p++] = (byte) (headers[i] & 0x7C | (i < count - 1 ? 0x80 : 0));
+        }
+        System.arraycopy(frames, 0, buffer, p, length);
+        return p + length - RTPHL;
+    }
+
+    /**
+     * Writes the 4 bits CMR, the 6 bits ToC entries and the frames without their padding bits,
+     * returns the size of the payload.
+     */
+    private int packBandwidthEfficient(int count) {
+        int bits = 4 + 6 * count;
+        for (int i = 0; i < count; i++) {
+            bits += FRAME_BITS[headers[i] >> 3 & 0x0F];
+        }
+        int length = (bits + 7) / 8;
+        Arrays.fill(buffer, RTPHL, RTPHL + length, (byte) 0);
+
+        int pos = writeBits(0, CMR, 4);
+        for (int i = 0; i < count; i++) {
+            // F FT Q
+            int entry = (i < count - 1 ? 0x20 : 0) | headers[i] >> 2 & 0x1F;
+            pos = writeBits(pos, entry, 6);
+        }
+        for (int i = 0, offset = 0; i < count; i++) {
+            int frameBits = FRAME_BITS[headers[i] >> 3 & 0x0F];
+            for (int n = frameBits; n > 0; n -= 8) {
+                pos = writeBits(pos, (frames[offset++] & 0xFF) >> Math.max(8 - n, 0),
+                        Math.min(n, 8));
             }
         }
-        return sum;
+        return length;
+    }
+
+    /** Writes the n lowest bits of a value, n <= 8, at a bit position of the payload. */
+    private int writeBits(int pos, int value, int n) {
+        int p = RTPHL + (pos >> 3);
+        int v = (value & (1 << n) - 1) << 16 - n - (pos & 7);
+        buffer[p] |= (byte) (v >> 8);
+        if ((pos & 7) + n > 8) {
+            buffer[p + 1] |= (byte) v;
+        }
+        return pos + n;
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Each depacketizer inherits from this one. A depacketizer is the inverse of a packetizer: it is
+ * fed with the RTP packets of a stream in the order of their sequence numbers (see
+ * {@link JitterBuffer}) and reassembles the access units they carry.
+ *
+ * Access units damaged by the loss of a packet are dropped.
+ */
+public abstract class AbstractDepacketizer {
+    /** Receives the access units. */
+    public interface Callback {
+        /** Called from the thread feeding the depacketizer. */
+        void onAccessUnit(AccessUnit unit);
+    }
+
+    protected final AccessUnit mUnit = new AccessUnit();
+
+    private Callback mCallback;
+    private long mClock = 90000;
+    private long mFirstTimestamp = -1;
+    private long mLastTimestamp;
+    private long mExtendedTimestamp;
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /** Sets the clock frequency of the stream in Hz, as given in the rtpmap attribute. */
+    public void setClockFrequency(long clock) {
+        mClock = clock;
+    }
+
+    public long getClockFrequency() {
+        return mClock;
+    }
+
+    /**
+     * Processes a packet.
+     *
+     * @param packet The packet, it is not retained
+     */
+    public abstract void depacketize(RtpPacket packet);
+
+    /**
+     * Hands out the access unit being reassembled, for streams that don't set the marker bit at
+     * the end of access units. Called when a packet with another timestamp arrives.
+     */
+    public void flush() {
+    }
+
+    /** Indicates whether an access unit is being reassembled. */
+    public boolean hasPendingData() {
+        return false;
+    }
+
+    /**
+     * Converts an RTP timestamp of the stream in a presentation time in us, relative to the
+     * first timestamp seen. The timestamp wraps around, so this should be called in order.
+     */
+    public long getPresentationTimeUs(long timestamp) {
+        if (mFirstTimestamp < 0) {
+            mFirstTimestamp = mLastTimestamp = timestamp;
+        }
+        mExtendedTimestamp += (int) (timestamp - mLastTimestamp);
+        mLastTimestamp = timestamp;
+        return mExtendedTimestamp * 1000000L / mClock;
+    }
+
+    /** Hands the access unit to the callback. */
+    protected void emit(long timestamp) {
+        mUnit.timestamp = timestamp;
+        mUnit.presentationTimeUs = getPresentationTimeUs(timestamp);
+        if (mCallback != null) {
+            mCallback.onAccessUnit(mUnit);
+        }
+        mUnit.reset();
+    }
+
+    /** Reads count bits, the most significant first, from a bit position in a buffer. */
+    static int getBits(byte[] data, int bit, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++, bit++) {
+            value = value << 1 | data[bit >> 3] >> (7 - (bit & 7)) & 1;
+        }
+        return value;
+    }
+}
@@ -35,6 +35,10 @@ public abstract class AbstractPacketizer {
     protected final RtpSocket socket;
 
     protected InputStream is = null;
+    // Set when the input can hand its buffers to the packetizer, see AccessUnitSource
+    protected AccessUnitSource source = null;
+    // Set when the encoder pushes its output to the packetizer, see MediaCodecEngine
+    protected MediaCodecEngine engine = null;
     protected byte[] buffer;
     protected long ts = 0;
 
@@ -58,7 +62,77 @@ public abstract class AbstractPacketizer {
     }
 
     public void setInputStream(InputStream is) {
+        socket.setRequestTimeout(0);
         this.is = is;
+        this.source = is instanceof AccessUnitSource ? (AccessUnitSource) is : null;
+        this.engine = null;
+    }
+
+    /**
+     * Feeds the packetizer with whole access units, the packetizers that don't read them use
+     * {@link #setInputStream(InputStream)}.
+     */
+    public void setAccessUnitSource(AccessUnitSource source) {
+        socket.setRequestTimeout(0);
+        this.source = source;
+        this.is = source instanceof InputStream ? (InputStream) source : null;
+        this.engine = null;
+    }
+
+    /**
+     * Feeds the packetizer with the output of an encoder driven by its callbacks, the packetizer
+     * then runs on the thread of the engine instead of its own. Only the packetizers implementing
+     * {@link MediaCodecEngine.Output} support it.
+     */
+    public void setMediaCodecEngine(MediaCodecEngine engine) {
+        // The thread of the engine is shared, a receiver that can't keep up must not block it
+        socket.setRequestTimeout(engine != null ? MediaCodecEngine.OUTPUT_TIMEOUT : 0);
+        this.engine = engine;
+        this.is = null;
+        this.source = null;
+    }
+
+    /**
+     * Wraps the input stream in a {@link PipeReader}, for the packetizers that parse a pipe a few
+     * bytes at a time. The thread of the packetizer calls {@link #releaseReader()} when it stops.
+     */
+    protected PipeReader openReader() {
+        if (!(is instanceof PipeReader)) {
+            is = new PipeReader(is);
+        }
+        return (PipeReader) is;
+    }
+
+    /** Gives the buffer of the reader opened by {@link #openReader()} back to the pool. */
+    protected void releaseReader() {
+        if (is instanceof PipeReader) {
+            ((PipeReader) is).release();
+        }
+    }
+
+    /**
+     * Stops the output of the engine. A callback waiting for a free buffer of the socket gives
+     * up first, so that this does not wait for the receiver.
+     */
+    protected void detachEngine() {
+        socket.setRequestsCancelled(true);
+        try {
+            engine.setOutput(null);
+        } finally {
+            socket.setRequestsCancelled(false);
+        }
+    }
+
+    /** Closes the input of the packetizer, so that its thread stops reading it. */
+    protected void closeInput() {
+        try {
+            if (source != null) {
+                source.close();
+            } else if (is != null) {
+                is.close();
+            }
+        } catch (IOException ignored) {
+        }
     }
 
     public void setTimeToLive(int ttl) throws IOException {
@@ -82,6 +156,20 @@ public abstract class AbstractPacketizer {
     /** Stops the packetizer. */
     public abstract void stop();
 
+    /** Stops sending packets without stopping the packetizer. */
+    public void pause() {
+        socket.pause();
+    }
+
+    /**
+     * Sends packets again after a call to {@link #pause()}.
+     * Packetizers of streams with inter frame dependencies should override this and resume on a
+     * sync point.
+     */
+    public void resume() {
+        socket.resume(false);
+    }
+
     /** Updates data for RTCP SR and sends the packet. */
     protected void send(int length) throws IOException {
         socket.commitBuffer(length);
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * A frame of audio or a picture reassembled by a depacketizer.
+ * The instance is reused by the depacketizer, its content is only valid during the call to
+ * {@link AbstractDepacketizer.Callback#onAccessUnit(AccessUnit)}.
+ */
+public class AccessUnit {
+    /**
+     * The frame, in the format of the input of the matching packetizer: NAL units preceded by
+     * start codes for H.264, raw frames for AAC, frames preceded by their header for AMR.
+     */
+    public byte[] data = new byte[4096];
+
+    public int length;
+
+    /** RTP timestamp of the access unit. */
+    public long timestamp;
+
+    /** Presentation time in us, relative to the first packet received. */
+    public long presentationTimeUs;
+
+    /** Indicates that a decoder can start with this access unit. */
+    public boolean keyFrame;
+
+    /** The layer of the access unit, see {@link RtpSocket#markLayer(int)}. */
+    public int layer;
+
+    void reset() {
+        length = 0;
+        keyFrame = false;
+        layer = RtpSocket.LAYER_KEY;
+    }
+
+    void append(byte[] buffer, int offset, int len) {
+        if (length + len > data.length) {
+            byte[] b = new byte[Math.max(data.length * 2, length + len)];
+            System.arraycopy(data, 0, b, 0, length);
+            data = b;
+        }
+        System.arraycopy(buffer, offset, data, length, len);
+        length += len;
+    }
+}
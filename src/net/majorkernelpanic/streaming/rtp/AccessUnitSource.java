@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.media.MediaCodec.BufferInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of access units (pictures or audio frames) that hands its buffers to the packetizers,
+ * so that they copy each part of an access unit once, straight into the RTP packet that carries
+ * it. {@link MediaCodecInputStream} implements it with the output buffers of an encoder.
+ *
+ * A packetizer fed with {@link AbstractPacketizer#setInputStream(java.io.InputStream)} uses this
+ * interface instead when the stream implements it and the packetizer supports it.
+ */
+public interface AccessUnitSource {
+    /**
+     * Blocks until the next access unit is available.
+     *
+     * @param info Receives the size, the presentation time and the flags of the access unit
+     * @return The buffer holding the access unit between its position and its limit, valid until
+     * {@link #release()} is called
+     * @throws IOException If the source has been closed
+     */
+    ByteBuffer dequeue(BufferInfo info) throws IOException;
+
+    /** Gives the buffer returned by {@link #dequeue(BufferInfo)} back to the source. */
+    void release();
+
+    /** Makes {@link #dequeue(BufferInfo)} throw, for instance to stop a packetizer. */
+    void close() throws IOException;
+}
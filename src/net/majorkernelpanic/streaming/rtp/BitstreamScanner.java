@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds start codes and sync words in bit streams.
+ *
+ * Only the search of a start code in a ByteBuffer works on words: eight bytes are read at once
+ * and skipped when none of them is zero, every start code begins with one. The searches of start
+ * codes in an array are skip-ahead loops, they look at the byte that ends a candidate first,
+ * which most of the time rules out three positions at once. The ADTS syncword and
+ * {@link #indexOf} are plain byte scans: on random data, a skip on the second byte of a syncword
+ * is mispredicted every sixteen bytes or so, which costs more than it saves (see
+ * BitstreamScannerBenchmark in the tests).
+ *
+ * Every method returns the position of the first byte of the pattern, or the end of the range
+ * when there is none.
+ */
+public final class BitstreamScanner {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private BitstreamScanner() {
+    }
+
+    /** Finds the next 0x000001 Annex-B start code from p, up to the limit of the buffer. */
+    public static int findStartCode(ByteBuffer data, int p) {
+        int limit = data.limit();
+        while (p + 8 <= limit) {
+            long v = data.getLong(p);
+            if (((v - ONES) & ~v & HIGHS) != 0) {
+                // One of the eight bytes is zero, a start code may begin there
+                int end = Math.min(p + 8, limit - 2);
+                for (int i = p; i < end; i++) {
+                    if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                        return i;
+                    }
+                }
+            }
+            p += 8;
+        }
+        for (; p + 2 < limit; p++) {
+            if (data.get(p) == 0 && data.get(p + 1) == 0 && data.get(p + 2) == 1) {
+                return p;
+            }
+        }
+        return limit;
+    }
+
+    /** Finds the next 0x000001 Annex-B start code in data[p, end). */
+    public static int findStartCode(byte[] data, int p, int end) {
+        while (p + 2 < end) {
+            int b = data[p + 2] & 0xFF;
+            if (b > 1) {
+                // No start code can begin at p, p+1 or p+2
+                p += 3;
+            } else if (b == 1 && data[p] == 0 && data[p + 1] == 0) {
+                return p;
+            } else {
+                p++;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Finds the next H.263 picture start code (0000 0000 0000 0000 1000 00) in data[p, end).
+     */
+    public static int findPictureStartCode(byte[] data, int p, int end) {
+        while (p + 2 < end) {
+            int b = data[p + 2] & 0xFF;
+            if (b != 0 && (b & 0xFC) != 0x80) {
+                // No picture start code can begin at p, p+1 or p+2
+                p += 3;
+            } else if (b != 0 && data[p] == 0 && data[p + 1] == 0) {
+                return p;
+            } else {
+                p++;
+            }
+        }
+        return end;
+    }
+
+    /** Finds the next ADTS syncword (12 bits set to 1) in data[p, end). */
+    public static int findAdtsSyncWord(byte[] data, int p, int end) {
+        for (; p + 1 < end; p++) {
+            if (data[p] == (byte) 0xFF && (data[p + 1] & 0xF0) == 0xF0) {
+                return p;
+            }
+        }
+        return end;
+    }
+
+    /** Finds the next occurrence of a pattern in data[p, end). */
+    public static int indexOf(byte[] data, int p, int end, byte[] pattern) {
+        byte first = pattern[0];
+        for (end -= pattern.length - 1; p < end; p++) {
+            if (data[p] == first) {
+                int i = 1;
+                while (i < pattern.length && data[p + i] == pattern[i]) {
+                    i++;
+                }
+                if (i == pattern.length) {
+                    return p;
+                }
+            }
+        }
+        return end + pattern.length - 1;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * RFC 4629.
+ *
+ * Reassembles the pictures of an H.263 stream. Each packet starts with a two bytes payload
+ * header, the P bit stands for the two zero bytes of the picture start code that have been
+ * removed by the sender. The pictures end with a packet carrying the marker bit or when the
+ * timestamp changes.
+ */
+public class H263Depacketizer extends AbstractDepacketizer {
+    public static final String TAG = H263Depacketizer.class.getSimpleName();
+
+    // Value of the source format field when the picture header is extended (PLUSPTYPE)
+    private static final int FORMAT_EXTENDED = 7;
+
+    private static final byte[] START_CODE = {0, 0};
+
+    private long mTimestamp;
+    private boolean mPending = false;
+    private boolean mCorrupted = false;
+
+    @Override
+    public void depacketize(RtpPacket packet) {
+        if (packet.discontinuity && mPending) {
+            // The lost packets may belong to the picture being reassembled
+            mCorrupted = true;
+        }
+        if (mPending && packet.timestamp != mTimestamp) {
+            flush();
+        }
+        mTimestamp = packet.timestamp;
+
+        //  |   RR    |P|V|   PLEN    |PEBIT|
+        byte[] data = packet.data;
+        int offset = packet.payloadOffset;
+        int end = packet.length;
+        if (end - offset < 2) {
+            mCorrupted |= mPending;
+            return;
+        }
+        boolean startCode = (data[offset] & 0x04) != 0;
+        boolean vrc = (data[offset] & 0x02) != 0;
+        int extraHeader = (data[offset] & 0x01) << 5 | (data[offset + 1] & 0xF8) >> 3;
+        offset += 2 + (vrc ? 1 : 0) + extraHeader;
+        if (offset > end) {
+            mCorrupted = true;
+            return;
+        }
+
+        if (startCode) {
+            if (mUnit.length == 0) {
+                classify(data, offset, end - offset);
+            }
+            mUnit.append(START_CODE, 0, START_CODE.length);
+        } else if (!mPending) {
+            // The beginning of the picture has been lost
+            mCorrupted = true;
+        }
+        mPending = true;
+        mUnit.append(data, offset, end - offset);
+
+        if (packet.marker) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (mPending && !mCorrupted && mUnit.length > 0) {
+            emit(mTimestamp);
+        }
+        mUnit.reset();
+        mPending = mCorrupted = false;
+    }
+
+    @Override
+    public boolean hasPendingData() {
+        return mPending;
+    }
+
+    /**
+     * Reads the picture coding type in the picture header, the data starts right after the two
+     * zero bytes of the picture start code.
+     */
+    private void classify(byte[] data, int offset, int length) {
+        // The end of PSC (6 bits), TR (8 bits) and PTYPE starting with "10", split screen,
+        // document camera, freeze picture release, source format and picture coding type
+        if (length < 5 || (data[offset] & 0xFC) != 0x80) {
+            return;
+        }
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = bits << 8 | (i < length ? data[offset + i] & 0xFF : 0);
+        }
+        // A field is read by its last bit, bit 0 being the first bit of the data
+        int format = (int) (bits >>> (63 - 21)) & 0x07;
+        int type;
+        if (format != FORMAT_EXTENDED) {
+            type = (int) (bits >>> (63 - 22)) & 0x01;
+        } else {
+            // UFEP (3 bits), OPPTYPE (18 bits) when UFEP is 1, then MPPTYPE starting with the
+            // picture type (3 bits)
+            int ufep = (int) (bits >>> (63 - 24)) & 0x07;
+            type = (int) (bits >>> (63 - (ufep == 1 ? 45 : 27))) & 0x07;
+        }
+        mUnit.keyFrame = type == 0;
+        mUnit.layer = type == 0 ? RtpSocket.LAYER_INTRA : RtpSocket.LAYER_REFERENCE;
+    }
+}
@@ -90,11 +90,11 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
                 j = 0;
                 // Each h263 frame starts with: 0000 0000 0000 0000 1000 00??
                 // Here we search where the next frame begins in the bit stream
-                for (i = RTPHL + 2; i < MAXPACKETSIZE - 1; i++) {
-                    if (buffer[i] == 0 && buffer[i + 1] == 0 && (buffer[i + 2] & 0xFC) == 0x80) {
-                        j = i;
-                        break;
-                    }
+                i = BitstreamScanner.findPictureStartCode(buffer, RTPHL + 2, MAXPACKETSIZE + 1);
+                if (i < MAXPACKETSIZE - 1) {
+                    j = i;
+                } else {
+                    i = MAXPACKETSIZE - 1;
                 }
                 // Parse temporal reference
                 tr = (buffer[i + 2] & 0x03) << 6 | (buffer[i + 3] & 0xFF) >> 2;
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static net.majorkernelpanic.streaming.rtp.H264Packetizer.FU_A;
+import static net.majorkernelpanic.streaming.rtp.H264Packetizer.MASK_00011111;
+import static net.majorkernelpanic.streaming.rtp.H264Packetizer.NAL_IDR_SLICE;
+import static net.majorkernelpanic.streaming.rtp.H264Packetizer.NAL_SLICE_END_FLAG;
+import static net.majorkernelpanic.streaming.rtp.H264Packetizer.NAL_SLICE_START_FLAG;
+import static net.majorkernelpanic.streaming.rtp.H264Packetizer.NAL_SPS;
+import static net.majorkernelpanic.streaming.rtp.H264Packetizer.STAP_A;
+
+import android.util.Log;
+
+/**
+ * RFC 6184.
+ *
+ * Reassembles the pictures of an H.264 stream sent with packetization-mode 0 or 1: single NAL
+ * unit packets, STAP-A and FU-A. The access units are made of NAL units preceded by
+ * 0x00000001, they end with a packet carrying the marker bit or when the timestamp changes.
+ */
+public class H264Depacketizer extends AbstractDepacketizer {
+    public static final String TAG = H264Depacketizer.class.getSimpleName();
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final byte[] mHeader = new byte[1];
+    private long mTimestamp;
+    private boolean mPending = false;
+    private boolean mCorrupted = false;
+    private boolean mFragmented = false;
+    // Offset of the NAL unit being reassembled from FU-A packets
+    private int mFragmentStart;
+
+    @Override
+    public void depacketize(RtpPacket packet) {
+        if (packet.discontinuity && mPending) {
+            // The lost packets may belong to the access unit being reassembled
+            mCorrupted = true;
+        }
+        if (mPending && packet.timestamp != mTimestamp) {
+            flush();
+        }
+        mTimestamp = packet.timestamp;
+        mPending = true;
+
+        byte[] data = packet.data;
+        int offset = packet.payloadOffset;
+        int end = packet.length;
+        if (offset >= end) {
+            return;
+        }
+        int type = data[offset] & MASK_00011111;
+        if (packet.discontinuity && !startsWithParameterSets(data, offset, end, type)) {
+            // The lost packets may be the first ones of this access unit, after a marker
+            mCorrupted = true;
+        }
+        if (type > 0 && type < STAP_A) {
+            // Single NAL unit packet
+            addNalUnit(data, offset, end - offset);
+        } else if (type == STAP_A) {
+            // 16 bits size followed by the NAL unit, for each NAL unit
+            int p = offset + 1;
+            while (p + 2 < end) {
+                int size = (data[p] & 0xFF) << 8 | data[p + 1] & 0xFF;
+                p += 2;
+                if (size == 0 || p + size > end) {
+                    mCorrupted = true;
+                    break;
+                }
+                addNalUnit(data, p, size);
+                p += size;
+            }
+        } else if (type == FU_A && end - offset > 2) {
+            int fuHeader = data[offset + 1];
+            if ((fuHeader & NAL_SLICE_START_FLAG) != 0) {
+                // The header of the NAL unit is rebuilt from the FU indicator and the FU header
+                mHeader[0] = (byte) (data[offset] & 0xE0 | fuHeader & MASK_00011111);
+                mFragmentStart = mUnit.length;
+                mUnit.append(START_CODE, 0, START_CODE.length);
+                mUnit.append(mHeader, 0, 1);
+                mFragmented = true;
+            } else if (!mFragmented) {
+                // The beginning of the NAL unit has been lost
+                mCorrupted = true;
+                return;
+            }
+            mUnit.append(data, offset + 2, end - offset - 2);
+            if ((fuHeader & NAL_SLICE_END_FLAG) != 0) {
+                mFragmented = false;
+                classify(mUnit.data, mFragmentStart + START_CODE.length,
+                        mUnit.length - mFragmentStart - START_CODE.length);
+            }
+        } else {
+            Log.w(TAG, "Unsupported NAL unit type: " + type);
+            mCorrupted = true;
+        }
+
+        if (packet.marker) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (mPending && !mCorrupted && !mFragmented && mUnit.length > 0) {
+            emit(mTimestamp);
+        }
+        mUnit.reset();
+        mPending = mCorrupted = mFragmented = false;
+    }
+
+    @Override
+    public boolean hasPendingData() {
+        return mPending;
+    }
+
+    /**
+     * Indicates whether a packet starts with an SPS, alone or in a STAP-A, so that a decoder can
+     * start from it whatever has been lost before.
+     */
+    private static boolean startsWithParameterSets(byte[] data, int offset, int end, int type) {
+        if (type == STAP_A) {
+            return offset + 3 < end && (data[offset + 3] & MASK_00011111) == NAL_SPS;
+        }
+        return type == NAL_SPS;
+    }
+
+    private void addNalUnit(byte[] data, int offset, int length) {
+        mUnit.append(START_CODE, 0, START_CODE.length);
+        mUnit.append(data, offset, length);
+        classify(data, offset, length);
+    }
+
+    /** Updates the key frame flag and the layer of the access unit with one of its NAL units. */
+    private void classify(byte[] data, int offset, int length) {
+        if ((data[offset] & MASK_00011111) == NAL_IDR_SLICE) {
+            mUnit.keyFrame = true;
+        }
+        // Parameter sets and SEI are in the lowest layer, the picture is in the layer of its
+        // slices
+        int layer = H264Packetizer.getLayer(data[offset], data, offset + 1, length - 1);
+        mUnit.layer = Math.max(mUnit.layer, layer);
+    }
+}
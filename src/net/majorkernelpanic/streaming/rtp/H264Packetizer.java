@@ -19,9 +19,12 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * RFC 3984.
@@ -30,8 +33,13 @@ import java.io.IOException;
  *
  * Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  * The stream must start with mpeg4 or 3gpp header, it will be skipped.
+ *
+ * When the input is an {@link AccessUnitSource} or a {@link MediaCodecEngine}, the NAL units are
+ * copied straight from the buffers of the encoder into the packets, each fragment once, and the
+ * small NAL units of an access unit share STAP-A packets.
  */
-public class H264Packetizer extends AbstractPacketizer implements Runnable {
+public class H264Packetizer extends AbstractPacketizer implements Runnable,
+        MediaCodecEngine.Output {
     public static final String TAG = H264Packetizer.class.getSimpleName();
 
     /**
@@ -79,10 +87,20 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
     private long delay = 0, oldtime = 0;
     private byte[] sps = null, pps = null, stapa = null;
     private int count = 0;
-    private int streamType = STREAM_TYPE_MEDIA_CODEC;
+    private int layer = RtpSocket.LAYER_KEY;
+    // The input stream of the MediaRecorder, null with the MediaCodec API
+    private PipeReader reader = null;
+
+    // Bytes read at once when looking for a NAL unit in a broken stream
+    private static final int RESYNC_CHUNK = 4096;
 
     private final byte[] header = new byte[5];
+    // The beginning of a slice header, enough to find its layer
+    private final byte[] sliceHeader = new byte[8];
+    // The STAP-A being built: number of NAL units, length after the RTP header, F and NRI bits
+    private int aggregated = 0, aggregateLength, aggregateHeader;
     private final Statistics stats = new Statistics();
+    private final BufferInfo info = new BufferInfo();
 
     public H264Packetizer() {
         super();
@@ -90,18 +108,24 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
     }
 
     public void start() {
-        if (t == null) {
+        if (engine != null) {
+            Log.d(TAG, "H264 packetizer started !");
+            stats.reset();
+            count = 0;
+            socket.setCacheSize(0);
+            engine.setOutput(this);
+        } else if (t == null) {
             t = new Thread(this);
             t.start();
         }
     }
 
     public void stop() {
+        if (engine != null) {
+            detachEngine();
+        }
         if (t != null) {
-            try {
-                is.close();
-            } catch (IOException ignored) {
-            }
+            closeInput();
             t.interrupt();
             try {
                 t.join();
@@ -111,6 +135,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
         }
     }
 
+    /** Sends packets again from the next IDR picture. */
+    @Override
+    public void resume() {
+        socket.resume(true);
+    }
+
     public void setStreamParameters(byte[] pps, byte[] sps) {
         this.pps = pps;
         this.sps = sps;
@@ -167,19 +197,26 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
         stats.reset();
         count = 0;
 
-        if (is instanceof MediaCodecInputStream) {
-            streamType = STREAM_TYPE_MEDIA_CODEC;
+        if (source != null) {
+            // The encoder gives whole access units with their timestamp
             socket.setCacheSize(0);
+            reader = null;
         } else {
-            streamType = STREAM_TYPE_MEDIA_RECORDER;
             socket.setCacheSize(400);
+            // The length and the header of each NAL unit are read apart, resync() gives back
+            // what it read past the NAL unit it found
+            reader = openReader();
         }
 
         try {
             while (!Thread.interrupted()) {
                 oldtime = System.nanoTime();
                 // We read a NAL units from the input stream and we send them
-                send();
+                if (source != null) {
+                    sendAccessUnit();
+                } else {
+                    send();
+                }
                 // We measure how long it took to receive NAL units from the phone
                 duration = System.nanoTime() - oldtime;
 
@@ -189,80 +226,37 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
                 //Log.d(TAG,"duration: "+duration/1000000+" delay: "+delay/1000000);
             }
         } catch (IOException | InterruptedException ignored) {
+        } finally {
+            releaseReader();
         }
 
         Log.d(TAG, "H264 packetizer stopped !");
     }
 
     /**
-     * Reads a NAL unit in the FIFO and sends it.
+     * Reads a NAL unit of the MediaRecorder in the FIFO and sends it.
      * If it is too big, we split it in FU-A units (RFC 3984).
      */
-    @SuppressLint("NewApi")
     private void send() throws IOException, InterruptedException {
         int sum = 1, len = 0, type;
 
-        if (streamType == STREAM_TYPE_MEDIA_RECORDER) {
-            // NAL units are preceeded by their length, we parse the length
-            // e.g.
-            // 00 00 00 19 06 [... 25 bytes...] 00 00 24 aa 65 [... 9386 bytes...]
-            // SEI                              IDR Slice
-            fill(header, 0, 5);
-            ts += delay;
-            naluLength = (header[0] & 0xFF) << 24
-                    | (header[1] & 0xFF) << 16
-                    | (header[2] & 0xFF) << 8
-                    | header[3] & 0xFF;
-            if (naluLength > 100000 || naluLength < 0) {
-                resync();
-            }
-        } else if (streamType == STREAM_TYPE_MEDIA_CODEC) {
-            // NAL units are preceeded with 0x00000001
-            // e.g.
-            // 00 00 00 01 06 ... 00 00 00 01 67 ... 00 00 00 01 68 ... 00 00 00 01 65 ...
-            // SEI                SPS                PPS                IDR Slice
-            fill(header, 0, 5);
-            ts = ((MediaCodecInputStream) is).getLastBufferInfo().presentationTimeUs * 1000L;
-            //ts += delay;
-            naluLength = is.available() + 1;
-            if (!(header[0] == 0 && header[1] == 0 && header[2] == 0)) {
-                // Turns out, the NAL units are not preceeded with 0x00000001
-                Log.e(TAG, "NAL units are not preceeded with 0x00000001");
-                streamType = STREAM_TYPE_UNKNOWN;
-                return;
-            }
-        } else {
-            // Nothing preceededs the NAL units
-            fill(header, 0, 1);
-            header[4] = header[0];
-            ts = ((MediaCodecInputStream) is).getLastBufferInfo().presentationTimeUs * 1000L;
-            //ts += delay;
-            naluLength = is.available() + 1;
+        // NAL units are preceeded by their length, we parse the length
+        // e.g.
+        // 00 00 00 19 06 [... 25 bytes...] 00 00 24 aa 65 [... 9386 bytes...]
+        // SEI                              IDR Slice
+        fill(header, 0, 5);
+        ts += delay;
+        naluLength = (header[0] & 0xFF) << 24
+                | (header[1] & 0xFF) << 16
+                | (header[2] & 0xFF) << 8
+                | header[3] & 0xFF;
+        if (naluLength > 100000 || naluLength < 0) {
+            resync(reader);
         }
 
         // Parses the NAL unit type
         type = header[4] & MASK_00011111;
-
-        // The stream already contains NAL unit type 7 or 8, we don't need
-        // to add them to the stream ourselves
-        if (type == NAL_SPS || type == NAL_PPS) {
-            Log.v(TAG, "SPS or PPS present in the stream.");
-            count++;
-            if (count > 4) {
-                sps = null;
-                pps = null;
-            }
-        }
-
-        // We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-        // Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-        if (type == NAL_IDR_SLICE && sps != null && pps != null) {
-            buffer = socket.requestBuffer();
-            socket.markNextPacket();
-            socket.updateTimestamp(ts);
-            System.arraycopy(stapa, 0, buffer, RTPHL, stapa.length);
-            super.send(RTPHL + stapa.length);
-        }
+        sendParameterSets(type);
 
         //Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
 
@@ -283,8 +277,12 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
             //         RTP payload format for single NAL unit packet
 
             buffer = socket.requestBuffer();
+            if (type == NAL_SPS || type == NAL_IDR_SLICE) {
+                socket.markSyncPoint();
+            }
             buffer[RTPHL] = header[4];
             len = fill(buffer, RTPHL + 1, naluLength - 1);
+            socket.markLayer(getLayer(header[4], buffer, RTPHL + 1, len));
             socket.updateTimestamp(ts);
             socket.markNextPacket();
             super.send(naluLength + RTPHL);
@@ -325,6 +323,9 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
             while (sum < naluLength) {
                 buffer = socket.requestBuffer();
+                if (sum == 1 && type == NAL_IDR_SLICE) {
+                    socket.markSyncPoint();
+                }
                 buffer[RTPHL] = header[0]; // FU indicator
                 buffer[RTPHL + 1] = header[1]; // FU header
                 socket.updateTimestamp(ts);
@@ -332,6 +333,11 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
                         Math.min(naluLength - sum, MAXPACKETSIZE - RTPHL - 2))) < 0) {
                     return;
                 }
+                if (sum == 1) {
+                    // The slice header is in the first fragment
+                    layer = getLayer(header[4], buffer, RTPHL + 2, len);
+                }
+                socket.markLayer(layer);
                 sum += len;
                 // Last packet before next NAL
                 if (sum >= naluLength) {
@@ -347,6 +353,262 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
         }
     }
 
+    /** Reads an access unit from the source and sends it. */
+    private void sendAccessUnit() throws IOException, InterruptedException {
+        ByteBuffer data = source.dequeue(info);
+        try {
+            onAccessUnit(data, info);
+        } finally {
+            source.release();
+        }
+    }
+
+    /**
+     * Sends an access unit produced by the encoder. A buffer of the codec may hold several NAL
+     * units preceded by 0x00000001 or 0x000001 (e.g. SPS, PPS and IDR slice, or SEI and slice),
+     * they all get the timestamp of the buffer and only the last packet of the access unit gets
+     * the marker bit.
+     */
+    @SuppressLint("InlinedApi")
+    @Override
+    public void onAccessUnit(ByteBuffer data, BufferInfo info) throws IOException,
+            InterruptedException {
+        ts = info.presentationTimeUs * 1000L;
+        // The rest of the access unit is in the next buffer
+        boolean partial = (info.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+        int limit = data.limit();
+        int p = BitstreamScanner.findStartCode(data, data.position());
+        // Without start code, the buffer holds a single NAL unit
+        p = p == limit ? data.position() : p + 3;
+        while (p < limit) {
+            int next = BitstreamScanner.findStartCode(data, p);
+            // The zero byte of a 4 bytes start code is not part of the NAL unit
+            int end = next;
+            while (end > p && data.get(end - 1) == 0) {
+                end--;
+            }
+            if (end > p) {
+                data.limit(end);
+                data.position(p);
+                sendNalUnit(data, next == limit && !partial);
+                data.limit(limit);
+            }
+            p = next + 3;
+        }
+        // Only when the access unit goes on in the next buffer
+        flushAggregate(false);
+    }
+
+    /**
+     * Sends the NAL unit found between the position and the limit of a buffer. Small NAL units of
+     * an access unit are aggregated in STAP-A packets, big ones are split in FU-A packets.
+     *
+     * @param last Whether the NAL unit ends the access unit, its last packet gets the marker bit
+     */
+    private void sendNalUnit(ByteBuffer data, boolean last) throws IOException,
+            InterruptedException {
+        if (needsParameterSets(data.get(data.position()) & MASK_00011111)) {
+            aggregate(ByteBuffer.wrap(sps), false);
+            aggregate(ByteBuffer.wrap(pps), false);
+        }
+        if (data.remaining() + 3 > MAXPACKETSIZE - RTPHL) {
+            flushAggregate(false);
+            sendFragments(data, last);
+        } else {
+            aggregate(data, last);
+        }
+    }
+
+    /**
+     * Adds a NAL unit to the STAP-A being built. The packet is sent when the next NAL unit does
+     * not fit in it or belongs to another layer, so that dropping a layer drops only its own
+     * NAL units, and when the access unit ends.
+     */
+    private void aggregate(ByteBuffer data, boolean last) throws IOException,
+            InterruptedException {
+        int length = data.remaining();
+        int p = data.position();
+        byte nalHeader = data.get(p);
+        int n = Math.min(sliceHeader.length, length - 1);
+        for (int i = 0; i < n; i++) {
+            sliceHeader[i] = data.get(p + 1 + i);
+        }
+        int nalLayer = getLayer(nalHeader, sliceHeader, 0, n);
+
+        if (aggregated > 0 && (nalLayer != layer
+                || aggregateLength + 2 + length > MAXPACKETSIZE - RTPHL)) {
+            flushAggregate(false);
+        }
+        if (aggregated == 0) {
+            buffer = socket.requestBuffer();
+            aggregateLength = 1;
+            aggregateHeader = 0;
+            layer = nalLayer;
+        }
+
+        // 16 bits size followed by the NAL unit
+        int offset = RTPHL + aggregateLength;
+        buffer[offset] = (byte) (length >> 8);
+        buffer[offset + 1] = (byte) length;
+        data.get(buffer, offset + 2, length);
+        aggregateLength += length + 2;
+        aggregated++;
+
+        // F is the OR of the F bits, NRI the maximum of the NRIs of the NAL units
+        int nri = Math.max(aggregateHeader & MASK_01100000, nalHeader & MASK_01100000);
+        aggregateHeader = aggregateHeader & 0x80 | nalHeader & 0x80 | nri;
+        int type = nalHeader & MASK_00011111;
+        if (type == NAL_SPS || type == NAL_IDR_SLICE) {
+            socket.markSyncPoint();
+        }
+
+        if (last) {
+            flushAggregate(true);
+        }
+    }
+
+    /**
+     * Sends the STAP-A being built, as a single NAL unit packet when it holds only one NAL unit.
+     *
+     * @param marker Whether the packet ends the access unit
+     */
+    private void flushAggregate(boolean marker) throws IOException {
+        if (aggregated == 0) {
+            return;
+        }
+        int length = aggregateLength;
+        if (aggregated == 1) {
+            // The size field of the NAL unit is not needed anymore
+            length -= 3;
+            System.arraycopy(buffer, RTPHL + 3, buffer, RTPHL, length);
+        } else {
+            buffer[RTPHL] = (byte) (aggregateHeader | STAP_A);
+        }
+        aggregated = 0;
+        socket.markLayer(layer);
+        socket.updateTimestamp(ts);
+        if (marker) {
+            socket.markNextPacket();
+        }
+        super.send(length + RTPHL);
+    }
+
+    /** Sends a NAL unit too big for one packet in FU-A packets. */
+    private void sendFragments(ByteBuffer data, boolean last) throws IOException,
+            InterruptedException {
+        byte nalHeader = data.get();
+        int type = nalHeader & MASK_00011111;
+        byte indicator = (byte) (nalHeader & MASK_01100000 | FU_A);
+        byte fuHeader = (byte) (type | NAL_SLICE_START_FLAG);
+        boolean first = true;
+        while (data.hasRemaining()) {
+            buffer = socket.requestBuffer();
+            if (first && type == NAL_IDR_SLICE) {
+                socket.markSyncPoint();
+            }
+            int len = Math.min(data.remaining(), MAXPACKETSIZE - RTPHL - 2);
+            buffer[RTPHL] = indicator;
+            buffer[RTPHL + 1] = fuHeader;
+            data.get(buffer, RTPHL + 2, len);
+            if (first) {
+                // The slice header is in the first fragment
+                layer = getLayer(nalHeader, buffer, RTPHL + 2, len);
+            }
+            socket.markLayer(layer);
+            socket.updateTimestamp(ts);
+            if (!data.hasRemaining()) {
+                buffer[RTPHL + 1] |= NAL_SLICE_END_FLAG;
+                if (last) {
+                    socket.markNextPacket();
+                }
+            }
+            super.send(len + RTPHL + 2);
+            fuHeader &= ~NAL_SLICE_START_FLAG;
+            first = false;
+        }
+    }
+
+    /**
+     * Keeps track of the parameter sets found in the stream. Ours are sent before IDR pictures,
+     * so that the stream can be decoded even if no SDP was sent to the decoder, unless the stream
+     * already contains them.
+     *
+     * @return Whether the SPS and the PPS must be sent before this NAL unit
+     */
+    private boolean needsParameterSets(int type) {
+        // The stream already contains NAL unit type 7 or 8, we don't need
+        // to add them to the stream ourselves
+        if (type == NAL_SPS || type == NAL_PPS) {
+            Log.v(TAG, "SPS or PPS present in the stream.");
+            count++;
+            if (count > 4) {
+                sps = null;
+                pps = null;
+            }
+        }
+        return type == NAL_IDR_SLICE && sps != null && pps != null;
+    }
+
+    /** Sends the SPS and the PPS in a STAP-A before IDR pictures, if needed. */
+    private void sendParameterSets(int type) throws IOException, InterruptedException {
+        // The IDR picture follows in the same access unit, the STAP-A has no marker bit
+        if (needsParameterSets(type)) {
+            buffer = socket.requestBuffer();
+            socket.markSyncPoint();
+            socket.updateTimestamp(ts);
+            System.arraycopy(stapa, 0, buffer, RTPHL, stapa.length);
+            super.send(RTPHL + stapa.length);
+        }
+    }
+
+    /**
+     * Returns the layer of a NAL unit (see {@link RtpSocket#markLayer(int)}). Slices with a
+     * nal_ref_idc of 0 are disposable, the others are classified with the slice_type found at
+     * the beginning of their header. Everything else (parameter sets, SEI...) is in the lowest
+     * layer, so that it is never dropped.
+     *
+     * @param nalHeader The first byte of the NAL unit
+     * @param data      The bytes that follow it
+     */
+    static int getLayer(byte nalHeader, byte[] data, int offset, int length) {
+        int type = nalHeader & MASK_00011111;
+        if (type != NAL_SLICE && type != NAL_DPA && type != NAL_DPB && type != NAL_DPC) {
+            return RtpSocket.LAYER_KEY;
+        }
+        if ((nalHeader & MASK_01100000) == 0) {
+            return RtpSocket.LAYER_DISPOSABLE;
+        }
+        if (type == NAL_DPB || type == NAL_DPC) {
+            // No slice_type in those partitions
+            return RtpSocket.LAYER_REFERENCE;
+        }
+
+        // first_mb_in_slice and slice_type are Exp-Golomb coded
+        int pos = offset * 8;
+        int end = (offset + Math.min(length, 8)) * 8;
+        int value = 0;
+        for (int n = 0; n < 2; n++) {
+            int zeros = 0;
+            while (pos < end && (data[pos >> 3] >> (7 - (pos & 7)) & 1) == 0) {
+                zeros++;
+                pos++;
+            }
+            pos++;
+            if (pos + zeros > end) {
+                return RtpSocket.LAYER_REFERENCE;
+            }
+            value = 0;
+            for (int i = 0; i < zeros; i++, pos++) {
+                value = value << 1 | data[pos >> 3] >> (7 - (pos & 7)) & 1;
+            }
+            value += (1 << zeros) - 1;
+        }
+
+        // I or SI slice
+        int sliceType = value % 5;
+        return sliceType == 2 || sliceType == 4 ? RtpSocket.LAYER_INTRA : RtpSocket.LAYER_REFERENCE;
+    }
+
     private int fill(byte[] buffer, int offset, int length) throws IOException {
         int sum = 0, len;
         while (sum < length) {
@@ -360,38 +622,55 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
         return sum;
     }
 
-    private void resync() throws IOException {
-        int type;
-
+    /**
+     * Looks for the next NAL unit after a bogus length, by chunks: its length is below 100000
+     * so it begins with 0x00, then 0x00 or 0x01, and it is a slice. The bytes that follow it
+     * are pushed back into the stream.
+     *
+     * @param reader The input stream of the MediaRecorder
+     */
+    private void resync(PipeReader reader) throws IOException {
         Log.e(TAG, "Packetizer out of sync! Let's try to fix that(NAL length=" + naluLength + ")");
 
+        // The bogus header may be followed by a good one
+        byte[] chunk = new byte[RESYNC_CHUNK];
+        System.arraycopy(header, 1, chunk, 0, 4);
+        int length = 4, len;
         while (true) {
-            header[0] = header[1];
-            header[1] = header[2];
-            header[2] = header[3];
-            header[3] = header[4];
-            header[4] = (byte) is.read();
-
-            type = header[4] & MASK_00011111;
-
-            if (type == NAL_IDR_SLICE || type == NAL_SLICE) {
-                naluLength = (header[0] & 0xFF) << 24
-                        | (header[1] & 0xFF) << 16
-                        | (header[2] & 0xFF) << 8
-                        | header[3] & 0xFF;
-                if (naluLength > 0 && naluLength < 100000) {
-                    oldtime = System.nanoTime();
-                    Log.e(TAG, "A NAL unit may have been found in the bit stream !");
-                    break;
-                } else if (naluLength == 0) {
-                    Log.e(TAG, "NAL unit with NULL size found...");
-                } else if (header[0] == 0xFF
-                        && header[1] == 0xFF
-                        && header[2] == 0xFF
-                        && header[3] == 0xFF) {
-                    Log.e(TAG, "NAL unit with 0xFFFFFFFF size found...");
+            len = reader.read(chunk, length, chunk.length - length);
+            if (len < 0) {
+                throw new IOException("End of stream");
+            }
+            length += len;
+
+            int p = 0;
+            while (p + 4 < length) {
+                if ((chunk[p + 1] & 0xFF) > 1) {
+                    // No length can begin at p or p+1
+                    p += 2;
+                    continue;
+                }
+                int type = chunk[p + 4] & MASK_00011111;
+                if (chunk[p] == 0 && (type == NAL_IDR_SLICE || type == NAL_SLICE)) {
+                    naluLength = (chunk[p + 1] & 0xFF) << 16
+                            | (chunk[p + 2] & 0xFF) << 8
+                            | chunk[p + 3] & 0xFF;
+                    if (naluLength > 0 && naluLength < 100000) {
+                        System.arraycopy(chunk, p, header, 0, 5);
+                        reader.unread(chunk, p + 5, length - p - 5);
+                        oldtime = System.nanoTime();
+                        Log.e(TAG, "A NAL unit may have been found in the bit stream !");
+                        return;
+                    } else if (naluLength == 0) {
+                        Log.e(TAG, "NAL unit with NULL size found...");
+                    }
                 }
+                p++;
             }
+
+            // The last 4 bytes may begin a NAL unit
+            System.arraycopy(chunk, length - 4, chunk, 0, 4);
+            length = 4;
         }
     }
 }
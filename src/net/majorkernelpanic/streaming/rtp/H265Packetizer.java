@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static net.majorkernelpanic.streaming.rtp.BitstreamScanner.findStartCode;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * RFC 7798.
+ *
+ * Packetizes the H.265 access units produced by a MediaCodec, read from an
+ * {@link AccessUnitSource} or pushed by a {@link MediaCodecEngine}. Small NAL units of an access
+ * unit are aggregated in AP packets, big ones are split in FU packets, the others are sent in
+ * single NAL unit packets. There are no DONL fields (sprop-max-don-diff is 0).
+ *
+ * The VPS, the SPS and the PPS are given in the SDP, they are also sent before IRAP pictures
+ * unless the stream already contains them.
+ */
+@SuppressLint("NewApi")
+public class H265Packetizer extends AbstractPacketizer implements Runnable,
+        MediaCodecEngine.Output {
+    public static final String TAG = H265Packetizer.class.getSimpleName();
+
+    // NAL unit types
+    public static final int NAL_BLA_W_LP = 16;
+    public static final int NAL_RSV_IRAP_23 = 23;
+    public static final int NAL_VPS = 32;
+    public static final int NAL_SPS = 33;
+    public static final int NAL_PPS = 34;
+    public static final int AP = 48;
+    public static final int FU = 49;
+
+    public static final int FU_START_FLAG = 0x80;
+    public static final int FU_END_FLAG = 0x40;
+
+    private Thread t = null;
+    private byte[] vps = null, sps = null, pps = null;
+    private int count = 0;
+    private int layer = RtpSocket.LAYER_KEY;
+    // The AP being built: number of NAL units, length after the RTP header, F bit, lowest
+    // LayerId and TID
+    private int aggregated = 0, aggregateLength, aggregateF, aggregateLayerId, aggregateTid;
+
+    private final BufferInfo info = new BufferInfo();
+
+    public H265Packetizer() {
+        super();
+        socket.setClockFrequency(90000);
+        socket.setCacheSize(0);
+    }
+
+    public void start() {
+        count = 0;
+        if (engine != null) {
+            engine.setOutput(this);
+        } else if (t == null) {
+            t = new Thread(this);
+            t.start();
+        }
+    }
+
+    public void stop() {
+        if (engine != null) {
+            detachEngine();
+        }
+        if (t != null) {
+            closeInput();
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException ignored) {
+            }
+            t = null;
+        }
+    }
+
+    /** Sends packets again from the next IRAP picture. */
+    @Override
+    public void resume() {
+        socket.resume(true);
+    }
+
+    /** Sets the parameter sets of the stream, without start code. */
+    public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+        this.vps = vps;
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    public void run() {
+        Log.d(TAG, "H265 packetizer started !");
+        if (source == null) {
+            Log.e(TAG, "The input must be an AccessUnitSource");
+            return;
+        }
+        try {
+            while (!Thread.interrupted()) {
+                ByteBuffer data = source.dequeue(info);
+                try {
+                    onAccessUnit(data, info);
+                } finally {
+                    source.release();
+                }
+            }
+        } catch (IOException | InterruptedException ignored) {
+        }
+        Log.d(TAG, "H265 packetizer stopped !");
+    }
+
+    /**
+     * Sends an access unit produced by the encoder, made of NAL units preceded by 0x00000001 or
+     * 0x000001. They all get the timestamp of the buffer and only the last packet of the access
+     * unit gets the marker bit.
+     */
+    @SuppressLint("InlinedApi")
+    @Override
+    public void onAccessUnit(ByteBuffer data, BufferInfo info) throws IOException,
+            InterruptedException {
+        ts = info.presentationTimeUs * 1000L;
+        // The rest of the access unit is in the next buffer
+        boolean partial = (info.flags & MediaCodec.BUFFER_FLAG_PARTIAL_FRAME) != 0;
+        int limit = data.limit();
+        int p = findStartCode(data, data.position());
+        // Without start code, the buffer holds a single NAL unit
+        p = p == limit ? data.position() : p + 3;
+        while (p < limit) {
+            int next = findStartCode(data, p);
+            // The zero byte of a 4 bytes start code is not part of the NAL unit
+            int end = next;
+            while (end > p && data.get(end - 1) == 0) {
+                end--;
+            }
+            // The NAL unit header is 2 bytes long
+            if (end - p > 2) {
+                data.limit(end);
+                data.position(p);
+                sendNalUnit(data, next == limit && !partial);
+                data.limit(limit);
+            }
+            p = next + 3;
+        }
+        // Only when the access unit goes on in the next buffer
+        flushAggregate(false);
+    }
+
+    /**
+     * Sends the NAL unit found between the position and the limit of a buffer.
+     *
+     * @param last Whether the NAL unit ends the access unit, its last packet gets the marker bit
+     */
+    private void sendNalUnit(ByteBuffer data, boolean last) throws IOException,
+            InterruptedException {
+        if (needsParameterSets(getType(data.get(data.position())))) {
+            aggregate(ByteBuffer.wrap(vps), false);
+            aggregate(ByteBuffer.wrap(sps), false);
+            aggregate(ByteBuffer.wrap(pps), false);
+        }
+        // PayloadHdr of the AP and size of the NAL unit
+        if (data.remaining() + 4 > MAXPACKETSIZE - RTPHL) {
+            flushAggregate(false);
+            sendFragments(data, last);
+        } else {
+            aggregate(data, last);
+        }
+    }
+
+    /**
+     * Adds a NAL unit to the AP being built. The packet is sent when the next NAL unit does not
+     * fit in it or belongs to another layer (see {@link RtpSocket#markLayer(int)}), and when the
+     * access unit ends.
+     */
+    private void aggregate(ByteBuffer data, boolean last) throws IOException,
+            InterruptedException {
+        int length = data.remaining();
+        int p = data.position();
+        byte h0 = data.get(p), h1 = data.get(p + 1);
+        int type = getType(h0);
+        int nalLayer = getLayer(type);
+
+        if (aggregated > 0 && (nalLayer != layer
+                || aggregateLength + 2 + length > MAXPACKETSIZE - RTPHL)) {
+            flushAggregate(false);
+        }
+        if (aggregated == 0) {
+            buffer = socket.requestBuffer();
+            aggregateLength = 2;
+            aggregateF = 0;
+            aggregateLayerId = 0x3F;
+            aggregateTid = 7;
+            layer = nalLayer;
+        }
+
+        // 16 bits size followed by the NAL unit
+        int offset = RTPHL + aggregateLength;
+        buffer[offset] = (byte) (length >> 8);
+        buffer[offset + 1] = (byte) length;
+        data.get(buffer, offset + 2, length);
+        aggregateLength += length + 2;
+        aggregated++;
+
+        // F is the OR of the F bits, LayerId and TID are the lowest of the NAL units
+        aggregateF |= h0 & 0x80;
+        aggregateLayerId = Math.min(aggregateLayerId, (h0 & 0x01) << 5 | (h1 & 0xFF) >> 3);
+        aggregateTid = Math.min(aggregateTid, h1 & 0x07);
+        if (type == NAL_VPS || isIrap(type)) {
+            socket.markSyncPoint();
+        }
+
+        if (last) {
+            flushAggregate(true);
+        }
+    }
+
+    /**
+     * Sends the AP being built, as a single NAL unit packet when it holds only one NAL unit.
+     *
+     * @param marker Whether the packet ends the access unit
+     */
+    private void flushAggregate(boolean marker) throws IOException {
+        if (aggregated == 0) {
+            return;
+        }
+        int length = aggregateLength;
+        if (aggregated == 1) {
+            // Neither the PayloadHdr nor the size field are needed anymore
+            length -= 4;
+            System.arraycopy(buffer, RTPHL + 4, buffer, RTPHL, length);
+        } else {
+            buffer[RTPHL] = (byte) (aggregateF | AP << 1 | aggregateLayerId >> 5);
+            buffer[RTPHL + 1] = (byte) ((aggregateLayerId & 0x1F) << 3 | aggregateTid);
+        }
+        aggregated = 0;
+        socket.markLayer(layer);
+        socket.updateTimestamp(ts);
+        if (marker) {
+            socket.markNextPacket();
+        }
+        super.send(length + RTPHL);
+    }
+
+    /** Sends a NAL unit too big for one packet in FU packets. */
+    private void sendFragments(ByteBuffer data, boolean last) throws IOException,
+            InterruptedException {
+        byte h0 = data.get(), h1 = data.get();
+        int type = getType(h0);
+        // The PayloadHdr is the NAL unit header with the type of the FU
+        byte payloadHdr = (byte) (h0 & 0x81 | FU << 1);
+        byte fuHeader = (byte) (type | FU_START_FLAG);
+        layer = getLayer(type);
+        boolean first = true;
+        while (data.hasRemaining()) {
+            buffer = socket.requestBuffer();
+            if (first && isIrap(type)) {
+                socket.markSyncPoint();
+            }
+            int len = Math.min(data.remaining(), MAXPACKETSIZE - RTPHL - 3);
+            buffer[RTPHL] = payloadHdr;
+            buffer[RTPHL + 1] = h1;
+            buffer[RTPHL + 2] = fuHeader;
+            data.get(buffer, RTPHL + 3, len);
+            socket.markLayer(layer);
+            socket.updateTimestamp(ts);
+            if (!data.hasRemaining()) {
+                buffer[RTPHL + 2] |= FU_END_FLAG;
+                if (last) {
+                    socket.markNextPacket();
+                }
+            }
+            super.send(len + RTPHL + 3);
+            fuHeader &= ~FU_START_FLAG;
+            first = false;
+        }
+    }
+
+    /**
+     * Keeps track of the parameter sets found in the stream.
+     *
+     * @return Whether the VPS, the SPS and the PPS must be sent before this NAL unit
+     */
+    private boolean needsParameterSets(int type) {
+        // The stream already contains them, we don't need to add them ourselves
+        if (type == NAL_VPS || type == NAL_SPS || type == NAL_PPS) {
+            count++;
+            if (count > 6) {
+                vps = sps = pps = null;
+            }
+        }
+        return isIrap(type) && vps != null && sps != null && pps != null;
+    }
+
+    /**
+     * Finds the VPS, the SPS and the PPS in a buffer of NAL units preceded by start codes, like
+     * the csd-0 of an HEVC encoder.
+     *
+     * @return The VPS, the SPS and the PPS without start code, null for those not found
+     */
+    public static byte[][] findParameterSets(ByteBuffer data) {
+        byte[][] sets = new byte[3][];
+        int limit = data.limit();
+        int p = findStartCode(data, data.position());
+        while (p < limit) {
+            p += 3;
+            int next = findStartCode(data, p);
+            int end = next;
+            while (end > p && data.get(end - 1) == 0) {
+                end--;
+            }
+            int type = end - p > 2 ? getType(data.get(p)) : -1;
+            if (type >= NAL_VPS && type <= NAL_PPS) {
+                byte[] set = new byte[end - p];
+                ByteBuffer nal = data.duplicate();
+                nal.position(p);
+                nal.get(set);
+                sets[type - NAL_VPS] = set;
+            }
+            p = next;
+        }
+        return sets;
+    }
+
+    static int getType(byte nalHeader) {
+        return nalHeader >> 1 & 0x3F;
+    }
+
+    static boolean isIrap(int type) {
+        return type >= NAL_BLA_W_LP && type <= NAL_RSV_IRAP_23;
+    }
+
+    /**
+     * Returns the layer of a NAL unit (see {@link RtpSocket#markLayer(int)}). Sub-layer
+     * non-reference pictures (TRAIL_N, TSA_N...) are disposable, IRAP pictures and everything
+     * that is not a picture (parameter sets, SEI...) are in the lowest layer. Other pictures are
+     * reference pictures, intra ones are not told apart: their slice header depends on the PPS.
+     */
+    static int getLayer(int type) {
+        if (type >= NAL_VPS || isIrap(type)) {
+            return RtpSocket.LAYER_KEY;
+        }
+        if (type < NAL_BLA_W_LP && type % 2 == 0) {
+            return RtpSocket.LAYER_DISPOSABLE;
+        }
+        return RtpSocket.LAYER_REFERENCE;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Puts the packets received from the network back in order.
+ *
+ * Packets are handed out by {@link #poll()} in the order of their sequence numbers. When a packet
+ * is missing, the following ones are held until it arrives or until they have waited for the
+ * delay of the buffer, then the missing packet is considered lost and the next one is marked
+ * with {@link RtpPacket#discontinuity}. Packets arriving after their turn are dropped.
+ *
+ * The delay adapts to the interarrival jitter of the stream (RFC 3550 section 6.4.1), within the
+ * bounds given to {@link #setDelayBounds(int, int)}. With a playout delay target (see
+ * {@link #setPlayoutDelay(int)}), packets are also held until their timestamp is due, so that
+ * they come out at the pace they have been sent at, the target after the fastest packet.
+ *
+ * The packets are recycled: get an empty one with {@link #obtain()} and give the packets back
+ * with {@link #recycle(RtpPacket)} when they are not needed anymore. This class is not thread
+ * safe.
+ */
+public class JitterBuffer {
+    public static final String TAG = JitterBuffer.class.getSimpleName();
+
+    /** Default initial delay in ms. */
+    public static final int DEFAULT_DELAY = 100;
+
+    /** Default bounds of the delay in ms. */
+    public static final int DEFAULT_MIN_DELAY = 20, DEFAULT_MAX_DELAY = 500;
+
+    /** Default capacity in packets. */
+    public static final int DEFAULT_CAPACITY = 512;
+
+    // How many times the jitter a missing packet is waited for
+    private static final int JITTER_FACTOR = 3;
+
+    // A packet this far behind means that the sender has restarted
+    private static final int MAX_MISORDER = 100;
+
+    private final ArrayList<RtpPacket> mPackets = new ArrayList<>();
+    private final ArrayDeque<RtpPacket> mPool = new ArrayDeque<>();
+    private final int mCapacity;
+    private int mDelay, mMinDelay, mMaxDelay;
+    private int mPlayoutDelay = 0;
+    private long mClock = 90000;
+
+    // Extended sequence number of the next packet handed out, -1 before the first packet
+    private long mNext = -1;
+    private long mHighest = -1;
+    private long mLost = 0;
+    private long mLate = 0;
+    private long mDropped = 0;
+
+    // Interarrival jitter in timestamp units, scaled by 16 as in RFC 3550 section A.8
+    private long mJitter = 0;
+    private long mLastTransit;
+    private boolean mHasTransit = false;
+
+    // Shortest transit seen, in ms, and the extended timestamp of the last packet
+    private long mBaseTransit;
+    private long mLastTimestamp;
+    private long mExtendedTimestamp;
+
+    /** Creates a buffer whose delay adapts to the jitter. */
+    public JitterBuffer() {
+        this(DEFAULT_CAPACITY, DEFAULT_DELAY);
+        setDelayBounds(DEFAULT_MIN_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Creates a buffer with a fixed delay.
+     *
+     * @param capacity Number of packets the buffer holds before giving up on a missing packet
+     * @param delay    How long a missing packet is waited for, in ms
+     */
+    public JitterBuffer(int capacity, int delay) {
+        mCapacity = capacity;
+        setDelay(delay);
+    }
+
+    /** Sets how long a missing packet is waited for, in ms, the delay does not adapt anymore. */
+    public void setDelay(int delay) {
+        mDelay = mMinDelay = mMaxDelay = delay;
+    }
+
+    /**
+     * Lets the delay adapt to the jitter of the stream.
+     *
+     * @param min The shortest delay in ms
+     * @param max The longest delay in ms
+     */
+    public void setDelayBounds(int min, int max) {
+        mMinDelay = min;
+        mMaxDelay = max;
+        mDelay = Math.max(min, Math.min(max, mDelay));
+    }
+
+    /** Returns how long a missing packet is currently waited for, in ms. */
+    public int getDelay() {
+        return mDelay;
+    }
+
+    /**
+     * Holds the packets until their timestamp is due.
+     *
+     * @param delay The delay between the arrival of the fastest packet and its playout in ms, or
+     *              0 to hand the packets out as soon as they are in order
+     */
+    public void setPlayoutDelay(int delay) {
+        mPlayoutDelay = delay;
+    }
+
+    /** Sets the clock frequency of the stream in Hz, used to measure the jitter. */
+    public void setClockFrequency(long clock) {
+        mClock = clock;
+    }
+
+    /** Returns an empty packet, to be filled with {@link RtpPacket#set(byte[], int, int)}. */
+    public RtpPacket obtain() {
+        RtpPacket packet = mPool.poll();
+        return packet != null ? packet : new RtpPacket();
+    }
+
+    /** Gives a packet back to the buffer once it has been used. */
+    public void recycle(RtpPacket packet) {
+        mPool.push(packet);
+    }
+
+    /** Adds a packet received from the network, the buffer owns it afterwards. */
+    public void put(RtpPacket packet) {
+        long now = SystemClock.elapsedRealtime();
+        packet.arrivalTime = now;
+        packet.discontinuity = false;
+        if (mHighest < 0) {
+            mHighest = mNext = packet.sequenceNumber;
+            mLastTimestamp = packet.timestamp;
+            mExtendedTimestamp = 0;
+            mBaseTransit = now;
+        }
+        // The sequence number wraps around, it is extended from the highest one received
+        long seq = mHighest + (short) (packet.sequenceNumber - (int) mHighest);
+        packet.extendedSequenceNumber = seq;
+        if (seq < mNext) {
+            if (mNext - seq > MAX_MISORDER) {
+                // The sender has been restarted, its packets are taken from scratch
+                clear();
+                put(packet);
+                return;
+            }
+            mLate++;
+            drop(packet);
+            return;
+        }
+        updateJitter(packet, now);
+        if (mPlayoutDelay > 0 && now > getPlayoutTime(packet)) {
+            // Its turn has passed while it was on the way
+            mLate++;
+            drop(packet);
+            return;
+        }
+        mHighest = Math.max(mHighest, seq);
+
+        // Packets almost always arrive in order, the insertion point is searched from the end
+        int i = mPackets.size();
+        while (i > 0 && mPackets.get(i - 1).extendedSequenceNumber >= seq) {
+            i--;
+        }
+        if (i < mPackets.size() && mPackets.get(i).extendedSequenceNumber == seq) {
+            // Duplicate
+            drop(packet);
+            return;
+        }
+        mPackets.add(i, packet);
+    }
+
+    /** Returns the next packet in order, or null if it has not been received yet or is not due. */
+    public RtpPacket poll() {
+        if (mPackets.isEmpty()) {
+            return null;
+        }
+        RtpPacket packet = mPackets.get(0);
+        long now = SystemClock.elapsedRealtime();
+        boolean full = mPackets.size() >= mCapacity;
+        if (mPlayoutDelay > 0 && !full && now < getPlayoutTime(packet)) {
+            return null;
+        }
+        if (packet.extendedSequenceNumber != mNext) {
+            // With a playout delay, the missing packets are waited for until the next one is due
+            if (!full && mPlayoutDelay == 0 && now - packet.arrivalTime < mDelay) {
+                return null;
+            }
+            // The missing packets are not waited for anymore
+            mLost += packet.extendedSequenceNumber - mNext;
+            packet.discontinuity = true;
+        }
+        mPackets.remove(0);
+        mNext = packet.extendedSequenceNumber + 1;
+        return packet;
+    }
+
+    /**
+     * Returns how long in ms until {@link #poll()} may hand out a packet without another one
+     * being received, or -1 if the buffer is empty.
+     */
+    public long getWaitTime() {
+        if (mPackets.isEmpty()) {
+            return -1;
+        }
+        RtpPacket packet = mPackets.get(0);
+        long now = SystemClock.elapsedRealtime();
+        long due = mPlayoutDelay > 0 ? getPlayoutTime(packet)
+                : packet.extendedSequenceNumber != mNext ? packet.arrivalTime + mDelay : now;
+        return Math.max(0, due - now);
+    }
+
+    /** Returns the interarrival jitter in ms. */
+    public int getJitter() {
+        return (int) ((mJitter >> 4) * 1000 / mClock);
+    }
+
+    /** Returns the number of packets considered lost. */
+    public long getLostCount() {
+        return mLost;
+    }
+
+    /** Returns the number of packets dropped because they arrived too late. */
+    public long getLateCount() {
+        return mLate;
+    }
+
+    /** Returns the number of packets dropped: late packets and duplicates. */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /** Drops all the packets. */
+    public void clear() {
+        for (RtpPacket packet : mPackets) {
+            recycle(packet);
+        }
+        mPackets.clear();
+        mNext = mHighest = -1;
+        mHasTransit = false;
+    }
+
+    private void drop(RtpPacket packet) {
+        mDropped++;
+        recycle(packet);
+    }
+
+    /** Updates the jitter and the delay with the transit time of a packet. */
+    private void updateJitter(RtpPacket packet, long now) {
+        // The timestamp wraps around, it is extended from the last one
+        mExtendedTimestamp += (int) (packet.timestamp - mLastTimestamp);
+        mLastTimestamp = packet.timestamp;
+        packet.extendedTimestamp = mExtendedTimestamp;
+
+        long transit = now * mClock / 1000 - mExtendedTimestamp;
+        if (mHasTransit) {
+            long d = Math.abs(transit - mLastTransit);
+            mJitter += d - ((mJitter + 8) >> 4);
+        }
+        mLastTransit = transit;
+        mHasTransit = true;
+
+        // The clock of the playout follows the fastest packet
+        mBaseTransit = Math.min(mBaseTransit, now - mExtendedTimestamp * 1000 / mClock);
+        if (mMinDelay != mMaxDelay) {
+            mDelay = Math.max(mMinDelay, Math.min(mMaxDelay, JITTER_FACTOR * getJitter()));
+        }
+    }
+
+    private long getPlayoutTime(RtpPacket packet) {
+        return mBaseTransit + packet.extendedTimestamp * 1000 / mClock + mPlayoutDelay;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Drives a MediaCodec with its asynchronous callbacks instead of blocking polls.
+ *
+ * The callbacks of all the engines run on one shared thread: the output buffers are handed to an
+ * {@link Output}, usually a packetizer, as soon as the codec produces them, and the input buffers
+ * are filled by an {@link Input} when both a buffer and raw data are available. No thread waits
+ * on the codec, and stopping it does not wait for a poll to time out.
+ *
+ * The engine must be created before the codec is configured, and released after the codec.
+ *
+ * The outputs must not block the shared thread: the packetizers wait at most
+ * {@link #OUTPUT_TIMEOUT} for a free buffer of their socket, then drop the access unit and the
+ * next ones until a sync point, which the engine asks the codec for.
+ */
+@SuppressLint("NewApi")
+public class MediaCodecEngine extends MediaCodec.Callback {
+    public static final String TAG = MediaCodecEngine.class.getSimpleName();
+
+    /** Longest time an output may wait for its receiver, in ms. */
+    public static final long OUTPUT_TIMEOUT = 50;
+
+    private static HandlerThread sThread;
+    private static Handler sHandler;
+    private static int sEngines = 0;
+
+    private final MediaCodec mCodec;
+    private final Handler mHandler;
+    private final Object mOutputLock = new Object();
+    // Input buffers given by the codec that the input could not fill yet
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private Output mOutput;
+    private Input mInput;
+    private boolean mReleased = false;
+    // Set when the output dropped an access unit, until it takes one again
+    private boolean mOutputLost = false;
+
+    /** Receives the output buffers of the codec. */
+    public interface Output {
+        /**
+         * Called on the thread of the engine for each buffer produced by the codec.
+         *
+         * @param data The buffer, between its position and its limit, valid until this returns
+         */
+        void onAccessUnit(ByteBuffer data, BufferInfo info) throws IOException,
+                InterruptedException;
+    }
+
+    /** Fills the input buffers of the codec. */
+    public interface Input {
+        /**
+         * Writes raw data in an input buffer of the codec, from its position.
+         *
+         * @return The presentation time of the data in us, or -1 if no data is available, the
+         * buffer is kept for a later call then
+         */
+        long fill(ByteBuffer buffer);
+    }
+
+    public MediaCodecEngine(MediaCodec codec) {
+        synchronized (MediaCodecEngine.class) {
+            if (sEngines++ == 0) {
+                sThread = new HandlerThread(TAG);
+                sThread.start();
+                sHandler = new Handler(sThread.getLooper());
+            }
+            mHandler = sHandler;
+        }
+        mCodec = codec;
+        mCodec.setCallback(this, mHandler);
+    }
+
+    /** Returns the handler of the thread running the callbacks, for the sources of raw data. */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Sets where the output buffers go, when there is none they are dropped. After this returns,
+     * the previous output is not called anymore.
+     */
+    public void setOutput(Output output) {
+        synchronized (mOutputLock) {
+            mOutput = output;
+        }
+    }
+
+    /**
+     * Lets the engine fill the input buffers as soon as the codec gives them, with
+     * {@link #feed()} called when new raw data is available.
+     */
+    public void setInput(Input input) {
+        synchronized (this) {
+            mInput = input;
+        }
+        feed();
+    }
+
+    /** Fills the free input buffers with the {@link Input} of the engine. */
+    public void feed() {
+        Input input;
+        synchronized (this) {
+            input = mInput;
+        }
+        if (input != null) {
+            while (feed(input)) {
+                // Until there is no free buffer or no data left
+            }
+        }
+    }
+
+    /**
+     * Fills one free input buffer, for sources that push their data, like a camera callback.
+     *
+     * @return false if the codec has no free input buffer or the input had no data
+     */
+    public synchronized boolean feed(Input input) {
+        if (mReleased || mFreeInputs.isEmpty()) {
+            return false;
+        }
+        int index = mFreeInputs.poll();
+        try {
+            ByteBuffer buffer = mCodec.getInputBuffer(index);
+            buffer.clear();
+            long pts = input.fill(buffer);
+            if (pts < 0) {
+                mFreeInputs.addFirst(index);
+                return false;
+            }
+            mCodec.queueInputBuffer(index, 0, buffer.position(), pts, 0);
+            return true;
+        } catch (RuntimeException e) {
+            // The codec has been stopped
+            Log.e(TAG, "Input buffer lost", e);
+            return false;
+        }
+    }
+
+    /** Detaches the engine from the codec, call it once the codec has been released. */
+    public void release() {
+        setOutput(null);
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            mInput = null;
+            mFreeInputs.clear();
+        }
+        synchronized (MediaCodecEngine.class) {
+            if (--sEngines == 0) {
+                sThread.quitSafely();
+                sThread = null;
+                sHandler = null;
+            }
+        }
+    }
+
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mFreeInputs.add(index);
+        }
+        feed();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+        try {
+            synchronized (mOutputLock) {
+                if (mOutput != null) {
+                    ByteBuffer data = codec.getOutputBuffer(index);
+                    data.limit(info.offset + info.size);
+                    data.position(info.offset);
+                    mOutput.onAccessUnit(data, info);
+                    mOutputLost = false;
+                }
+            }
+        } catch (InterruptedIOException e) {
+            // The receiver can't keep up, the stream restarts on the next sync frame
+            if (!mOutputLost) {
+                Log.w(TAG, "Output buffers dropped: " + e.getMessage());
+                mOutputLost = true;
+                requestSyncFrame(codec);
+            }
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Output buffer lost", e);
+        } catch (RuntimeException e) {
+            // Thrown by the codec when it has been stopped, by the output otherwise
+            Log.e(TAG, "Output buffer lost", e);
+        } finally {
+            try {
+                codec.releaseOutputBuffer(index, false);
+            } catch (RuntimeException ignored) {
+                // The codec has been stopped
+            }
+        }
+    }
+
+    private static void requestSyncFrame(MediaCodec codec) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(params);
+        } catch (RuntimeException ignored) {
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+        Log.i(TAG, format.toString());
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+        Log.e(TAG, "Codec error", e);
+    }
+}
@@ -32,16 +32,19 @@ import java.nio.ByteBuffer;
  * An InputStream that uses data from a MediaCodec.
  * The purpose of this class is to interface existing RTP packetizers of
  * libstreaming with the new MediaCodec API. This class is not thread safe !
+ *
+ * Packetizers that support it read the output buffers of the codec directly through
+ * {@link AccessUnitSource}, the InputStream methods are an adapter over that interface.
  */
 @SuppressLint("NewApi")
-public class MediaCodecInputStream extends InputStream {
+public class MediaCodecInputStream extends InputStream implements AccessUnitSource {
     public static final String TAG = MediaCodecInputStream.class.getSimpleName();
 
     private final MediaCodec mMediaCodec;
     private final BufferInfo mBufferInfo = new BufferInfo();
     private ByteBuffer mBuffer = null;
     private int mIndex = -1;
-    private boolean mClosed = false;
+    private volatile boolean mClosed = false;
 
     public MediaFormat mMediaFormat;
 
@@ -54,59 +57,73 @@ public class MediaCodecInputStream extends InputStream {
         mClosed = true;
     }
 
-    @Override
-    public int read() throws IOException {
-        return 0;
-    }
-
     @SuppressLint("WrongConstant")
     @Override
-    public int read(byte[] buffer, int offset, int length) throws IOException {
-        int min = 0;
-
+    public ByteBuffer dequeue(BufferInfo info) throws IOException {
+        release();
         try {
-            if (mBuffer == null) {
-                while (!Thread.interrupted() && !mClosed) {
-                    mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-                    if (mIndex >= 0) {
-                        //Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+"
-                        // size: "+mBufferInfo.size);
-                        mBuffer = mMediaCodec.getOutputBuffer(mIndex);
-                        mBuffer.rewind();
-                        break;
-                    } else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        mMediaFormat = mMediaCodec.getOutputFormat();
-                        Log.i(TAG, mMediaFormat.toString());
-                    } else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        Log.v(TAG, "No buffer available...");
-                        //return 0;
-                    } else {
-                        Log.e(TAG, "Message: " + mIndex);
-                        //return 0;
+            while (!Thread.interrupted() && !mClosed) {
+                mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+                if (mIndex >= 0) {
+                    //Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+"
+                    // size: "+mBufferInfo.size);
+                    mBuffer = mMediaCodec.getOutputBuffer(mIndex);
+                    mBuffer.limit(mBufferInfo.offset + mBufferInfo.size);
+                    mBuffer.position(mBufferInfo.offset);
+                    if (info != null && info != mBufferInfo) {
+                        info.set(mBufferInfo.offset, mBufferInfo.size,
+                                mBufferInfo.presentationTimeUs, mBufferInfo.flags);
                     }
+                    return mBuffer;
+                } else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    mMediaFormat = mMediaCodec.getOutputFormat();
+                    Log.i(TAG, mMediaFormat.toString());
+                } else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    Log.v(TAG, "No buffer available...");
+                } else {
+                    Log.e(TAG, "Message: " + mIndex);
                 }
             }
+        } catch (RuntimeException e) {
+            // The codec has been stopped
+            throw new IOException(e);
+        }
+        throw new IOException("This InputStream was closed");
+    }
 
-            if (mClosed) {
-                throw new IOException("This InputStream was closed");
-            }
-
-            min = Math.min(length, mBufferInfo.size - mBuffer.position());
-            mBuffer.get(buffer, offset, min);
-            if (mBuffer.position() >= mBufferInfo.size) {
+    @Override
+    public void release() {
+        if (mBuffer != null) {
+            mBuffer = null;
+            try {
                 mMediaCodec.releaseOutputBuffer(mIndex, false);
-                mBuffer = null;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
             }
-        } catch (RuntimeException e) {
-            e.printStackTrace();
         }
+    }
 
+    @Override
+    public int read() throws IOException {
+        return 0;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (mBuffer == null) {
+            dequeue(null);
+        }
+        int min = Math.min(length, mBuffer.remaining());
+        mBuffer.get(buffer, offset, min);
+        if (!mBuffer.hasRemaining()) {
+            release();
+        }
         return min;
     }
 
     public int available() {
         if (mBuffer != null) {
-            return mBufferInfo.size - mBuffer.position();
+            return mBuffer.remaining();
         } else {
             return 0;
         }
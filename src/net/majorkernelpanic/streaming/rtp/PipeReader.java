@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Reads the pipe of a MediaRecorder in large chunks, so that the packetizers parsing it a few
+ * bytes at a time don't make a system call for each header.
+ *
+ * The buffers are taken from a small pool shared by all the readers and given back by
+ * {@link #release()}, streams are started and stopped often. Bytes read ahead can be pushed back
+ * with {@link #unread(byte[], int, int)} when looking for a sync point.
+ *
+ * Not thread safe, except for {@link #close()} which may be called to stop the reading thread.
+ */
+public class PipeReader extends InputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ArrayDeque<byte[]> sPool = new ArrayDeque<>();
+
+    private final InputStream mIn;
+    private byte[] mBuffer;
+    private int mPosition = 0;
+    private int mCount = 0;
+
+    public PipeReader(InputStream in) {
+        mIn = in;
+        synchronized (sPool) {
+            mBuffer = sPool.poll();
+        }
+        if (mBuffer == null) {
+            mBuffer = new byte[BUFFER_SIZE];
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPosition == mCount && refill() < 0) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (mPosition == mCount) {
+            if (len >= ensureOpen().length) {
+                // Copying large reads gains nothing
+                return mIn.read(b, off, len);
+            }
+            if (refill() < 0) {
+                return -1;
+            }
+        }
+        len = Math.min(len, mCount - mPosition);
+        System.arraycopy(mBuffer, mPosition, b, off, len);
+        mPosition += len;
+        return len;
+    }
+
+    /**
+     * Reads exactly len bytes.
+     *
+     * @throws EOFException if the stream ends before
+     */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = read(b, off, len);
+            if (n < 0) {
+                throw new EOFException("End of stream");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Returns the number of bytes buffered plus the number of bytes waiting in the pipe. */
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return mCount - mPosition + mIn.available();
+    }
+
+    /** Pushes bytes back, they will be read again before the rest of the stream. */
+    public void unread(byte[] b, int off, int len) throws IOException {
+        byte[] buffer = ensureOpen();
+        if (len > mPosition) {
+            int buffered = mCount - mPosition;
+            if (buffered + len > buffer.length) {
+                throw new IOException("Push back buffer is full");
+            }
+            System.arraycopy(buffer, mPosition, buffer, len, buffered);
+            mPosition = len;
+            mCount = len + buffered;
+        }
+        mPosition -= len;
+        System.arraycopy(b, off, buffer, mPosition, len);
+    }
+
+    /** Closes the pipe, a thread blocked in a read returns. The buffer is kept. */
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Gives the buffer back to the pool, must be called by the reading thread once it is done
+     * with the reader.
+     */
+    public void release() {
+        if (mBuffer == null) {
+            return;
+        }
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED_BUFFERS) {
+                sPool.push(mBuffer);
+            }
+        }
+        mBuffer = null;
+        mPosition = mCount = 0;
+    }
+
+    private int refill() throws IOException {
+        int n = mIn.read(ensureOpen(), 0, mBuffer.length);
+        mPosition = 0;
+        mCount = Math.max(n, 0);
+        return n;
+    }
+
+    private byte[] ensureOpen() throws IOException {
+        if (mBuffer == null) {
+            throw new IOException("Reader released");
+        }
+        return mBuffer;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * A received RTP packet (RFC 3550 section 5.1).
+ * The packet is copied in a buffer owned by the instance, which is meant to be recycled, see
+ * {@link JitterBuffer#obtain()}.
+ */
+public class RtpPacket {
+    /** Payload of the packet, starting at {@link #payloadOffset}. */
+    public byte[] data = new byte[RtpSocket.MAX_PACKET_SIZE];
+
+    /** Length of the whole packet, padding excluded. */
+    public int length;
+
+    public int payloadOffset;
+    public int payloadType;
+    public int sequenceNumber;
+    public long timestamp;
+    public int ssrc;
+    public boolean marker;
+
+    /** Sequence number extended with the number of cycles, set by the {@link JitterBuffer}. */
+    public long extendedSequenceNumber;
+
+    /** Timestamp extended with the number of cycles, set by the {@link JitterBuffer}. */
+    public long extendedTimestamp;
+
+    /** Indicates that packets have been lost right before this one. */
+    public boolean discontinuity;
+
+    /** When the packet was received, see {@link android.os.SystemClock#elapsedRealtime()}. */
+    public long arrivalTime;
+
+    /**
+     * Copies a packet and parses its header.
+     *
+     * @return false if the packet is not a valid RTP packet, the instance must not be used then
+     */
+    public boolean set(byte[] buffer, int offset, int len) {
+        if (len < RtpSocket.RTP_HEADER_LENGTH || (buffer[offset] & 0xC0) != 0x80) {
+            return false;
+        }
+        if (data.length < len) {
+            data = new byte[len];
+        }
+        System.arraycopy(buffer, offset, data, 0, len);
+        length = len;
+
+        //  |V=2|P|X|  CC   |M|     PT      |       sequence number         |
+        boolean padding = (data[0] & 0x20) != 0;
+        boolean extension = (data[0] & 0x10) != 0;
+        int csrcCount = data[0] & 0x0F;
+        marker = (data[1] & 0x80) != 0;
+        payloadType = data[1] & 0x7F;
+        sequenceNumber = (data[2] & 0xFF) << 8 | data[3] & 0xFF;
+        timestamp = getInt(data, 4);
+        ssrc = (int) getInt(data, 8);
+
+        payloadOffset = RtpSocket.RTP_HEADER_LENGTH + 4 * csrcCount;
+        if (extension) {
+            if (payloadOffset + 4 > length) {
+                return false;
+            }
+            // 16 bits profile defined field + 16 bits length in 32 bits words
+            int words = (data[payloadOffset + 2] & 0xFF) << 8 | data[payloadOffset + 3] & 0xFF;
+            payloadOffset += 4 + 4 * words;
+        }
+        if (padding && length > payloadOffset) {
+            // The last byte is the number of bytes of padding
+            length -= data[length - 1] & 0xFF;
+        }
+        return payloadOffset <= length;
+    }
+
+    public int getPayloadLength() {
+        return length - payloadOffset;
+    }
+
+    private static long getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFFL) << 24) | (b[offset + 1] & 0xFF) << 16
+                | (b[offset + 2] & 0xFF) << 8 | b[offset + 3] & 0xFF;
+    }
+}
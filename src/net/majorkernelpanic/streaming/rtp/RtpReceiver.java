@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Receives an RTP stream on UDP and hands out the access units it carries, the inverse of a
+ * packetizer and its {@link RtpSocket}.
+ *
+ * The packets go through a {@link JitterBuffer} and a depacketizer. Pointing a
+ * {@link net.majorkernelpanic.streaming.Session} at the ports of a receiver on the phone itself
+ * gives the latency and the throughput of the whole send path: the sender reports of the stream
+ * map its timestamps to {@link System#nanoTime()}, the latency of an access unit is the time
+ * elapsed since then when it has been reassembled.
+ */
+public class RtpReceiver implements Runnable, AbstractDepacketizer.Callback {
+    public static final String TAG = RtpReceiver.class.getSimpleName();
+
+    private static final int RTCP_SR = 200;
+
+    private final AbstractDepacketizer mDepacketizer;
+    private final JitterBuffer mJitterBuffer = new JitterBuffer();
+    private AbstractDepacketizer.Callback mCallback;
+    private DatagramSocket mRtpSocket, mRtcpSocket;
+    private Thread mThread, mRtcpThread;
+
+    // Last sender report: NTP timestamp in ns and RTP timestamp
+    private final Object mReportLock = new Object();
+    private long mReportNtp, mReportRtp;
+    private volatile boolean mReported = false;
+
+    private volatile long mBitrate = 0;
+    private volatile long mFrames = 0;
+    private volatile long mLatency = -1;
+    private long mBytes = 0;
+    private long mWindowStart = 0;
+
+    /**
+     * @param depacketizer The depacketizer matching the payload of the stream, its clock
+     *                     frequency must be set
+     */
+    public RtpReceiver(AbstractDepacketizer depacketizer) {
+        mDepacketizer = depacketizer;
+        mDepacketizer.setCallback(this);
+        mJitterBuffer.setClockFrequency(depacketizer.getClockFrequency());
+    }
+
+    /** Sets the callback receiving the access units, from the thread of the receiver. */
+    public void setCallback(AbstractDepacketizer.Callback callback) {
+        mCallback = callback;
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return mJitterBuffer;
+    }
+
+    /**
+     * Opens the sockets, RTCP is received on the port following the RTP port.
+     *
+     * @param port The RTP port, or 0 to use any free port
+     */
+    public synchronized void open(int port) throws IOException {
+        close();
+        mRtpSocket = new DatagramSocket(port);
+        try {
+            mRtcpSocket = new DatagramSocket(port > 0 ? port + 1 : 0);
+        } catch (IOException e) {
+            mRtpSocket.close();
+            throw e;
+        }
+    }
+
+    /** Returns the RTP and RTCP ports, to be given to the sender. */
+    public synchronized int[] getLocalPorts() {
+        if (mRtpSocket == null) {
+            throw new IllegalStateException("open() has not been called");
+        }
+        return new int[]{mRtpSocket.getLocalPort(), mRtcpSocket.getLocalPort()};
+    }
+
+    public synchronized void start() throws IOException {
+        if (mRtpSocket == null) {
+            open(0);
+        }
+        if (mThread == null) {
+            mFrames = 0;
+            mLatency = -1;
+            mReported = false;
+            mThread = new Thread(this, TAG);
+            mRtcpThread = new Thread(this::receiveReports, TAG + "-RTCP");
+            mThread.start();
+            mRtcpThread.start();
+        }
+    }
+
+    /** Stops the receiver and closes the sockets. */
+    public synchronized void stop() {
+        close();
+        for (Thread thread : new Thread[]{mThread, mRtcpThread}) {
+            if (thread != null) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        }
+        mThread = mRtcpThread = null;
+        mJitterBuffer.clear();
+    }
+
+    /** Returns the bit rate received, RTP headers included, in bit per second. */
+    public long getBitrate() {
+        return mBitrate;
+    }
+
+    /** Returns the number of access units reassembled. */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Returns the average latency of the access units in ms, or -1 before the first sender
+     * report. Only meaningful when the sender runs on the same device.
+     */
+    public long getLatency() {
+        return mLatency;
+    }
+
+    @Override
+    public void run() {
+        DatagramSocket socket = mRtpSocket;
+        byte[] buffer = new byte[65536];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (!Thread.interrupted()) {
+                long wait = mJitterBuffer.getWaitTime();
+                socket.setSoTimeout((int) Math.max(1,
+                        wait < 0 ? mJitterBuffer.getDelay() : wait));
+                datagram.setLength(buffer.length);
+                try {
+                    socket.receive(datagram);
+                    measure(datagram.getLength());
+                    RtpPacket packet = mJitterBuffer.obtain();
+                    if (packet.set(buffer, 0, datagram.getLength())) {
+                        mJitterBuffer.put(packet);
+                    } else {
+                        mJitterBuffer.recycle(packet);
+                    }
+                } catch (SocketTimeoutException ignore) {
+                    // The packets waiting for a lost one or for their turn are released anyway
+                }
+                RtpPacket packet;
+                while ((packet = mJitterBuffer.poll()) != null) {
+                    mDepacketizer.depacketize(packet);
+                    mJitterBuffer.recycle(packet);
+                }
+            }
+        } catch (IOException ignore) {
+            // The socket has been closed
+        }
+        Log.d(TAG, "Receiver stopped, lost: " + mJitterBuffer.getLostCount() + " dropped: "
+                + mJitterBuffer.getDroppedCount());
+    }
+
+    @Override
+    public void onAccessUnit(AccessUnit unit) {
+        mFrames++;
+        if (mReported) {
+            long ntp, rtp;
+            synchronized (mReportLock) {
+                ntp = mReportNtp;
+                rtp = mReportRtp;
+            }
+            long captured = ntp + (int) (unit.timestamp - rtp) * 1000000000L
+                    / mDepacketizer.getClockFrequency();
+            long latency = (System.nanoTime() - captured) / 1000000;
+            mLatency = mLatency < 0 ? latency : (mLatency * 15 + latency) / 16;
+        }
+        if (mCallback != null) {
+            mCallback.onAccessUnit(unit);
+        }
+    }
+
+    private void receiveReports() {
+        DatagramSocket socket = mRtcpSocket;
+        byte[] buffer = new byte[1500];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (!Thread.interrupted()) {
+                datagram.setLength(buffer.length);
+                socket.receive(datagram);
+                // |V=2|P|  RC   |   PT=SR=200   |  length  |  SSRC  |  NTP (64 bits)  |  RTP  |
+                if (datagram.getLength() < 20 || (buffer[1] & 0xFF) != RTCP_SR) {
+                    continue;
+                }
+                long msw = getInt(buffer, 8), lsw = getInt(buffer, 12);
+                synchronized (mReportLock) {
+                    mReportNtp = msw * 1000000000L + (lsw * 1000000000L >>> 32);
+                    mReportRtp = getInt(buffer, 16);
+                }
+                mReported = true;
+            }
+        } catch (IOException ignore) {
+            // The socket has been closed
+        }
+    }
+
+    private void measure(int length) {
+        long now = SystemClock.elapsedRealtime();
+        mBytes += length;
+        if (now - mWindowStart >= 1000) {
+            mBitrate = mWindowStart > 0 ? mBytes * 8000 / (now - mWindowStart) : 0;
+            mWindowStart = now;
+            mBytes = 0;
+        }
+    }
+
+    private synchronized void close() {
+        if (mRtpSocket != null) {
+            mRtpSocket.close();
+            mRtcpSocket.close();
+            mRtpSocket = mRtcpSocket = null;
+        }
+    }
+
+    private static long getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFFL) << 24) | (b[offset + 1] & 0xFF) << 16
+                | (b[offset + 2] & 0xFF) << 8 | b[offset + 3] & 0xFF;
+    }
+}
@@ -24,10 +24,14 @@ import android.util.Log;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -36,6 +40,11 @@ import java.util.concurrent.TimeUnit;
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ *
+ * The packets can also be forwarded to any number of {@link RtpSubscriber}. A source that can't
+ * be asked for a key frame (a relayed stream for instance) keeps the packets since the last sync
+ * point, so that a new subscriber does not wait for the next one, see
+ * {@link #setGopCacheSize(int)}.
  */
 public class RtpSocket implements Runnable {
     public static final String TAG = RtpSocket.class.getSimpleName();
@@ -46,9 +55,27 @@ public class RtpSocket implements Runnable {
     /** Use this to use TCP for the transport protocol. */
     public static final int TRANSPORT_TCP = 0x01;
 
+    /** Key frames and parameter sets, packets from which a receiver can start decoding. */
+    public static final int LAYER_KEY = 0;
+
+    /** Other intra coded pictures, they only depend on the preceding parameter sets. */
+    public static final int LAYER_INTRA = 1;
+
+    /** Inter coded pictures used as a reference by others. */
+    public static final int LAYER_REFERENCE = 2;
+
+    /** Pictures no other picture depends on, they can be dropped at no cost. */
+    public static final int LAYER_DISPOSABLE = 3;
+
     public static final int RTP_HEADER_LENGTH = 12;
     public static final int MTU = 1300;
 
+    /** Largest packet that can be relayed, the largest UDP payload on an Ethernet network. */
+    public static final int MAX_PACKET_SIZE = 1472;
+
+    // Longest wait for a free buffer before the cancellation of the requests is checked, in ns
+    private static final long REQUEST_STEP = 20000000L;
+
     private final DatagramSocket mSocket;
     private final DatagramPacket[] mPackets;
     private final int mBufferCount;
@@ -56,6 +83,15 @@ public class RtpSocket implements Runnable {
     private final byte[] mTcpHeader;
     private final SenderReport mReport;
     private final AverageBitrate mAverageBitrate;
+    private final CopyOnWriteArrayList<RtpSubscriber> mSubscribers =
+            new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<PacketListener> mListeners =
+            new CopyOnWriteArrayList<>();
+    // Packets since the last sync point, the first mGopLength ones are valid
+    private final ArrayList<CachedPacket> mGop = new ArrayList<>();
+    private volatile int mGopCacheSize = 0;
+    private int mGopLength = 0;
+    private boolean mGopValid = false;
 
     private Semaphore mBufferRequested, mBufferCommitted;
     private Thread mThread;
@@ -65,10 +101,35 @@ public class RtpSocket implements Runnable {
     private long mClock = 0;
     private long mOldTimestamp = 0;
     private long[] mTimestamps;
-    private int mSsrc, mSeq = 0, mPort = -1;
+    private final boolean[] mSyncPoints;
+    private final byte[] mLayers;
+    // The timestamps given by the packetizers may be negative
+    private long mFirstTimestamp;
+    private boolean mHasFirstTimestamp = false;
+    private long mTimestampBase;
+    private volatile long mRtpTimestamp;
+    // Guards the time line and the sequence number of the stream, see announceStart()
+    private final Object mStampLock = new Object();
+    // RTP timestamp announced for the next packet, -1 if none
+    private long mAnnouncedTimestamp = -1;
+    // When the last packet was sent, in ns
+    private long mLastSendTime;
+    private volatile int mSeq;
+    private int mSsrc, mPort = -1;
     private int mBufferIn;
     private int mBufferOut;
     private int mCount = 0;
+    private volatile boolean mPaused = false;
+    private volatile boolean mWaitSyncPoint = false;
+    // Set once the packetizer has marked a sync point, a stream without any never waits for one
+    private volatile boolean mHasSyncPoints = false;
+    // How long requestBuffer() waits for a free buffer in ms, 0 for ever
+    private volatile long mRequestTimeout = 0;
+    private volatile boolean mRequestsCancelled = false;
+    // Set when a request timed out, the next ones fail at once until a buffer is free
+    private boolean mOverflow = false;
+    // Start of the write in progress on the TCP connection, 0 if none, -1 if a write failed
+    private volatile long mWriteStart = 0;
 
     protected OutputStream mOutputStream = null;
 
@@ -76,15 +137,33 @@ public class RtpSocket implements Runnable {
      * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
      */
     public RtpSocket() {
+        this(MTU);
+    }
+
+    /**
+     * Creates a socket for packets bigger than the {@link #MTU}, for instance to relay packets
+     * of another server.
+     *
+     * @param packetSize The size of the largest packet, RTP header included
+     */
+    public RtpSocket(int packetSize) {
         mCacheSize = 0;
         mBufferCount = 300; // TODO: readjust that when the FIFO is full
         mBuffers = new byte[mBufferCount][];
         mPackets = new DatagramPacket[mBufferCount];
+        mSyncPoints = new boolean[mBufferCount];
+        mLayers = new byte[mBufferCount];
         mReport = new SenderReport();
         mAverageBitrate = new AverageBitrate();
         mTransport = TRANSPORT_UDP;
         mTcpHeader = new byte[]{'$', 0, 0, 0};
 
+        // Random initial sequence number and timestamp, as recommended by RFC 3550
+        Random random = new Random();
+        mSeq = random.nextInt(0x10000);
+        mTimestampBase = random.nextInt() & 0xFFFFFFFFL;
+        mRtpTimestamp = mTimestampBase;
+
         resetFifo();
 
         //   0               1               2               3
@@ -101,7 +180,7 @@ public class RtpSocket implements Runnable {
         //  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
         for (int i = 0; i < mBufferCount; i++) {
-            mBuffers[i] = new byte[MTU];
+            mBuffers[i] = new byte[packetSize];
             mPackets[i] = new DatagramPacket(mBuffers[i], 1);
 
             /*              Version(2)  Padding(0)                                    */
@@ -158,11 +237,38 @@ public class RtpSocket implements Runnable {
         return mSsrc;
     }
 
+    /** Sets the payload type of the packets, 96 by default. */
+    public void setPayloadType(int payloadType) {
+        for (int i = 0; i < mBufferCount; i++) {
+            mBuffers[i][1] = (byte) (mBuffers[i][1] & 0x80 | payloadType & 0x7F);
+        }
+    }
+
     /** Sets the clock frequency of the stream in Hz. */
     public void setClockFrequency(long clock) {
         mClock = clock;
     }
 
+    /** Returns the clock frequency of the stream in Hz. */
+    public long getClockFrequency() {
+        return mClock;
+    }
+
+    /**
+     * Keeps the packets since the last sync point for the subscribers that start playing.
+     *
+     * @param packets The largest number of packets kept, 0 to disable the cache. When a group of
+     *                pictures is longer than that, subscribers wait for the next sync point.
+     */
+    public void setGopCacheSize(int packets) {
+        synchronized (mGop) {
+            mGopCacheSize = packets;
+            mGopLength = 0;
+            mGopValid = false;
+            mGop.clear();
+        }
+    }
+
     /** Sets the size of the FIFO in ms. */
     public void setCacheSize(long cacheSize) {
         mCacheSize = cacheSize;
@@ -195,6 +301,7 @@ public class RtpSocket implements Runnable {
         if (outputStream != null) {
             mTransport = TRANSPORT_TCP;
             mOutputStream = outputStream;
+            mWriteStart = 0;
             mTcpHeader[1] = channelIdentifier;
             mReport.setOutputStream(outputStream, (byte) (channelIdentifier + 1));
         }
@@ -204,6 +311,72 @@ public class RtpSocket implements Runnable {
         return mPort;
     }
 
+    /**
+     * Returns for how long the packet being written on the TCP connection has been blocked, a
+     * connection that can't keep up stalls the writes.
+     *
+     * @return The time in ms, 0 if no packet is being written, or -1 if a write failed since the
+     * last call to {@link #setOutputStream(OutputStream, byte)}
+     */
+    public long getWriteStall() {
+        long start = mWriteStart;
+        return start <= 0 ? start : SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Waits for an RTCP packet sent back by the receiver of the stream, see
+     * {@link SenderReport#receive(byte[], int)}.
+     */
+    public int receiveReport(byte[] buffer, int timeout) throws IOException {
+        return mReport.receive(buffer, timeout);
+    }
+
+    /**
+     * Returns false if neither {@link #setDestination(InetAddress, int, int)} nor
+     * {@link #setOutputStream(OutputStream, byte)} have been called, packets are then only
+     * handed to the subscribers.
+     */
+    public boolean hasDestination() {
+        return mTransport == TRANSPORT_TCP || mPort > 0;
+    }
+
+    /**
+     * Adds a receiver to which every packet is forwarded, in addition to the destination of the
+     * socket. That way an encoder can feed any number of clients.
+     */
+    public void addSubscriber(RtpSubscriber subscriber) {
+        mSubscribers.addIfAbsent(subscriber);
+    }
+
+    public void removeSubscriber(RtpSubscriber subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    /** Receives the packets of a socket, see {@link #addPacketListener(PacketListener)}. */
+    public interface PacketListener {
+        /**
+         * Called from the thread of the socket with the packet about to be sent.
+         *
+         * @param source    The socket
+         * @param packet    The RTP packet, its sequence number and timestamp are not set
+         * @param length    The length of the packet
+         * @param timestamp The timestamp of the packet in ns
+         * @param syncPoint Whether a receiver can start decoding the stream with this packet
+         * @param layer     The layer of the packet, see {@link #markLayer(int)}
+         */
+        void onPacket(RtpSocket source, byte[] packet, int length, long timestamp,
+                boolean syncPoint, int layer);
+    }
+
+    /** Adds a receiver of every packet, for instance to record them. */
+    public void addPacketListener(PacketListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removePacketListener(PacketListener listener) {
+        mListeners.remove(listener);
+    }
+
     public int[] getLocalPorts() {
         return new int[]{
                 mSocket.getLocalPort(),
@@ -211,18 +384,78 @@ public class RtpSocket implements Runnable {
         };
     }
 
+    /**
+     * Limits how long {@link #requestBuffer()} waits for a free buffer, for packetizers running
+     * on a thread they share with others, which must not be blocked by a slow receiver.
+     *
+     * @param timeout The timeout in ms, 0 to wait as long as needed, the default
+     */
+    public void setRequestTimeout(long timeout) {
+        mRequestTimeout = timeout;
+    }
+
+    /**
+     * Makes {@link #requestBuffer()} fail at once, even if it is already waiting, so that a
+     * packetizer stuck on a full FIFO can be stopped.
+     */
+    public void setRequestsCancelled(boolean cancelled) {
+        mRequestsCancelled = cancelled;
+    }
+
     /**
      * Returns an available buffer from the FIFO, it can then be modified.
      * Call {@link #commitBuffer(int)} to send it over the network.
+     *
+     * @throws InterruptedIOException if the requests have been cancelled, or if no buffer got
+     *                                free before the timeout set with
+     *                                {@link #setRequestTimeout(long)}: the packets are then
+     *                                dropped until the next sync point
      **/
-    public byte[] requestBuffer() throws InterruptedException {
-        mBufferRequested.acquire();
+    public byte[] requestBuffer() throws InterruptedException, InterruptedIOException {
+        if (mOverflow ? !mBufferRequested.tryAcquire() : !acquireBuffer()) {
+            mOverflow = true;
+            if (mHasSyncPoints) {
+                // The receiver can't keep up, it restarts on a clean picture
+                mWaitSyncPoint = true;
+            }
+            throw new InterruptedIOException("FIFO full");
+        }
+        mOverflow = false;
         mBuffers[mBufferIn][1] &= 0x7F;
+        mSyncPoints[mBufferIn] = false;
+        mLayers[mBufferIn] = LAYER_KEY;
         return mBuffers[mBufferIn];
     }
 
+    /**
+     * Waits for a free buffer, in short steps so that a cancellation is seen.
+     *
+     * @return false if the timeout expired
+     */
+    private boolean acquireBuffer() throws InterruptedException, InterruptedIOException {
+        long timeout = mRequestTimeout;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            if (mRequestsCancelled) {
+                throw new InterruptedIOException("Requests cancelled");
+            }
+            long wait = REQUEST_STEP;
+            if (timeout > 0) {
+                wait = Math.min(wait, deadline - System.nanoTime());
+                if (wait <= 0) {
+                    return false;
+                }
+            }
+            if (mBufferRequested.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        }
+    }
+
     /** Puts the buffer back into the FIFO without sending the packet. */
     public void commitBuffer() throws IOException {
+        mPackets[mBufferIn].setLength(0);
+
         if (mThread == null) {
             mThread = new Thread(this);
             mThread.start();
@@ -236,7 +469,6 @@ public class RtpSocket implements Runnable {
 
     /** Sends the RTP packet over the network. */
     public void commitBuffer(int length) throws IOException {
-        updateSequence();
         mPackets[mBufferIn].setLength(length);
 
         mAverageBitrate.push(length);
@@ -257,19 +489,71 @@ public class RtpSocket implements Runnable {
         return mAverageBitrate.average();
     }
 
-    /** Increments the sequence number. */
-    private void updateSequence() {
-        setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
+    /** Returns the sequence number of the next packet that will be sent. */
+    public int getNextSequenceNumber() {
+        synchronized (mStampLock) {
+            return (mSeq + 1) & 0xFFFF;
+        }
+    }
+
+    /** Returns the RTP timestamp of the last packet sent. */
+    public long getRtpTimestamp() {
+        return mRtpTimestamp;
+    }
+
+    /**
+     * Returns the sequence number and the RTP timestamp of the next packet, for the RTP-Info
+     * header of a PLAY response. The time line restarts from that timestamp: it is the one of the
+     * last packet plus the time elapsed since, and the next packet is stamped with it whatever
+     * its own timestamp.
+     */
+    public RtpInfo announceStart() {
+        synchronized (mStampLock) {
+            if (mHasFirstTimestamp && mAnnouncedTimestamp < 0) {
+                long elapsed = System.nanoTime() - mLastSendTime;
+                mAnnouncedTimestamp = (mRtpTimestamp
+                        + (elapsed / 100L) * (mClock / 1000L) / 10000L) & 0xFFFFFFFFL;
+            }
+            long timestamp = mAnnouncedTimestamp >= 0 ? mAnnouncedTimestamp : mRtpTimestamp;
+            return new RtpInfo((mSeq + 1) & 0xFFFF, timestamp);
+        }
     }
 
     /**
      * Overwrites the timestamp in the packet.
+     * The RTP timestamp is computed when the packet is actually sent, relatively to the first
+     * packet of the stream, so that it matches what {@link #announceStart()} announced.
      *
      * @param timestamp The new timestamp in ns.
      **/
     public void updateTimestamp(long timestamp) {
         mTimestamps[mBufferIn] = timestamp;
-        setLong(mBuffers[mBufferIn], (timestamp / 100L) * (mClock / 1000L) / 10000L, 4, 8);
+    }
+
+    /** Writes the sequence number and the RTP timestamp of the packet that is about to be sent. */
+    private void stampPacket() {
+        long timestamp = mTimestamps[mBufferOut];
+        long rtpts;
+        synchronized (mStampLock) {
+            if (!mHasFirstTimestamp) {
+                mFirstTimestamp = timestamp;
+                mHasFirstTimestamp = true;
+            }
+            if (mAnnouncedTimestamp >= 0) {
+                // The time line restarts from the timestamp given in RTP-Info
+                mTimestampBase = mAnnouncedTimestamp;
+                mFirstTimestamp = timestamp;
+                mAnnouncedTimestamp = -1;
+            }
+            long delta = timestamp - mFirstTimestamp;
+            rtpts = (mTimestampBase + (delta / 100L) * (mClock / 1000L) / 10000L) & 0xFFFFFFFFL;
+            mRtpTimestamp = rtpts;
+            mLastSendTime = System.nanoTime();
+            // Along with the timestamp, so that announceStart() gets both from the same packet
+            mSeq = (mSeq + 1) & 0xFFFF;
+        }
+        setLong(mBuffers[mBufferOut], mSeq, 2, 4);
+        setLong(mBuffers[mBufferOut], rtpts, 4, 8);
     }
 
     /** Sets the marker in the RTP packet. */
@@ -277,6 +561,65 @@ public class RtpSocket implements Runnable {
         mBuffers[mBufferIn][1] |= 0x80;
     }
 
+    /**
+     * Indicates that the receiver can start decoding the stream with the packet, for instance
+     * because it carries the first part of an IDR picture or the parameter sets preceding it.
+     */
+    public void markSyncPoint() {
+        mSyncPoints[mBufferIn] = true;
+        mHasSyncPoints = true;
+    }
+
+    /**
+     * Sets the layer of the packet, that is what it depends on, so that the subscribers of the
+     * socket can thin the stream out by dropping the highest layers. Packets are in
+     * {@link #LAYER_KEY} unless this is called.
+     *
+     * @param layer One of {@link #LAYER_KEY}, {@link #LAYER_INTRA}, {@link #LAYER_REFERENCE} or
+     *              {@link #LAYER_DISPOSABLE}
+     */
+    public void markLayer(int layer) {
+        mLayers[mBufferIn] = (byte) layer;
+    }
+
+    /**
+     * Stops sending packets. The FIFO keeps being drained so that the packetizer is not blocked,
+     * and the packets dropped meanwhile don't consume sequence numbers.
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * Sends packets again after a call to {@link #pause()}.
+     *
+     * @param waitSyncPoint If true, packets are dropped until one marked with
+     *                      {@link #markSyncPoint()} is found
+     */
+    public void resume(boolean waitSyncPoint) {
+        mWaitSyncPoint = waitSyncPoint;
+        mPaused = false;
+    }
+
+    /** Indicates if the socket has been paused with {@link #pause()}. */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /** Returns false if the packet about to be sent must be dropped because of a pause. */
+    private boolean shouldSend() {
+        if (mPaused) {
+            return false;
+        }
+        if (mWaitSyncPoint) {
+            if (!mSyncPoints[mBufferOut]) {
+                return false;
+            }
+            mWaitSyncPoint = false;
+        }
+        return true;
+    }
+
     /** The Thread sends the packets in the FIFO one by one at a constant rate. */
     @Override
     public void run() {
@@ -286,6 +629,11 @@ public class RtpSocket implements Runnable {
             Thread.sleep(mCacheSize);
             long delta = 0;
             while (mBufferCommitted.tryAcquire(4, TimeUnit.SECONDS)) {
+                if (mPackets[mBufferOut].getLength() == 0) {
+                    // The packetizer gave the buffer back without using it
+                    releaseBuffer();
+                    continue;
+                }
                 if (mOldTimestamp != 0) {
                     // We use our knowledge of the clock rate of the stream and the difference
                     // between two timestamps to compute the time lapse that the packet represents.
@@ -308,20 +656,23 @@ public class RtpSocket implements Runnable {
                         delta = 0;
                     }
                 }
-                mReport.update(mPackets[mBufferOut].getLength(),
-                        (mTimestamps[mBufferOut] / 100L) * (mClock / 1000L) / 10000L);
                 mOldTimestamp = mTimestamps[mBufferOut];
+                // The first packets of the FIFO are not sent, they don't consume a sequence number
                 if (mCount++ > 30) {
-                    if (mTransport == TRANSPORT_UDP) {
-                        mSocket.send(mPackets[mBufferOut]);
-                    } else {
-                        sendTCP();
+                    dispatch();
+                    if (shouldSend()) {
+                        stampPacket();
+                        if (hasDestination()) {
+                            mReport.update(mPackets[mBufferOut].getLength(), mRtpTimestamp);
+                            if (mTransport == TRANSPORT_UDP) {
+                                mSocket.send(mPackets[mBufferOut]);
+                            } else {
+                                sendTCP();
+                            }
+                        }
                     }
                 }
-                if (++mBufferOut >= mBufferCount) {
-                    mBufferOut = 0;
-                }
-                mBufferRequested.release();
+                releaseBuffer();
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -330,16 +681,106 @@ public class RtpSocket implements Runnable {
         resetFifo();
     }
 
+    /** Forwards the packet about to be sent to the subscribers, which stamp it themselves. */
+    private void dispatch() {
+        if (mGopCacheSize == 0) {
+            deliver();
+            return;
+        }
+        // A subscriber replaying the cache gets the next packets afterwards
+        synchronized (mGop) {
+            cache();
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        for (PacketListener listener : mListeners) {
+            listener.onPacket(this, mBuffers[mBufferOut], mPackets[mBufferOut].getLength(),
+                    mTimestamps[mBufferOut], mSyncPoints[mBufferOut], mLayers[mBufferOut]);
+        }
+        for (RtpSubscriber subscriber : mSubscribers) {
+            try {
+                subscriber.deliver(this, mBuffers[mBufferOut], mPackets[mBufferOut].getLength(),
+                        mTimestamps[mBufferOut], mSyncPoints[mBufferOut], mLayers[mBufferOut]);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not send packet to subscriber " + subscriber, e);
+            }
+        }
+    }
+
+    /** Adds the packet about to be sent to the cache of the group of pictures. */
+    private void cache() {
+        if (mSyncPoints[mBufferOut]) {
+            mGopLength = 0;
+            mGopValid = true;
+        }
+        if (!mGopValid) {
+            return;
+        }
+        if (mGopLength >= mGopCacheSize) {
+            // Too long, the subscribers will wait for the next sync point
+            mGopLength = 0;
+            mGopValid = false;
+            return;
+        }
+        if (mGopLength == mGop.size()) {
+            mGop.add(new CachedPacket(mBuffers[mBufferOut].length));
+        }
+        CachedPacket packet = mGop.get(mGopLength++);
+        packet.length = mPackets[mBufferOut].getLength();
+        packet.timestamp = mTimestamps[mBufferOut];
+        packet.syncPoint = mSyncPoints[mBufferOut];
+        packet.layer = mLayers[mBufferOut];
+        System.arraycopy(mBuffers[mBufferOut], 0, packet.data, 0, packet.length);
+    }
+
+    /**
+     * Sends the packets since the last sync point to a subscriber that waits for one, so that it
+     * starts right away. The next packets are sent afterwards.
+     */
+    void replayGop(RtpSubscriber subscriber) {
+        synchronized (mGop) {
+            if (!mGopValid || !mSubscribers.contains(subscriber)
+                    || !subscriber.isWaitingSyncPoint()) {
+                return;
+            }
+            try {
+                for (int i = 0; i < mGopLength; i++) {
+                    CachedPacket packet = mGop.get(i);
+                    subscriber.deliver(this, packet.data, packet.length, packet.timestamp,
+                            packet.syncPoint, packet.layer);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not send packet to subscriber " + subscriber, e);
+            }
+        }
+    }
+
+    /** Gives the buffer that has just been sent back to the packetizer. */
+    private void releaseBuffer() {
+        if (++mBufferOut >= mBufferCount) {
+            mBufferOut = 0;
+        }
+        mBufferRequested.release();
+    }
+
     private void sendTCP() {
         synchronized (mOutputStream) {
             int len = mPackets[mBufferOut].getLength();
             Log.d(TAG, "sent " + len);
             mTcpHeader[2] = (byte) (len >> 8);
             mTcpHeader[3] = (byte) (len & 0xFF);
+            if (mWriteStart < 0) {
+                return;
+            }
+            mWriteStart = SystemClock.elapsedRealtime();
             try {
                 mOutputStream.write(mTcpHeader);
                 mOutputStream.write(mBuffers[mBufferOut], 0, len);
-            } catch (Exception ignored) {
+                mWriteStart = 0;
+            } catch (Exception e) {
+                mWriteStart = -1;
             }
         }
     }
@@ -351,6 +792,18 @@ public class RtpSocket implements Runnable {
         }
     }
 
+    private static class CachedPacket {
+        final byte[] data;
+        int length;
+        long timestamp;
+        boolean syncPoint;
+        int layer;
+
+        CachedPacket(int size) {
+            data = new byte[size];
+        }
+    }
+
     /**
      * Computes an average bit rate.
      **/
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.rtcp.ReceiverReport;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Random;
+
+/**
+ * A receiver of the packets of an {@link RtpSocket} shared by several clients.
+ *
+ * Each subscriber is an RTP session of its own: it has its own SSRC, sequence numbers, timestamp
+ * origin and RTCP port, and rewrites the header of the packets of the source before sending them
+ * to its client. That way it can be moved from a source to another (for instance from a rendition
+ * of a video to another one with a lower bit rate) with {@link #switchTo(RtpSocket)} without the
+ * client noticing anything but the change of resolution. The switch happens on a sync point of
+ * the new source, so that the client can decode the stream right away.
+ *
+ * The stream can also be thinned out for a client with {@link #setMaxLayer(int)}: whole pictures
+ * the client doesn't need are dropped without consuming sequence numbers, so it does not see
+ * them as losses.
+ *
+ * The Receiver Reports sent by the client to the RTCP port of the subscriber are handed to the
+ * {@link Callback}.
+ */
+public class RtpSubscriber implements Runnable {
+    public static final String TAG = RtpSubscriber.class.getSimpleName();
+
+    private final DatagramSocket mSocket;
+    private final DatagramPacket mPacket;
+    private final byte[] mBuffer = new byte[RtpSocket.MAX_PACKET_SIZE];
+    private final SenderReport mReport;
+    private final ReceiverReport mReceiverReport = new ReceiverReport();
+    private final int mSsrc;
+    private long mTimestampBase;
+
+    private RtpSocket mSource, mPending;
+    private Callback mCallback;
+    private Thread mThread;
+    private volatile int mSeq;
+    private volatile long mRtpTimestamp;
+    // The timestamps given by the packetizers may be negative
+    private long mFirstTimestamp;
+    private boolean mHasFirstTimestamp = false;
+    // RTP timestamp announced for the next packet, -1 if none
+    private long mAnnouncedTimestamp = -1;
+    // When the last packet was sent, in ns, and its clock
+    private long mLastSendTime;
+    private long mClock;
+    private boolean mSent = false;
+    private boolean mPaused = true;
+    private boolean mWaitSyncPoint = false;
+    private int mMaxLayer = RtpSocket.LAYER_DISPOSABLE;
+    private int mPendingMaxLayer = -1;
+
+    /** Receives the RTCP feedback of the client. */
+    public interface Callback {
+        /** Called from the RTCP thread of the subscriber when a report has been received. */
+        void onReceiverReport(RtpSubscriber subscriber, ReceiverReport report);
+    }
+
+    /**
+     * Creates a subscriber that sends packets to a client, it has to be attached to a source with
+     * {@link #switchTo(RtpSocket)} and started with {@link #play(boolean)}.
+     *
+     * @param dest     The address of the client
+     * @param rtpPort  Destination port that will be used for RTP
+     * @param rtcpPort Destination port that will be used for RTCP
+     */
+    public RtpSubscriber(InetAddress dest, int rtpPort, int rtcpPort) throws IOException {
+        // Random SSRC, initial sequence number and timestamp, as recommended by RFC 3550
+        Random random = new Random();
+        mSsrc = random.nextInt();
+        mSeq = random.nextInt(0x10000);
+        mTimestampBase = random.nextInt() & 0xFFFFFFFFL;
+        mRtpTimestamp = mTimestampBase;
+
+        mSocket = new DatagramSocket();
+        mPacket = new DatagramPacket(mBuffer, 1, dest, rtpPort);
+        mReport = new SenderReport();
+        mReport.setSSRC(mSsrc);
+        mReport.setDestination(dest, rtcpPort);
+        setLong(mBuffer, mSsrc, 8, 12);
+
+        mThread = new Thread(this, "RtpSubscriber-RTCP");
+        mThread.start();
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    public int getSSRC() {
+        return mSsrc;
+    }
+
+    /**
+     * Returns a pair of source ports, the first one is the
+     * one used for RTP and the second one is used for RTCP.
+     **/
+    public int[] getLocalPorts() {
+        return new int[]{
+                mSocket.getLocalPort(),
+                mReport.getLocalPort()
+        };
+    }
+
+    /**
+     * Returns the sequence number and the RTP timestamp of the next packet, for the RTP-Info
+     * header of a PLAY response, see {@link RtpSocket#announceStart()}.
+     */
+    public synchronized RtpInfo announceStart() {
+        if (mSent && mAnnouncedTimestamp < 0) {
+            long elapsed = System.nanoTime() - mLastSendTime;
+            mAnnouncedTimestamp = (mRtpTimestamp + (elapsed / 100L) * (mClock / 1000L) / 10000L)
+                    & 0xFFFFFFFFL;
+        }
+        long timestamp = mAnnouncedTimestamp >= 0 ? mAnnouncedTimestamp : mRtpTimestamp;
+        return new RtpInfo((mSeq + 1) & 0xFFFF, timestamp);
+    }
+
+    /** Returns the source whose packets are currently sent to the client. */
+    public synchronized RtpSocket getSource() {
+        return mSource;
+    }
+
+    /**
+     * Moves the subscriber to another source. If the subscriber already has a source, packets
+     * keep coming from it until the new one produces a sync point.
+     */
+    public synchronized void switchTo(RtpSocket source) {
+        if (mPending != null && mPending != source) {
+            mPending.removeSubscriber(this);
+        }
+        mPending = null;
+        if (mSource == null) {
+            mSource = source;
+        } else if (mSource != source) {
+            mPending = source;
+        }
+        source.addSubscriber(this);
+    }
+
+    /** Indicates whether a call to {@link #switchTo(RtpSocket)} is still in progress. */
+    public synchronized boolean isSwitching() {
+        return mPending != null;
+    }
+
+    /**
+     * Starts sending packets to the client.
+     *
+     * @param waitSyncPoint If true, packets are dropped until a sync point is found, or start
+     *                      with the group of pictures cached by the source if it has one
+     */
+    public void play(boolean waitSyncPoint) {
+        RtpSocket source;
+        synchronized (this) {
+            mWaitSyncPoint = waitSyncPoint;
+            mPaused = false;
+            source = waitSyncPoint && mPending == null ? mSource : null;
+        }
+        // The source locks its cache and then the subscriber, like when it sends a packet
+        if (source != null) {
+            source.replayGop(this);
+        }
+    }
+
+    /**
+     * Drops the packets above a layer, for instance {@link RtpSocket#LAYER_INTRA} only keeps the
+     * intra coded pictures and {@link RtpSocket#LAYER_REFERENCE} drops the disposable ones.
+     * The inter coded pictures are sent again from the next sync point.
+     *
+     * @param layer The highest layer that is sent, see {@link RtpSocket#markLayer(int)}
+     */
+    public synchronized void setMaxLayer(int layer) {
+        if (layer >= RtpSocket.LAYER_REFERENCE && mMaxLayer < RtpSocket.LAYER_REFERENCE) {
+            // Their reference pictures have not been sent
+            mPendingMaxLayer = layer;
+        } else {
+            mMaxLayer = layer;
+            mPendingMaxLayer = -1;
+        }
+    }
+
+    /** Returns the layer set with {@link #setMaxLayer(int)}. */
+    public synchronized int getMaxLayer() {
+        return mPendingMaxLayer >= 0 ? mPendingMaxLayer : mMaxLayer;
+    }
+
+    /** Stops sending packets, sequence numbers are not consumed meanwhile. */
+    public synchronized void pause() {
+        mPaused = true;
+    }
+
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Stops receiving the packets of the sources, they are given to {@link #send} instead, for
+     * instance by a {@link TimeShiftPlayer}. Call {@link #switchTo(RtpSocket)} to receive them
+     * again.
+     */
+    synchronized void detach() {
+        if (mSource != null) {
+            mSource.removeSubscriber(this);
+        }
+        if (mPending != null) {
+            mPending.removeSubscriber(this);
+        }
+        mSource = mPending = null;
+    }
+
+    /**
+     * Starts a new time line: the next packet with this timestamp follows the last one sent,
+     * for instance when the client seeks.
+     *
+     * @param timestamp A timestamp in ns
+     */
+    synchronized void rebase(long timestamp) {
+        mTimestampBase = mRtpTimestamp;
+        mFirstTimestamp = timestamp;
+        mHasFirstTimestamp = true;
+    }
+
+    /** Returns true while the packets are dropped until the next sync point, see {@link #play}. */
+    public synchronized boolean isWaitingSyncPoint() {
+        return !mPaused && mWaitSyncPoint && mPending == null;
+    }
+
+    /** Detaches the subscriber from its sources and closes its sockets. */
+    public void close() {
+        synchronized (this) {
+            if (mSource != null) {
+                mSource.removeSubscriber(this);
+            }
+            if (mPending != null) {
+                mPending.removeSubscriber(this);
+            }
+            mSource = mPending = null;
+            mPaused = true;
+        }
+        mThread.interrupt();
+        mSocket.close();
+        mReport.close();
+    }
+
+    /**
+     * Called by the sources from their own thread with the packet they are about to send.
+     *
+     * @param source    The source of the packet
+     * @param packet    The RTP packet, its header is not used
+     * @param length    The length of the packet
+     * @param timestamp The timestamp of the packet in ns
+     * @param syncPoint Whether the client can start decoding the stream with this packet
+     * @param layer     The layer of the packet, see {@link RtpSocket#markLayer(int)}
+     */
+    synchronized void deliver(RtpSocket source, byte[] packet, int length, long timestamp,
+            boolean syncPoint, int layer) throws IOException {
+        if (source == mPending) {
+            if (!syncPoint) {
+                return;
+            }
+            // The old source is left right before a sync point of the new one
+            mSource.removeSubscriber(this);
+            mSource = source;
+            mPending = null;
+            mWaitSyncPoint = false;
+        } else if (source != mSource) {
+            return;
+        }
+        if (mPaused) {
+            return;
+        }
+        if (mWaitSyncPoint) {
+            if (!syncPoint) {
+                return;
+            }
+            mWaitSyncPoint = false;
+        }
+        if (mPendingMaxLayer >= 0 && syncPoint) {
+            mMaxLayer = mPendingMaxLayer;
+            mPendingMaxLayer = -1;
+        }
+        if (layer > mMaxLayer) {
+            return;
+        }
+        send(packet, length, timestamp, source.getClockFrequency());
+    }
+
+    /**
+     * Stamps a packet and sends it to the client, whatever the state of the subscriber.
+     *
+     * @param packet    The RTP packet, its header is not used
+     * @param length    The length of the packet
+     * @param timestamp The timestamp of the packet in ns
+     * @param clock     The clock frequency of the stream in Hz
+     */
+    synchronized void send(byte[] packet, int length, long timestamp, long clock)
+            throws IOException {
+        // All the sources of a subscriber share the same time line
+        if (!mHasFirstTimestamp) {
+            mFirstTimestamp = timestamp;
+            mHasFirstTimestamp = true;
+        }
+        if (mAnnouncedTimestamp >= 0) {
+            // The time line restarts from the timestamp given in RTP-Info
+            mTimestampBase = mAnnouncedTimestamp;
+            mFirstTimestamp = timestamp;
+            mAnnouncedTimestamp = -1;
+        }
+        long delta = timestamp - mFirstTimestamp;
+        long rtpts = (mTimestampBase + (delta / 100L) * (clock / 1000L) / 10000L) & 0xFFFFFFFFL;
+        int seq = (mSeq + 1) & 0xFFFF;
+
+        // Version, marker and payload type are those of the source
+        mBuffer[0] = packet[0];
+        mBuffer[1] = packet[1];
+        setLong(mBuffer, seq, 2, 4);
+        setLong(mBuffer, rtpts, 4, 8);
+        System.arraycopy(packet, RtpSocket.RTP_HEADER_LENGTH, mBuffer,
+                RtpSocket.RTP_HEADER_LENGTH, length - RtpSocket.RTP_HEADER_LENGTH);
+        mPacket.setLength(length);
+        mSeq = seq;
+        mRtpTimestamp = rtpts;
+        mLastSendTime = System.nanoTime();
+        mClock = clock;
+        mSent = true;
+        mReport.update(length, rtpts);
+        mSocket.send(mPacket);
+    }
+
+    /** Reads the RTCP packets sent by the client. */
+    @Override
+    public void run() {
+        byte[] buffer = new byte[SenderReport.MTU];
+        while (!Thread.interrupted()) {
+            try {
+                int length = mReport.receive(buffer);
+                Callback callback = mCallback;
+                if (callback != null && mReceiverReport.parse(buffer, length, mSsrc)) {
+                    callback.onReceiverReport(this, mReceiverReport);
+                }
+            } catch (IOException e) {
+                // The socket has been closed
+                break;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Invalid RTCP packet", e);
+            }
+        }
+    }
+
+    private static void setLong(byte[] buffer, long n, int begin, int end) {
+        for (end--; end >= begin; end--) {
+            buffer[end] = (byte) (n % 256);
+            n >>= 8;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Random;
+
+/**
+ * Another destination for the packets of an {@link RtpSocket}, so that a stream can be sent to
+ * several servers without being encoded twice.
+ *
+ * Like an {@link RtpSubscriber}, a target is an RTP session of its own with its own SSRC, sequence
+ * numbers and Sender Reports. Unlike it, packets are copied in a queue and sent by a thread of the
+ * target, over UDP or interleaved in a TCP connection: a target that can't keep up does not slow
+ * down the source nor the other targets. When its queue is full, packets are dropped until the
+ * next sync point.
+ */
+public class RtpTarget implements RtpSocket.PacketListener, Runnable {
+    public static final String TAG = RtpTarget.class.getSimpleName();
+
+    /** Number of packets that can be queued, about a second of a 2 Mbps stream. */
+    public static final int QUEUE_SIZE = 256;
+
+    private final RtpSocket mSource;
+    private final DatagramSocket mSocket;
+    private final DatagramPacket mPacket;
+    private final SenderReport mReport;
+    private final RtpSocket.AverageBitrate mAverageBitrate = new RtpSocket.AverageBitrate();
+    private final byte[] mTcpHeader = {'$', 0, 0, 0};
+    private final int mSsrc;
+    private final long mTimestampBase;
+
+    private final byte[][] mBuffers = new byte[QUEUE_SIZE][RtpSocket.MAX_PACKET_SIZE];
+    private final int[] mLengths = new int[QUEUE_SIZE];
+    private final long[] mTimestamps = new long[QUEUE_SIZE];
+    private int mHead = 0;
+    private int mCount = 0;
+    // True while the packet at the head of the queue is being sent
+    private boolean mSending = false;
+    // True when packets are dropped until the next sync point because the queue was full
+    private boolean mOverflow = false;
+
+    private Thread mThread;
+    private OutputStream mOutputStream;
+    private int mPort = -1;
+    private boolean mPaused = true;
+    private boolean mWaitSyncPoint = true;
+    private int mSeq;
+    // The timestamps given by the packetizers may be negative
+    private long mFirstTimestamp;
+    private boolean mHasFirstTimestamp = false;
+    private volatile int mDropped = 0;
+    // Start of the write in progress on the TCP connection, 0 if none, -1 if a write failed
+    private volatile long mWriteStart = 0;
+
+    /**
+     * Creates a target, its destination has to be set before {@link #start()} is called.
+     *
+     * @param source The socket whose packets are sent to the target
+     */
+    public RtpTarget(RtpSocket source) throws IOException {
+        // Random SSRC, initial sequence number and timestamp, as recommended by RFC 3550
+        Random random = new Random();
+        mSsrc = random.nextInt();
+        mSeq = random.nextInt(0x10000);
+        mTimestampBase = random.nextInt() & 0xFFFFFFFFL;
+        mSource = source;
+        mSocket = new DatagramSocket();
+        mPacket = new DatagramPacket(mBuffers[0], 1);
+        mReport = new SenderReport();
+        mReport.setSSRC(mSsrc);
+    }
+
+    public int getSSRC() {
+        return mSsrc;
+    }
+
+    /**
+     * Returns a pair of source ports, the first one is the
+     * one used for RTP and the second one is used for RTCP.
+     **/
+    public int[] getLocalPorts() {
+        return new int[]{
+                mSocket.getLocalPort(),
+                mReport.getLocalPort()
+        };
+    }
+
+    /** Sends the packets over UDP. */
+    public synchronized void setDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+        mOutputStream = null;
+        mPort = rtpPort;
+        mPacket.setAddress(dest);
+        mPacket.setPort(rtpPort);
+        mReport.setDestination(dest, rtcpPort);
+    }
+
+    /** Sends the packets interleaved in a TCP connection, RTCP uses the next channel. */
+    public synchronized void setOutputStream(OutputStream stream, byte channelIdentifier) {
+        mOutputStream = stream;
+        mTcpHeader[1] = channelIdentifier;
+        mReport.setOutputStream(stream, (byte) (channelIdentifier + 1));
+        mWriteStart = 0;
+    }
+
+    /** Starts sending the packets of the source from its next sync point. */
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(this, "RtpTarget");
+            mThread.start();
+            mSource.addPacketListener(this);
+        }
+        resume();
+    }
+
+    /** Stops sending packets, sequence numbers are not consumed meanwhile. */
+    public synchronized void pause() {
+        mPaused = true;
+        mCount = mSending ? 1 : 0;
+    }
+
+    /** Sends packets again from the next sync point of the source. */
+    public synchronized void resume() {
+        mPaused = false;
+        mWaitSyncPoint = true;
+    }
+
+    /** Stops the thread of the target and closes its sockets. */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            mSource.removePacketListener(this);
+            mPaused = true;
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        mSocket.close();
+        mReport.close();
+    }
+
+    /** Returns the bit rate of the target in bit per seconds. */
+    public long getBitrate() {
+        return mAverageBitrate.average();
+    }
+
+    /** Returns the number of packets dropped because the target could not keep up. */
+    public int getDroppedPackets() {
+        return mDropped;
+    }
+
+    /** Same as {@link RtpSocket#getWriteStall()}. */
+    public long getWriteStall() {
+        long start = mWriteStart;
+        return start <= 0 ? start : SystemClock.elapsedRealtime() - start;
+    }
+
+    /** Same as {@link RtpSocket#receiveReport(byte[], int)}. */
+    public int receiveReport(byte[] buffer, int timeout) throws IOException {
+        return mReport.receive(buffer, timeout);
+    }
+
+    /** Copies the packets of the source in the queue, called from the thread of the source. */
+    @Override
+    public synchronized void onPacket(RtpSocket source, byte[] packet, int length,
+            long timestamp, boolean syncPoint, int layer) {
+        if (mPaused) {
+            return;
+        }
+        if (mCount == QUEUE_SIZE) {
+            // The next packets could not be decoded without this one
+            mOverflow = mWaitSyncPoint = true;
+            mDropped++;
+            return;
+        }
+        if (mWaitSyncPoint && !syncPoint) {
+            mDropped += mOverflow ? 1 : 0;
+            return;
+        }
+        mOverflow = mWaitSyncPoint = false;
+        int slot = (mHead + mCount) % QUEUE_SIZE;
+        System.arraycopy(packet, 0, mBuffers[slot], 0, length);
+        mLengths[slot] = length;
+        mTimestamps[slot] = timestamp;
+        mCount++;
+        notifyAll();
+    }
+
+    /** Sends the packets of the queue. */
+    @Override
+    public void run() {
+        long clock = mSource.getClockFrequency();
+        try {
+            while (!Thread.interrupted()) {
+                int slot;
+                boolean last;
+                synchronized (this) {
+                    while (mCount == 0) {
+                        wait();
+                    }
+                    slot = mHead;
+                    last = mCount == 1;
+                    mSending = true;
+                }
+                // The slot is not reused by the source before it is released below
+                send(mBuffers[slot], mLengths[slot], mTimestamps[slot], clock, last);
+                synchronized (this) {
+                    mHead = (mHead + 1) % QUEUE_SIZE;
+                    mCount--;
+                    mSending = false;
+                }
+            }
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    private void send(byte[] packet, int length, long timestamp, long clock, boolean flush) {
+        if (!mHasFirstTimestamp) {
+            mFirstTimestamp = timestamp;
+            mHasFirstTimestamp = true;
+        }
+        long delta = timestamp - mFirstTimestamp;
+        long rtpts = (mTimestampBase + (delta / 100L) * (clock / 1000L) / 10000L) & 0xFFFFFFFFL;
+        mSeq = (mSeq + 1) & 0xFFFF;
+        setLong(packet, mSeq, 2, 4);
+        setLong(packet, rtpts, 4, 8);
+        setLong(packet, mSsrc, 8, 12);
+        mAverageBitrate.push(length);
+        try {
+            OutputStream stream;
+            synchronized (this) {
+                stream = mOutputStream;
+                mPacket.setData(packet, 0, length);
+            }
+            if (stream != null) {
+                sendTCP(stream, packet, length, flush);
+            } else if (mPort > 0) {
+                mSocket.send(mPacket);
+            }
+            mReport.update(length, rtpts);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not send packet", e);
+        }
+    }
+
+    private void sendTCP(OutputStream stream, byte[] packet, int length, boolean flush) {
+        if (mWriteStart < 0) {
+            return;
+        }
+        synchronized (stream) {
+            mTcpHeader[2] = (byte) (length >> 8);
+            mTcpHeader[3] = (byte) (length & 0xFF);
+            mWriteStart = SystemClock.elapsedRealtime();
+            try {
+                stream.write(mTcpHeader);
+                stream.write(packet, 0, length);
+                // Packets are written in batches while the queue is not empty
+                if (flush) {
+                    stream.flush();
+                }
+                mWriteStart = 0;
+            } catch (IOException e) {
+                mWriteStart = -1;
+            }
+        }
+    }
+
+    private static void setLong(byte[] buffer, long n, int begin, int end) {
+        for (end--; end >= begin; end--) {
+            buffer[end] = (byte) (n % 256);
+            n >>= 8;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Records the last minutes of a stream on disk, so that clients can start playing it from an
+ * earlier point in time (time shift), see {@link TimeShiftPlayer}.
+ *
+ * The packets of the tracks (see {@link #setSource(int, RtpSocket)}) are written in the order
+ * they are sent to a ring of segments, files mapped in memory so that writing a packet is a mere
+ * copy. When the last segment is full, the oldest one is overwritten. The sync points of the
+ * video, or regular points of an audio only stream, are indexed: reading starts from them.
+ *
+ * Points in time are the timestamps of the packets in ns, see
+ * {@link RtpSocket#updateTimestamp(long)}.
+ */
+public class TimeShiftBuffer implements RtpSocket.PacketListener {
+    public static final String TAG = TimeShiftBuffer.class.getSimpleName();
+
+    /** Default number of segments. */
+    public static final int DEFAULT_SEGMENT_COUNT = 16;
+
+    /** Stands for no point in time, the timestamps of the packets may be negative. */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // Length (32 bits), track, flags, layer, padding (8 bits each) and timestamp (64 bits)
+    private static final int HEADER_LENGTH = 16;
+    private static final int FLAG_SYNC_POINT = 0x01;
+
+    // Audio only streams are indexed that often, in ns
+    private static final long AUDIO_INDEX_INTERVAL = 500000000L;
+
+    private final File[] mFiles;
+    private final MappedByteBuffer[] mSegments;
+    // Incremented each time a segment is overwritten
+    private final int[] mGenerations;
+    private final int mSegmentSize;
+    private final long mDuration;
+    private final RtpSocket[] mSources = new RtpSocket[2];
+    private final long[] mClocks = new long[2];
+    // Sync points, sorted by timestamp
+    private final ArrayList<IndexEntry> mIndex = new ArrayList<>();
+
+    private int mSegment = 0;
+    private int mPosition = 0;
+    private long mLastTimestamp = NO_TIMESTAMP;
+    // The first packet recorded, the origin of the normal play time
+    private long mOriginTimestamp;
+    private boolean mHasOrigin = false;
+    private long mOriginTime;
+    private boolean mReleased = false;
+
+    /** A packet read from the buffer. */
+    public static class Packet {
+        public byte[] data = new byte[RtpSocket.MAX_PACKET_SIZE];
+        public int length;
+        public int trackId;
+        /** Timestamp in ns. */
+        public long timestamp;
+        public boolean syncPoint;
+        public int layer;
+    }
+
+    private static class IndexEntry {
+        final long timestamp;
+        final int segment, position, generation;
+
+        IndexEntry(long timestamp, int segment, int position, int generation) {
+            this.timestamp = timestamp;
+            this.segment = segment;
+            this.position = position;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Creates a buffer of {@link #DEFAULT_SEGMENT_COUNT} segments.
+     *
+     * @param directory Where the segments are written, they are deleted by {@link #release()}
+     * @param duration  How far back in time clients can go, in seconds
+     * @param size      The size of all the segments in bytes, it should hold the duration at the
+     *                  bit rate of the stream
+     */
+    public TimeShiftBuffer(File directory, int duration, long size) throws IOException {
+        this(directory, duration, size, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * @param directory Where the segments are written, they are deleted by {@link #release()}
+     * @param duration  How far back in time clients can go, in seconds
+     * @param size      The size of all the segments in bytes
+     * @param count     The number of segments, a whole segment is dropped when the buffer is full
+     */
+    public TimeShiftBuffer(File directory, int duration, long size, int count)
+            throws IOException {
+        if (count < 2) {
+            throw new IllegalArgumentException("At least two segments are needed");
+        }
+        mSegmentSize = (int) Math.min(Integer.MAX_VALUE, size / count);
+        mDuration = duration * 1000000000L;
+        mFiles = new File[count];
+        mSegments = new MappedByteBuffer[count];
+        mGenerations = new int[count];
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                mFiles[i] = new File(directory, "timeshift-" + i + ".seg");
+                // The mapping stays valid once the file is closed
+                try (RandomAccessFile file = new RandomAccessFile(mFiles[i], "rw")) {
+                    file.setLength(mSegmentSize);
+                    mSegments[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                            mSegmentSize);
+                }
+            }
+        } catch (IOException e) {
+            deleteFiles();
+            throw e;
+        }
+    }
+
+    /**
+     * Records the packets of a track.
+     *
+     * @param trackId 0 for audio, 1 for video
+     * @param socket  The socket of the track, or null to stop recording it
+     */
+    public synchronized void setSource(int trackId, RtpSocket socket) {
+        if (mSources[trackId] == socket) {
+            return;
+        }
+        if (mSources[trackId] != null) {
+            mSources[trackId].removePacketListener(this);
+        }
+        mSources[trackId] = socket;
+        if (socket != null && !mReleased) {
+            socket.addPacketListener(this);
+        }
+    }
+
+    /** Returns the clock frequency of a track in Hz. */
+    public synchronized long getClockFrequency(int trackId) {
+        return mClocks[trackId];
+    }
+
+    /** Returns the timestamp of the oldest point clients can start from, or NO_TIMESTAMP. */
+    public synchronized long getOldestTimestamp() {
+        int first = getFirstEntry();
+        return first >= 0 ? mIndex.get(first).timestamp : NO_TIMESTAMP;
+    }
+
+    /** Returns the timestamp of the last packet recorded, or NO_TIMESTAMP. */
+    public synchronized long getNewestTimestamp() {
+        return mLastTimestamp;
+    }
+
+    /** Returns the normal play time of a timestamp in seconds, from the first packet recorded. */
+    public synchronized double getNpt(long timestamp) {
+        return mHasOrigin ? (timestamp - mOriginTimestamp) / 1e9 : 0;
+    }
+
+    /** Returns the timestamp of a normal play time in seconds, see {@link #getNpt(long)}. */
+    public synchronized long getTimestampFromNpt(double npt) {
+        return mOriginTimestamp + (long) (npt * 1e9);
+    }
+
+    /** Returns when a timestamp has been recorded, see {@link System#currentTimeMillis()}. */
+    public synchronized long getWallClock(long timestamp) {
+        return mOriginTime + (timestamp - mOriginTimestamp) / 1000000L;
+    }
+
+    /** Returns the timestamp recorded at a point in time, see {@link #getWallClock(long)}. */
+    public synchronized long getTimestampFromWallClock(long time) {
+        return mOriginTimestamp + (time - mOriginTime) * 1000000L;
+    }
+
+    /**
+     * Returns a reader starting at the sync point right before a point in time, or at the
+     * oldest one if the buffer does not go back that far.
+     *
+     * @param timestamp The point in time in ns
+     * @return The reader, or null if no sync point has been recorded yet
+     */
+    public synchronized Reader open(long timestamp) {
+        int first = getFirstEntry();
+        if (first < 0) {
+            return null;
+        }
+        int i = mIndex.size() - 1;
+        while (i > first && mIndex.get(i).timestamp > timestamp) {
+            i--;
+        }
+        return new Reader(mIndex.get(i));
+    }
+
+    /** Stops recording and deletes the segments. */
+    public synchronized void release() {
+        setSource(0, null);
+        setSource(1, null);
+        mReleased = true;
+        mIndex.clear();
+        deleteFiles();
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onPacket(RtpSocket source, byte[] packet, int length,
+            long timestamp, boolean syncPoint, int layer) {
+        int trackId = source == mSources[1] ? 1 : source == mSources[0] ? 0 : -1;
+        int recordLength = HEADER_LENGTH + length;
+        // The end of a segment is marked with a null length
+        if (trackId < 0 || mReleased || recordLength + 4 > mSegmentSize) {
+            return;
+        }
+        if (mPosition + recordLength + 4 > mSegmentSize) {
+            mSegments[mSegment].putInt(mPosition, 0);
+            nextSegment();
+        }
+        if (!mHasOrigin) {
+            mOriginTimestamp = timestamp;
+            mHasOrigin = true;
+            mOriginTime = System.currentTimeMillis();
+        }
+        mClocks[trackId] = source.getClockFrequency();
+
+        boolean index;
+        if (trackId == 1) {
+            index = syncPoint;
+        } else {
+            // Any audio packet is a sync point
+            index = mSources[1] == null && (mIndex.isEmpty()
+                    || timestamp - mIndex.get(mIndex.size() - 1).timestamp
+                    >= AUDIO_INDEX_INTERVAL);
+        }
+        if (index) {
+            mIndex.add(new IndexEntry(timestamp, mSegment, mPosition, mGenerations[mSegment]));
+        }
+
+        MappedByteBuffer segment = mSegments[mSegment];
+        segment.position(mPosition);
+        segment.putInt(recordLength);
+        segment.put((byte) trackId);
+        segment.put((byte) (syncPoint ? FLAG_SYNC_POINT : 0));
+        segment.put((byte) layer);
+        segment.put((byte) 0);
+        segment.putLong(timestamp);
+        segment.put(packet, 0, length);
+        mPosition += recordLength;
+        mLastTimestamp = timestamp;
+        // Readers that caught up with the recording wait for it
+        notifyAll();
+    }
+
+    /** Moves to the next segment, the oldest one. */
+    private void nextSegment() {
+        mSegment = (mSegment + 1) % mSegments.length;
+        mGenerations[mSegment]++;
+        mPosition = 0;
+        while (!mIndex.isEmpty() && mIndex.get(0).segment == mSegment) {
+            mIndex.remove(0);
+        }
+    }
+
+    /** Returns the index of the oldest sync point within the duration, or -1. */
+    private int getFirstEntry() {
+        for (int i = 0; i < mIndex.size(); i++) {
+            if (mLastTimestamp - mIndex.get(i).timestamp <= mDuration) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void deleteFiles() {
+        for (File file : mFiles) {
+            if (file != null && file.exists() && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads the packets in the order they have been recorded, see {@link #open(long)}. A reader
+     * that falls behind the recording by more than the size of the buffer starts again from the
+     * oldest sync point. Only one thread should use it.
+     */
+    public class Reader {
+        private final long mTimestamp;
+        private int mReadSegment, mReadPosition, mReadGeneration;
+
+        private Reader(IndexEntry entry) {
+            mTimestamp = entry.timestamp;
+            moveTo(entry);
+        }
+
+        /** Returns the timestamp of the sync point the reader has started from. */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Reads the next packet.
+         *
+         * @param packet  Where the packet is copied
+         * @param timeout How long to wait for a packet to be recorded in ms, or 0
+         * @return false if there is no packet yet
+         */
+        public boolean read(Packet packet, long timeout) throws InterruptedException {
+            synchronized (TimeShiftBuffer.this) {
+                long deadline = System.currentTimeMillis() + timeout;
+                while (!mReleased) {
+                    if (mReadGeneration != mGenerations[mReadSegment]) {
+                        // Overwritten
+                        if (mIndex.isEmpty()) {
+                            return false;
+                        }
+                        moveTo(mIndex.get(0));
+                        continue;
+                    }
+                    if (mReadSegment == mSegment && mReadPosition >= mPosition) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            return false;
+                        }
+                        TimeShiftBuffer.this.wait(wait);
+                        continue;
+                    }
+                    MappedByteBuffer segment = mSegments[mReadSegment];
+                    int length = mReadPosition + 4 <= mSegmentSize
+                            ? segment.getInt(mReadPosition) : 0;
+                    if (length == 0) {
+                        // End of the segment
+                        mReadSegment = (mReadSegment + 1) % mSegments.length;
+                        mReadPosition = 0;
+                        mReadGeneration = mGenerations[mReadSegment];
+                        continue;
+                    }
+                    packet.trackId = segment.get(mReadPosition + 4);
+                    packet.syncPoint = (segment.get(mReadPosition + 5) & FLAG_SYNC_POINT) != 0;
+                    packet.layer = segment.get(mReadPosition + 6);
+                    packet.timestamp = segment.getLong(mReadPosition + 8);
+                    packet.length = length - HEADER_LENGTH;
+                    if (packet.data.length < packet.length) {
+                        packet.data = new byte[packet.length];
+                    }
+                    segment.position(mReadPosition + HEADER_LENGTH);
+                    segment.get(packet.data, 0, packet.length);
+                    mReadPosition += length;
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        private void moveTo(IndexEntry entry) {
+            mReadSegment = entry.segment;
+            mReadPosition = entry.position;
+            mReadGeneration = entry.generation;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Plays the recording of a {@link TimeShiftBuffer} to the subscribers of a client, at the pace
+ * it has been recorded at or at another speed (Scale of RFC 2326 section 12.34). Faster than
+ * real time, only the key frames are sent, and no audio.
+ *
+ * The subscribers are detached from their sources while they are fed by the player, and their
+ * time line starts again from the point the client seeks to.
+ */
+public class TimeShiftPlayer implements Runnable {
+    public static final String TAG = TimeShiftPlayer.class.getSimpleName();
+
+    // How long the player waits for a packet before checking whether it has been stopped, in ms
+    private static final int READ_TIMEOUT = 100;
+
+    private final TimeShiftBuffer mBuffer;
+    private final RtpSubscriber[] mSubscribers;
+    private TimeShiftBuffer.Reader mReader;
+    private Thread mThread;
+    private float mScale = 1;
+    private volatile long mPosition = TimeShiftBuffer.NO_TIMESTAMP;
+
+    // The packet with the anchor timestamp is sent at the anchor time, the others follow
+    private long mAnchorTimestamp;
+    private long mAnchorTime = -1;
+
+    /**
+     * @param buffer      The recording
+     * @param subscribers The subscribers of the client by track, 0 for audio and 1 for video
+     */
+    public TimeShiftPlayer(TimeShiftBuffer buffer, RtpSubscriber[] subscribers) {
+        mBuffer = buffer;
+        mSubscribers = subscribers;
+    }
+
+    /**
+     * Moves to a point in time, packets are sent once {@link #play()} is called.
+     *
+     * @param timestamp The point in time in ns, see {@link TimeShiftBuffer}
+     * @param scale     The speed of the playback, 1 for real time. Values below or equal to 0 are
+     *                  not supported, real time is used instead.
+     * @return The timestamp the playback starts from, the sync point before the one asked for, or
+     * {@link TimeShiftBuffer#NO_TIMESTAMP} if nothing has been recorded yet
+     */
+    public synchronized long seek(long timestamp, float scale) {
+        pause();
+        TimeShiftBuffer.Reader reader = mBuffer.open(timestamp);
+        if (reader == null) {
+            return TimeShiftBuffer.NO_TIMESTAMP;
+        }
+        mReader = reader;
+        mScale = scale > 0 ? scale : 1;
+        mPosition = reader.getTimestamp();
+        for (RtpSubscriber subscriber : mSubscribers) {
+            if (subscriber != null) {
+                subscriber.detach();
+                subscriber.rebase(mPosition);
+            }
+        }
+        return mPosition;
+    }
+
+    /** Returns the speed of the playback. */
+    public synchronized float getScale() {
+        return mScale;
+    }
+
+    /** Returns the timestamp of the last packet sent, or of the point the player has sought. */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /** Starts or resumes sending packets. */
+    public synchronized void play() {
+        if (mReader != null && mThread == null) {
+            mThread = new Thread(this, TAG);
+            mThread.start();
+        }
+    }
+
+    /** Stops sending packets, {@link #play()} resumes from where the player stopped. */
+    public synchronized void pause() {
+        if (mThread != null) {
+            mThread.interrupt();
+            try {
+                mThread.join();
+            } catch (InterruptedException ignore) {
+            }
+            mThread = null;
+        }
+        mAnchorTime = -1;
+    }
+
+    public synchronized void stop() {
+        pause();
+        mReader = null;
+    }
+
+    @Override
+    public void run() {
+        TimeShiftBuffer.Packet packet = new TimeShiftBuffer.Packet();
+        TimeShiftBuffer.Reader reader;
+        float scale;
+        synchronized (this) {
+            reader = mReader;
+            scale = mScale;
+        }
+        try {
+            while (!Thread.interrupted()) {
+                if (!reader.read(packet, READ_TIMEOUT)) {
+                    continue;
+                }
+                RtpSubscriber subscriber = mSubscribers[packet.trackId];
+                if (subscriber == null || scale != 1 && packet.trackId == 0
+                        || scale > 1 && packet.layer != RtpSocket.LAYER_KEY) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (mAnchorTime < 0) {
+                    mAnchorTime = now;
+                    mAnchorTimestamp = packet.timestamp;
+                }
+                long offset = (long) ((packet.timestamp - mAnchorTimestamp) / scale);
+                long delay = mAnchorTime + offset - now;
+                if (delay > 0) {
+                    Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+                }
+                subscriber.send(packet.data, packet.length, mAnchorTimestamp + offset,
+                        mBuffer.getClockFrequency(packet.trackId));
+                mPosition = packet.timestamp;
+            }
+        } catch (InterruptedException ignore) {
+            // Paused or stopped
+        } catch (IOException e) {
+            Log.e(TAG, "Could not send packet", e);
+        }
+    }
+}
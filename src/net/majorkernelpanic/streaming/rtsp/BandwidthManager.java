@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.video.BaseVideoStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Shares the upload bandwidth of the device between the clients of the {@link RtspServer}.
+ *
+ * Audio streams always get the bit rate they asked for. What is left is shared between the
+ * video streams of the active clients so that no client gets more than it asked for and the
+ * others get equal shares (max-min fairness). The share of a client is applied to its encoder
+ * with {@link BaseVideoStream#setBitrateLimit(int)}, and is recomputed when a client comes,
+ * pauses, resumes or goes.
+ *
+ * A new track is rejected when admitting it would push the share of some client below
+ * {@link #MIN_VIDEO_BITRATE}. The bandwidth actually measured on the sockets is taken into
+ * account, encoders often produce more than they have been asked for.
+ *
+ * Clients of a {@link net.majorkernelpanic.streaming.LiveSource} share encoders with others, so
+ * their bit rate can't be lowered: they get a fixed reservation with
+ * {@link #reserve(Object, int)} instead.
+ */
+class BandwidthManager {
+    public static final String TAG = BandwidthManager.class.getSimpleName();
+
+    /** Below this bit rate, a video stream is not worth being sent. */
+    public static final int MIN_VIDEO_BITRATE = 100000;
+
+    // Headers of the RTP, UDP and IP layers
+    private static final float OVERHEAD = 1.05f;
+
+    private final HashMap<Session, Allocation> mAllocations = new HashMap<>();
+    private final HashMap<Object, Integer> mReservations = new HashMap<>();
+    private long mCapacity = 0;
+
+    private static class Allocation {
+        final Session session;
+        final boolean[] tracks = new boolean[2];
+        boolean active = true;
+        int audio = 0;
+        int video = 0;
+        int granted = 0;
+
+        Allocation(Session session) {
+            this.session = session;
+        }
+
+        void update() {
+            AudioStream audioStream = session.getAudioTrack();
+            BaseVideoStream videoStream = session.getVideoTrack();
+            audio = tracks[0] && audioStream != null
+                    ? audioStream.getAudioQuality().bitRate : 0;
+            video = tracks[1] && videoStream != null
+                    ? videoStream.getVideoQuality().bitrate : 0;
+        }
+    }
+
+    /**
+     * Sets the bandwidth available for all the clients.
+     *
+     * @param bitrate The capacity of the uplink in bit per seconds, or 0 for no limit
+     */
+    public synchronized void setCapacity(long bitrate) {
+        mCapacity = bitrate;
+        rebalance();
+    }
+
+    public synchronized long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Reserves bandwidth for a track of a session, the other clients may be downgraded.
+     *
+     * @return false if there is not enough bandwidth left, nothing is reserved then
+     */
+    public synchronized boolean admit(Session session, int trackId) {
+        Allocation allocation = mAllocations.get(session);
+        boolean created = allocation == null;
+        if (created) {
+            allocation = new Allocation(session);
+            mAllocations.put(session, allocation);
+        }
+        boolean wasSetup = allocation.tracks[trackId];
+        allocation.tracks[trackId] = true;
+        allocation.active = true;
+        allocation.update();
+
+        if (!share()) {
+            Log.i(TAG, "Not enough bandwidth for track " + trackId + ", capacity: "
+                    + mCapacity / 1000 + " kbps");
+            allocation.tracks[trackId] = wasSetup;
+            if (created) {
+                mAllocations.remove(session);
+            } else {
+                allocation.update();
+            }
+            share();
+            return false;
+        }
+        apply();
+        return true;
+    }
+
+    /** Marks the tracks of a session as paused or playing, a paused client uses no bandwidth. */
+    public synchronized void setActive(Session session, boolean active) {
+        Allocation allocation = mAllocations.get(session);
+        if (allocation != null && allocation.active != active) {
+            allocation.active = active;
+            rebalance();
+        }
+    }
+
+    /** Gives the bandwidth of a session back to the other clients. */
+    public synchronized void release(Session session) {
+        if (mAllocations.remove(session) != null) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Reserves a fixed bit rate for a client, or updates its reservation.
+     *
+     * @return false if there is not enough bandwidth left, the previous reservation is kept then
+     */
+    public synchronized boolean reserve(Object owner, int bitrate) {
+        Integer previous = mReservations.put(owner, bitrate);
+        if (!share()) {
+            Log.i(TAG, "Not enough bandwidth to reserve " + bitrate / 1000 + " kbps, capacity: "
+                    + mCapacity / 1000 + " kbps");
+            if (previous != null) {
+                mReservations.put(owner, previous);
+            } else {
+                mReservations.remove(owner);
+            }
+            share();
+            return false;
+        }
+        apply();
+        return true;
+    }
+
+    /** Gives a reservation made with {@link #reserve(Object, int)} back to the other clients. */
+    public synchronized void cancel(Object owner) {
+        if (mReservations.remove(owner) != null) {
+            rebalance();
+        }
+    }
+
+    /** Recomputes the shares of all clients and applies them to the encoders. */
+    public synchronized void rebalance() {
+        share();
+        apply();
+    }
+
+    /**
+     * Computes the share of each active client.
+     *
+     * @return false if some client got less than the minimum bit rate
+     */
+    private boolean share() {
+        ArrayList<Allocation> video = new ArrayList<>();
+        long granted = 0, audio = 0;
+        // Fixed reservations are served first, like audio
+        for (int reserved : mReservations.values()) {
+            granted += reserved;
+            audio += reserved;
+        }
+        for (Allocation allocation : mAllocations.values()) {
+            granted += allocation.active ? allocation.audio + allocation.granted : 0;
+            if (allocation.active) {
+                audio += allocation.audio;
+                if (allocation.video > 0) {
+                    video.add(allocation);
+                }
+            }
+        }
+
+        if (mCapacity <= 0) {
+            for (Allocation allocation : video) {
+                allocation.granted = allocation.video;
+            }
+            return true;
+        }
+
+        // The encoders producing more than their share eat into the budget
+        long overshoot = Math.max(0, measureBitrate() - (long) (granted * OVERHEAD));
+        long remaining = (long) ((mCapacity - overshoot) / OVERHEAD) - audio;
+        if (remaining < 0) {
+            return false;
+        }
+
+        // Water filling: the smallest requests are fully served first
+        Collections.sort(video, (a, b) -> Integer.compare(a.video, b.video));
+        boolean enough = true;
+        for (int i = 0, n = video.size(); i < n; i++) {
+            Allocation allocation = video.get(i);
+            int share = (int) Math.min(allocation.video, remaining / (n - i));
+            allocation.granted = share;
+            remaining -= share;
+            if (share < Math.min(allocation.video, MIN_VIDEO_BITRATE)) {
+                enough = false;
+            }
+        }
+        return enough;
+    }
+
+    /** Applies the shares to the video encoders. */
+    private void apply() {
+        for (Allocation allocation : mAllocations.values()) {
+            BaseVideoStream stream = allocation.session.getVideoTrack();
+            if (stream == null || !allocation.active || allocation.video == 0) {
+                continue;
+            }
+            int limit = allocation.granted < allocation.video ? allocation.granted : 0;
+            if (limit != stream.getBitrateLimit()) {
+                Log.i(TAG, limit > 0 ? "Video downgraded to " + limit / 1000 + " kbps"
+                        : "Video restored to " + allocation.video / 1000 + " kbps");
+                stream.setBitrateLimit(limit);
+            }
+        }
+    }
+
+    /** Returns the bandwidth measured on the sockets of all clients. */
+    private long measureBitrate() {
+        long bitrate = 0;
+        for (Allocation allocation : mAllocations.values()) {
+            bitrate += allocation.session.getBitrate();
+        }
+        return bitrate;
+    }
+}
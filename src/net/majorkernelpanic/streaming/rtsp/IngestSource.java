@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import android.util.Log;
+
+import net.majorkernelpanic.streaming.LiveSource;
+import net.majorkernelpanic.streaming.Session;
+import net.majorkernelpanic.streaming.rtp.AACDepacketizer;
+import net.majorkernelpanic.streaming.rtp.AMRNBDepacketizer;
+import net.majorkernelpanic.streaming.rtp.AbstractDepacketizer;
+import net.majorkernelpanic.streaming.rtp.AccessUnit;
+import net.majorkernelpanic.streaming.rtp.H263Depacketizer;
+import net.majorkernelpanic.streaming.rtp.H264Depacketizer;
+import net.majorkernelpanic.streaming.rtp.JitterBuffer;
+import net.majorkernelpanic.streaming.rtp.RtpPacket;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.video.BaseVideoStream;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A stream published on the {@link RtspServer} by a client with ANNOUNCE and RECORD, and shared
+ * with the clients that DESCRIBE and PLAY the same URI. That way the phone can gather the
+ * streams of other cameras without a media server.
+ *
+ * The RTP packets are received on UDP or interleaved in the RTSP connection, put back in order
+ * by a {@link JitterBuffer}, and the access units they carry are reassembled by a depacketizer.
+ * The packets of the complete access units are then relayed to the viewers with their original
+ * payload, so the session description of the publisher is served as is. Access units damaged
+ * by a loss are not relayed, nor the pictures that follow until the next key frame, and the
+ * pictures are marked with their layer so that the viewers can be thinned out as with the
+ * encoders of the phone. The publisher can't be asked for a key frame, so the video since the
+ * last one is cached and sent right away to the viewers that join.
+ *
+ * H.264, H.263, AAC (mpeg4-generic) and AMR-NB are supported, at most one audio and one video
+ * track.
+ */
+public class IngestSource extends LiveSource {
+    public static final String TAG = IngestSource.class.getSimpleName();
+
+    private final String mPath;
+    private final Track[] mTracks = new Track[2];
+    private final long mTimestamp = System.currentTimeMillis();
+    private volatile boolean mRecording = false;
+
+    /**
+     * Creates the source from the session description of an ANNOUNCE request.
+     *
+     * @param path               The path the stream is published on
+     * @param sessionDescription The session description of the publisher
+     * @throws IllegalStateException Thrown when no track can be relayed
+     */
+    IngestSource(String path, String sessionDescription) throws IllegalStateException {
+        this(path);
+        try {
+            setSessionDescription(sessionDescription);
+        } catch (IllegalStateException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a source whose session description is given later with
+     * {@link #setSessionDescription(String)}.
+     */
+    IngestSource(String path) {
+        super(new Session(), new BaseVideoStream[0]);
+        mPath = path;
+    }
+
+    /** Returns the path the stream is published on. */
+    public String getPath() {
+        return mPath;
+    }
+
+    @Override
+    public boolean trackExists(int id) {
+        return mTracks[id] != null;
+    }
+
+    /** Indicates if the publisher has started sending packets. */
+    @Override
+    public boolean isStreaming() {
+        return mRecording;
+    }
+
+    /** Returns the bit rate received from the publisher in bit per second. */
+    @Override
+    public long getBitrate() {
+        long bitrate = 0;
+        for (Track track : mTracks) {
+            if (track != null) {
+                bitrate += track.socket.getBitrate();
+            }
+        }
+        return bitrate;
+    }
+
+    @Override
+    public synchronized String getSessionDescription(String origin, String destination,
+            int rendition) {
+        StringBuilder sessionDescription = new StringBuilder();
+        sessionDescription.append("v=0\r\n");
+        sessionDescription.append("o=- ").append(mTimestamp).append(' ').append(mTimestamp)
+                .append(" IN IP4 ").append(origin).append("\r\n");
+        sessionDescription.append("s=").append(mPath).append("\r\n");
+        sessionDescription.append("i=N/A\r\n");
+        sessionDescription.append("c=IN IP4 ").append(destination).append("\r\n");
+        sessionDescription.append("t=0 0\r\n");
+        sessionDescription.append("a=recvonly\r\n");
+        for (Track track : mTracks) {
+            if (track == null) {
+                continue;
+            }
+            sessionDescription.append("m=").append(track.media).append(" 0 RTP/AVP ")
+                    .append(track.payloadType).append("\r\n");
+            for (String line : track.lines) {
+                sessionDescription.append(line).append("\r\n");
+            }
+            sessionDescription.append("a=control:trackID=").append(track.id).append("\r\n");
+        }
+        return sessionDescription.toString();
+    }
+
+    /** Stops receiving packets and disconnects the viewers. */
+    @Override
+    public synchronized void release() {
+        stopRecording();
+        for (Track track : mTracks) {
+            if (track != null) {
+                track.socket.close();
+            }
+        }
+        super.release();
+    }
+
+    @Override
+    protected void startEncoders() throws IOException {
+        // The publisher decides when packets are sent
+    }
+
+    @Override
+    protected void stopEncoders() {
+    }
+
+    @Override
+    protected RtpSocket getRtpSocket(int trackId, int rendition) {
+        return mTracks[trackId].socket;
+    }
+
+    @Override
+    protected int getTrackBitrate(int trackId, int rendition) {
+        Track track = mTracks[trackId];
+        long measured = track.socket.getBitrate();
+        return measured > 0 ? (int) measured : track.bandwidth;
+    }
+
+    @Override
+    protected void requestSyncFrame(int rendition) {
+        // Key frames come at the pace of the publisher
+    }
+
+    /**
+     * Returns the track a SETUP request of the publisher is about, or -1.
+     *
+     * @param uri The URI of the request, it ends with the control attribute of the track
+     */
+    int findTrack(String uri) {
+        for (Track track : mTracks) {
+            if (track != null && track.control != null && (uri.equals(track.control)
+                    || uri.endsWith("/" + track.control))) {
+                return track.id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Opens the UDP sockets on which a track is received.
+     *
+     * @return The RTP and RTCP ports
+     */
+    int[] openUdpPorts(int trackId) throws IOException {
+        Track track = mTracks[trackId];
+        track.close();
+        track.rtpSocket = new DatagramSocket();
+        track.rtcpSocket = new DatagramSocket();
+        return new int[]{track.rtpSocket.getLocalPort(), track.rtcpSocket.getLocalPort()};
+    }
+
+    /** Receives a track interleaved in the RTSP connection, on a channel and the next one. */
+    void setInterleavedChannel(int trackId, int channel) {
+        mTracks[trackId].channel = channel;
+    }
+
+    /**
+     * Replaces the tracks with those of a session description. The viewers of a track that is
+     * still there keep receiving it.
+     *
+     * @throws IllegalStateException Thrown when no track can be relayed
+     */
+    synchronized void setSessionDescription(String sessionDescription)
+            throws IllegalStateException {
+        stopRecording();
+        Track[] previous = mTracks.clone();
+        mTracks[0] = mTracks[1] = null;
+        try {
+            parse(sessionDescription, previous);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Invalid session description", e);
+        } finally {
+            for (int id = 0; id < 2; id++) {
+                if (previous[id] != null
+                        && (mTracks[id] == null || mTracks[id].socket != previous[id].socket)) {
+                    previous[id].socket.close();
+                }
+            }
+        }
+        if (mTracks[0] == null && mTracks[1] == null) {
+            throw new IllegalStateException("No supported track in " + sessionDescription);
+        }
+    }
+
+    /** Returns the control attribute of a track, or null. */
+    String getTrackControl(int trackId) {
+        return mTracks[trackId] != null ? mTracks[trackId].control : null;
+    }
+
+    /** Starts receiving the tracks, called when the publisher sends RECORD. */
+    synchronized void record() {
+        if (mRecording) {
+            return;
+        }
+        mRecording = true;
+        for (Track track : mTracks) {
+            if (track != null && track.rtpSocket != null) {
+                track.thread = new Thread(track, "Ingest-" + mPath + "-" + track.id);
+                track.thread.start();
+            }
+        }
+        Log.i(TAG, "Receiving " + mPath);
+    }
+
+    /** Stops receiving the tracks and closes their UDP sockets. */
+    synchronized void stopRecording() {
+        mRecording = false;
+        for (Track track : mTracks) {
+            if (track != null) {
+                track.close();
+                track.channel = -1;
+            }
+        }
+    }
+
+    /** Called from the thread of the RTSP connection with the interleaved packets. */
+    void receiveInterleaved(int channel, byte[] data, int offset, int length) {
+        if (!mRecording) {
+            return;
+        }
+        for (Track track : mTracks) {
+            if (track != null && track.channel == channel) {
+                try {
+                    track.receive(data, offset, length);
+                } catch (IOException | InterruptedException e) {
+                    Log.e(TAG, "Could not relay packet", e);
+                }
+                return;
+            }
+        }
+        // RTCP packets of the publisher are ignored
+    }
+
+    private void parse(String sessionDescription, Track[] previous) {
+        Track track = null;
+        for (String line : sessionDescription.split("\r?\n")) {
+            line = line.trim();
+            if (line.startsWith("m=")) {
+                track = null;
+                // m=<media> <port> <proto> <fmt> ...
+                String[] fields = line.substring(2).split(" ");
+                int id = "audio".equals(fields[0]) ? 0 : "video".equals(fields[0]) ? 1 : -1;
+                if (id >= 0 && mTracks[id] == null && fields.length >= 4) {
+                    // The viewers are attached to the socket of the track
+                    RtpSocket socket = previous[id] != null
+                            ? previous[id].socket : new RtpSocket(RtpSocket.MAX_PACKET_SIZE);
+                    track = new Track(id, fields[0], Integer.parseInt(fields[3]), socket);
+                    mTracks[id] = track;
+                }
+            } else if (track != null) {
+                track.parse(line);
+            }
+        }
+        for (int id = 0; id < 2; id++) {
+            if (mTracks[id] != null && !mTracks[id].createDepacketizer()) {
+                Log.w(TAG, "Track not supported: " + mTracks[id].encoding);
+                if (previous[id] == null) {
+                    mTracks[id].socket.close();
+                }
+                mTracks[id] = null;
+            }
+        }
+    }
+
+    /** A track received from the publisher and relayed to the viewers. */
+    private static class Track implements Runnable, AbstractDepacketizer.Callback {
+        final int id;
+        final String media;
+        final int payloadType;
+        // Lines of the media description served to the viewers
+        final ArrayList<String> lines = new ArrayList<>();
+        final RtpSocket socket;
+        final JitterBuffer jitterBuffer = new JitterBuffer();
+        // Packets of the access unit being reassembled
+        final ArrayList<RtpPacket> group = new ArrayList<>();
+        String encoding = "";
+        String fmtp = "";
+        String control;
+        long clock = 90000;
+        int bandwidth = 0;
+        int channel = -1;
+        AbstractDepacketizer depacketizer;
+        DatagramSocket rtpSocket, rtcpSocket;
+        Thread thread;
+        long groupTimestamp;
+        boolean complete = false;
+        boolean keyFrame = false;
+        int layer = RtpSocket.LAYER_KEY;
+        // After a loss, the pictures that refer to the lost one are not relayed either
+        boolean waitingSyncPoint = false;
+
+        Track(int id, String media, int payloadType, RtpSocket socket) {
+            this.id = id;
+            this.media = media;
+            this.payloadType = payloadType;
+            this.socket = socket;
+            socket.setSSRC(new Random().nextInt());
+            socket.setPayloadType(payloadType);
+            // New viewers can't ask the publisher for a key frame
+            socket.setGopCacheSize(id == 1 ? GOP_CACHE_SIZE : 0);
+        }
+
+        void parse(String line) {
+            String prefix = "a=rtpmap:" + payloadType + " ";
+            if (line.startsWith(prefix)) {
+                // <encoding name>/<clock rate>[/<encoding parameters>]
+                String[] rtpmap = line.substring(prefix.length()).split("/");
+                encoding = rtpmap[0].toUpperCase(Locale.US);
+                if (rtpmap.length > 1) {
+                    clock = Long.parseLong(rtpmap[1].trim());
+                }
+            } else if (line.startsWith("a=fmtp:" + payloadType + " ")) {
+                fmtp = line.substring(line.indexOf(' ') + 1);
+            } else if (line.startsWith("a=control:")) {
+                control = line.substring(10);
+                return;
+            } else if (line.startsWith("b=AS:")) {
+                bandwidth = Integer.parseInt(line.substring(5).trim()) * 1000;
+            } else if (!line.startsWith("a=") || line.equals("a=sendonly")
+                    || line.equals("a=recvonly") || line.equals("a=sendrecv")) {
+                return;
+            }
+            lines.add(line);
+        }
+
+        boolean createDepacketizer() {
+            if ("H264".equals(encoding)) {
+                depacketizer = new H264Depacketizer();
+            } else if ("H263-1998".equals(encoding) || "H263-2000".equals(encoding)) {
+                depacketizer = new H263Depacketizer();
+            } else if ("MPEG4-GENERIC".equals(encoding)) {
+                AACDepacketizer aac = new AACDepacketizer();
+                aac.setAuHeaderFormat(getParameter("sizelength", 13),
+                        getParameter("indexlength", 3), getParameter("indexdeltalength", 3));
+                depacketizer = aac;
+            } else if ("AMR".equals(encoding)) {
+                AMRNBDepacketizer amr = new AMRNBDepacketizer();
+                amr.setOctetAligned(getParameter("octet-align", 0) == 1);
+                depacketizer = amr;
+            } else {
+                return false;
+            }
+            depacketizer.setClockFrequency(clock);
+            depacketizer.setCallback(this);
+            jitterBuffer.setClockFrequency(clock);
+            socket.setClockFrequency(clock);
+            return true;
+        }
+
+        /** Returns the value of a numeric parameter of the fmtp attribute. */
+        int getParameter(String name, int defaultValue) {
+            for (String param : fmtp.split(";")) {
+                String[] keyValue = param.trim().split("=");
+                if (keyValue.length == 2 && keyValue[0].trim().equalsIgnoreCase(name)) {
+                    try {
+                        return Integer.parseInt(keyValue[1].trim());
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+            return defaultValue;
+        }
+
+        /** Receives the packets sent on UDP. */
+        @Override
+        public void run() {
+            byte[] buffer = new byte[65536];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (!Thread.interrupted()) {
+                    packet.setLength(buffer.length);
+                    long wait = jitterBuffer.getWaitTime();
+                    rtpSocket.setSoTimeout((int) Math.max(1,
+                            wait < 0 ? jitterBuffer.getDelay() : wait));
+                    try {
+                        rtpSocket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        // The packets waiting for a lost one are released anyway
+                        drain();
+                        continue;
+                    }
+                    receive(buffer, 0, packet.getLength());
+                }
+            } catch (IOException | InterruptedException ignore) {
+                // The socket has been closed
+            }
+        }
+
+        void receive(byte[] data, int offset, int length)
+                throws IOException, InterruptedException {
+            RtpPacket packet = jitterBuffer.obtain();
+            if (!packet.set(data, offset, length) || packet.payloadType != payloadType) {
+                jitterBuffer.recycle(packet);
+                return;
+            }
+            jitterBuffer.put(packet);
+            drain();
+        }
+
+        void drain() throws IOException, InterruptedException {
+            RtpPacket packet;
+            while ((packet = jitterBuffer.poll()) != null) {
+                if (!group.isEmpty() && packet.timestamp != groupTimestamp) {
+                    // The previous access unit is over even if its last packet had no marker
+                    depacketizer.flush();
+                    relay();
+                }
+                if (packet.discontinuity && id == 1) {
+                    // A whole picture may have been lost
+                    waitingSyncPoint = true;
+                }
+                group.add(packet);
+                groupTimestamp = packet.timestamp;
+                depacketizer.depacketize(packet);
+                if (!depacketizer.hasPendingData()) {
+                    relay();
+                }
+            }
+        }
+
+        @Override
+        public void onAccessUnit(AccessUnit unit) {
+            complete = true;
+            keyFrame |= unit.keyFrame;
+            layer = Math.max(layer, unit.layer);
+        }
+
+        /**
+         * Sends the packets of the access units that have been reassembled to the viewers. After
+         * a damaged picture, nothing is sent until the next key frame.
+         */
+        private void relay() throws IOException, InterruptedException {
+            for (RtpPacket packet : group) {
+                int length = packet.getPayloadLength();
+                if (complete && RtpSocket.RTP_HEADER_LENGTH + length > RtpSocket.MAX_PACKET_SIZE) {
+                    Log.w(TAG, "Packet too big to be relayed: " + length);
+                    complete = false;
+                }
+            }
+            if (id == 1) {
+                if (!complete) {
+                    waitingSyncPoint = true;
+                } else if (waitingSyncPoint && keyFrame) {
+                    waitingSyncPoint = false;
+                }
+            }
+            if (complete && !waitingSyncPoint) {
+                long timestamp = depacketizer.getPresentationTimeUs(groupTimestamp) * 1000L;
+                for (int i = 0; i < group.size(); i++) {
+                    RtpPacket packet = group.get(i);
+                    int length = packet.getPayloadLength();
+                    byte[] buffer = socket.requestBuffer();
+                    System.arraycopy(packet.data, packet.payloadOffset, buffer,
+                            RtpSocket.RTP_HEADER_LENGTH, length);
+                    if (packet.marker) {
+                        socket.markNextPacket();
+                    }
+                    if (i == 0 && keyFrame) {
+                        socket.markSyncPoint();
+                    }
+                    socket.markLayer(layer);
+                    socket.updateTimestamp(timestamp);
+                    socket.commitBuffer(RtpSocket.RTP_HEADER_LENGTH + length);
+                }
+            }
+            for (RtpPacket packet : group) {
+                jitterBuffer.recycle(packet);
+            }
+            group.clear();
+            complete = keyFrame = false;
+            layer = RtpSocket.LAYER_KEY;
+        }
+
+        void close() {
+            if (rtpSocket != null) {
+                rtpSocket.close();
+                rtcpSocket.close();
+            }
+            if (thread != null) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException ignore) {
+                }
+                thread = null;
+            }
+            rtpSocket = rtcpSocket = null;
+        }
+    }
+}
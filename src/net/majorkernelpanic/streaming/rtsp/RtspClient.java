@@ -21,25 +21,37 @@ package net.majorkernelpanic.streaming.rtsp;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.Stream;
+import net.majorkernelpanic.streaming.rtcp.ReceiverReport;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
 import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtp.RtpTarget;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,6 +60,23 @@ import java.util.regex.Pattern;
  * A basic and asynchronous RTSP client.
  * The original purpose of this class was to implement a small RTSP client compatible with Wowza.
  * It implements Digest Access Authentication according to RFC 2069.
+ *
+ * The TCP connection is opened while the session is being configured. Once the server has given
+ * a session ID, the remaining requests of the handshake are pipelined (RFC 2326, section 12.18)
+ * and their responses read afterwards, the credentials are also reused when reconnecting. See
+ * {@link #getStartupTime()}.
+ *
+ * A lost connection is detected by the Receiver Reports the server stops sending, or by the
+ * writes on the TCP connection that stall, see {@link #setLivenessTimeout(int)}. The streams are
+ * then paused, the encoders keep running, and the client reconnects to the same server or to the
+ * next one of {@link #addFallbackServer(String, int)} with an exponential backoff. The streams
+ * are resumed on a key frame once connected.
+ *
+ * Several clients can publish the same {@link Session} to different servers, for instance to a
+ * primary and a backup ingest, if its tracks are shared, see
+ * {@link MediaStream#setShared(boolean)}. Each client then sends the packets of the encoders
+ * through {@link RtpTarget}s of its own, and the session is started by the first client and
+ * stopped by the last one.
  */
 public class RtspClient {
     public static final String TAG = RtspClient.class.getSimpleName();
@@ -79,6 +108,19 @@ public class RtspClient {
      */
     public static final int MESSAGE_CONNECTION_RECOVERED = 0x05;
 
+    /** Default time without news from the server after which the connection is lost, in ms. */
+    public static final int DEFAULT_LIVENESS_TIMEOUT = 1000;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int RESPONSE_TIMEOUT = 5000;
+    private static final int KEEPALIVE_INTERVAL = 6000;
+    private static final int LIVENESS_CHECK_INTERVAL = 100;
+    private static final int REPORT_POLL_TIMEOUT = 50;
+    // The connection is lost when that many Receiver Reports are missing
+    private static final int MISSING_REPORTS = 3;
+    private static final int MIN_RETRY_DELAY = 250;
+    private static final int MAX_RETRY_DELAY = 8000;
+
     private static final int STATE_STARTED = 0x00;
     private static final int STATE_STARTING = 0x01;
     private static final int STATE_STOPPING = 0x02;
@@ -94,6 +136,7 @@ public class RtspClient {
         public Session session;
         public int port;
         public int transport;
+        public final ArrayList<InetSocketAddress> fallbacks = new ArrayList<>();
 
         public Parameters clone() {
             Parameters params = new Parameters();
@@ -104,6 +147,7 @@ public class RtspClient {
             params.session = session;
             params.port = port;
             params.transport = transport;
+            params.fallbacks.addAll(fallbacks);
             return params;
         }
     }
@@ -115,9 +159,30 @@ public class RtspClient {
     private Socket mSocket;
     private String mSessionID;
     private String mAuthorization;
-    private BufferedReader mBufferedReader;
+    private InputStream mInputStream;
     private OutputStream mOutputStream;
     private Callback mCallback;
+    // Time at which the connection started, and time it took to send the first packet
+    private long mStartTime;
+    private volatile long mStartupTime = -1;
+
+    // The server and the fallback servers, mServer is the one in use
+    private final ArrayList<InetSocketAddress> mServers = new ArrayList<>();
+    private int mServer;
+    private int mRetries;
+    private final Random mRandom = new Random();
+    private int mLivenessTimeout = DEFAULT_LIVENESS_TIMEOUT;
+    private long mLastKeepAlive;
+    // Reception time of the last Receiver Report and average interval between them
+    private volatile long mLastReport;
+    private volatile long mReportInterval;
+    private volatile Thread mReportThread;
+
+    // Clients publishing each shared session
+    private static final HashMap<Session, Integer> sPublishers = new HashMap<>();
+    private final RtpTarget[] mTargets = new RtpTarget[2];
+    private boolean mShared;
+    private boolean mPublishing;
 
     private final Handler mMainHandler;
     private final HandlerThread mHandlerThread = new HandlerThread("RtspClient");
@@ -200,6 +265,29 @@ public class RtspClient {
         mTmpParameters.path = path;
     }
 
+    /**
+     * Adds a server to connect to when the server set with {@link #setServerAddress(String, int)}
+     * can't be reached, the fallback servers are tried in the order they have been added.
+     */
+    public void addFallbackServer(String host, int port) {
+        mTmpParameters.fallbacks.add(InetSocketAddress.createUnresolved(host, port));
+    }
+
+    public void clearFallbackServers() {
+        mTmpParameters.fallbacks.clear();
+    }
+
+    /**
+     * Sets the time after which the connection is considered lost when the server stops sending
+     * Receiver Reports (three of them are missing at least), or when a write on the TCP connection
+     * stalls.
+     *
+     * @param timeout The timeout in ms, {@link #DEFAULT_LIVENESS_TIMEOUT} by default
+     */
+    public void setLivenessTimeout(int timeout) {
+        mLivenessTimeout = timeout;
+    }
+
     /**
      * Call this with {@link #TRANSPORT_TCP} or {@value #TRANSPORT_UDP} to choose the
      * transport protocol that will be used to send RTP/RTCP packets.
@@ -213,6 +301,36 @@ public class RtspClient {
         return mState == STATE_STARTED || mState == STATE_STARTING;
     }
 
+    /** Returns the bit rate sent to the server in bit per seconds. */
+    public long getBitrate() {
+        long bitrate = 0;
+        for (RtpTarget target : mTargets) {
+            bitrate += target != null ? target.getBitrate() : 0;
+        }
+        Parameters parameters = mParameters;
+        return mShared || parameters == null ? bitrate : parameters.session.getBitrate();
+    }
+
+    /**
+     * Returns the number of packets that could not be sent to the server because it could not keep
+     * up, when the session is shared.
+     */
+    public int getDroppedPackets() {
+        int dropped = 0;
+        for (RtpTarget target : mTargets) {
+            dropped += target != null ? target.getDroppedPackets() : 0;
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the time in ms between {@link #startStream()} (or the last reconnection) and the
+     * first RTP packet sent to the server, or -1 if no packet has been sent yet.
+     */
+    public long getStartupTime() {
+        return mStartupTime;
+    }
+
     /**
      * Connects to the RTSP server to publish the stream, and the effectively starts streaming.
      * You need to call {@link #setServerAddress(String, int)} and optionally
@@ -233,34 +351,56 @@ public class RtspClient {
             mState = STATE_STARTING;
 
             Log.d(TAG, "Connecting to RTSP server...");
+            mStartTime = SystemClock.elapsedRealtime();
+            mStartupTime = -1;
 
             // If the user calls some methods to configure the client, it won't modify its
             // behavior until the stream is restarted
             mParameters = mTmpParameters.clone();
             mParameters.session.setDestination(mTmpParameters.host);
-
+            mAuthorization = null;
+            mServers.clear();
+            mServers.add(InetSocketAddress.createUnresolved(mParameters.host, mParameters.port));
+            mServers.addAll(mParameters.fallbacks);
+            mServer = 0;
+            mRetries = 0;
+            mShared = isShared(mParameters.session);
+
+            // Configuring the encoders can take as long as connecting, both are done at once
+            FutureTask<Socket> connection = connect(mParameters.host, mParameters.port);
             try {
-                mParameters.session.syncConfigure();
+                // A shared session may already be streaming to another server
+                if (!mShared || !mParameters.session.isStreaming()) {
+                    mParameters.session.syncConfigure();
+                }
             } catch (Exception e) {
                 mParameters.session = null;
                 mState = STATE_STOPPED;
+                try {
+                    await(connection).close();
+                } catch (IOException ignore) {
+                }
                 return;
             }
+            Log.d(TAG, "Session configured in " + (SystemClock.elapsedRealtime() - mStartTime)
+                    + " ms");
 
             try {
-                tryConnection();
+                tryConnection(await(connection));
             } catch (Exception e) {
-                postError(ERROR_CONNECTION_FAILED, e);
-                abort();
-                return;
+                Log.e(TAG, "Could not connect to " + mParameters.host, e);
+                closeSocket();
+                if (!tryFallbackServers()) {
+                    postError(ERROR_CONNECTION_FAILED, e);
+                    abort();
+                    return;
+                }
             }
 
             try {
-                mParameters.session.syncStart();
+                startSession();
                 mState = STATE_STARTED;
-                if (mParameters.transport == TRANSPORT_UDP) {
-                    mHandler.post(mConnectionMonitor);
-                }
+                startMonitoring();
             } catch (Exception e) {
                 abort();
             }
@@ -273,7 +413,7 @@ public class RtspClient {
     public void stopStream() {
         mHandler.post(() -> {
             if (mParameters != null && mParameters.session != null) {
-                mParameters.session.stop();
+                stopSession();
             }
             if (mState != STATE_STOPPED) {
                 mState = STATE_STOPPING;
@@ -292,42 +432,273 @@ public class RtspClient {
             sendRequestTeardown();
         } catch (Exception ignore) {
         }
-        try {
-            mSocket.close();
-        } catch (Exception ignore) {
+        closeSocket();
+        mReportThread = null;
+        for (int i = 0; i < 2; i++) {
+            if (mTargets[i] != null) {
+                mTargets[i].close();
+                mTargets[i] = null;
+            }
         }
         mHandler.removeCallbacks(mConnectionMonitor);
         mHandler.removeCallbacks(mRetryConnection);
         mState = STATE_STOPPED;
     }
 
-    private void tryConnection() throws IOException {
+    private static boolean isShared(Session session) {
+        for (int i = 0; i < 2; i++) {
+            Stream stream = session.getTrack(i);
+            if (stream instanceof MediaStream && ((MediaStream) stream).isShared()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Starts the session, or only the targets of the client if the session is shared. */
+    private void startSession() throws IOException {
+        Session session = mParameters.session;
+        if (!mShared) {
+            session.syncStart();
+            return;
+        }
+        synchronized (sPublishers) {
+            if (!session.isStreaming()) {
+                session.syncStart();
+            }
+            Integer count = sPublishers.get(session);
+            sPublishers.put(session, count == null ? 1 : count + 1);
+        }
+        mPublishing = true;
+        for (RtpTarget target : mTargets) {
+            if (target != null) {
+                target.start();
+            }
+        }
+        requestSyncFrame();
+    }
+
+    /** Stops the session, unless other clients still publish it. */
+    private void stopSession() {
+        Session session = mParameters.session;
+        if (!mShared) {
+            session.stop();
+            return;
+        }
+        if (!mPublishing) {
+            return;
+        }
+        mPublishing = false;
+        synchronized (sPublishers) {
+            int count = sPublishers.get(session) - 1;
+            if (count == 0) {
+                sPublishers.remove(session);
+                session.stop();
+            } else {
+                sPublishers.put(session, count);
+            }
+        }
+    }
+
+    /** Stops sending packets, the encoders keep running. */
+    private void pauseStreams() {
+        if (!mShared) {
+            mParameters.session.syncPauseTracks(false, 0, 1);
+            return;
+        }
+        for (RtpTarget target : mTargets) {
+            if (target != null) {
+                target.pause();
+            }
+        }
+    }
+
+    /** Sends packets again from a key frame, the streams don't need to be configured. */
+    private void resumeStreams() throws IOException {
+        if (!mShared) {
+            mParameters.session.syncStartTracks(1, 0);
+            return;
+        }
+        for (RtpTarget target : mTargets) {
+            if (target != null) {
+                target.resume();
+            }
+        }
+        requestSyncFrame();
+    }
+
+    private void requestSyncFrame() {
+        Stream stream = mParameters.session.getTrack(1);
+        if (stream instanceof MediaStream) {
+            ((MediaStream) stream).requestSyncFrame();
+        }
+    }
+
+    /** Returns the target of a track of a shared session, which is created if needed. */
+    private RtpTarget getTarget(int trackId) throws IOException {
+        if (mTargets[trackId] == null) {
+            RtpSocket socket = getRtpSockets()[trackId];
+            mTargets[trackId] = new RtpTarget(socket);
+        }
+        return mTargets[trackId];
+    }
+
+    private void closeSocket() {
+        try {
+            mSocket.close();
+        } catch (Exception ignore) {
+        }
+    }
+
+    /** Makes the client use a server of {@link #mServers}. */
+    private void useServer(int index) {
+        InetSocketAddress server = mServers.get(index);
+        mServer = index;
+        mParameters.host = server.getHostString();
+        mParameters.port = server.getPort();
+        mParameters.session.setDestination(mParameters.host);
+    }
+
+    /** Connects to the fallback servers in order, returns false if none of them answered. */
+    private boolean tryFallbackServers() {
+        for (int i = 1; i < mServers.size(); i++) {
+            useServer(i);
+            try {
+                tryConnection(open(mParameters.host, mParameters.port));
+                return true;
+            } catch (Exception e) {
+                Log.e(TAG, "Could not connect to " + mParameters.host, e);
+                closeSocket();
+            }
+        }
+        return false;
+    }
+
+    /** Opens the TCP connection in another thread. */
+    private static FutureTask<Socket> connect(String host, int port) {
+        FutureTask<Socket> connection = new FutureTask<>(() -> open(host, port));
+        new Thread(connection, "RtspClient-connect").start();
+        return connection;
+    }
+
+    private static Socket open(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /** Waits for the connection opened with {@link #connect(String, int)}. */
+    private static Socket await(FutureTask<Socket> connection) throws IOException {
+        try {
+            return connection.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while connecting");
+        }
+    }
+
+    private void tryConnection(Socket socket) throws IOException {
+        long start = SystemClock.elapsedRealtime();
         mCSeq = 0;
-        mSocket = new Socket(mParameters.host, mParameters.port);
-        mBufferedReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream()));
+        mSessionID = null;
+        mSocket = socket;
+        mSocket.setSoTimeout(RESPONSE_TIMEOUT);
+        mInputStream = new BufferedInputStream(mSocket.getInputStream());
         mOutputStream = new BufferedOutputStream(mSocket.getOutputStream());
         sendRequestAnnounce();
-        sendRequestSetup();
+
+        // Without a session ID, the next SETUP would create another session on the server, so
+        // the requests are only pipelined once the server has given one
+        int[] pending = new int[2];
+        int count = 0;
+        for (int i = 0; i < 2; i++) {
+            if (mParameters.session.getTrack(i) == null) {
+                continue;
+            }
+            boolean pipelined = mSessionID != null;
+            sendRequestSetup(i);
+            if (pipelined) {
+                pending[count++] = i;
+            } else {
+                readResponseSetup(i);
+            }
+        }
         sendRequestRecord();
+        for (int i = 0; i < count; i++) {
+            readResponseSetup(pending[i]);
+        }
+        readResponse();
+        Log.d(TAG, "Handshake done in " + (SystemClock.elapsedRealtime() - start) + " ms, "
+                + count + " request(s) pipelined");
+        measureStartup();
+    }
+
+    /** Flushes the requests written so far and reads the response to the oldest one. */
+    private Response readResponse() throws IOException {
+        mOutputStream.flush();
+        return Response.parseResponse(mInputStream);
+    }
+
+    /** Returns the RTP sockets of the tracks of the session, or null for missing tracks. */
+    private RtpSocket[] getRtpSockets() {
+        RtpSocket[] sockets = new RtpSocket[2];
+        for (int i = 0; i < 2; i++) {
+            Stream stream = mParameters.session.getTrack(i);
+            if (stream instanceof MediaStream) {
+                sockets[i] = ((MediaStream) stream).getPacketizer().getRtpSocket();
+            }
+        }
+        return sockets;
+    }
+
+    /** Measures the time until the first packet of the session is sent. */
+    private void measureStartup() {
+        for (RtpSocket socket : getRtpSockets()) {
+            if (socket != null) {
+                socket.addPacketListener(mFirstPacketListener);
+            }
+        }
     }
 
+    private final RtpSocket.PacketListener mFirstPacketListener =
+            new RtpSocket.PacketListener() {
+                @Override
+                public void onPacket(RtpSocket source, byte[] packet, int length, long timestamp,
+                        boolean syncPoint, int layer) {
+                    source.removePacketListener(this);
+                    if (mStartupTime < 0) {
+                        mStartupTime = SystemClock.elapsedRealtime() - mStartTime;
+                        Log.i(TAG, "First packet sent " + mStartupTime + " ms after connecting");
+                    }
+                }
+            };
+
     /**
      * Forges and sends the ANNOUNCE request
      */
     private void sendRequestAnnounce() throws IllegalStateException, SocketException, IOException {
         String body = mParameters.session.getSessionDescription();
+        // When reconnecting, the credentials of the last connection save a round trip
         String request =
                 "ANNOUNCE rtsp://" + mParameters.host + ":" + mParameters.port + mParameters.path
                         + " RTSP/1.0\r\n"
                         + "CSeq: " + (++mCSeq) + "\r\n"
                         + "Content-Length: " + body.length() + "\r\n"
+                        + (mAuthorization != null
+                                ? "Authorization: " + mAuthorization + "\r\n" : "")
                         + "Content-Type: application/sdp\r\n\r\n"
                         + body;
         Log.i(TAG, request.substring(0, request.indexOf("\r\n")));
 
         mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
-        mOutputStream.flush();
-        Response response = Response.parseResponse(mBufferedReader);
+        Response response = readResponse();
 
         if (response.headers.containsKey("server")) {
             Log.v(TAG, "RTSP server name:" + response.headers.get("server"));
@@ -384,8 +755,7 @@ public class RtspClient {
             Log.i(TAG, request.substring(0, request.indexOf("\r\n")));
 
             mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
-            mOutputStream.flush();
-            response = Response.parseResponse(mBufferedReader);
+            response = readResponse();
 
             if (response.status == 401) {
                 throw new RuntimeException("Bad credentials !");
@@ -396,62 +766,86 @@ public class RtspClient {
     }
 
     /**
-     * Forges and sends the SETUP request
+     * Forges and sends the SETUP request of a track, its response is read by
+     * {@link #readResponseSetup(int)}.
      */
-    private void sendRequestSetup() throws IllegalStateException, SocketException, IOException {
-        for (int i = 0; i < 2; i++) {
-            Stream stream = mParameters.session.getTrack(i);
-            if (stream != null) {
-                String params = mParameters.transport == TRANSPORT_TCP
-                        ? ("TCP;interleaved=" + 2 * i + "-" + (2 * i + 1))
-                        : ("UDP;unicast;client_port=" + (5000 + 2 * i) + "-" + (5000 + 2 * i + 1)
-                                + ";mode=receive");
-                String request = "SETUP rtsp://" + mParameters.host + ":" + mParameters.port
-                        + mParameters.path + "/trackID=" + i + " RTSP/1.0\r\n"
-                        + "Transport: RTP/AVP/" + params + "\r\n"
-                        + addHeaders();
+    private void sendRequestSetup(int trackId) throws IOException {
+        // The Receiver Reports of the server must reach the RTCP socket of the stream
+        int[] ports = mShared ? getTarget(trackId).getLocalPorts()
+                : mParameters.session.getTrack(trackId).getLocalPorts();
+        String params = mParameters.transport == TRANSPORT_TCP
+                ? ("TCP;interleaved=" + 2 * trackId + "-" + (2 * trackId + 1))
+                : ("UDP;unicast;client_port=" + ports[0] + "-" + ports[1] + ";mode=receive");
+        String request = "SETUP rtsp://" + mParameters.host + ":" + mParameters.port
+                + mParameters.path + "/trackID=" + trackId + " RTSP/1.0\r\n"
+                + "Transport: RTP/AVP/" + params + "\r\n"
+                + addHeaders();
 
-                Log.i(TAG, request.substring(0, request.indexOf("\r\n")));
+        Log.i(TAG, request.substring(0, request.indexOf("\r\n")));
+        mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
+    }
 
-                mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
-                mOutputStream.flush();
-                Response response = Response.parseResponse(mBufferedReader);
-                Matcher m;
+    /** Reads the response to the SETUP request of a track and configures its stream. */
+    private void readResponseSetup(int trackId) throws IOException {
+        Stream stream = mParameters.session.getTrack(trackId);
+        Response response = readResponse();
+        Matcher m;
 
-                if (response.headers.containsKey("session")) {
-                    try {
-                        m = Response.REGEX_SESSION.matcher(response.headers.get("session"));
-                        m.find();
-                        mSessionID = m.group(1);
-                    } catch (Exception e) {
-                        throw new IOException(
-                                "Invalid response from server. Session id: " + mSessionID);
-                    }
-                }
+        if (response.headers.containsKey("session")) {
+            try {
+                m = Response.REGEX_SESSION.matcher(response.headers.get("session"));
+                m.find();
+                mSessionID = m.group(1);
+            } catch (Exception e) {
+                throw new IOException("Invalid response from server. Session id: " + mSessionID);
+            }
+        }
 
-                if (mParameters.transport == TRANSPORT_UDP) {
-                    try {
-                        m = Response.REGEX_TRANSPORT.matcher(response.headers.get("transport"));
-                        m.find();
-                        stream.setDestinationPorts(Integer.parseInt(m.group(3)),
-                                Integer.parseInt(m.group(4)));
-                        Log.d(TAG, "Setting destination ports: " + Integer.parseInt(m.group(3))
-                                + ", " + Integer.parseInt(m.group(4)));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        int[] ports = stream.getDestinationPorts();
-                        Log.d(TAG, "Server did not specify ports, using default ports: "
-                                + ports[0] + "-" + ports[1]);
-                    }
-                } else {
-                    stream.setOutputStream(mOutputStream, (byte) (2 * i));
-                }
+        int[] ports = stream.getDestinationPorts();
+        if (mParameters.transport == TRANSPORT_UDP) {
+            try {
+                m = Response.REGEX_TRANSPORT.matcher(response.headers.get("transport"));
+                m.find();
+                ports = new int[]{Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4))};
+                Log.d(TAG, "Setting destination ports: " + ports[0] + ", " + ports[1]);
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.d(TAG, "Server did not specify ports, using default ports: " + ports[0] + "-"
+                        + ports[1]);
+            }
+        }
+
+        if (mShared) {
+            // Other clients may publish the stream, only the target of this one is configured
+            RtpTarget target = getTarget(trackId);
+            if (mParameters.transport == TRANSPORT_UDP) {
+                target.setDestination(mSocket.getInetAddress(), ports[0], ports[1]);
+            } else {
+                target.setOutputStream(mOutputStream, (byte) (2 * trackId));
+            }
+            return;
+        }
+
+        if (mParameters.transport == TRANSPORT_UDP) {
+            stream.setDestinationPorts(ports[0], ports[1]);
+        } else {
+            stream.setOutputStream(mOutputStream, (byte) (2 * trackId));
+        }
+
+        if (stream.isStreaming() && stream instanceof MediaStream) {
+            // After a reconnection, the packetizer of the paused stream is already configured
+            RtpSocket socket = ((MediaStream) stream).getPacketizer().getRtpSocket();
+            stream.setDestinationAddress(mSocket.getInetAddress());
+            if (mParameters.transport == TRANSPORT_UDP) {
+                socket.setDestination(mSocket.getInetAddress(), ports[0], ports[1]);
+            } else {
+                socket.setOutputStream(mOutputStream, (byte) (2 * trackId));
             }
         }
     }
 
     /**
-     * Forges and sends the RECORD request
+     * Forges and sends the RECORD request, its response is read by the caller
      */
     private void sendRequestRecord() throws IllegalStateException, SocketException, IOException {
         String request =
@@ -461,8 +855,6 @@ public class RtspClient {
                         + addHeaders();
         Log.i(TAG, request.substring(0, request.indexOf("\r\n")));
         mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
-        mOutputStream.flush();
-        Response.parseResponse(mBufferedReader);
     }
 
     /**
@@ -488,8 +880,7 @@ public class RtspClient {
                         + addHeaders();
         Log.i(TAG, request.substring(0, request.indexOf("\r\n")));
         mOutputStream.write(request.getBytes(StandardCharsets.UTF_8));
-        mOutputStream.flush();
-        Response.parseResponse(mBufferedReader);
+        readResponse();
     }
 
     private String addHeaders() {
@@ -502,6 +893,93 @@ public class RtspClient {
                 + "\r\n";
     }
 
+    /** Starts watching the connection once the streams have been started. */
+    private void startMonitoring() {
+        mLastKeepAlive = SystemClock.elapsedRealtime();
+        mLastReport = 0;
+        mReportInterval = 0;
+        if (mParameters.transport == TRANSPORT_UDP) {
+            // Over TCP, the Receiver Reports are interleaved with the responses
+            RtpSocket[] sockets = getRtpSockets();
+            RtpTarget[] targets = mTargets.clone();
+            Thread thread = new Thread(() -> readReports(sockets, targets), "RtspClient-rtcp");
+            mReportThread = thread;
+            thread.start();
+        }
+        mHandler.post(mConnectionMonitor);
+    }
+
+    /** Reads the Receiver Reports sent by the server, until another thread replaces this one. */
+    private void readReports(RtpSocket[] sockets, RtpTarget[] targets) {
+        byte[] buffer = new byte[SenderReport.MTU];
+        ReceiverReport report = new ReceiverReport();
+        while (mReportThread == Thread.currentThread()) {
+            for (int i = 0; i < 2; i++) {
+                if (sockets[i] == null) {
+                    continue;
+                }
+                try {
+                    int length = targets[i] != null
+                            ? targets[i].receiveReport(buffer, REPORT_POLL_TIMEOUT)
+                            : sockets[i].receiveReport(buffer, REPORT_POLL_TIMEOUT);
+                    int ssrc = targets[i] != null ? targets[i].getSSRC() : sockets[i].getSSRC();
+                    if (length > 0 && report.parse(buffer, length, ssrc)) {
+                        long now = SystemClock.elapsedRealtime();
+                        long last = mLastReport;
+                        if (last > 0) {
+                            long interval = mReportInterval;
+                            mReportInterval = interval == 0 ? now - last
+                                    : (7 * interval + now - last) / 8;
+                        }
+                        mLastReport = now;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not read Receiver Reports", e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Returns false if the server stopped sending Receiver Reports or if a write stalled. */
+    private boolean isAlive() {
+        RtpSocket[] sockets = getRtpSockets();
+        for (int i = 0; i < 2; i++) {
+            long stall = mTargets[i] != null ? mTargets[i].getWriteStall()
+                    : sockets[i] != null ? sockets[i].getWriteStall() : 0;
+            if (stall < 0 || stall > mLivenessTimeout) {
+                return false;
+            }
+        }
+        // Servers that don't send Receiver Reports are only checked by the keep alive
+        long interval = mReportInterval;
+        return interval == 0 || SystemClock.elapsedRealtime() - mLastReport
+                <= Math.max(mLivenessTimeout, MISSING_REPORTS * interval);
+    }
+
+    /** Returns the delay before the next reconnection, every server is tried once right away. */
+    private int getRetryDelay() {
+        int round = mRetries / mServers.size();
+        if (round == 0) {
+            return 0;
+        }
+        int delay = MIN_RETRY_DELAY << Math.min(round - 1, 16);
+        delay = Math.min(delay, MAX_RETRY_DELAY);
+        // Jitter, so that all the publishers cut by the same failure don't reconnect together
+        return delay / 2 + mRandom.nextInt(delay / 2 + 1);
+    }
+
+    private void onConnectionLost() {
+        postMessage(ERROR_CONNECTION_LOST);
+        Log.e(TAG, "Connection lost with the server...");
+        mReportThread = null;
+        closeSocket();
+        // The encoders keep running so that the streams resume quickly
+        pauseStreams();
+        mRetries = 0;
+        mHandler.post(mRetryConnection);
+    }
+
     /**
      * If the connection with the RTSP server is lost, we try to reconnect to it as
      * long as {@link #stopStream()} is not called.
@@ -511,37 +989,48 @@ public class RtspClient {
         public void run() {
             if (mState == STATE_STARTED) {
                 try {
-                    // We poll the RTSP server with OPTION requests
-                    sendRequestOption();
-                    mHandler.postDelayed(mConnectionMonitor, 6000);
+                    if (!isAlive()) {
+                        throw new IOException("No news from the server");
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    if (mParameters.transport == TRANSPORT_UDP
+                            && now - mLastKeepAlive >= KEEPALIVE_INTERVAL) {
+                        // We poll the RTSP server with OPTION requests
+                        mLastKeepAlive = now;
+                        sendRequestOption();
+                    }
+                    mHandler.postDelayed(mConnectionMonitor, LIVENESS_CHECK_INTERVAL);
                 } catch (IOException e) {
-                    // Happens if the OPTION request fails
-                    postMessage(ERROR_CONNECTION_LOST);
-                    Log.e(TAG, "Connection lost with the server...");
-                    mParameters.session.stop();
-                    mHandler.post(mRetryConnection);
+                    onConnectionLost();
                 }
             }
         }
     };
 
-    /** Here, we try to reconnect to the RTSP. */
+    /** Here, we try to reconnect to the server in use, then to the next ones. */
     private final Runnable mRetryConnection = new Runnable() {
         @Override
         public void run() {
             if (mState == STATE_STARTED) {
+                useServer(mServer);
                 try {
-                    Log.e(TAG, "Trying to reconnect...");
-                    tryConnection();
+                    Log.e(TAG, "Trying to reconnect to " + mParameters.host + "...");
+                    mStartTime = SystemClock.elapsedRealtime();
+                    mStartupTime = -1;
+                    tryConnection(open(mParameters.host, mParameters.port));
                     try {
-                        mParameters.session.start();
-                        mHandler.post(mConnectionMonitor);
+                        // Resumes the streams on a key frame, they don't need to be configured
+                        resumeStreams();
+                        startMonitoring();
                         postMessage(MESSAGE_CONNECTION_RECOVERED);
                     } catch (Exception e) {
                         abort();
                     }
                 } catch (IOException e) {
-                    mHandler.postDelayed(mRetryConnection, 1000);
+                    closeSocket();
+                    mRetries++;
+                    mServer = (mServer + 1) % mServers.size();
+                    mHandler.postDelayed(mRetryConnection, getRetryDelay());
                 }
             }
         }
@@ -562,7 +1051,7 @@ public class RtspClient {
     }
 
     /** Needed for the Digest Access Authentication. */
-    private String computeMd5Hash(String buffer) {
+    static String computeMd5Hash(String buffer) {
         MessageDigest md;
         try {
             md = MessageDigest.getInstance("MD5");
@@ -609,6 +1098,58 @@ public class RtspClient {
 
         public int status;
 
+        /** The body of the response, only read by {@link #parseResponse(InputStream)}. */
+        public String content;
+
+        /**
+         * Parses a response and its body. The stream is read byte by byte, so that it can carry
+         * interleaved RTP packets afterwards, it should be buffered.
+         */
+        public static Response parseResponse(InputStream input)
+                throws IOException, IllegalStateException, SocketException {
+            Response response = new Response();
+            Matcher matcher = REGEX_STATUS.matcher(readLine(input));
+            if (!matcher.find()) {
+                throw new IOException("Invalid response from server");
+            }
+            response.status = Integer.parseInt(matcher.group(1));
+            String line;
+            while ((line = readLine(input)).length() > 3) {
+                matcher = REGEX_HEADER.matcher(line);
+                if (matcher.find()) {
+                    response.headers.put(matcher.group(1).toLowerCase(Locale.US),
+                            matcher.group(2));
+                }
+            }
+            String length = response.headers.get("content-length");
+            if (length != null && Integer.parseInt(length.trim()) > 0) {
+                byte[] content = new byte[Integer.parseInt(length.trim())];
+                for (int n = 0, read; n < content.length; n += read) {
+                    if ((read = input.read(content, n, content.length - n)) < 0) {
+                        throw new SocketException("Connection lost");
+                    }
+                }
+                response.content = new String(content, StandardCharsets.UTF_8);
+            }
+            Log.d(TAG, "Response from server: " + response.status);
+            return response;
+        }
+
+        /** Reads a line ending with CRLF or LF, without it. */
+        static String readLine(InputStream input) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c < 0) {
+                    throw new SocketException("Connection lost");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
         /** Parse the method, URI & headers of a RTSP request */
         public static Response parseResponse(BufferedReader input)
                 throws IOException, IllegalStateException, SocketException {
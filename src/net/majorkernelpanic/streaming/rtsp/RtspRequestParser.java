@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+
+/**
+ * Incremental parser of RTSP requests working directly on the bytes received from a client.
+ *
+ * Data is read from the socket in large chunks into a single buffer and requests are parsed
+ * in place, so several pipelined requests received in one read are handled without going
+ * back to the socket. Header names and values are not decoded: the {@link Request} only keeps
+ * offsets in its own copy of the bytes and a value is turned into a String when it is asked for.
+ *
+ * Interleaved binary data ("$" framed RTP/RTCP, RFC 2326 section 10.12) sent on the same
+ * connection is handed to the {@link InterleavedListener}, or skipped if there is none, so that
+ * it can't desynchronize the parser.
+ */
+class RtspRequestParser {
+    public static final String TAG = RtspRequestParser.class.getSimpleName();
+
+    /** Maximum size of the header section of a request. */
+    public static final int MAX_HEADER_LENGTH = 8192;
+
+    /** Maximum size of the body of a request. */
+    public static final int MAX_CONTENT_LENGTH = 65536;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte INTERLEAVED_MAGIC = '$';
+
+    private final InputStream mInput;
+    private InterleavedListener mInterleavedListener;
+
+    private byte[] mBuffer = new byte[4096];
+    private int mStart = 0;
+    private int mEnd = 0;
+
+    /** Receives the interleaved binary data, for instance the RTP packets of a publisher. */
+    interface InterleavedListener {
+        /** Called from the thread calling {@link #parse(Request)}, the data is not retained. */
+        void onInterleavedData(int channel, byte[] data, int offset, int length);
+    }
+
+    public RtspRequestParser(InputStream input) {
+        mInput = input;
+    }
+
+    /** Sets the listener of the interleaved data, or null to skip it. */
+    public void setInterleavedListener(InterleavedListener listener) {
+        mInterleavedListener = listener;
+    }
+
+    /**
+     * Blocks until a complete request has been received and fills the supplied {@link Request}
+     * with it. Bytes received after the end of the request are kept for the next call.
+     *
+     * @param request The request that will be overwritten
+     * @return The request passed as a parameter
+     * @throws SocketException       Thrown when the client has disconnected
+     * @throws IllegalStateException Thrown when the request is malformed, the faulty request has
+     *                               then been discarded and the parser can be used again
+     */
+    public Request parse(Request request) throws IOException, IllegalStateException {
+        request.reset();
+
+        int headerEnd;
+        while (true) {
+            skipInterleavedData();
+            headerEnd = findHeaderEnd(mStart);
+            if (headerEnd >= 0) {
+                break;
+            }
+            if (mEnd - mStart > MAX_HEADER_LENGTH) {
+                // Nothing sensible can be done with the connection
+                mStart = mEnd = 0;
+                throw new SocketException("Request too long");
+            }
+            fill();
+        }
+
+        int headerStart = mStart;
+        mStart = headerEnd;
+        request.setData(mBuffer, headerStart, headerEnd - headerStart);
+
+        // The request line and the headers are parsed from the copy owned by the request
+        try {
+            parseHead(request);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Malformed request", e);
+        }
+
+        int contentLength = request.getContentLength();
+        if (contentLength > MAX_CONTENT_LENGTH) {
+            mStart = mEnd = 0;
+            throw new SocketException("Request body too long");
+        }
+        if (contentLength > 0) {
+            while (mEnd - mStart < contentLength) {
+                fill();
+            }
+            request.setContent(mBuffer, mStart, contentLength);
+            mStart += contentLength;
+        }
+
+        return request;
+    }
+
+    /**
+     * Indicates whether the header section of another request has already been received, in
+     * which case the response to the current request does not need to be flushed right away.
+     */
+    public boolean hasPendingRequest() {
+        // Interleaved data is not consumed here, an RTP payload may well contain an empty line
+        int p = mStart;
+        while (p < mEnd) {
+            if (mBuffer[p] == CR || mBuffer[p] == LF) {
+                p++;
+            } else if (mBuffer[p] != INTERLEAVED_MAGIC) {
+                return findHeaderEnd(p) >= 0;
+            } else if (mEnd - p < 4) {
+                return false;
+            } else {
+                p += 4 + ((mBuffer[p + 2] & 0xFF) << 8 | mBuffer[p + 3] & 0xFF);
+            }
+        }
+        return false;
+    }
+
+    /** Reads more data from the socket, compacting or growing the buffer if needed. */
+    private void fill() throws IOException {
+        if (mStart > 0 && mStart == mEnd) {
+            mStart = mEnd = 0;
+        } else if (mEnd == mBuffer.length) {
+            if (mStart > 0) {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+                mEnd -= mStart;
+                mStart = 0;
+            } else {
+                byte[] buffer = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, buffer, 0, mEnd);
+                mBuffer = buffer;
+            }
+        }
+        int len = mInput.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (len < 0) {
+            throw new SocketException("Client disconnected");
+        }
+        mEnd += len;
+    }
+
+    /** Discards "$" framed binary data and empty lines preceding a request. */
+    private void skipInterleavedData() throws IOException {
+        while (true) {
+            while (mStart < mEnd && (mBuffer[mStart] == CR || mBuffer[mStart] == LF)) {
+                mStart++;
+            }
+            if (mStart == mEnd) {
+                fill();
+                continue;
+            }
+            if (mBuffer[mStart] != INTERLEAVED_MAGIC) {
+                return;
+            }
+            // "$" + channel identifier + 16 bits length
+            while (mEnd - mStart < 4) {
+                fill();
+            }
+            int length = (mBuffer[mStart + 2] & 0xFF) << 8 | mBuffer[mStart + 3] & 0xFF;
+            InterleavedListener listener = mInterleavedListener;
+            if (listener != null) {
+                // The whole packet is needed, the buffer grows if needed
+                while (mEnd - mStart < 4 + length) {
+                    fill();
+                }
+                listener.onInterleavedData(mBuffer[mStart + 1] & 0xFF, mBuffer, mStart + 4,
+                        length);
+                mStart += 4 + length;
+                continue;
+            }
+            int skip = 4 + length;
+            while (skip > 0) {
+                if (mStart == mEnd) {
+                    fill();
+                }
+                int n = Math.min(skip, mEnd - mStart);
+                mStart += n;
+                skip -= n;
+            }
+        }
+    }
+
+    /**
+     * Returns the offset of the first byte following the empty line that ends the header
+     * section, or -1 if that line has not been received yet.
+     *
+     * @param start The offset of the request line
+     */
+    private int findHeaderEnd(int start) {
+        byte[] b = mBuffer;
+        for (int i = start; i < mEnd; i++) {
+            if (b[i] != LF) {
+                continue;
+            }
+            // "\n\n" or "\n\r\n"
+            if (i + 1 < mEnd && b[i + 1] == LF) {
+                return i + 2;
+            }
+            if (i + 2 < mEnd && b[i + 1] == CR && b[i + 2] == LF) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    /** Parses the request line and the headers of a request. */
+    private static void parseHead(Request request) {
+        byte[] b = request.data;
+        int end = request.length;
+        int p = 0;
+
+        // Request line: METHOD SP URI SP RTSP/1.0
+        int methodEnd = indexOf(b, p, end, (byte) ' ');
+        request.method = Request.methodName(b, p, methodEnd - p);
+        p = skipSpaces(b, methodEnd, end);
+        int uriEnd = indexOf(b, p, end, (byte) ' ');
+        request.uri = new String(b, p, uriEnd - p, Request.CHARSET);
+        int lineEnd = indexOf(b, uriEnd, end, LF);
+        if (!startsWithIgnoreCase(b, skipSpaces(b, uriEnd, lineEnd), lineEnd, "RTSP")) {
+            throw new IllegalStateException("Not an RTSP request");
+        }
+        p = lineEnd + 1;
+
+        // Headers: NAME ":" VALUE
+        while (p < end) {
+            lineEnd = indexOf(b, p, end, LF);
+            int valueEnd = lineEnd;
+            while (valueEnd > p && (b[valueEnd - 1] == CR || b[valueEnd - 1] == ' ')) {
+                valueEnd--;
+            }
+            if (valueEnd > p) {
+                int colon = indexOf(b, p, valueEnd, (byte) ':');
+                int nameEnd = colon;
+                while (nameEnd > p && b[nameEnd - 1] == ' ') {
+                    nameEnd--;
+                }
+                request.addHeader(p, nameEnd, skipSpaces(b, colon + 1, valueEnd), valueEnd);
+            }
+            p = lineEnd + 1;
+        }
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte c) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("'" + (char) c + "' expected");
+    }
+
+    private static int skipSpaces(byte[] b, int from, int to) {
+        while (from < to && (b[from] == ' ' || b[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    static boolean startsWithIgnoreCase(byte[] b, int from, int to, String s) {
+        int length = s.length();
+        if (to - from < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase((char) b[from + i]) != Character.toLowerCase(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -29,22 +29,30 @@ import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
 
+import net.majorkernelpanic.streaming.LiveSource;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtp.RtpInfo;
+import net.majorkernelpanic.streaming.rtp.RtpSubscriber;
+import net.majorkernelpanic.streaming.rtp.TimeShiftBuffer;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Locale;
-import java.util.Map;
+import java.util.TimeZone;
 import java.util.WeakHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -55,6 +63,11 @@ import java.util.regex.Pattern;
  * It allows remote control of an android device cameras & microphone.
  * For each connected client, a Session is instantiated.
  * The Session will start or stop streams according to what the client wants.
+ *
+ * Clients can also publish a stream with ANNOUNCE and RECORD (for instance with
+ * {@link net.majorkernelpanic.streaming.rtsp.RtspClient}), the other clients then receive it when
+ * they request the same URI, see {@link IngestSource}. Streams of other RTSP servers can be served
+ * the same way, see {@link #addRelay(String, String)}.
  */
 public class RtspServer extends Service {
     public static final String TAG = RtspServer.class.getSimpleName();
@@ -83,13 +96,27 @@ public class RtspServer extends Service {
     /** Key used in the SharedPreferences for the port used by the RTSP server. */
     public static final String KEY_PORT = "rtsp_port";
 
+    // Parses the track requested in a SETUP
+    private static final Pattern REGEX_TRACK_ID = Pattern.compile("trackID=(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+    // Parses the client ports of a Transport header
+    private static final Pattern REGEX_CLIENT_PORT = Pattern.compile(
+            "client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
+    // Parses the channels of a Transport header for interleaved RTP
+    private static final Pattern REGEX_INTERLEAVED = Pattern.compile(
+            "interleaved=(\\d+)", Pattern.CASE_INSENSITIVE);
+
     protected SessionBuilder mSessionBuilder;
     protected SharedPreferences mSharedPreferences;
     protected boolean mEnabled = true;
     protected int mPort = DEFAULT_RTSP_PORT;
+    protected boolean mStopEncodersOnPause = false;
+    protected LiveSource mLiveSource = null;
 
     protected final WeakHashMap<Session, Object> mSessions = new WeakHashMap<>(2);
 
+    private final HashMap<String, IngestSource> mIngestSources = new HashMap<>();
+    private final BandwidthManager mBandwidthManager = new BandwidthManager();
     private final IBinder mBinder = new LocalBinder();
     private final LinkedList<CallbackListener> mListeners = new LinkedList<>();
 
@@ -158,6 +185,95 @@ public class RtspServer extends Service {
         editor.commit();
     }
 
+    /**
+     * Sets the upload bandwidth that the server may use for all its clients.
+     * Video bit rates are lowered to share it and new clients are rejected with
+     * "453 Not Enough Bandwidth" when it is exhausted.
+     *
+     * @param bitrate The capacity in bit per seconds, 0 (the default) means no limit
+     */
+    public void setBandwidthCapacity(long bitrate) {
+        mBandwidthManager.setCapacity(bitrate);
+    }
+
+    /** Returns the capacity set with {@link #setBandwidthCapacity(long)}. */
+    public long getBandwidthCapacity() {
+        return mBandwidthManager.getCapacity();
+    }
+
+    /**
+     * Sets what happens to the encoders of a client that sends a PAUSE request.
+     * By default, they keep running so that PLAY resumes quickly, only the packets are not sent.
+     *
+     * @param stopEncoders If true, the encoders are stopped and restarted by the next PLAY
+     */
+    public void setStopEncodersOnPause(boolean stopEncoders) {
+        mStopEncodersOnPause = stopEncoders;
+    }
+
+    /**
+     * Makes all clients share the encoders of a live source instead of getting a session of
+     * their own, the URI they request is then only used to pick a rendition of the video.
+     * Must be called before the clients connect.
+     *
+     * @param source The source built with {@link SessionBuilder#buildLiveSource}, or null to
+     *               get back to one session per client
+     */
+    public void setLiveSource(LiveSource source) {
+        mLiveSource = source;
+    }
+
+    /** Returns the source set with {@link #setLiveSource(LiveSource)}, or null. */
+    public LiveSource getLiveSource() {
+        return mLiveSource;
+    }
+
+    /**
+     * Returns the stream published by a client on a path, or null.
+     *
+     * @param path The path of the URI of the ANNOUNCE request, see {@link UriParser#parsePath}
+     */
+    public IngestSource getIngestSource(String path) {
+        synchronized (mIngestSources) {
+            return mIngestSources.get(path);
+        }
+    }
+
+    /**
+     * Serves a stream of another RTSP server, for instance an IP camera, to the clients asking for
+     * a path. The server is only contacted while there are clients, with a single connection
+     * whatever their number, see {@link RelaySource}.
+     *
+     * @param path The path on which the stream is served, for instance "/cam1"
+     * @param url  The URL of the stream, credentials included if needed
+     * @return The relay, or null if the path is already in use
+     * @throws IllegalArgumentException Thrown if the URL is not an RTSP URL
+     */
+    public RelaySource addRelay(String path, String url) throws IllegalArgumentException {
+        path = UriParser.parsePath(path);
+        synchronized (mIngestSources) {
+            if (mIngestSources.containsKey(path)) {
+                return null;
+            }
+            RelaySource relay = new RelaySource(path, url);
+            mIngestSources.put(path, relay);
+            return relay;
+        }
+    }
+
+    /** Stops serving a stream added with {@link #addRelay(String, String)}. */
+    public void removeRelay(String path) {
+        IngestSource source;
+        synchronized (mIngestSources) {
+            source = mIngestSources.get(UriParser.parsePath(path));
+            if (!(source instanceof RelaySource)) {
+                return;
+            }
+            mIngestSources.remove(source.getPath());
+        }
+        source.release();
+    }
+
     /**
      * Set Basic authorization to access RTSP Stream
      *
@@ -201,6 +317,14 @@ public class RtspServer extends Service {
                         session.stop();
                     }
                 }
+                if (mLiveSource != null) {
+                    mLiveSource.stop();
+                }
+                synchronized (mIngestSources) {
+                    for (IngestSource source : mIngestSources.values()) {
+                        source.stop();
+                    }
+                }
             } catch (Exception ignored) {
             } finally {
                 mListenerThread = null;
@@ -210,6 +334,9 @@ public class RtspServer extends Service {
 
     /** Returns whether or not the RTSP server is streaming to some client(s). */
     public boolean isStreaming() {
+        if (mLiveSource != null && mLiveSource.isStreaming()) {
+            return true;
+        }
         for (Session session : mSessions.keySet()) {
             if (session != null && session.isStreaming()) {
                 return true;
@@ -224,7 +351,7 @@ public class RtspServer extends Service {
 
     /** Returns the bandwidth consumed by the RTSP server in bits per second. */
     public long getBitrate() {
-        long bitrate = 0;
+        long bitrate = mLiveSource != null ? mLiveSource.getBitrate() : 0;
         for (Session session : mSessions.keySet()) {
             if (session != null && session.isStreaming()) {
                 bitrate += session.getBitrate();
@@ -370,14 +497,27 @@ public class RtspServer extends Service {
     class WorkerThread extends Thread implements Runnable {
         private final Socket mClient;
         private final OutputStream mOutput;
-        private final BufferedReader mInput;
+        private final RtspRequestParser mParser;
+        private final Request mRequest = new Request();
+        // Reused from one request to the next, like the request
+        private final Response mResponse = new Response();
 
         // Each client has an associated session
         private Session mSession;
 
+        // Or shares the encoders of the live source, or a stream published by another client
+        private LiveSource mSource;
+        private LiveSource.Viewer mViewer;
+
+        // The stream published by the client
+        private IngestSource mIngest;
+
+        // Tracks for which a transport has been negotiated, they are started by PLAY
+        private final boolean[] mTrackSetup = new boolean[2];
+
         public WorkerThread(final Socket client) throws IOException {
-            mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            mOutput = client.getOutputStream();
+            mParser = new RtspRequestParser(client.getInputStream());
+            mOutput = new BufferedOutputStream(client.getOutputStream(), 1024);
             mClient = client;
             mSession = new Session();
         }
@@ -394,13 +534,16 @@ public class RtspServer extends Service {
 
                 // Parse the request
                 try {
-                    request = Request.parseRequest(mInput);
+                    request = mParser.parse(mRequest);
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, request.toString());
+                    }
                 } catch (SocketException e) {
                     // Client has left
                     break;
                 } catch (Exception e) {
                     // We don't understand the request :/
-                    response = new Response();
+                    response = mResponse.reset(null);
                     response.status = Response.STATUS_BAD_REQUEST;
                 }
 
@@ -413,7 +556,7 @@ public class RtspServer extends Service {
                         postError(e, ERROR_START_FAILED);
                         Log.e(TAG, "An error occurred", e);
                         e.printStackTrace();
-                        response = new Response(request);
+                        response = mResponse.reset(request);
                     }
                 }
 
@@ -422,6 +565,10 @@ public class RtspServer extends Service {
                 // thrown at some point
                 try {
                     response.send(mOutput);
+                    // Responses to pipelined requests are sent together
+                    if (!mParser.hasPendingRequest()) {
+                        mOutput.flush();
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "Response was not sent properly");
                     break;
@@ -429,12 +576,9 @@ public class RtspServer extends Service {
             }
 
             // Streaming stops when client disconnects
-            boolean streaming = isStreaming();
-            mSession.syncStop();
-            if (streaming && !isStreaming()) {
-                postMessage(MESSAGE_STREAMING_STOPPED);
-            }
-            mSession.release();
+            releaseSession();
+            releaseViewer();
+            releaseIngest();
 
             try {
                 mClient.close();
@@ -445,23 +589,41 @@ public class RtspServer extends Service {
         }
 
         public Response processRequest(Request request) throws IllegalStateException, IOException {
-            Response response = new Response(request);
+            Response response = mResponse.reset(request);
 
             //Ask for authorization unless this is an OPTIONS request
-            if (!isAuthorized(request) && !request.method.equalsIgnoreCase("OPTIONS")) {
+            if (!isAuthorized(request) && request.method != Request.METHOD_OPTIONS) {
                 response.attributes = "WWW-Authenticate: Basic realm=\"" + SERVER_NAME + "\"\r\n";
                 response.status = Response.STATUS_UNAUTHORIZED;
             } else {
                 /* ********************************************************************************** */
                 /* ********************************* Method DESCRIBE ******************************** */
                 /* ********************************************************************************** */
-                if (request.method.equalsIgnoreCase("DESCRIBE")) {
+                if (request.method == Request.METHOD_DESCRIBE) {
                     // Parse the requested URI and configure the session
-                    mSession = handleRequest(request.uri, mClient);
-                    mSessions.put(mSession, null);
-                    mSession.syncConfigure();
+                    mBandwidthManager.release(mSession);
+                    releaseViewer();
+                    mTrackSetup[0] = mTrackSetup[1] = false;
+                    String requestContent;
+                    IngestSource ingest = getIngestSource(UriParser.parsePath(request.uri));
+                    mSource = ingest != null ? ingest : mLiveSource;
+                    if (mSource != null) {
+                        // The URI only gives the highest rendition the client wants
+                        mSource.configure();
+                        int rendition = mSource.selectRendition(
+                                UriParser.parseVideoQuality(request.uri));
+                        mViewer = mSource.createViewer(mClient.getInetAddress(), rendition);
+                        mViewer.setMaxLayer(UriParser.parseMaxLayer(request.uri));
+                        requestContent = mSource.getSessionDescription(
+                                mClient.getLocalAddress().getHostAddress(),
+                                mClient.getInetAddress().getHostAddress(), rendition);
+                    } else {
+                        mSession = handleRequest(request.uri, mClient);
+                        mSessions.put(mSession, null);
+                        mSession.syncConfigure();
+                        requestContent = mSession.getSessionDescription();
+                    }
 
-                    String requestContent = mSession.getSessionDescription();
                     String requestAttributes =
                             "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":"
                                     + mClient.getLocalPort() + "/\r\n"
@@ -477,16 +639,53 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 /* ********************************* Method OPTIONS ********************************* */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("OPTIONS")) {
-                    response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+                else if (request.method == Request.METHOD_OPTIONS) {
+                    response.attributes =
+                            "Public: DESCRIBE,ANNOUNCE,SETUP,TEARDOWN,PLAY,PAUSE,RECORD\r\n";
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ********************************* Method ANNOUNCE ******************************** */
+                /* ********************************************************************************** */
+                else if (request.method == Request.METHOD_ANNOUNCE) {
+                    if (request.content == null) {
+                        response.status = Response.STATUS_BAD_REQUEST;
+                        return response;
+                    }
+                    releaseIngest();
+                    String path = UriParser.parsePath(request.uri);
+                    IngestSource ingest;
+                    try {
+                        ingest = new IngestSource(path, request.content);
+                    } catch (IllegalStateException e) {
+                        Log.e(TAG, "Stream can't be published", e);
+                        response.status = Response.STATUS_UNSUPPORTED_MEDIA_TYPE;
+                        return response;
+                    }
+                    synchronized (mIngestSources) {
+                        if (mIngestSources.containsKey(path)) {
+                            // Another client is publishing on that path
+                            ingest.release();
+                            response.status = Response.STATUS_METHOD_NOT_VALID;
+                            return response;
+                        }
+                        mIngestSources.put(path, ingest);
+                    }
+                    mIngest = ingest;
+                    Log.i(TAG, "Stream published on " + path);
+                    response.attributes = "Session: 1185d20035702ca\r\n";
                     response.status = Response.STATUS_OK;
                 }
 
                 /* ********************************************************************************** */
                 /* ********************************** Method SETUP ********************************** */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("SETUP")) {
-                    Pattern p;
+                else if (request.method == Request.METHOD_SETUP && mIngest != null) {
+                    return setupIngest(request, response);
+                }
+
+                else if (request.method == Request.METHOD_SETUP) {
                     Matcher m;
                     int p2;
                     int p1;
@@ -495,8 +694,7 @@ public class RtspServer extends Service {
                     int[] src;
                     String destination;
 
-                    p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.uri);
+                    m = REGEX_TRACK_ID.matcher(request.uri);
 
                     if (!m.find()) {
                         response.status = Response.STATUS_BAD_REQUEST;
@@ -505,15 +703,25 @@ public class RtspServer extends Service {
 
                     trackId = Integer.parseInt(m.group(1));
 
+                    if (mViewer != null) {
+                        return setupViewer(request, response, trackId);
+                    }
+
                     if (!mSession.trackExists(trackId)) {
                         response.status = Response.STATUS_NOT_FOUND;
                         return response;
                     }
 
-                    p = Pattern.compile("client_port=(\\d+)(?:-(\\d+))?", Pattern.CASE_INSENSITIVE);
-                    m = p.matcher(request.headers.get("transport"));
+                    // Other clients may be downgraded to make room for this one
+                    if (!mBandwidthManager.admit(mSession, trackId)) {
+                        response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+                        return response;
+                    }
 
-                    if (!m.find()) {
+                    String transport = request.getHeader("Transport");
+                    m = transport != null ? REGEX_CLIENT_PORT.matcher(transport) : null;
+
+                    if (m == null || !m.find()) {
                         int[] ports = mSession.getTrack(trackId).getDestinationPorts();
                         p1 = ports[0];
                         p2 = ports[1];
@@ -530,13 +738,9 @@ public class RtspServer extends Service {
                     src = mSession.getTrack(trackId).getLocalPorts();
                     destination = mSession.getDestination();
 
+                    // The transport is only reserved here, the stream is started by PLAY
                     mSession.getTrack(trackId).setDestinationPorts(p1, p2);
-
-                    boolean streaming = isStreaming();
-                    mSession.syncStart(trackId);
-                    if (!streaming && isStreaming()) {
-                        postMessage(MESSAGE_STREAMING_STARTED);
-                    }
+                    mTrackSetup[trackId] = true;
 
                     response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(
                             destination).isMulticastAddress() ? "multicast" : "unicast")
@@ -555,22 +759,94 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 /* ********************************** Method PLAY *********************************** */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("PLAY")) {
-                    String requestAttributes = "RTP-Info: ";
-                    if (mSession.trackExists(0)) {
-                        requestAttributes +=
-                                "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":"
-                                        + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
+                else if (request.method == Request.METHOD_PLAY && mViewer != null) {
+                    // Seeking changes the timestamps, RTP-Info is built afterwards
+                    String range;
+                    try {
+                        range = seek(request.getHeader("Range"), request.getHeader("Scale"));
+                    } catch (IllegalArgumentException e) {
+                        response.status = Response.STATUS_INVALID_RANGE;
+                        return response;
                     }
-                    if (mSession.trackExists(1)) {
-                        requestAttributes +=
-                                "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":"
-                                        + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
+                    StringBuilder rtpInfo = new StringBuilder("RTP-Info: ");
+                    int count = 0;
+                    for (int id = 0; id < 2; id++) {
+                        RtpSubscriber subscriber = mViewer.getSubscriber(id);
+                        if (subscriber == null) {
+                            continue;
+                        }
+                        if (count++ > 0) {
+                            rtpInfo.append(',');
+                        }
+                        RtpInfo info = subscriber.announceStart();
+                        rtpInfo.append("url=rtsp://")
+                                .append(mClient.getLocalAddress().getHostAddress()).append(':')
+                                .append(mClient.getLocalPort()).append("/trackID=").append(id)
+                                .append(";seq=").append(info.sequenceNumber)
+                                .append(";rtptime=").append(info.timestamp);
                     }
-                    requestAttributes = requestAttributes.substring(0,
-                            requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
 
-                    response.attributes = requestAttributes;
+                    if (count == 0) {
+                        response.status = Response.STATUS_METHOD_NOT_VALID;
+                        return response;
+                    }
+
+                    // The reservation was given back by PAUSE
+                    if (!reserveViewer(-1, mViewer.getSubscriber(1) != null)) {
+                        response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+                        return response;
+                    }
+                    boolean streaming = isStreaming();
+                    mViewer.play();
+                    if (!streaming && isStreaming()) {
+                        postMessage(MESSAGE_STREAMING_STARTED);
+                    }
+
+                    if (range != null) {
+                        rtpInfo.append(range);
+                    }
+                    response.attributes = rtpInfo.append("\r\nSession: 1185d20035702ca\r\n")
+                            .toString();
+                    response.status = Response.STATUS_OK;
+                }
+
+                else if (request.method == Request.METHOD_PLAY) {
+                    int count = 0;
+                    int[] ids = new int[2];
+                    StringBuilder rtpInfo = new StringBuilder("RTP-Info: ");
+                    for (int id = 0; id < 2; id++) {
+                        if (!mTrackSetup[id] || !mSession.trackExists(id)) {
+                            continue;
+                        }
+                        // Nothing is sent before PLAY or during a pause, so the sequence number
+                        // is exactly the one of the next packet
+                        RtpInfo info = mSession.getTrack(id).announceStart();
+                        if (count > 0) {
+                            rtpInfo.append(',');
+                        }
+                        rtpInfo.append("url=rtsp://")
+                                .append(mClient.getLocalAddress().getHostAddress()).append(':')
+                                .append(mClient.getLocalPort()).append("/trackID=").append(id)
+                                .append(";seq=").append(info.sequenceNumber)
+                                .append(";rtptime=").append(info.timestamp);
+                        ids[count++] = id;
+                    }
+
+                    if (count == 0) {
+                        response.status = Response.STATUS_METHOD_NOT_VALID;
+                        return response;
+                    }
+
+                    // All tracks are started at once
+                    mBandwidthManager.setActive(mSession, true);
+                    boolean streaming = isStreaming();
+                    mSession.syncStartTracks(Arrays.copyOf(ids, count));
+                    if (!streaming && isStreaming()) {
+                        postMessage(MESSAGE_STREAMING_STARTED);
+                    }
+
+                    response.attributes = rtpInfo.append("\r\nSession: 1185d20035702ca\r\n")
+                            .toString();
 
                     // If no exception has been thrown, we reply with OK
                     response.status = Response.STATUS_OK;
@@ -579,14 +855,63 @@ public class RtspServer extends Service {
                 /* ********************************************************************************** */
                 /* ********************************** Method PAUSE ********************************** */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("PAUSE")) {
+                else if (request.method == Request.METHOD_PAUSE && mViewer != null) {
+                    // The shared encoders keep running for the other clients, but a paused
+                    // client uses no bandwidth
+                    mViewer.pause();
+                    mBandwidthManager.cancel(mViewer);
+                    response.attributes = "Session: 1185d20035702ca\r\n";
+                    response.status = Response.STATUS_OK;
+                }
+
+                else if (request.method == Request.METHOD_PAUSE) {
+                    int count = 0;
+                    int[] ids = new int[2];
+                    for (int id = 0; id < 2; id++) {
+                        if (mTrackSetup[id] && mSession.trackExists(id)) {
+                            ids[count++] = id;
+                        }
+                    }
+
+                    if (count == 0) {
+                        response.status = Response.STATUS_METHOD_NOT_VALID;
+                        return response;
+                    }
+
+                    // Packets are not sent until the next PLAY, which resumes on a key frame
+                    boolean streaming = isStreaming();
+                    mSession.syncPauseTracks(mStopEncodersOnPause, Arrays.copyOf(ids, count));
+                    mBandwidthManager.setActive(mSession, false);
+                    if (streaming && !isStreaming()) {
+                        postMessage(MESSAGE_STREAMING_STOPPED);
+                    }
+
+                    response.attributes = "Session: 1185d20035702ca\r\n";
+                    response.status = Response.STATUS_OK;
+                }
+
+                /* ********************************************************************************** */
+                /* ********************************** Method RECORD ********************************* */
+                /* ********************************************************************************** */
+                else if (request.method == Request.METHOD_RECORD) {
+                    if (mIngest == null) {
+                        response.status = Response.STATUS_METHOD_NOT_VALID;
+                        return response;
+                    }
+                    mIngest.record();
+                    response.attributes = "Session: 1185d20035702ca\r\n";
                     response.status = Response.STATUS_OK;
                 }
 
                 /* ********************************************************************************** */
                 /* ********************************* Method TEARDOWN ******************************** */
                 /* ********************************************************************************** */
-                else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+                else if (request.method == Request.METHOD_TEARDOWN) {
+                    releaseSession();
+                    mSession = new Session();
+                    mTrackSetup[0] = mTrackSetup[1] = false;
+                    releaseViewer();
+                    releaseIngest();
                     response.status = Response.STATUS_OK;
                 }
 
@@ -601,13 +926,206 @@ public class RtspServer extends Service {
             return response;
         }
 
+        /**
+         * Reserves the bandwidth of the client of the live source. The shared encoders can't be
+         * slowed down, a lower rendition is picked instead when allowed.
+         *
+         * @param trackId      The track about to be set up, or -1
+         * @param mayDowngrade Whether the client can be moved to a lower rendition
+         * @return false if there is not enough bandwidth left
+         */
+        private boolean reserveViewer(int trackId, boolean mayDowngrade) {
+            while (!mBandwidthManager.reserve(mViewer, mViewer.getBitrate(trackId))) {
+                if (!mayDowngrade || !mViewer.downgrade()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Sets up a track of a client of the live source. */
+        private Response setupViewer(Request request, Response response, int trackId)
+                throws IOException {
+            if (!mSource.trackExists(trackId)) {
+                response.status = Response.STATUS_NOT_FOUND;
+                return response;
+            }
+
+            if (!reserveViewer(trackId, trackId == 1 && mViewer.getSubscriber(1) == null)) {
+                response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+                return response;
+            }
+
+            String transport = request.getHeader("Transport");
+            Matcher m = transport != null ? REGEX_CLIENT_PORT.matcher(transport) : null;
+            int p1 = trackId == 0 ? 5004 : 5006;
+            int p2 = p1 + 1;
+            if (m != null && m.find()) {
+                p1 = Integer.parseInt(m.group(1));
+                p2 = m.group(2) == null ? p1 + 1 : Integer.parseInt(m.group(2));
+            }
+
+            RtpSubscriber subscriber = mViewer.setup(trackId, p1, p2);
+            int[] src = subscriber.getLocalPorts();
+            response.attributes = "Transport: RTP/AVP/UDP;unicast"
+                    + ";destination=" + mClient.getInetAddress().getHostAddress()
+                    + ";client_port=" + p1 + "-" + p2
+                    + ";server_port=" + src[0] + "-" + src[1]
+                    + ";ssrc=" + Integer.toHexString(subscriber.getSSRC())
+                    + ";mode=play\r\n"
+                    + "Session: " + "1185d20035702ca" + "\r\n"
+                    + "Cache-Control: no-cache\r\n";
+            response.status = Response.STATUS_OK;
+            return response;
+        }
+
+        /** Sets up a track published by the client. */
+        private Response setupIngest(Request request, Response response) throws IOException {
+            int trackId = mIngest.findTrack(request.uri);
+            String transport = request.getHeader("Transport");
+            if (trackId < 0 || transport == null) {
+                response.status = trackId < 0 ? Response.STATUS_NOT_FOUND
+                        : Response.STATUS_BAD_REQUEST;
+                return response;
+            }
+
+            Matcher m = REGEX_INTERLEAVED.matcher(transport);
+            if (m.find()) {
+                // The packets are sent on the RTSP connection
+                int channel = Integer.parseInt(m.group(1));
+                mIngest.setInterleavedChannel(trackId, channel);
+                mParser.setInterleavedListener(mIngest::receiveInterleaved);
+                response.attributes = "Transport: RTP/AVP/TCP;unicast;interleaved=" + channel
+                        + "-" + (channel + 1) + ";mode=record\r\n";
+            } else {
+                int[] ports = mIngest.openUdpPorts(trackId);
+                m = REGEX_CLIENT_PORT.matcher(transport);
+                String clientPorts = m.find() ? ";client_port=" + m.group(1) + "-"
+                        + (m.group(2) != null ? m.group(2) : Integer.parseInt(m.group(1)) + 1)
+                        : "";
+                response.attributes = "Transport: RTP/AVP/UDP;unicast" + clientPorts
+                        + ";server_port=" + ports[0] + "-" + ports[1] + ";mode=record\r\n";
+            }
+            response.attributes += "Session: 1185d20035702ca\r\n";
+            response.status = Response.STATUS_OK;
+            return response;
+        }
+
+        private void releaseIngest() {
+            if (mIngest != null) {
+                synchronized (mIngestSources) {
+                    if (mIngestSources.get(mIngest.getPath()) == mIngest) {
+                        mIngestSources.remove(mIngest.getPath());
+                    }
+                }
+                mParser.setInterleavedListener(null);
+                mIngest.release();
+                Log.i(TAG, "Stream unpublished from " + mIngest.getPath());
+                mIngest = null;
+            }
+        }
+
+        private void releaseSession() {
+            boolean streaming = isStreaming();
+            mSession.syncStop();
+            if (streaming && !isStreaming()) {
+                postMessage(MESSAGE_STREAMING_STOPPED);
+            }
+            mBandwidthManager.release(mSession);
+            mSession.release();
+        }
+
+        private void releaseViewer() {
+            if (mViewer != null) {
+                boolean streaming = isStreaming();
+                mBandwidthManager.cancel(mViewer);
+                mViewer.release();
+                mViewer = null;
+                mSource = null;
+                if (streaming && !isStreaming()) {
+                    postMessage(MESSAGE_STREAMING_STOPPED);
+                }
+            }
+        }
+
+        /**
+         * Moves the viewer in the time-shift buffer of its source, if any, according to the Range
+         * and Scale headers of a PLAY request. "npt=now-" goes back to the live stream.
+         *
+         * @return The Range and Scale headers of the response, or null if the viewer is live
+         * @throws IllegalArgumentException Thrown if the start of the range is malformed
+         */
+        private String seek(String range, String scale) throws IllegalArgumentException {
+            boolean live = false;
+            boolean clock = false;
+            double npt = -1;
+            long time = -1;
+            if (range != null) {
+                range = range.trim();
+                String start = range.substring(range.indexOf('=') + 1);
+                int dash = start.indexOf('-');
+                start = (dash >= 0 ? start.substring(0, dash) : start).trim();
+                if (range.startsWith("npt") && start.equals("now")) {
+                    live = true;
+                } else if (range.startsWith("npt") && !start.isEmpty()) {
+                    npt = parseNpt(start);
+                    if (npt < 0) {
+                        throw new IllegalArgumentException("Invalid range: " + range);
+                    }
+                } else if (range.startsWith("clock")) {
+                    clock = true;
+                    time = parseClock(start);
+                    if (time < 0) {
+                        throw new IllegalArgumentException("Invalid range: " + range);
+                    }
+                }
+            }
+
+            TimeShiftBuffer buffer = mSource.getTimeShiftBuffer();
+            if (buffer == null) {
+                return null;
+            }
+            if (live) {
+                mViewer.seekLive();
+                return null;
+            }
+            float speed = scale != null ? parseScale(scale) : mViewer.getScale();
+            long timestamp = TimeShiftBuffer.NO_TIMESTAMP;
+            if (npt >= 0) {
+                timestamp = buffer.getTimestampFromNpt(npt);
+            } else if (time >= 0) {
+                timestamp = buffer.getTimestampFromWallClock(time);
+            } else if (range == null && scale != null) {
+                // Only the speed changes
+                timestamp = mViewer.getPosition();
+            }
+            if (timestamp != TimeShiftBuffer.NO_TIMESTAMP) {
+                mViewer.seek(timestamp, speed);
+            }
+
+            long position = mViewer.getPosition();
+            if (position == TimeShiftBuffer.NO_TIMESTAMP) {
+                return null;
+            }
+            String header;
+            if (clock) {
+                SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'",
+                        Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                header = "clock=" + format.format(buffer.getWallClock(position)) + "-";
+            } else {
+                header = String.format(Locale.US, "npt=%.3f-", buffer.getNpt(position));
+            }
+            return "\r\nRange: " + header + "\r\nScale: " + mViewer.getScale();
+        }
+
         /**
          * Check if the request is authorized
          *
          * @return true or false
          */
         private boolean isAuthorized(Request request) {
-            String auth = request.headers.get("authorization");
+            String auth = request.getHeader("Authorization");
             if (mUsername == null || mPassword == null || mUsername.isEmpty()) {
                 return true;
             }
@@ -625,57 +1143,178 @@ public class RtspServer extends Service {
         }
     }
 
+    /**
+     * Parses a time in seconds or in hours, minutes and seconds, returns -1 if malformed or
+     * negative.
+     */
+    private static double parseNpt(String npt) {
+        try {
+            double seconds = 0;
+            for (String part : npt.split(":")) {
+                seconds = seconds * 60 + Double.parseDouble(part);
+            }
+            return seconds >= 0 && !Double.isInfinite(seconds) ? seconds : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Parses an absolute time like 19961108T143720.25Z, returns -1 if malformed. */
+    private static long parseClock(String clock) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            long time = format.parse(clock).getTime();
+            int dot = clock.indexOf('.');
+            if (dot > 0) {
+                int end = clock.indexOf('Z', dot);
+                String fraction = clock.substring(dot, end > 0 ? end : clock.length());
+                time += (long) (Double.parseDouble("0" + fraction) * 1000);
+            }
+            return time;
+        } catch (ParseException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Parses the Scale header, negative values (reverse playback) are not supported. */
+    private static float parseScale(String scale) {
+        try {
+            float value = Float.parseFloat(scale.trim());
+            return value > 0 ? value : 1;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
     static class Request {
-        // Parse method & uri
-        public static final Pattern REGEX_METHOD = Pattern.compile("(\\w+)\\s+(\\S+)\\s+RTSP",
-                Pattern.CASE_INSENSITIVE);
-        // Parse a request header
-        public static final Pattern REGEX_HEADER = Pattern.compile("(\\S+)\\s*:\\s*(.+)",
-                Pattern.CASE_INSENSITIVE);
+        static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+        // Methods are interned so that they can be compared with ==
+        public static final String METHOD_DESCRIBE = "DESCRIBE";
+        public static final String METHOD_OPTIONS = "OPTIONS";
+        public static final String METHOD_SETUP = "SETUP";
+        public static final String METHOD_PLAY = "PLAY";
+        public static final String METHOD_PAUSE = "PAUSE";
+        public static final String METHOD_TEARDOWN = "TEARDOWN";
+        public static final String METHOD_ANNOUNCE = "ANNOUNCE";
+        public static final String METHOD_RECORD = "RECORD";
+
+        private static final String[] METHODS = {
+                METHOD_DESCRIBE, METHOD_OPTIONS, METHOD_SETUP, METHOD_PLAY, METHOD_PAUSE,
+                METHOD_TEARDOWN, METHOD_ANNOUNCE, METHOD_RECORD
+        };
+
+        private static final int MAX_HEADERS = 32;
 
         public String method;
         public String uri;
+        public String content;
+
+        // Raw bytes of the request line and headers, headers are offsets in that array
+        byte[] data = new byte[512];
+        int length;
+
+        private final int[] mHeaders = new int[MAX_HEADERS * 4];
+        private int mHeaderCount;
+        private int mCSeq;
+        private int mContentLength;
+
+        void reset() {
+            method = null;
+            uri = null;
+            content = null;
+            length = 0;
+            mHeaderCount = 0;
+            mCSeq = -1;
+            mContentLength = 0;
+        }
 
-        public final Map<String, String> headers = new HashMap<>();
-
-        /** Parse the method, uri & headers of a RTSP request */
-        public static Request parseRequest(BufferedReader input)
-                throws IOException, IllegalStateException, SocketException {
-            Request request = new Request();
-            Matcher matcher;
-
-            // Parsing request method & uri
-            String requestLine = input.readLine();
-            if (requestLine == null) {
-                throw new SocketException("Client disconnected");
-            }
-            matcher = REGEX_METHOD.matcher(requestLine);
-            matcher.find();
-            request.method = matcher.group(1);
-            request.uri = matcher.group(2);
-
-            // Parsing headers of the request
-            String line;
-            while ((line = input.readLine()) != null && line.length() > 3) {
-                matcher = REGEX_HEADER.matcher(line);
-                matcher.find();
-                request.headers.put(matcher.group(1).toLowerCase(Locale.US), matcher.group(2));
-            }
-            if (line == null) {
-                throw new SocketException("Client disconnected");
-            }
-
-            // It's not an error, it's just easier to follow what's happening in logcat with the
-            // request in red
-            StringBuilder sb = new StringBuilder(requestLine);
-            if (!request.headers.isEmpty()) {
-                for (Map.Entry<String, String> entry : request.headers.entrySet()) {
-                    sb.append("\r\n").append(entry.getKey()).append(": ").append(entry.getValue());
+        void setData(byte[] buffer, int offset, int len) {
+            if (data.length < len) {
+                data = new byte[Math.max(len, data.length * 2)];
+            }
+            System.arraycopy(buffer, offset, data, 0, len);
+            length = len;
+        }
+
+        void setContent(byte[] buffer, int offset, int len) {
+            content = new String(buffer, offset, len, CHARSET);
+        }
+
+        void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            if (mHeaderCount == MAX_HEADERS) {
+                return;
+            }
+            int i = 4 * mHeaderCount++;
+            mHeaders[i] = nameStart;
+            mHeaders[i + 1] = nameEnd;
+            mHeaders[i + 2] = valueStart;
+            mHeaders[i + 3] = valueEnd;
+            // Those two are needed for every request, we parse them right away
+            if (nameIs(i, "CSeq")) {
+                mCSeq = parseInt(valueStart, valueEnd);
+            } else if (nameIs(i, "Content-Length")) {
+                mContentLength = parseInt(valueStart, valueEnd);
+            }
+        }
+
+        /** Returns the value of a header (the name is case insensitive) or null. */
+        public String getHeader(String name) {
+            for (int i = 0; i < 4 * mHeaderCount; i += 4) {
+                if (nameIs(i, name)) {
+                    return new String(data, mHeaders[i + 2], mHeaders[i + 3] - mHeaders[i + 2],
+                            CHARSET);
+                }
+            }
+            return null;
+        }
+
+        /** Returns the CSeq of the request or -1 if it is missing. */
+        public int getCSeq() {
+            return mCSeq;
+        }
+
+        public int getContentLength() {
+            return mContentLength;
+        }
+
+        private boolean nameIs(int i, String name) {
+            return mHeaders[i + 1] - mHeaders[i] == name.length()
+                    && RtspRequestParser.startsWithIgnoreCase(data, mHeaders[i], mHeaders[i + 1],
+                    name);
+        }
+
+        private int parseInt(int start, int end) {
+            int n = 0;
+            if (start == end) {
+                return -1;
+            }
+            for (int i = start; i < end; i++) {
+                int d = data[i] - '0';
+                if (d < 0 || d > 9) {
+                    return -1;
                 }
+                n = n * 10 + d;
             }
-            Log.e(TAG, sb.toString());
+            return n;
+        }
 
-            return request;
+        /** Returns the interned name of a method, without allocating when the method is known. */
+        static String methodName(byte[] b, int offset, int len) {
+            for (String method : METHODS) {
+                if (method.length() == len
+                        && RtspRequestParser.startsWithIgnoreCase(b, offset, offset + len,
+                        method)) {
+                    return method;
+                }
+            }
+            return new String(b, offset, len, CHARSET);
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, 0, length, CHARSET).trim();
         }
     }
 
@@ -685,13 +1324,18 @@ public class RtspServer extends Service {
         public static final String STATUS_BAD_REQUEST = "400 Bad Request";
         public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
         public static final String STATUS_NOT_FOUND = "404 Not Found";
+        public static final String STATUS_UNSUPPORTED_MEDIA_TYPE = "415 Unsupported Media Type";
+        public static final String STATUS_NOT_ENOUGH_BANDWIDTH = "453 Not Enough Bandwidth";
+        public static final String STATUS_METHOD_NOT_VALID = "455 Method Not Valid in This State";
+        public static final String STATUS_INVALID_RANGE = "457 Invalid Range";
         public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
         public String status = STATUS_INTERNAL_SERVER_ERROR;
         public String content = "";
         public String attributes = "";
 
-        private final Request mRequest;
+        private final ResponseEncoder mEncoder = new ResponseEncoder();
+        private Request mRequest;
 
         public Response(Request request) {
             mRequest = request;
@@ -702,27 +1346,94 @@ public class RtspServer extends Service {
             mRequest = null;
         }
 
+        /**
+         * Clears the response so that it can answer another request, its buffer is kept.
+         *
+         * @param request The request answered, or null if it could not be parsed
+         */
+        public Response reset(Request request) {
+            mRequest = request;
+            status = STATUS_INTERNAL_SERVER_ERROR;
+            content = "";
+            attributes = "";
+            return this;
+        }
+
         public void send(OutputStream output) throws IOException {
-            int seqid = -1;
+            int seqid = mRequest != null ? mRequest.getCSeq() : -1;
 
-            if (mRequest != null) {
-                try {
-                    seqid = Integer.parseInt(mRequest.headers.get("cseq").trim());
-                } catch (Exception e) {
-                    Log.e(TAG, "Error parsing CSeq", e);
-                }
+            mEncoder.reset();
+            mEncoder.append("RTSP/1.0 ").append(status).append(ResponseEncoder.SERVER_LINE);
+            if (seqid >= 0) {
+                mEncoder.append("Cseq: ").append(seqid).append("\r\n");
+            }
+            mEncoder.append("Content-Length: ").append(content.length()).append("\r\n")
+                    .append(attributes).append("\r\n")
+                    .append(content);
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, mEncoder.toString().replace("\r", ""));
+            }
+
+            mEncoder.writeTo(output);
+        }
+    }
+
+    /**
+     * Serializes responses into a buffer that is reused from one response to the next, so that
+     * answering a request only costs one write on the socket and no intermediate Strings.
+     */
+    static class ResponseEncoder {
+        static final String SERVER_LINE = "\r\nServer: " + SERVER_NAME + "\r\n";
+
+        private byte[] mBuffer = new byte[1024];
+        private int mLength = 0;
+
+        public void reset() {
+            mLength = 0;
+        }
+
+        public ResponseEncoder append(String s) {
+            int len = s.length();
+            ensureCapacity(len);
+            for (int i = 0; i < len; i++) {
+                mBuffer[mLength++] = (byte) s.charAt(i);
+            }
+            return this;
+        }
+
+        public ResponseEncoder append(int n) {
+            if (n < 0) {
+                return append(Integer.toString(n));
+            }
+            int digits = 1;
+            for (int m = n; m >= 10; m /= 10) {
+                digits++;
+            }
+            ensureCapacity(digits);
+            for (int i = mLength + digits - 1; i >= mLength; i--) {
+                mBuffer[i] = (byte) ('0' + n % 10);
+                n /= 10;
             }
+            mLength += digits;
+            return this;
+        }
 
-            String response = "RTSP/1.0 " + status + "\r\n"
-                    + "Server: " + SERVER_NAME + "\r\n"
-                    + (seqid >= 0 ? ("Cseq: " + seqid + "\r\n") : "")
-                    + "Content-Length: " + content.length() + "\r\n"
-                    + attributes + "\r\n"
-                    + content;
+        public void writeTo(OutputStream output) throws IOException {
+            output.write(mBuffer, 0, mLength);
+        }
 
-            Log.d(TAG, response.replace("\r", ""));
+        private void ensureCapacity(int len) {
+            if (mLength + len > mBuffer.length) {
+                byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + len)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                mBuffer = buffer;
+            }
+        }
 
-            output.write(response.getBytes());
+        @Override
+        public String toString() {
+            return new String(mBuffer, 0, mLength, Request.CHARSET);
         }
     }
 }
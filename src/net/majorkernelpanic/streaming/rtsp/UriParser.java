@@ -23,6 +23,7 @@ import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_AMRNB;
 import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_NONE;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H263;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H264;
+import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H265;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_NONE;
 
 import android.content.ContentValues;
@@ -32,6 +33,7 @@ import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.audio.AudioQuality;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 
 import java.io.IOException;
@@ -53,6 +55,7 @@ public class UriParser {
      * <ul><li>rtsp://xxx.xxx.xxx.xxx:8086?h264&flash=on</li>
      * <li>rtsp://xxx.xxx.xxx.xxx:8086?h263&camera=front&flash=on</li>
      * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264=200-20-320-240</li>
+     * <li>rtsp://xxx.xxx.xxx.xxx:8086?h265=500-30-1280-720</li>
      * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li></ul>
      *
      * @param uri The URI
@@ -179,6 +182,12 @@ public class UriParser {
                     builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H264);
                 }
 
+                // H.265
+                else if (paramName.equalsIgnoreCase("h265")) {
+                    VideoQuality quality = VideoQuality.parseQuality(paramValue);
+                    builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H265);
+                }
+
                 // H.263
                 else if (paramName.equalsIgnoreCase("h263")) {
                     VideoQuality quality = VideoQuality.parseQuality(paramValue);
@@ -217,4 +226,88 @@ public class UriParser {
 
         return session;
     }
+
+    /**
+     * Returns the video quality asked for in a URI with the "h264" or the "h265" parameter, for
+     * instance rtsp://xxx.xxx.xxx.xxx:8086?h264=500-20-640-360, or null if there is none.
+     * Used to pick a rendition of a {@link net.majorkernelpanic.streaming.LiveSource}.
+     *
+     * @param uri The URI
+     */
+    public static VideoQuality parseVideoQuality(String uri) {
+        String value = getParameter(uri, "h264");
+        if (value == null) {
+            value = getParameter(uri, "h265");
+        }
+        if (value == null) {
+            return null;
+        }
+        // Only the values that are given constrain the choice
+        String[] config = value.split("-");
+        VideoQuality quality = new VideoQuality(0, 0, 0, 0);
+        try {
+            quality.bitrate = Integer.parseInt(config[0]) * 1000;
+            quality.framerate = Integer.parseInt(config[1]);
+            quality.resX = Integer.parseInt(config[2]);
+            quality.resY = Integer.parseInt(config[3]);
+        } catch (IndexOutOfBoundsException | NumberFormatException ignore) {
+        }
+        return quality;
+    }
+
+    /**
+     * Returns the pictures a client of a {@link net.majorkernelpanic.streaming.LiveSource} wants
+     * to receive, from the "frames" parameter of a URI:
+     * <ul><li>frames=key: key frames only</li>
+     * <li>frames=intra: intra coded pictures only</li>
+     * <li>frames=ref: no disposable pictures</li>
+     * <li>frames=all (the default): everything</li></ul>
+     *
+     * @param uri The URI
+     * @return The highest layer sent to the client, see {@link RtpSocket#markLayer(int)}
+     */
+    public static int parseMaxLayer(String uri) {
+        String value = getParameter(uri, "frames");
+        if ("key".equalsIgnoreCase(value)) {
+            return RtpSocket.LAYER_KEY;
+        } else if ("intra".equalsIgnoreCase(value)) {
+            return RtpSocket.LAYER_INTRA;
+        } else if ("ref".equalsIgnoreCase(value)) {
+            return RtpSocket.LAYER_REFERENCE;
+        }
+        return RtpSocket.LAYER_DISPOSABLE;
+    }
+
+    /**
+     * Returns the path of a URI without its trailing slashes, for instance "/live/cam1" for
+     * rtsp://xxx.xxx.xxx.xxx:8086/live/cam1?h264, or "/" if it has none.
+     *
+     * @param uri The URI
+     */
+    public static String parsePath(String uri) {
+        String path = URI.create(uri).getPath();
+        if (path == null) {
+            return "/";
+        }
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return end == 0 ? "/" : path.substring(0, end);
+    }
+
+    /** Returns the value of a parameter of the query of a URI, or null. */
+    private static String getParameter(String uri, String name) {
+        String query = URI.create(uri).getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            String[] keyValue = param.split("=");
+            if (keyValue.length == 2 && keyValue[0].equalsIgnoreCase(name)) {
+                return keyValue[1];
+            }
+        }
+        return null;
+    }
 }
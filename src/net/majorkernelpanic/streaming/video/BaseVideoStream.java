@@ -1,8 +1,17 @@
 package net.majorkernelpanic.streaming.video;
 
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
 import net.majorkernelpanic.streaming.MediaStream;
 
 public abstract class BaseVideoStream extends MediaStream {
+    protected int mBitrateLimit = 0;
+    protected int mTemporalLayers = 1;
+
     /**
      * Sets the configuration of the stream. You can call this method at any time
      * and changes will take effect next time you call {@link #configure()}.
@@ -10,4 +19,82 @@ public abstract class BaseVideoStream extends MediaStream {
      * @param videoQuality Quality of the stream
      */
     public abstract void setVideoQuality(VideoQuality videoQuality);
+
+    /** Returns the quality requested for the stream. */
+    public abstract VideoQuality getVideoQuality();
+
+    /**
+     * Caps the bit rate of the encoder below the one of the {@link VideoQuality}, for instance
+     * when the network can't carry it. The change is applied right away if the stream is encoded
+     * with the MediaCodec API, and the next time the stream starts otherwise.
+     *
+     * @param bitrate The maximum bit rate in bit per seconds, or 0 to remove the limit
+     */
+    public synchronized void setBitrateLimit(int bitrate) {
+        if (bitrate == mBitrateLimit) {
+            return;
+        }
+        mBitrateLimit = bitrate;
+        if (mStreaming && mMode != MODE_MEDIARECORDER_API && mMediaCodec != null) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE,
+                    getEncoderBitrate(getVideoQuality().bitrate));
+            try {
+                mMediaCodec.setParameters(params);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Could not change the bit rate", e);
+            }
+        }
+    }
+
+    /** Returns the limit set with {@link #setBitrateLimit(int)}, 0 if there is none. */
+    public int getBitrateLimit() {
+        return mBitrateLimit;
+    }
+
+    /** Applies the limit set with {@link #setBitrateLimit(int)} to the requested bit rate. */
+    protected int getEncoderBitrate(int bitrate) {
+        return mBitrateLimit > 0 ? Math.min(bitrate, mBitrateLimit) : bitrate;
+    }
+
+    /**
+     * Asks the encoder to produce a temporally layered stream, in which the pictures of the
+     * highest layer are not used as a reference, so that a receiver can be sent a lower frame
+     * rate without re-encoding. Only taken into account by the MediaCodec API on Android 10 and
+     * above, the next time the stream starts.
+     *
+     * @param layers The number of temporal layers, 1 (the default) means no layering
+     */
+    public void setTemporalLayers(int layers) {
+        mTemporalLayers = layers;
+    }
+
+    public int getTemporalLayers() {
+        return mTemporalLayers;
+    }
+
+    /** Applies {@link #setTemporalLayers(int)} to the format of an encoder. */
+    protected void applyTemporalLayers(MediaFormat format) {
+        if (mTemporalLayers > 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            format.setString(MediaFormat.KEY_TEMPORAL_LAYERING,
+                    "android.generic." + mTemporalLayers);
+        }
+    }
+
+    /**
+     * Asks the MediaCodec to produce an IDR picture right away.
+     * With the MediaRecorder API, the stream will resume on the next periodic IDR picture.
+     */
+    @Override
+    public void requestSyncFrame() {
+        if (mMode != MODE_MEDIARECORDER_API && mMediaCodec != null) {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            try {
+                mMediaCodec.setParameters(params);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Could not request a sync frame", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.majorkernelpanic.streaming.video;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Base64;
+import android.util.Log;
+import android.view.Surface;
+
+import net.majorkernelpanic.streaming.ConfigurationCache;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
+import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.hw.EncoderDebugger;
+import net.majorkernelpanic.streaming.mp4.MP4Config;
+import net.majorkernelpanic.streaming.rtp.H264Packetizer;
+
+import java.io.IOException;
+
+/**
+ * An additional H.264 encoding of the camera preview of a {@link VideoStream}, at another
+ * resolution and bit rate. The preview is rendered into the input surface of the encoder by the
+ * {@link SurfaceView} of the stream, so the camera is only opened once whatever the number of
+ * renditions. The stream must be started after its source, which must be encoded with
+ * {@link #MODE_MEDIACODEC_API_2}.
+ */
+public class H264RenditionStream extends BaseVideoStream {
+    public static final String TAG = H264RenditionStream.class.getSimpleName();
+
+    private final VideoStream mSource;
+
+    private VideoQuality mQuality = VideoQuality.DEFAULT_VIDEO_QUALITY.clone();
+    private SharedPreferences mSettings = null;
+    private SurfaceView mSurfaceView;
+    private Surface mInputSurface;
+    private MP4Config mConfig;
+
+    /**
+     * Constructs the stream.
+     *
+     * @param source The stream whose camera preview is encoded
+     */
+    public H264RenditionStream(VideoStream source) {
+        mSource = source;
+        mMode = mRequestedMode = MODE_MEDIACODEC_API_2;
+        mPacketizer = new H264Packetizer();
+    }
+
+    @Override
+    public void setVideoQuality(VideoQuality videoQuality) {
+        mQuality = videoQuality.clone();
+    }
+
+    @Override
+    public VideoQuality getVideoQuality() {
+        return mQuality;
+    }
+
+    /** Only {@link #MODE_MEDIACODEC_API_2} can be used. */
+    @Override
+    public void setStreamingMethod(byte mode) {
+    }
+
+    /**
+     * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is
+     * called
+     *
+     * @param prefs The SharedPreferences that will be used to save SPS and PPS parameters
+     */
+    public void setPreferences(SharedPreferences prefs) {
+        mSettings = prefs;
+    }
+
+    @Override
+    public synchronized String getSessionDescription() throws IllegalStateException {
+        if (mConfig == null) {
+            throw new IllegalStateException("You need to call configure() first !");
+        }
+        return "m=video " + getDestinationPorts()[0] + " RTP/AVP 96\r\n"
+                + "a=rtpmap:96 H264/90000\r\n"
+                + "a=fmtp:96 packetization-mode=1;profile-level-id=" + mConfig.getProfileLevel()
+                + ";sprop-parameter-sets=" + mConfig.getB64SPS() + "," + mConfig.getB64PPS()
+                + ";\r\n";
+    }
+
+    @Override
+    public synchronized void configure() throws IllegalStateException, IOException {
+        super.configure();
+        mMode = MODE_MEDIACODEC_API_2;
+
+        String key = getConfigurationKey();
+        String cached = ConfigurationCache.get(key);
+        if (cached != null) {
+            String[] s = cached.split(",");
+            mConfig = new MP4Config(s[1], s[2], s[3]);
+        } else {
+            try {
+                EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX,
+                        mQuality.resY);
+                mConfig = new MP4Config(debugger.getB64SPS(), debugger.getB64PPS());
+            } catch (RuntimeException e) {
+                throw new ConfNotSupportedException(e);
+            }
+            ConfigurationCache.put(key, mMode + "," + mConfig.getProfileLevel() + ","
+                    + mConfig.getB64SPS() + "," + mConfig.getB64PPS());
+        }
+    }
+
+    /** Returns the key of the configuration in the {@link ConfigurationCache}. */
+    private String getConfigurationKey() {
+        return ConfigurationCache.key("h264-rendition", MODE_MEDIACODEC_API_2, mQuality.resX,
+                mQuality.resY, mQuality.framerate, mQuality.bitrate);
+    }
+
+    @Override
+    public synchronized void start() throws IllegalStateException, IOException {
+        if (!mStreaming) {
+            configure();
+            byte[] pps = Base64.decode(mConfig.getB64PPS(), Base64.NO_WRAP);
+            byte[] sps = Base64.decode(mConfig.getB64SPS(), Base64.NO_WRAP);
+            ((H264Packetizer) mPacketizer).setStreamParameters(pps, sps);
+            try {
+                super.start();
+            } catch (IOException | RuntimeException e) {
+                ConfigurationCache.invalidate(getConfigurationKey());
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mSurfaceView != null) {
+            // The preview must not be rendered in the surface of a released encoder
+            mSurfaceView.removeMediaCodecSurface(mInputSurface);
+            mSurfaceView = null;
+            mInputSurface = null;
+        }
+        super.stop();
+    }
+
+    @Override
+    protected void encodeWithMediaRecorder() throws ConfNotSupportedException {
+        throw new ConfNotSupportedException("Renditions can only be encoded with MediaCodec");
+    }
+
+    @SuppressLint({"InlinedApi", "NewApi"})
+    @Override
+    protected void encodeWithMediaCodec() throws RuntimeException, IOException {
+        if (mSource.getStreamingMethod() != MODE_MEDIACODEC_API_2 || !mSource.isStreaming()) {
+            throw new IllegalStateException("The source must be streaming with a surface");
+        }
+        SurfaceView surfaceView = mSource.getSurfaceView();
+        if (surfaceView == null) {
+            throw new InvalidSurfaceException("The source has no SurfaceView");
+        }
+
+        Log.d(TAG, "Rendition encoded: " + mQuality);
+        EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+        mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
+        createEngine();
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                mQuality.resX, mQuality.resY);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, getEncoderBitrate(mQuality.bitrate));
+        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
+        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        applyTemporalLayers(mediaFormat);
+        mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mInputSurface = mMediaCodec.createInputSurface();
+        mSurfaceView = surfaceView;
+        mSurfaceView.addMediaCodecSurface(mInputSurface);
+
+        mPacketizer.start();
+        mMediaCodec.start();
+
+        mStreaming = true;
+    }
+}
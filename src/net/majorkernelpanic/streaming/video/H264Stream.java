@@ -29,6 +29,7 @@ import android.service.textservice.SpellCheckerService.Session;
 import android.util.Base64;
 import android.util.Log;
 
+import net.majorkernelpanic.streaming.ConfigurationCache;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
@@ -105,7 +106,13 @@ public class H264Stream extends VideoStream {
             byte[] pps = Base64.decode(mConfig.getB64PPS(), Base64.NO_WRAP);
             byte[] sps = Base64.decode(mConfig.getB64SPS(), Base64.NO_WRAP);
             ((H264Packetizer) mPacketizer).setStreamParameters(pps, sps);
-            super.start();
+            try {
+                super.start();
+            } catch (IOException | RuntimeException e) {
+                // The cached configuration may not be valid anymore
+                ConfigurationCache.invalidate(getConfigurationKey());
+                throw e;
+            }
         }
     }
 
@@ -118,7 +125,40 @@ public class H264Stream extends VideoStream {
         super.configure();
         mMode = mRequestedMode;
         mQuality = mRequestedQuality.clone();
+
+        // The SPS and PPS only depend on the configuration, testing it again is a waste of time,
+        // and so is opening the camera to find the resolution it picks
+        String key = getConfigurationKey();
+        String cached = ConfigurationCache.get(key);
+        if (cached != null) {
+            String[] s = cached.split(",");
+            mMode = Byte.parseByte(s[0]);
+            mConfig = new MP4Config(s[1], s[2], s[3]);
+            mQuality.resX = Integer.parseInt(s[4]);
+            mQuality.resY = Integer.parseInt(s[5]);
+            return;
+        }
+        if (mMode != MODE_MEDIARECORDER_API) {
+            // The camera is set to the closest resolution it supports, which is the one encoded
+            createCamera();
+            updateCamera();
+            mQuality = VideoQuality.determineClosestSupportedResolution(mCamera.getParameters(),
+                    mQuality);
+        }
         mConfig = testH264();
+        ConfigurationCache.put(key, mMode + "," + mConfig.getProfileLevel() + ","
+                + mConfig.getB64SPS() + "," + mConfig.getB64PPS() + "," + mQuality.resX + ","
+                + mQuality.resY);
+    }
+
+    /**
+     * Returns the key of the configuration in the {@link ConfigurationCache}. The resolution
+     * given to the encoder, the closest one supported by the camera, is cached along with the
+     * SPS and PPS.
+     */
+    private String getConfigurationKey() {
+        return ConfigurationCache.key("h264", mRequestedMode, mCameraId, mRequestedQuality.resX,
+                mRequestedQuality.resY, mRequestedQuality.framerate, mRequestedQuality.bitrate);
     }
 
     /**
@@ -138,7 +178,7 @@ public class H264Stream extends VideoStream {
         createCamera();
         updateCamera();
         try {
-            if (mQuality.resX >= 640) {
+            if (mMode == MODE_MEDIACODEC_API && mQuality.resX >= 640) {
                 // Using the MediaCodec API with the buffer method for high resolutions is too slow
                 mMode = MODE_MEDIARECORDER_API;
             }
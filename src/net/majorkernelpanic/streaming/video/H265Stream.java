@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import android.annotation.SuppressLint;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Base64;
+import android.util.Log;
+import android.view.Surface;
+
+import net.majorkernelpanic.streaming.ConfigurationCache;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A class for streaming H.265 (HEVC) from the camera of an android device using RTP.
+ * The stream is always encoded by a MediaCodec fed with a surface
+ * ({@link #MODE_MEDIACODEC_API_2}), so a {@link net.majorkernelpanic.streaming.gl.SurfaceView}
+ * is needed. The VPS, the SPS and the PPS of the encoder are found once per configuration and
+ * given in the SDP.
+ */
+public class H265Stream extends VideoStream {
+    public static final String TAG = H265Stream.class.getSimpleName();
+
+    // The VPS, the SPS and the PPS, encoded in Base64
+    private String[] mParameterSets;
+
+    /**
+     * Constructs the H.265 stream.
+     * Uses CAMERA_FACING_BACK by default.
+     */
+    public H265Stream() {
+        this(CameraInfo.CAMERA_FACING_BACK);
+    }
+
+    /**
+     * Constructs the H.265 stream.
+     *
+     * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+     */
+    public H265Stream(int cameraId) {
+        super(cameraId);
+        mMimeType = MediaFormat.MIMETYPE_VIDEO_HEVC;
+        mCameraImageFormat = ImageFormat.NV21;
+        mMode = mRequestedMode = MODE_MEDIACODEC_API_2;
+        mPacketizer = new H265Packetizer();
+    }
+
+    /**
+     * Returns a description of the stream using SDP. It can then be included in an SDP file.
+     */
+    @Override
+    public synchronized String getSessionDescription() throws IllegalStateException {
+        if (mParameterSets == null) {
+            throw new IllegalStateException("You need to call configure() first !");
+        }
+        return "m=video " + getDestinationPorts()[0] + " RTP/AVP 96\r\n"
+                + "a=rtpmap:96 H265/90000\r\n"
+                + "a=fmtp:96 sprop-vps=" + mParameterSets[0] + ";sprop-sps=" + mParameterSets[1]
+                + ";sprop-pps=" + mParameterSets[2] + "\r\n";
+    }
+
+    /**
+     * Starts the stream.
+     * This will also open the camera and display the preview if {@link #startPreview()} has not
+     * already been called.
+     */
+    @Override
+    public synchronized void start() throws IllegalStateException, IOException {
+        if (!mStreaming) {
+            configure();
+            ((H265Packetizer) mPacketizer).setStreamParameters(
+                    Base64.decode(mParameterSets[0], Base64.NO_WRAP),
+                    Base64.decode(mParameterSets[1], Base64.NO_WRAP),
+                    Base64.decode(mParameterSets[2], Base64.NO_WRAP));
+            try {
+                super.start();
+            } catch (IOException | RuntimeException e) {
+                // The cached configuration may not be valid anymore
+                ConfigurationCache.invalidate(getConfigurationKey());
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Configures the stream. You need to call this before calling {@link #getSessionDescription()}
+     * to apply your configuration of the stream.
+     */
+    @Override
+    public synchronized void configure() throws IllegalStateException, IOException {
+        super.configure();
+        mMode = MODE_MEDIACODEC_API_2;
+        mQuality = mRequestedQuality.clone();
+
+        // The parameter sets only depend on the configuration
+        String key = getConfigurationKey();
+        String cached = ConfigurationCache.get(key);
+        if (cached != null) {
+            mParameterSets = cached.split(",");
+        } else {
+            byte[][] sets = testMediaCodecAPI();
+            mParameterSets = new String[sets.length];
+            for (int i = 0; i < sets.length; i++) {
+                mParameterSets[i] = Base64.encodeToString(sets[i], Base64.NO_WRAP);
+            }
+            ConfigurationCache.put(key, mParameterSets[0] + "," + mParameterSets[1] + ","
+                    + mParameterSets[2]);
+        }
+    }
+
+    @Override
+    protected MediaCodec createEncoder() throws IOException {
+        return MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_HEVC);
+    }
+
+    /** Returns the key of the configuration in the {@link ConfigurationCache}. */
+    private String getConfigurationKey() {
+        return ConfigurationCache.key("h265", MODE_MEDIACODEC_API_2, mRequestedQuality.resX,
+                mRequestedQuality.resY, mRequestedQuality.framerate, mRequestedQuality.bitrate);
+    }
+
+    /**
+     * Encodes a black picture to find out the VPS, the SPS and the PPS of the encoder.
+     * Should not be called by the UI thread.
+     */
+    @SuppressLint("NewApi")
+    private byte[][] testMediaCodecAPI() throws IOException {
+        MediaCodec codec = createEncoder();
+        Surface surface = null;
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_HEVC,
+                    mQuality.resX, mQuality.resY);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = codec.createInputSurface();
+            codec.start();
+
+            // Some encoders won't give us the parameter sets unless they receive something to
+            // encode first...
+            Canvas canvas = surface.lockHardwareCanvas();
+            canvas.drawColor(Color.BLACK);
+            surface.unlockCanvasAndPost(canvas);
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long start = System.currentTimeMillis();
+            while (System.currentTimeMillis() - start < 3000) {
+                // They are either in the MediaFormat or in the first buffer of the stream
+                int index = codec.dequeueOutputBuffer(info, 100000);
+                byte[][] sets = null;
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    ByteBuffer csd = codec.getOutputFormat().getByteBuffer("csd-0");
+                    if (csd != null) {
+                        sets = H265Packetizer.findParameterSets(csd);
+                    }
+                } else if (index >= 0) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        ByteBuffer csd = codec.getOutputBuffer(index);
+                        csd.limit(info.offset + info.size);
+                        csd.position(info.offset);
+                        sets = H265Packetizer.findParameterSets(csd);
+                    }
+                    codec.releaseOutputBuffer(index, false);
+                }
+                if (sets != null && sets[0] != null && sets[1] != null && sets[2] != null) {
+                    Log.i(TAG, "H265 test succeded...");
+                    return sets;
+                }
+            }
+            throw new ConfNotSupportedException("Could not determine the VPS, SPS and PPS");
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new ConfNotSupportedException(e);
+        } finally {
+            try {
+                codec.stop();
+            } catch (IllegalStateException ignored) {
+            }
+            codec.release();
+            if (surface != null) {
+                surface.release();
+            }
+        }
+    }
+}
@@ -25,12 +25,12 @@ import android.view.WindowManager;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import net.majorkernelpanic.streaming.ConfigurationCache;
 import net.majorkernelpanic.streaming.RequestPermissionActivity;
 import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.mp4.MP4Config;
 import net.majorkernelpanic.streaming.rtp.H264Packetizer;
-import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -124,6 +124,14 @@ public class ScreenStream extends BaseVideoStream {
         }
     }
 
+    /**
+     * Returns the quality of the stream.
+     */
+    @Override
+    public VideoQuality getVideoQuality() {
+        return mQuality;
+    }
+
     private void adaptiveAspectRatio() {
         if (mDisplayMetrics != null) {
             mQuality.resX = mDisplayMetrics.widthPixels / 2;
@@ -172,7 +180,13 @@ public class ScreenStream extends BaseVideoStream {
             byte[] pps = Base64.decode(mConfig.getB64PPS(), Base64.NO_WRAP);
             byte[] sps = Base64.decode(mConfig.getB64SPS(), Base64.NO_WRAP);
             ((H264Packetizer) mPacketizer).setStreamParameters(pps, sps);
-            super.start();
+            try {
+                super.start();
+            } catch (IOException | RuntimeException e) {
+                // The cached configuration may not be valid anymore
+                ConfigurationCache.invalidate(getConfigurationKey());
+                throw e;
+            }
             Log.d(TAG, "Stream configuration: FPS: " + mQuality.framerate + " Width: "
                     + mQuality.resX + " Height: " + mQuality.resY);
         }
@@ -186,7 +200,28 @@ public class ScreenStream extends BaseVideoStream {
     public synchronized void configure() throws IllegalStateException, IOException {
         super.configure();
         mMode = mRequestedMode;
-        mConfig = testH264();
+
+        // Probing the encoder requires to create a virtual display, the result is cached
+        String key = getConfigurationKey();
+        String cached = ConfigurationCache.get(key);
+        if (cached != null) {
+            String[] s = cached.split(",");
+            mMode = Byte.parseByte(s[0]);
+            mConfig = new MP4Config(s[1], s[2], s[3]);
+        } else {
+            mConfig = testH264();
+            ConfigurationCache.put(key, mMode + "," + mConfig.getProfileLevel() + ","
+                    + mConfig.getB64SPS() + "," + mConfig.getB64PPS());
+        }
+    }
+
+    /**
+     * Returns the key of the configuration in the {@link ConfigurationCache}, made of the quality
+     * given to the encoder, after its aspect ratio has been adapted to the screen.
+     */
+    private String getConfigurationKey() {
+        return ConfigurationCache.key("h264-screen", mRequestedMode, mQuality.resX,
+                mQuality.resY, mQuality.framerate, mQuality.bitrate);
     }
 
     /** Stops the stream. */
@@ -354,7 +389,7 @@ public class ScreenStream extends BaseVideoStream {
             mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
             mMediaRecorder.setVideoSize(mQuality.resX, mQuality.resY);
             mMediaRecorder.setVideoFrameRate(mQuality.framerate);
-            mMediaRecorder.setVideoEncodingBitRate(mQuality.bitrate);
+            mMediaRecorder.setVideoEncodingBitRate(getEncoderBitrate(mQuality.bitrate));
             mMediaRecorder.setMaxDuration(3000);
             mMediaRecorder.setOutputFile(testFile);
 
@@ -450,7 +485,7 @@ public class ScreenStream extends BaseVideoStream {
             mMediaRecorder.setVideoFrameRate(mQuality.framerate);
 
             // The bandwidth actually consumed is often above what was requested
-            mMediaRecorder.setVideoEncodingBitRate(mQuality.bitrate);
+            mMediaRecorder.setVideoEncodingBitRate(getEncoderBitrate(mQuality.bitrate));
 
             // We write the output of the screen in a local socket instead of a file !
             // This one little trick makes streaming feasible quiet simply: data from the screen
@@ -511,22 +546,23 @@ public class ScreenStream extends BaseVideoStream {
         Log.d(TAG, "Video encoded using the MediaCodec API with a surface");
 
         mMediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        createEngine();
         MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
                 mQuality.resX, mQuality.resY);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getEncoderBitrate(mQuality.bitrate));
         format.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, DEFAULT_I_FRAME_INTERVAL);
+        applyTemporalLayers(format);
         // display the very first frame, and recover from bad quality when no new frames
         //format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, DEFAULT_REPEAT_FRAME_DELAY);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         Surface surface = mMediaCodec.createInputSurface();
-        mMediaCodec.start();
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
         mPacketizer.start();
+        mMediaCodec.start();
         startVirtualDisplay(surface);
 
         mStreaming = true;
@@ -43,12 +43,11 @@ import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
-import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.MediaCodecEngine;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -62,6 +61,7 @@ public abstract class VideoStream extends BaseVideoStream {
     protected VideoQuality mQuality = mRequestedQuality.clone();
     protected SurfaceHolder.Callback mSurfaceHolderCallback = null;
     protected SurfaceView mSurfaceView = null;
+    protected Surface mInputSurface = null;
     protected SharedPreferences mSettings = null;
     protected int mVideoEncoder, mCameraId = 0;
     protected int mRequestedOrientation = 0, mOrientation = 0;
@@ -81,6 +81,8 @@ public abstract class VideoStream extends BaseVideoStream {
     protected int mEncoderColorFormat;
     protected int mCameraImageFormat;
     protected int mMaxFps = 0;
+    // Frame rate measured since the camera has been configured, 0 if it has to be measured
+    protected int mMeasuredFramerate = 0;
 
     /**
      * Don't use this class directly.
@@ -190,6 +192,11 @@ public abstract class VideoStream extends BaseVideoStream {
         }
     }
 
+    /** Returns the SurfaceView set with {@link #setSurfaceView(SurfaceView)}. */
+    public SurfaceView getSurfaceView() {
+        return mSurfaceView;
+    }
+
     /** Turns the LED on or off if phone has one. */
     public synchronized void setFlashState(boolean state) {
         // If the camera has already been opened, we apply the change immediately
@@ -264,6 +271,7 @@ public abstract class VideoStream extends BaseVideoStream {
     /**
      * Returns the quality of the stream.
      */
+    @Override
     public VideoQuality getVideoQuality() {
         return mRequestedQuality;
     }
@@ -311,7 +319,8 @@ public abstract class VideoStream extends BaseVideoStream {
                 mCamera.setPreviewCallbackWithBuffer(null);
             }
             if (mMode == MODE_MEDIACODEC_API_2) {
-                ((SurfaceView) mSurfaceView).removeMediaCodecSurface();
+                mSurfaceView.removeMediaCodecSurface(mInputSurface);
+                mInputSurface = null;
             }
             super.stop();
             // We need to restart the preview
@@ -346,6 +355,11 @@ public abstract class VideoStream extends BaseVideoStream {
         stop();
     }
 
+    /** Indicates if the camera stays open when the stream stops, see {@link #startPreview()}. */
+    public synchronized boolean isCameraOpenedManually() {
+        return mCameraOpenedManually && mCamera != null;
+    }
+
     /**
      * Video encoding is done by a MediaRecorder.
      */
@@ -374,7 +388,8 @@ public abstract class VideoStream extends BaseVideoStream {
             mMediaRecorder.setVideoFrameRate(mRequestedQuality.framerate);
 
             // The bandwidth actually consumed is often above what was requested
-            mMediaRecorder.setVideoEncodingBitRate((int) (mRequestedQuality.bitrate * 0.8));
+            mMediaRecorder.setVideoEncodingBitRate(
+                    (int) (getEncoderBitrate(mRequestedQuality.bitrate) * 0.8));
 
             // We write the output of the camera in a local socket instead of a file !
             // This one little trick makes streaming feasible quiet simply: data from the camera
@@ -450,8 +465,13 @@ public abstract class VideoStream extends BaseVideoStream {
         createCamera();
         updateCamera();
 
-        // Estimates the frame rate of the camera
-        measureFramerate();
+        // Estimates the frame rate of the camera, it does not change until it is configured again
+        if (mMeasuredFramerate > 0) {
+            mQuality.framerate = mMeasuredFramerate;
+        } else {
+            measureFramerate();
+            mMeasuredFramerate = mQuality.framerate;
+        }
 
         // Starts the preview if needed
         if (!mPreviewStarted) {
@@ -468,13 +488,19 @@ public abstract class VideoStream extends BaseVideoStream {
         final NV21Convertor convertor = debugger.getNV21Convertor();
 
         mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
+        // The preview callback may still run once the stream is stopped
+        final MediaCodecEngine engine = createEngine();
         MediaFormat mediaFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
                 mQuality.resX, mQuality.resY);
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, getEncoderBitrate(mQuality.bitrate));
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, debugger.getEncoderColorFormat());
         mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        applyTemporalLayers(mediaFormat);
         mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+        // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
+        mPacketizer.start();
         mMediaCodec.start();
 
         Camera.PreviewCallback callback = new Camera.PreviewCallback() {
@@ -489,18 +515,13 @@ public abstract class VideoStream extends BaseVideoStream {
                     //Log.d(TAG,"Measured: "+1000000L/(now-oldnow)+" fps.");
                 }
                 try {
-                    int bufferIndex = mMediaCodec.dequeueInputBuffer(500000);
-                    if (bufferIndex >= 0) {
-                        ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(bufferIndex);
-                        inputBuffer.clear();
-                        if (data == null) {
-                            Log.e(TAG, "Symptom of the \"Callback buffer was to small\" problem.");
-                        } else {
-                            convertor.convert(data, inputBuffer);
-                        }
-                        mMediaCodec.queueInputBuffer(bufferIndex, 0,
-                                inputBuffer.position(), now, 0);
-                    } else {
+                    if (data == null) {
+                        Log.e(TAG, "Symptom of the \"Callback buffer was to small\" problem.");
+                    } else if (!engine.feed(buffer -> {
+                        convertor.convert(data, buffer);
+                        return now;
+                    })) {
+                        // The frame is dropped rather than waiting for the encoder
                         Log.e(TAG, "No buffer available !");
                     }
                 } finally {
@@ -512,10 +533,6 @@ public abstract class VideoStream extends BaseVideoStream {
         for (int i = 0; i < 10; i++) mCamera.addCallbackBuffer(new byte[convertor.getBufferSize()]);
         mCamera.setPreviewCallbackWithBuffer(callback);
 
-        // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
-        mPacketizer.start();
-
         mStreaming = true;
     }
 
@@ -534,28 +551,36 @@ public abstract class VideoStream extends BaseVideoStream {
         // Estimates the frame rate of the camera
         measureFramerate();
 
-        EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
-
-        mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+        mMediaCodec = createEncoder();
+        createEngine();
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType,
                 mQuality.resX, mQuality.resY);
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, getEncoderBitrate(mQuality.bitrate));
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        applyTemporalLayers(mediaFormat);
         mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        Surface surface = mMediaCodec.createInputSurface();
-        ((SurfaceView) mSurfaceView).addMediaCodecSurface(surface);
-        mMediaCodec.start();
+        mInputSurface = mMediaCodec.createInputSurface();
+        mSurfaceView.addMediaCodecSurface(mInputSurface);
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
         mPacketizer.start();
+        mMediaCodec.start();
 
         mStreaming = true;
     }
 
+    /**
+     * Creates the encoder used with the surface method, the H.264 encoder found by the
+     * {@link EncoderDebugger} unless overridden.
+     */
+    protected MediaCodec createEncoder() throws IOException {
+        EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
+        return MediaCodec.createByCodecName(debugger.getEncoderName());
+    }
+
     /**
      * Returns a description of the stream using SDP.
      * This method can only be called after {@link Stream#configure()}.
@@ -668,6 +693,7 @@ public abstract class VideoStream extends BaseVideoStream {
             mCameraLooper.quit();
             mUnlocked = false;
             mPreviewStarted = false;
+            mMeasuredFramerate = 0;
         }
     }
 
@@ -676,6 +702,7 @@ public abstract class VideoStream extends BaseVideoStream {
         if (mUpdated) {
             return;
         }
+        mMeasuredFramerate = 0;
 
         if (mPreviewStarted) {
             mPreviewStarted = false;
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends AAC frames through {@link AACPacker} in the MP4A-LATM payload format and reads back the
+ * audioMuxElements, and checks the StreamMuxConfig announced in the SDP.
+ */
+public class AACLatmTest {
+    private static final int SAMPLING_RATE = 44100;
+
+    // 1024 samples
+    private static final long FRAME_DURATION = 23220;
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void streamMuxConfig() {
+        // AAC LC, 44.1 kHz, stereo
+        int audioSpecificConfig = 2 << 11 | 4 << 7 | 2 << 3;
+        assertEquals("400024203FC0", AACLATMPacketizer.getStreamMuxConfig(audioSpecificConfig));
+    }
+
+    @Test
+    public void payloadLengthInfo() throws IOException, InterruptedException {
+        // One PayloadLengthInfo byte below 255, then one more byte for each 255
+        int[] sizes = {100, 254, 255, 300, 510, 600};
+        byte[][] prefixes = {{100}, {(byte) 254}, {(byte) 255, 0}, {(byte) 255, 45},
+                {(byte) 255, (byte) 255, 0}, {(byte) 255, (byte) 255, 90}};
+        ArrayList<byte[]> frames = frames(sizes);
+        List<byte[]> packets = send(frames);
+
+        // Each audioMuxElement in its own packet, with the marker bit
+        assertEquals(sizes.length, packets.size());
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] packet = packets.get(i);
+            int p = RtpSocket.RTP_HEADER_LENGTH;
+            assertArrayEquals("PayloadLengthInfo " + i, prefixes[i],
+                    Arrays.copyOfRange(packet, p, p + prefixes[i].length));
+            assertEquals(p + prefixes[i].length + sizes[i], packet.length);
+            assertEquals(0x80, packet[1] & 0x80);
+        }
+        assertReceived(packets, frames);
+    }
+
+    @Test
+    public void fragmented() throws IOException, InterruptedException {
+        ArrayList<byte[]> frames = frames(3000, 200);
+        List<byte[]> packets = send(frames);
+
+        // The audioMuxElement of the first frame is fragmented, only its last packet is marked
+        assertEquals(4, packets.size());
+        assertEquals(0, packets.get(0)[1] & 0x80);
+        assertEquals(0, packets.get(1)[1] & 0x80);
+        assertEquals(0x80, packets.get(2)[1] & 0x80);
+        assertReceived(packets, frames);
+    }
+
+    private ArrayList<byte[]> frames(int... sizes) {
+        ArrayList<byte[]> frames = new ArrayList<>();
+        for (int size : sizes) {
+            byte[] frame = new byte[size];
+            mRandom.nextBytes(frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static List<byte[]> send(List<byte[]> frames) throws IOException,
+            InterruptedException {
+        RtpSocket socket = new RtpSocket();
+        socket.setClockFrequency(SAMPLING_RATE);
+        RtpCapture capture = new RtpCapture(socket);
+        AACPacker packer = new AACPacker(socket);
+        packer.setSamplingRate(SAMPLING_RATE);
+        packer.setLatm(true);
+        for (int i = 0; i < frames.size(); i++) {
+            packer.add(ByteBuffer.wrap(frames.get(i)), i * FRAME_DURATION * 1000);
+        }
+        return capture.finish((frames.size() - 1) * FRAME_DURATION * 1000);
+    }
+
+    /** Reads the audioMuxElements, a fragmented one goes on until the marker bit. */
+    private static void assertReceived(List<byte[]> packets, List<byte[]> frames) {
+        ArrayList<byte[]> received = new ArrayList<>();
+        ByteArrayOutputStream element = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            element.write(packet, RtpSocket.RTP_HEADER_LENGTH,
+                    packet.length - RtpSocket.RTP_HEADER_LENGTH);
+            if ((packet[1] & 0x80) == 0) {
+                continue;
+            }
+            byte[] data = element.toByteArray();
+            element.reset();
+            int p = 0, size = 0;
+            while ((data[p] & 0xFF) == 255) {
+                size += 255;
+                p++;
+            }
+            size += data[p++] & 0xFF;
+            assertEquals(p + size, data.length);
+            received.add(Arrays.copyOfRange(data, p, data.length));
+        }
+
+        assertEquals(frames.size(), received.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals("Frame " + i, frames.get(i), received.get(i));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static net.majorkernelpanic.streaming.rtp.RtpCapture.range;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends AAC frames through {@link AACPacker} and reassembles them with {@link AACDepacketizer},
+ * with packets lost or reordered on the way. Small frames share packets, big ones are
+ * fragmented.
+ */
+public class AACRoundTripTest {
+    private static final int SAMPLING_RATE = 16000;
+
+    // 1024 samples
+    private static final long FRAME_DURATION = 64000;
+
+    private final Random mRandom = new Random(42);
+    private final ArrayList<byte[]> mFrames = new ArrayList<>();
+    private List<byte[]> mPackets;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        // Every seventh frame does not fit in a packet
+        for (int i = 0; i < 20; i++) {
+            byte[] frame = new byte[i % 7 == 3 ? 3000 : 50 + 13 * i];
+            mRandom.nextBytes(frame);
+            mFrames.add(frame);
+        }
+
+        RtpSocket socket = new RtpSocket();
+        socket.setClockFrequency(SAMPLING_RATE);
+        RtpCapture capture = new RtpCapture(socket);
+        AACPacker packer = new AACPacker(socket);
+        packer.setSamplingRate(SAMPLING_RATE);
+        packer.setMaxDelay(500);
+        for (int i = 0; i < mFrames.size(); i++) {
+            packer.add(ByteBuffer.wrap(mFrames.get(i)), i * FRAME_DURATION * 1000);
+        }
+        packer.flush();
+        mPackets = capture.finish((mFrames.size() - 1) * FRAME_DURATION * 1000);
+
+        // Frames 0 to 2, the fragments of 3, 4 to 9, the fragments of 10, 11 to 15, 16 that
+        // does not fit with them, the fragments of 17, then 18 and 19
+        assertEquals(14, mPackets.size());
+    }
+
+    @Test
+    public void inOrder() {
+        assertReceived(mPackets, range(0, 20));
+    }
+
+    @Test
+    public void reordered() {
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        Collections.swap(packets, 2, 3);
+        Collections.swap(packets, 4, 7);
+        Collections.swap(packets, 12, 13);
+        assertReceived(packets, range(0, 20));
+    }
+
+    @Test
+    public void lostFragment() {
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        packets.remove(6);
+        assertReceived(packets, range(0, 10), range(11, 20));
+    }
+
+    @Test
+    public void lostFirstFragment() {
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        packets.remove(10);
+        assertReceived(packets, range(0, 17), range(18, 20));
+    }
+
+    @Test
+    public void lostLastFragment() {
+        // The next packet carries whole frames, the incomplete one is dropped
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        packets.remove(3);
+        assertReceived(packets, range(0, 3), range(4, 20));
+    }
+
+    @Test
+    public void lostFrames() {
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        packets.remove(4);
+        assertReceived(packets, range(0, 4), range(10, 20));
+    }
+
+    private void assertReceived(List<byte[]> packets, int[]... expected) {
+        AACDepacketizer depacketizer = new AACDepacketizer();
+        depacketizer.setClockFrequency(SAMPLING_RATE);
+        RtpCapture.assertReceived(packets, depacketizer, mFrames, FRAME_DURATION, expected);
+    }
+}
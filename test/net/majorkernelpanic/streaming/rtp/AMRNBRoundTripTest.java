@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static net.majorkernelpanic.streaming.rtp.RtpCapture.range;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends AMR-NB frames through {@link AMRNBPacketizer}, three per packet, and reassembles them
+ * with {@link AMRNBDepacketizer}, in the octet-aligned and in the bandwidth-efficient mode.
+ */
+public class AMRNBRoundTripTest {
+    // Size of the speech data of each frame type in bits, up to SID
+    private static final int[] FRAME_BITS = {95, 103, 118, 134, 148, 159, 204, 244, 39};
+
+    private static final int FRAMES_PER_PACKET = 3;
+    private static final int FRAME_COUNT = 30;
+
+    // 160 samples
+    private static final long FRAME_DURATION = 20000;
+
+    private final Random mRandom = new Random(42);
+    private final ArrayList<byte[]> mFrames = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            int type = mRandom.nextInt(FRAME_BITS.length);
+            int bits = FRAME_BITS[type];
+            byte[] frame = new byte[1 + (bits + 7) / 8];
+            mRandom.nextBytes(frame);
+            // Storage header: P FT Q P P, the padding bits of the data are 0 too
+            frame[0] = (byte) (type << 3 | frame[0] & 0x04);
+            frame[frame.length - 1] &= (byte) (0xFF << (8 - bits % 8) % 8);
+            mFrames.add(frame);
+        }
+    }
+
+    @Test
+    public void octetAligned() throws IOException, InterruptedException {
+        assertReceived(send(true), true, range(0, FRAME_COUNT));
+    }
+
+    @Test
+    public void bandwidthEfficient() throws IOException, InterruptedException {
+        assertReceived(send(false), false, range(0, FRAME_COUNT));
+    }
+
+    @Test
+    public void octetAlignedLostAndReordered() throws IOException, InterruptedException {
+        assertReceived(lossAndReorder(send(true)), true, range(0, 9), range(12, FRAME_COUNT));
+    }
+
+    @Test
+    public void bandwidthEfficientLostAndReordered() throws IOException, InterruptedException {
+        assertReceived(lossAndReorder(send(false)), false, range(0, 9), range(12, FRAME_COUNT));
+    }
+
+    /** Loses the packet of frames 9 to 11 and swaps two packets. */
+    private static List<byte[]> lossAndReorder(List<byte[]> packets) {
+        ArrayList<byte[]> list = new ArrayList<>(packets);
+        list.remove(3);
+        Collections.swap(list, 4, 5);
+        return list;
+    }
+
+    private List<byte[]> send(boolean octetAligned) throws IOException, InterruptedException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write("#!AMR\n".getBytes(StandardCharsets.US_ASCII));
+        for (byte[] frame : mFrames) {
+            stream.write(frame);
+        }
+
+        AMRNBPacketizer packetizer = new AMRNBPacketizer();
+        RtpCapture capture = new RtpCapture(packetizer.getRtpSocket());
+        packetizer.setFramesPerPacket(FRAMES_PER_PACKET);
+        packetizer.setOctetAligned(octetAligned);
+        packetizer.setInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        packetizer.start();
+        try {
+            return capture.await(FRAME_COUNT / FRAMES_PER_PACKET);
+        } finally {
+            packetizer.stop();
+        }
+    }
+
+    private void assertReceived(List<byte[]> packets, boolean octetAligned, int[]... expected) {
+        AMRNBDepacketizer depacketizer = new AMRNBDepacketizer();
+        depacketizer.setOctetAligned(octetAligned);
+        RtpCapture.assertReceived(packets, depacketizer, mFrames, FRAME_DURATION, expected);
+    }
+}
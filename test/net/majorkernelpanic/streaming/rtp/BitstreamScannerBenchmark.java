@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@link BitstreamScanner} against the byte at a time loops it
+ * replaced, on random data (what an encoder outputs looks like that) with a pattern every
+ * packet or so. Run its main method, the results are printed in MB/s.
+ */
+public class BitstreamScannerBenchmark {
+    private static final int SIZE = 8 << 20;
+    private static final int SPACING = 1400;
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int ROUNDS = 20;
+
+    private interface ArrayScanner {
+        int find(byte[] data, int p, int end);
+    }
+
+    private interface BufferScanner {
+        int find(ByteBuffer data, int p);
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        byte[] video = stream(random, new byte[]{0, 0, 1});
+        byte[] h263 = stream(random, new byte[]{0, 0, (byte) 0x80});
+        byte[] adts = stream(random, new byte[]{(byte) 0xFF, (byte) 0xF1});
+        byte[] mp4 = stream(random, new byte[]{'a', 'v', 'c', 'C'});
+        byte[] avcc = {'a', 'v', 'c', 'C'};
+
+        compare("Start code, byte[]", video, BitstreamScannerTest::naiveStartCode,
+                BitstreamScanner::findStartCode);
+        compare("Start code, heap buffer", ByteBuffer.wrap(video),
+                BitstreamScannerBenchmark::naiveStartCode, BitstreamScanner::findStartCode);
+        ByteBuffer direct = ByteBuffer.allocateDirect(SIZE);
+        direct.put(video).clear();
+        compare("Start code, direct buffer", direct,
+                BitstreamScannerBenchmark::naiveStartCode, BitstreamScanner::findStartCode);
+        compare("H.263 picture start code", h263, BitstreamScannerTest::naivePictureStartCode,
+                BitstreamScanner::findPictureStartCode);
+        compare("ADTS syncword", adts, BitstreamScannerTest::naiveAdtsSyncWord,
+                BitstreamScanner::findAdtsSyncWord);
+        compare("avcC box", mp4, (d, p, e) -> BitstreamScannerTest.naiveIndexOf(d, p, e, avcc),
+                (d, p, e) -> BitstreamScanner.indexOf(d, p, e, avcc));
+    }
+
+    /** Returns random bytes with the pattern planted every SPACING bytes or so. */
+    private static byte[] stream(Random random, byte[] pattern) {
+        byte[] data = new byte[SIZE];
+        random.nextBytes(data);
+        for (int p = random.nextInt(SPACING); p + pattern.length <= SIZE;
+                p += SPACING / 2 + random.nextInt(SPACING)) {
+            System.arraycopy(pattern, 0, data, p, pattern.length);
+        }
+        return data;
+    }
+
+    private static int naiveStartCode(ByteBuffer data, int p) {
+        int limit = data.limit();
+        for (; p + 2 < limit; p++) {
+            if (data.get(p) == 0 && data.get(p + 1) == 0 && data.get(p + 2) == 1) {
+                return p;
+            }
+        }
+        return limit;
+    }
+
+    private static void compare(String name, byte[] data, ArrayScanner naive,
+            ArrayScanner scanner) {
+        int count = scan(data, naive);
+        if (scan(data, scanner) != count) {
+            throw new AssertionError(name + ": the scanner disagrees with the naive loop");
+        }
+        long naiveTime = 0, scannerTime = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + ROUNDS; i++) {
+            long start = System.nanoTime();
+            scan(data, naive);
+            long middle = System.nanoTime();
+            scan(data, scanner);
+            long end = System.nanoTime();
+            if (i >= WARMUP_ROUNDS) {
+                naiveTime += middle - start;
+                scannerTime += end - middle;
+            }
+        }
+        print(name, count, naiveTime, scannerTime);
+    }
+
+    private static void compare(String name, ByteBuffer data, BufferScanner naive,
+            BufferScanner scanner) {
+        int count = scan(data, naive);
+        if (scan(data, scanner) != count) {
+            throw new AssertionError(name + ": the scanner disagrees with the naive loop");
+        }
+        long naiveTime = 0, scannerTime = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + ROUNDS; i++) {
+            long start = System.nanoTime();
+            scan(data, naive);
+            long middle = System.nanoTime();
+            scan(data, scanner);
+            long end = System.nanoTime();
+            if (i >= WARMUP_ROUNDS) {
+                naiveTime += middle - start;
+                scannerTime += end - middle;
+            }
+        }
+        print(name, count, naiveTime, scannerTime);
+    }
+
+    /** Returns the number of occurrences of the pattern. */
+    private static int scan(byte[] data, ArrayScanner scanner) {
+        int count = 0;
+        for (int p = scanner.find(data, 0, data.length); p < data.length;
+                p = scanner.find(data, p + 1, data.length)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int scan(ByteBuffer data, BufferScanner scanner) {
+        int count = 0;
+        int limit = data.limit();
+        for (int p = scanner.find(data, 0); p < limit; p = scanner.find(data, p + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void print(String name, int count, long naiveTime, long scannerTime) {
+        double megabytes = (double) SIZE * ROUNDS / (1 << 20);
+        System.out.println(String.format(Locale.US,
+                "%-26s %6d found  naive %8.1f MB/s  scanner %8.1f MB/s  x%.1f", name, count,
+                megabytes * 1e9 / naiveTime, megabytes * 1e9 / scannerTime,
+                (double) naiveTime / scannerTime));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks {@link BitstreamScanner} against the byte at a time loops it replaced, on every start
+ * offset of random streams where the patterns are planted, some of them across the end of the
+ * range.
+ */
+public class BitstreamScannerTest {
+    private static final byte[] AVCC = {'a', 'v', 'c', 'C'};
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void findStartCodeInArray() {
+        for (int n = 0; n < 200; n++) {
+            byte[] data = stream(64, new byte[]{0, 0, 1});
+            int end = 1 + mRandom.nextInt(data.length);
+            for (int p = 0; p <= end; p++) {
+                assertEquals(naiveStartCode(data, p, end),
+                        BitstreamScanner.findStartCode(data, p, end));
+            }
+        }
+    }
+
+    @Test
+    public void findStartCodeInBuffer() {
+        for (int n = 0; n < 200; n++) {
+            byte[] data = stream(64, new byte[]{0, 0, 1});
+            int end = 1 + mRandom.nextInt(data.length);
+            // Not at the beginning of the array, as the buffers of the codecs
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, end).slice();
+            for (int p = 0; p <= end; p++) {
+                assertEquals(naiveStartCode(data, p, end),
+                        BitstreamScanner.findStartCode(buffer, p));
+            }
+        }
+    }
+
+    @Test
+    public void findPictureStartCode() {
+        for (int n = 0; n < 200; n++) {
+            byte[] data = stream(64, new byte[]{0, 0, (byte) (0x80 | mRandom.nextInt(4))});
+            int end = 1 + mRandom.nextInt(data.length);
+            for (int p = 0; p <= end; p++) {
+                assertEquals(naivePictureStartCode(data, p, end),
+                        BitstreamScanner.findPictureStartCode(data, p, end));
+            }
+        }
+    }
+
+    @Test
+    public void findAdtsSyncWord() {
+        for (int n = 0; n < 200; n++) {
+            byte[] data = stream(64, new byte[]{(byte) 0xFF, (byte) (0xF0 | mRandom.nextInt(16))});
+            int end = 1 + mRandom.nextInt(data.length);
+            for (int p = 0; p <= end; p++) {
+                assertEquals(naiveAdtsSyncWord(data, p, end),
+                        BitstreamScanner.findAdtsSyncWord(data, p, end));
+            }
+        }
+    }
+
+    @Test
+    public void indexOf() {
+        for (int n = 0; n < 200; n++) {
+            byte[] data = stream(64, AVCC);
+            int end = 1 + mRandom.nextInt(data.length);
+            for (int p = 0; p <= end; p++) {
+                assertEquals(naiveIndexOf(data, p, end, AVCC),
+                        BitstreamScanner.indexOf(data, p, end, AVCC));
+            }
+        }
+    }
+
+    @Test
+    public void noPattern() {
+        byte[] data = new byte[100];
+        assertEquals(100, BitstreamScanner.findStartCode(data, 0, 100));
+        assertEquals(100, BitstreamScanner.findStartCode(ByteBuffer.wrap(data), 0));
+        assertEquals(100, BitstreamScanner.findAdtsSyncWord(data, 0, 100));
+        assertEquals(100, BitstreamScanner.indexOf(data, 0, 100, AVCC));
+        assertEquals(2, BitstreamScanner.findStartCode(data, 0, 2));
+        assertEquals(0, BitstreamScanner.indexOf(data, 0, 0, AVCC));
+    }
+
+    /**
+     * Returns random bytes, mostly zeros and small values so that partial patterns are frequent,
+     * with the pattern planted a few times.
+     */
+    private byte[] stream(int length, byte[] pattern) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int r = mRandom.nextInt(8);
+            data[i] = (byte) (r < 3 ? 0 : r < 5 ? 1 : r < 6 ? 0xFF : mRandom.nextInt(256));
+        }
+        for (int n = mRandom.nextInt(4); n > 0; n--) {
+            System.arraycopy(pattern, 0, data, mRandom.nextInt(length - pattern.length + 1),
+                    pattern.length);
+        }
+        return data;
+    }
+
+    static int naiveStartCode(byte[] data, int p, int end) {
+        for (; p + 2 < end; p++) {
+            if (data[p] == 0 && data[p + 1] == 0 && data[p + 2] == 1) {
+                return p;
+            }
+        }
+        return end;
+    }
+
+    static int naivePictureStartCode(byte[] data, int p, int end) {
+        for (; p + 2 < end; p++) {
+            if (data[p] == 0 && data[p + 1] == 0 && (data[p + 2] & 0xFC) == 0x80) {
+                return p;
+            }
+        }
+        return end;
+    }
+
+    static int naiveAdtsSyncWord(byte[] data, int p, int end) {
+        for (; p + 1 < end; p++) {
+            if (data[p] == (byte) 0xFF && (data[p + 1] & 0xF0) == 0xF0) {
+                return p;
+            }
+        }
+        return end;
+    }
+
+    static int naiveIndexOf(byte[] data, int p, int end, byte[] pattern) {
+        for (; p + pattern.length <= end; p++) {
+            int i = 0;
+            while (i < pattern.length && data[p + i] == pattern[i]) {
+                i++;
+            }
+            if (i == pattern.length) {
+                return p;
+            }
+        }
+        return end;
+    }
+}
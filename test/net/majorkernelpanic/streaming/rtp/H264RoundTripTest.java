@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.media.MediaCodec.BufferInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends access units through {@link H264Packetizer} and reassembles them with
+ * {@link H264Depacketizer}, with packets lost or reordered on the way. Only the access units
+ * damaged by a loss may be missing.
+ */
+public class H264RoundTripTest {
+    private static final long FRAME_DURATION = 40000;
+
+    private final Random mRandom = new Random(42);
+    private final ArrayList<byte[]> mUnits = new ArrayList<>();
+    private final ArrayList<Long> mReceived = new ArrayList<>();
+    private List<byte[]> mPackets;
+    // The access unit carried by each packet
+    private int[] mUnitOfPacket;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        // IDR pictures with their parameter sets, P slices in one or several packets, and a SEI
+        // with its slice
+        mUnits.add(accessUnit(nalUnit(0x67, 12), nalUnit(0x68, 4), nalUnit(0x65, 4000)));
+        mUnits.add(accessUnit(nalUnit(0x41, 500)));
+        mUnits.add(accessUnit(nalUnit(0x41, 3000)));
+        mUnits.add(accessUnit(nalUnit(0x06, 20), nalUnit(0x41, 300)));
+        mUnits.add(accessUnit(nalUnit(0x67, 12), nalUnit(0x68, 4), nalUnit(0x65, 2000)));
+        mUnits.add(accessUnit(nalUnit(0x41, 800)));
+
+        H264Packetizer packetizer = new H264Packetizer();
+        RtpCapture capture = new RtpCapture(packetizer.getRtpSocket());
+        BufferInfo info = new BufferInfo();
+        for (int i = 0; i < mUnits.size(); i++) {
+            info.presentationTimeUs = i * FRAME_DURATION;
+            info.flags = 0;
+            packetizer.onAccessUnit(ByteBuffer.wrap(mUnits.get(i)), info);
+        }
+        mPackets = capture.finish((mUnits.size() - 1) * FRAME_DURATION * 1000);
+
+        // The timestamp changes with the access unit
+        mUnitOfPacket = new int[mPackets.size()];
+        for (int i = 1; i < mPackets.size(); i++) {
+            boolean same = Arrays.equals(Arrays.copyOfRange(mPackets.get(i), 4, 8),
+                    Arrays.copyOfRange(mPackets.get(i - 1), 4, 8));
+            mUnitOfPacket[i] = mUnitOfPacket[i - 1] + (same ? 0 : 1);
+        }
+        assertEquals(mUnits.size() - 1, mUnitOfPacket[mPackets.size() - 1]);
+    }
+
+    @Test
+    public void inOrder() {
+        assertReceived(mPackets, 0, 1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void reordered() {
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        Collections.swap(packets, 2, 3);
+        Collections.swap(packets, packets(2).get(0), packets(2).get(2));
+        Collections.swap(packets, packets(3).get(1), packets(4).get(0));
+        assertReceived(packets, 0, 1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void lostFragment() {
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        packets.remove((int) packets(2).get(1));
+        assertReceived(packets, 0, 1, 3, 4, 5);
+    }
+
+    @Test
+    public void lostAccessUnit() {
+        // The next access unit can't be decoded without it
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        packets.remove((int) packets(1).get(0));
+        assertReceived(packets, 0, 3, 4, 5);
+    }
+
+    @Test
+    public void lostLastPacket() {
+        // The marker bit is lost with it, the access unit ends with the timestamp
+        List<Integer> indexes = packets(3);
+        ArrayList<byte[]> packets = new ArrayList<>(mPackets);
+        packets.remove((int) indexes.get(indexes.size() - 1));
+        assertReceived(packets, 0, 1, 2, 4, 5);
+    }
+
+    /** Returns the indexes of the packets of an access unit. */
+    private List<Integer> packets(int unit) {
+        ArrayList<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < mUnitOfPacket.length; i++) {
+            if (mUnitOfPacket[i] == unit) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+
+    private void assertReceived(List<byte[]> packets, int... expected) {
+        ArrayList<byte[]> units = new ArrayList<>();
+        H264Depacketizer depacketizer = new H264Depacketizer();
+        depacketizer.setCallback(unit -> {
+            mReceived.add(unit.presentationTimeUs);
+            units.add(Arrays.copyOf(unit.data, unit.length));
+            long time = unit.presentationTimeUs;
+            assertEquals(time == 0 || time == 4 * FRAME_DURATION, unit.keyFrame);
+        });
+        RtpCapture.receive(packets, depacketizer);
+
+        assertEquals(expected.length, units.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i] * FRAME_DURATION, (long) mReceived.get(i));
+            assertArrayEquals(mUnits.get(expected[i]), units.get(i));
+        }
+    }
+
+    /** Returns a NAL unit whose bytes can't be mistaken for a start code. */
+    private byte[] nalUnit(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            nal[i] = (byte) (1 + mRandom.nextInt(255));
+        }
+        return nal;
+    }
+
+    private static byte[] accessUnit(byte[]... nalUnits) {
+        ByteArrayOutputStream unit = new ByteArrayOutputStream();
+        for (byte[] nal : nalUnits) {
+            unit.write(0);
+            unit.write(0);
+            unit.write(0);
+            unit.write(1);
+            unit.write(nal, 0, nal.length);
+        }
+        return unit.toByteArray();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec.BufferInfo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends Annex B access units through {@link H265Packetizer} and rebuilds their NAL units from
+ * the AP, FU and single NAL unit packets. There is no H.265 depacketizer, the packets are parsed
+ * here.
+ */
+public class H265RoundTripTest {
+    private static final long FRAME_DURATION = 40000;
+
+    // NAL unit headers: type << 1 | LayerId >> 5, (LayerId & 0x1F) << 3 | TID + 1
+    private static final int[] VPS = {0x40, 0x01}, SPS = {0x42, 0x01}, PPS = {0x44, 0x01};
+    private static final int[] IDR_W_RADL = {0x26, 0x01};
+    private static final int[] TRAIL_R = {0x02, 0x01};
+    // LayerId 33 and TID 2
+    private static final int[] TRAIL_R_LAYER = {0x03, 0x0B};
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void aggregation() throws IOException, InterruptedException {
+        byte[][] key = {nalUnit(VPS, 24), nalUnit(SPS, 40), nalUnit(PPS, 8),
+                nalUnit(IDR_W_RADL, 600)};
+        byte[][] picture = {nalUnit(TRAIL_R, 300)};
+        List<byte[]> packets = send(accessUnit(key), accessUnit(picture));
+
+        // The IRAP picture and its parameter sets in one AP, the next picture alone
+        assertEquals(2, packets.size());
+        byte[] ap = packets.get(0);
+        assertEquals(H265Packetizer.AP, H265Packetizer.getType(ap[RtpSocket.RTP_HEADER_LENGTH]));
+        // The lowest LayerId and TID of the NAL units
+        assertEquals(0x01, ap[RtpSocket.RTP_HEADER_LENGTH + 1]);
+        assertTrue(isMarked(ap));
+        assertEquals(TRAIL_R[0] >> 1,
+                H265Packetizer.getType(packets.get(1)[RtpSocket.RTP_HEADER_LENGTH]));
+        assertTrue(isMarked(packets.get(1)));
+        assertReceived(packets, key, picture);
+    }
+
+    @Test
+    public void fragmentation() throws IOException, InterruptedException {
+        byte[][] picture = {nalUnit(TRAIL_R_LAYER, 4000)};
+        List<byte[]> packets = send(accessUnit(picture));
+
+        assertTrue(packets.size() > 2);
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            int p = RtpSocket.RTP_HEADER_LENGTH;
+            // The PayloadHdr keeps the F bit, the LayerId and the TID of the NAL unit
+            assertEquals(H265Packetizer.FU << 1 | TRAIL_R_LAYER[0] & 0x81, packet[p] & 0xFF);
+            assertEquals(TRAIL_R_LAYER[1], packet[p + 1]);
+            int fuHeader = packet[p + 2] & 0xFF;
+            assertEquals(TRAIL_R_LAYER[0] >> 1, fuHeader & 0x3F);
+            assertEquals(i == 0, (fuHeader & H265Packetizer.FU_START_FLAG) != 0);
+            assertEquals(i == packets.size() - 1, (fuHeader & H265Packetizer.FU_END_FLAG) != 0);
+            assertEquals(i == packets.size() - 1, isMarked(packet));
+        }
+        assertReceived(packets, picture);
+    }
+
+    @Test
+    public void parameterSets() throws IOException, InterruptedException {
+        // The csd-0 of the encoder, from which H265Stream builds sprop-vps, sprop-sps and
+        // sprop-pps
+        byte[] vps = nalUnit(VPS, 24), sps = nalUnit(SPS, 40), pps = nalUnit(PPS, 8);
+        byte[][] sets = H265Packetizer.findParameterSets(
+                ByteBuffer.wrap(accessUnit(vps, sps, pps)));
+        assertArrayEquals(vps, sets[0]);
+        assertArrayEquals(sps, sets[1]);
+        assertArrayEquals(pps, sets[2]);
+
+        // They are sent in-band before the IRAP pictures of a stream that lacks them
+        H265Packetizer packetizer = new H265Packetizer();
+        packetizer.setStreamParameters(sets[0], sets[1], sets[2]);
+        byte[][] key = {nalUnit(IDR_W_RADL, 3000)};
+        byte[][] picture = {nalUnit(TRAIL_R, 200)};
+        List<byte[]> packets = send(packetizer, accessUnit(key), accessUnit(picture),
+                accessUnit(key));
+        assertReceived(packets, new byte[][]{vps, sps, pps, key[0]}, picture,
+                new byte[][]{vps, sps, pps, key[0]});
+    }
+
+    private List<byte[]> send(byte[]... units) throws IOException, InterruptedException {
+        return send(new H265Packetizer(), units);
+    }
+
+    private static List<byte[]> send(H265Packetizer packetizer, byte[]... units)
+            throws IOException, InterruptedException {
+        RtpCapture capture = new RtpCapture(packetizer.getRtpSocket());
+        BufferInfo info = new BufferInfo();
+        for (int i = 0; i < units.length; i++) {
+            info.presentationTimeUs = i * FRAME_DURATION;
+            info.flags = 0;
+            packetizer.onAccessUnit(ByteBuffer.wrap(units[i]), info);
+        }
+        return capture.finish((units.length - 1) * FRAME_DURATION * 1000);
+    }
+
+    /** Rebuilds the NAL units of each access unit, told apart by their RTP timestamp. */
+    private static void assertReceived(List<byte[]> packets, byte[][]... expected) {
+        ArrayList<List<byte[]>> units = new ArrayList<>();
+        ByteArrayOutputStream fragments = null;
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            if (i == 0 || !Arrays.equals(Arrays.copyOfRange(packet, 4, 8),
+                    Arrays.copyOfRange(packets.get(i - 1), 4, 8))) {
+                units.add(new ArrayList<>());
+            }
+            List<byte[]> unit = units.get(units.size() - 1);
+            int p = RtpSocket.RTP_HEADER_LENGTH;
+            int type = H265Packetizer.getType(packet[p]);
+            if (type == H265Packetizer.AP) {
+                // 16 bits size followed by the NAL unit, for each NAL unit
+                p += 2;
+                while (p < packet.length) {
+                    int size = (packet[p] & 0xFF) << 8 | packet[p + 1] & 0xFF;
+                    unit.add(Arrays.copyOfRange(packet, p + 2, p + 2 + size));
+                    p += 2 + size;
+                }
+            } else if (type == H265Packetizer.FU) {
+                int fuHeader = packet[p + 2] & 0xFF;
+                if ((fuHeader & H265Packetizer.FU_START_FLAG) != 0) {
+                    // The NAL unit header is rebuilt from the PayloadHdr and the FU header
+                    fragments = new ByteArrayOutputStream();
+                    fragments.write(packet[p] & 0x81 | (fuHeader & 0x3F) << 1);
+                    fragments.write(packet[p + 1]);
+                }
+                fragments.write(packet, p + 3, packet.length - p - 3);
+                if ((fuHeader & H265Packetizer.FU_END_FLAG) != 0) {
+                    unit.add(fragments.toByteArray());
+                }
+            } else {
+                unit.add(Arrays.copyOfRange(packet, p, packet.length));
+            }
+        }
+
+        assertEquals(expected.length, units.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].length, units.get(i).size());
+            for (int j = 0; j < expected[i].length; j++) {
+                assertArrayEquals("NAL unit " + j + " of access unit " + i, expected[i][j],
+                        units.get(i).get(j));
+            }
+        }
+    }
+
+    private static boolean isMarked(byte[] packet) {
+        return (packet[1] & 0x80) != 0;
+    }
+
+    /** Returns a NAL unit whose bytes can't be mistaken for a start code. */
+    private byte[] nalUnit(int[] header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header[0];
+        nal[1] = (byte) header[1];
+        for (int i = 2; i < size; i++) {
+            nal[i] = (byte) (1 + mRandom.nextInt(255));
+        }
+        return nal;
+    }
+
+    private static byte[] accessUnit(byte[]... nalUnits) {
+        ByteArrayOutputStream unit = new ByteArrayOutputStream();
+        for (byte[] nal : nalUnits) {
+            unit.write(0);
+            unit.write(0);
+            unit.write(0);
+            unit.write(1);
+            unit.write(nal, 0, nal.length);
+        }
+        return unit.toByteArray();
+    }
+}
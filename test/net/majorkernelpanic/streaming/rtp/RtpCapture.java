@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the RTP packets sent by an {@link RtpSocket} on its TCP transport, and feeds them to a
+ * depacketizer through a {@link JitterBuffer}, for round-trip tests of the payload formats.
+ * The packets must be committed to the socket from a single thread.
+ */
+public class RtpCapture extends OutputStream {
+    // The socket does not send the first packets of its FIFO
+    private static final int SKIPPED_PACKETS = 31;
+
+    private static final long TIMEOUT = 5000;
+
+    private final RtpSocket mSocket;
+    private final ArrayList<byte[]> mPackets = new ArrayList<>();
+    // The interleaved frames are written in two parts, the header and the packet
+    private byte[] mPending = new byte[0];
+
+    public RtpCapture(RtpSocket socket) throws IOException, InterruptedException {
+        mSocket = socket;
+        socket.setOutputStream(this, (byte) 0);
+        for (int i = 0; i < SKIPPED_PACKETS; i++) {
+            socket.requestBuffer();
+            socket.updateTimestamp(0);
+            socket.commitBuffer(RtpSocket.RTP_HEADER_LENGTH);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int length) {
+        byte[] data = Arrays.copyOf(mPending, mPending.length + length);
+        System.arraycopy(buffer, offset, data, mPending.length, length);
+        int p = 0;
+        while (p + 4 <= data.length) {
+            int size = (data[p + 2] & 0xFF) << 8 | data[p + 3] & 0xFF;
+            if (p + 4 + size > data.length) {
+                break;
+            }
+            // Channel 0 is RTP, 1 is RTCP
+            if (data[p + 1] == 0) {
+                mPackets.add(Arrays.copyOfRange(data, p + 4, p + 4 + size));
+            }
+            p += 4 + size;
+        }
+        mPending = Arrays.copyOfRange(data, p, data.length);
+        notifyAll();
+    }
+
+    /** Waits for a number of packets and returns them. */
+    public synchronized List<byte[]> await(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mPackets.size() < count) {
+            waitUntil(deadline);
+        }
+        return new ArrayList<>(mPackets);
+    }
+
+    /**
+     * Waits for the packets committed to the socket so far and returns them. Must be called from
+     * the thread of the packetizer.
+     *
+     * @param timestamp Timestamp of the last packet in ns
+     */
+    public List<byte[]> finish(long timestamp) throws IOException, InterruptedException {
+        // A packet without payload marks the end of the stream
+        mSocket.requestBuffer();
+        mSocket.updateTimestamp(timestamp);
+        mSocket.commitBuffer(RtpSocket.RTP_HEADER_LENGTH);
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (mPackets.isEmpty()
+                    || mPackets.get(mPackets.size() - 1).length > RtpSocket.RTP_HEADER_LENGTH) {
+                waitUntil(deadline);
+            }
+            return new ArrayList<>(mPackets.subList(0, mPackets.size() - 1));
+        }
+    }
+
+    private void waitUntil(long deadline) throws InterruptedException {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+            fail("Only " + mPackets.size() + " packets received");
+        }
+        wait(wait);
+    }
+
+    /**
+     * Puts packets in a jitter buffer that does not wait for the missing ones, and hands what
+     * comes out to a depacketizer.
+     *
+     * @param packets      The packets in the order of their arrival, the first one must be the
+     *                     first one sent
+     * @param depacketizer Receives the packets in order
+     */
+    public static void receive(List<byte[]> packets, AbstractDepacketizer depacketizer) {
+        JitterBuffer buffer = new JitterBuffer(JitterBuffer.DEFAULT_CAPACITY, 0);
+        for (byte[] data : packets) {
+            RtpPacket packet = buffer.obtain();
+            if (!packet.set(data, 0, data.length)) {
+                fail("Invalid RTP packet");
+            }
+            buffer.put(packet);
+        }
+        RtpPacket packet;
+        while ((packet = buffer.poll()) != null) {
+            depacketizer.depacketize(packet);
+            buffer.recycle(packet);
+        }
+        depacketizer.flush();
+    }
+
+    /**
+     * Hands packets to a depacketizer with {@link #receive(List, AbstractDepacketizer)} and checks
+     * the frames that come out and their presentation time.
+     *
+     * @param frames        The frames sent, the n-th one at n times the frame duration
+     * @param frameDuration The duration of a frame in us
+     * @param expected      The indexes of the frames that must come out, see
+     *                      {@link #range(int, int)}
+     */
+    public static void assertReceived(List<byte[]> packets, AbstractDepacketizer depacketizer,
+            List<byte[]> frames, long frameDuration, int[]... expected) {
+        ArrayList<byte[]> received = new ArrayList<>();
+        ArrayList<Long> times = new ArrayList<>();
+        depacketizer.setCallback(unit -> {
+            received.add(Arrays.copyOf(unit.data, unit.length));
+            times.add(unit.presentationTimeUs);
+        });
+        receive(packets, depacketizer);
+
+        int n = 0;
+        for (int[] range : expected) {
+            for (int i : range) {
+                assertArrayEquals("Frame " + i, frames.get(i), received.get(n));
+                assertEquals(i * frameDuration, (long) times.get(n));
+                n++;
+            }
+        }
+        assertEquals(n, received.size());
+    }
+
+    /** Returns the integers from start, inclusive, to end, exclusive. */
+    public static int[] range(int start, int end) {
+        int[] range = new int[end - start];
+        for (int i = 0; i < range.length; i++) {
+            range[i] = start + i;
+        }
+        return range;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import net.majorkernelpanic.streaming.rtp.RtpCapture;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Publishes H.264 on an {@link IngestSource} and checks what is relayed when a picture is
+ * damaged: nothing until the next key frame.
+ */
+public class IngestSourceTest {
+    private static final String SESSION_DESCRIPTION = "v=0\r\n"
+            + "o=- 0 0 IN IP4 127.0.0.1\r\n"
+            + "s=Test\r\n"
+            + "c=IN IP4 127.0.0.1\r\n"
+            + "t=0 0\r\n"
+            + "m=video 0 RTP/AVP 96\r\n"
+            + "a=rtpmap:96 H264/90000\r\n"
+            + "a=fmtp:96 packetization-mode=1\r\n"
+            + "a=control:trackID=1\r\n";
+
+    private static final int CHANNEL = 0;
+    private static final int NAL_SLICE = 1, NAL_IDR_SLICE = 5, FU_A = 28;
+
+    private final ArrayList<byte[]> mSent = new ArrayList<>();
+    private IngestSource mSource;
+    private RtpCapture mCapture;
+    private int mSeq = 0;
+    private long mTimestamp = 0;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        mSource = new IngestSource("test", SESSION_DESCRIPTION);
+        mSource.setInterleavedChannel(1, CHANNEL);
+        mSource.record();
+        mCapture = new RtpCapture(mSource.getRtpSocket(1, 0));
+    }
+
+    @After
+    public void tearDown() {
+        mSource.release();
+    }
+
+    @Test
+    public void packetTooBig() throws IOException, InterruptedException {
+        byte[] key = publish(NAL_IDR_SLICE, 100);
+        byte[] picture = publish(NAL_SLICE, 100);
+        // Its first fragment can't be relayed on UDP
+        publishFragmented(NAL_SLICE, RtpSocket.MAX_PACKET_SIZE, 100);
+        publish(NAL_SLICE, 100);
+        byte[] nextKey = publish(NAL_IDR_SLICE, 100);
+        byte[] nextPicture = publish(NAL_SLICE, 100);
+        assertRelayed(key, picture, nextKey, nextPicture);
+    }
+
+    @Test
+    public void incompletePicture() throws IOException, InterruptedException {
+        byte[] key = publish(NAL_IDR_SLICE, 100);
+        // The publisher sends the first fragment only
+        sendFragment(NAL_SLICE, 0x80, new byte[200], false);
+        mTimestamp += 3000;
+        publish(NAL_SLICE, 100);
+        publish(NAL_SLICE, 100);
+        byte[] nextKey = publish(NAL_IDR_SLICE, 100);
+        assertRelayed(key, nextKey);
+    }
+
+    /** Publishes a picture in a single NAL unit packet and returns its payload. */
+    private byte[] publish(int type, int size) {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) mSeq);
+        payload[0] = (byte) (0x60 | type);
+        send(payload, true);
+        mTimestamp += 3000;
+        return payload;
+    }
+
+    /** Publishes a picture in two FU-A packets. */
+    private void publishFragmented(int type, int first, int second) {
+        sendFragment(type, 0x80, new byte[first], false);
+        sendFragment(type, 0x40, new byte[second], true);
+        mTimestamp += 3000;
+    }
+
+    private void sendFragment(int type, int flags, byte[] data, boolean marker) {
+        byte[] payload = new byte[2 + data.length];
+        payload[0] = (byte) (0x60 | FU_A);
+        payload[1] = (byte) (flags | type);
+        System.arraycopy(data, 0, payload, 2, data.length);
+        send(payload, marker);
+    }
+
+    private void send(byte[] payload, boolean marker) {
+        byte[] packet = new byte[RtpSocket.RTP_HEADER_LENGTH + payload.length];
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) ((marker ? 0x80 : 0) | 96);
+        packet[2] = (byte) (mSeq >> 8);
+        packet[3] = (byte) mSeq;
+        for (int i = 0; i < 4; i++) {
+            packet[4 + i] = (byte) (mTimestamp >> (24 - 8 * i));
+        }
+        System.arraycopy(payload, 0, packet, RtpSocket.RTP_HEADER_LENGTH, payload.length);
+        mSeq++;
+        mSource.receiveInterleaved(CHANNEL, packet, 0, packet.length);
+    }
+
+    private void assertRelayed(byte[]... expected) throws IOException, InterruptedException {
+        List<byte[]> packets = mCapture.finish(mTimestamp * 1000000L / 90);
+        assertEquals(expected.length, packets.size());
+        for (int i = 0; i < expected.length; i++) {
+            byte[] packet = packets.get(i);
+            assertArrayEquals("Packet " + i, expected[i], Arrays.copyOfRange(packet,
+                    RtpSocket.RTP_HEADER_LENGTH, packet.length));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the throughput of {@link RtspRequestParser}, and of the BufferedReader and regular
+ * expressions it replaced, on the requests a server gets the most: OPTIONS keepalives, received
+ * one per read, and SETUP, SETUP and PLAY pipelined by a client in a single read. Run its main
+ * method, the results are printed in requests per second and bytes allocated per request.
+ */
+public class RtspRequestParserBenchmark {
+    private static final int REQUESTS = 1000000;
+    private static final int WARMUP_REQUESTS = 200000;
+
+    private static final String KEEPALIVE = "OPTIONS rtsp://192.168.1.10:8086/ RTSP/1.0\r\n"
+            + "CSeq: 42\r\n"
+            + "User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n"
+            + "Session: 1185d20035702ca\r\n"
+            + "\r\n";
+
+    private static final String PIPELINED = "SETUP rtsp://192.168.1.10:8086/trackID=0 RTSP/1.0\r\n"
+            + "CSeq: 3\r\n"
+            + "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n"
+            + "User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n"
+            + "\r\n"
+            + "SETUP rtsp://192.168.1.10:8086/trackID=1 RTSP/1.0\r\n"
+            + "CSeq: 4\r\n"
+            + "Transport: RTP/AVP/TCP;unicast;interleaved=2-3\r\n"
+            + "Session: 1185d20035702ca\r\n"
+            + "User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n"
+            + "\r\n"
+            + "PLAY rtsp://192.168.1.10:8086/ RTSP/1.0\r\n"
+            + "CSeq: 5\r\n"
+            + "Session: 1185d20035702ca\r\n"
+            + "Range: npt=0.000-\r\n"
+            + "User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)\r\n"
+            + "\r\n";
+
+    // The parser that was used before RtspRequestParser
+    private static final Pattern REGEX_METHOD = Pattern.compile("(\\w+)\\s+(\\S+)\\s+RTSP",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern REGEX_HEADER = Pattern.compile("(\\S+)\\s*:\\s*(.+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private interface Parser {
+        /** Parses a request and returns its CSeq, as the server needs it for every request. */
+        int parse() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        run("OPTIONS keepalives", KEEPALIVE);
+        run("Pipelined SETUP/SETUP/PLAY", PIPELINED);
+    }
+
+    private static void run(String name, String requests) throws IOException {
+        byte[] batch = requests.getBytes(StandardCharsets.ISO_8859_1);
+
+        RtspRequestParser parser = new RtspRequestParser(new RepeatingInput(batch));
+        Request request = new Request();
+        measure(name + ", parser", () -> {
+            parser.parse(request);
+            // Tells the server whether the response can wait for the next one
+            parser.hasPendingRequest();
+            return request.getCSeq();
+        });
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new RepeatingInput(batch), StandardCharsets.ISO_8859_1));
+        measure(name + ", regex", () -> {
+            Map<String, String> headers = new HashMap<>();
+            parseWithRegex(reader, headers);
+            return Integer.parseInt(headers.get("cseq").trim());
+        });
+    }
+
+    private static void measure(String name, Parser parser) throws IOException {
+        long sum = 0;
+        for (int i = 0; i < WARMUP_REQUESTS; i++) {
+            sum += parser.parse();
+        }
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            sum += parser.parse();
+        }
+        long time = System.nanoTime() - start;
+        allocated = getAllocatedBytes() - allocated;
+        System.out.println(String.format(Locale.US,
+                "%-38s %10.0f requests/s %8.1f bytes/request (%d)", name,
+                REQUESTS * 1e9 / time, allocated < 0 ? Double.NaN : (double) allocated / REQUESTS,
+                sum));
+    }
+
+    /** Returns the number of bytes allocated by the thread so far, or -1 if not supported. */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /** The request line and the headers as they were parsed before RtspRequestParser. */
+    private static String parseWithRegex(BufferedReader input, Map<String, String> headers)
+            throws IOException {
+        String requestLine = input.readLine();
+        Matcher matcher = REGEX_METHOD.matcher(requestLine);
+        matcher.find();
+        String line;
+        while ((line = input.readLine()) != null && line.length() > 3) {
+            matcher = REGEX_HEADER.matcher(line);
+            matcher.find();
+            headers.put(matcher.group(1).toLowerCase(Locale.US), matcher.group(2));
+        }
+        return requestLine;
+    }
+
+    /** Hands out the same requests over and over, all of them in each read, like a socket. */
+    private static class RepeatingInput extends InputStream {
+        private final byte[] mBatch;
+        private int mPosition = 0;
+
+        RepeatingInput(byte[] batch) {
+            mBatch = batch;
+        }
+
+        @Override
+        public int read() {
+            int b = mBatch[mPosition++] & 0xFF;
+            mPosition %= mBatch.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            len = Math.min(len, mBatch.length - mPosition);
+            System.arraycopy(mBatch, mPosition, b, off, len);
+            mPosition = (mPosition + len) % mBatch.length;
+            return len;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011-2015 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.majorkernelpanic.streaming.rtsp.RtspServer.Request;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class RtspRequestParserTest {
+    private static final String OPTIONS = "OPTIONS rtsp://192.168.1.10:8086/ RTSP/1.0\r\n"
+            + "CSeq: 2\r\n"
+            + "\r\n";
+
+    private static final String ANNOUNCE = "ANNOUNCE rtsp://192.168.1.10:8086/live RTSP/1.0\r\n"
+            + "CSeq: 3\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 10\r\n"
+            + "\r\n"
+            + "v=0\r\ns=-\r\n";
+
+    @Test
+    public void pipelinedRequests() throws IOException {
+        RtspRequestParser parser = parser(ascii(OPTIONS + ANNOUNCE + OPTIONS));
+        Request request = new Request();
+
+        parser.parse(request);
+        assertEquals(Request.METHOD_OPTIONS, request.method);
+        assertEquals(2, request.getCSeq());
+        assertTrue(parser.hasPendingRequest());
+
+        parser.parse(request);
+        assertEquals(Request.METHOD_ANNOUNCE, request.method);
+        assertEquals("rtsp://192.168.1.10:8086/live", request.uri);
+        assertEquals("application/sdp", request.getHeader("content-type"));
+        assertEquals("v=0\r\ns=-\r\n", request.content);
+        assertTrue(parser.hasPendingRequest());
+
+        parser.parse(request);
+        assertEquals(Request.METHOD_OPTIONS, request.method);
+        assertFalse(parser.hasPendingRequest());
+    }
+
+    @Test
+    public void interleavedData() throws IOException {
+        RtspRequestParser parser = parser(concat(interleaved(1, "RTCP"), ascii(OPTIONS)));
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        parser.setInterleavedListener((channel, data, offset, length) -> {
+            received.write(channel);
+            received.write(data, offset, length);
+        });
+        Request request = new Request();
+        parser.parse(request);
+        assertEquals(Request.METHOD_OPTIONS, request.method);
+        assertEquals("\1RTCP", new String(received.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void noPendingRequestInInterleavedData() throws IOException {
+        // The empty lines of an RTP packet are not a request
+        RtspRequestParser parser = parser(concat(ascii(OPTIONS), interleaved(0, "\n\n\r\n")));
+        parser.parse(new Request());
+        assertFalse(parser.hasPendingRequest());
+
+        // Neither are those of a packet not fully received
+        byte[] data = concat(ascii(OPTIONS), interleaved(0, "\n\n\n\n"));
+        parser = parser(Arrays.copyOf(data, data.length - 1));
+        parser.parse(new Request());
+        assertFalse(parser.hasPendingRequest());
+    }
+
+    @Test
+    public void pendingRequestAfterInterleavedData() throws IOException {
+        RtspRequestParser parser = parser(concat(ascii(OPTIONS), interleaved(0, "\n\n"),
+                ascii(OPTIONS)));
+        parser.parse(new Request());
+        assertTrue(parser.hasPendingRequest());
+    }
+
+    private static RtspRequestParser parser(byte[] data) {
+        return new RtspRequestParser(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Returns a "$" framed packet. */
+    private static byte[] interleaved(int channel, String payload) {
+        byte[] data = ascii(payload);
+        return concat(new byte[]{'$', (byte) channel, 0, (byte) data.length}, data);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+}